@@ -19,15 +19,34 @@ import com.github.dockerjava.api.DockerClient;
 import com.github.dockerjava.core.DefaultDockerClientConfig;
 import com.github.dockerjava.core.DockerClientImpl;
 import com.github.dockerjava.transport.DockerHttpClient;
-import com.github.dockerjava.zerodep.ZerodepDockerHttpClient;
+import com.google.gson.JsonObject;
+import net.oneandone.maven.plugins.dockerbuild.model.Credentials;
+import net.oneandone.maven.plugins.dockerbuild.model.ImageReport;
+import net.oneandone.maven.plugins.dockerbuild.model.Metrics;
+import net.oneandone.maven.plugins.dockerbuild.model.Phases;
+import net.oneandone.maven.plugins.dockerbuild.model.Pruner;
+import net.oneandone.maven.plugins.dockerbuild.model.Transport;
 import net.oneandone.sushi.fs.World;
 import net.oneandone.sushi.fs.file.FileNode;
+import org.apache.maven.execution.MavenSession;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.project.MavenProject;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 public abstract class Base extends AbstractMojo {
     protected final World world;
@@ -39,12 +58,65 @@ public abstract class Base extends AbstractMojo {
     @Parameter(defaultValue = "${project.build.directory}/dockerbuild")
     private String buildDirectory;
 
+    /**
+     * OCI image layout directory, used by the export goal and by daemonless builds. Point multiple modules to the same directory
+     * to store shared layers only once.
+     */
+    @Parameter(property = "dockerbuild.exportDirectory", defaultValue = "${project.build.directory}/dockerbuild/oci")
+    private String exportDirectory;
+
     /**
      * true to skip goal.
      */
     @Parameter(defaultValue = "false", property = "dockerbuild.skip")
     protected boolean skip;
 
+    /**
+     * Http transport to the Docker daemon: zerodep supports unix sockets, named pipes and tcp; jdk uses java.net.http and
+     * supports tcp hosts only, and no hijacked connections (i.e. attaching to a container's stdin, which this plugin does not do).
+     */
+    @Parameter(defaultValue = "zerodep", property = "dockerbuild.transport")
+    private String transport;
+
+    /**
+     * Maximum number of concurrent connections to the daemon, shared by all modules of a parallel build that use the same
+     * daemon; further requests wait for a free connection. The transport summary at the end of every goal reports how often and
+     * how long requests waited.
+     */
+    @Parameter(defaultValue = "16", property = "dockerbuild.maxConnections")
+    private int maxConnections;
+
+    /** Seconds to wait for a connection to a tcp daemon host; jdk transport only. */
+    @Parameter(defaultValue = "30", property = "dockerbuild.connectTimeout")
+    private int connectTimeout;
+
+    /**
+     * Seconds to wait for the daemon to respond; 0 for no limit. Zerodep applies it to every read, including build output,
+     * so keep it above the longest silent build step; jdk applies it to the response headers only.
+     */
+    @Parameter(defaultValue = "0", property = "dockerbuild.responseTimeout")
+    private int responseTimeout;
+
+    /** Number of newest snapshot tags of the image repository to keep when pruning. Used by the prune goal and by build with prune enabled. */
+    @Parameter(defaultValue = "3", property = "dockerbuild.pruneKeep")
+    private int pruneKeep;
+
+    /** Also prune snapshot tags older than this, e.g. 7d, 12h or 30m; the image just built is always kept. */
+    @Parameter(property = "dockerbuild.pruneMaxAge")
+    private String pruneMaxAge;
+
+    /** True to remove dangling images from the daemon after removing tags. */
+    @Parameter(defaultValue = "true", property = "dockerbuild.pruneDangling")
+    private boolean pruneDangling;
+
+    /** Trim the daemon's builder cache to this size, e.g. 10g. Not specified to leave the builder cache alone. */
+    @Parameter(property = "dockerbuild.pruneBuilderCache")
+    private String pruneBuilderCache;
+
+    /** Used internally */
+    @Parameter(defaultValue = "${session}", readonly = true)
+    protected MavenSession session;
+
     /** Used internally */
     @Parameter(property = "project", required = true, readonly = true)
     protected final MavenProject project;
@@ -55,6 +127,14 @@ public abstract class Base extends AbstractMojo {
 
     public Base(World world) {
         this.world = world;
+        this.transport = Transport.ZERODEP;
+        this.maxConnections = 16;
+        this.connectTimeout = 30;
+        this.responseTimeout = 0;
+        this.pruneKeep = 3;
+        this.pruneMaxAge = null;
+        this.pruneDangling = true;
+        this.pruneBuilderCache = null;
         this.project = null;
     }
 
@@ -62,16 +142,68 @@ public abstract class Base extends AbstractMojo {
         return world.file(buildDirectory);
     }
 
-    protected FileNode context() {
-        return buildDirectory().join("context");
+    /** @return directory with the files of a variant, laid out like the build directory */
+    protected FileNode variantDirectory(String name) {
+        return buildDirectory().join("variants", name);
+    }
+
+    /** @return build directory, followed by the directories of the variants built by the last build */
+    protected List<FileNode> imageDirectories() throws IOException {
+        List<FileNode> result;
+        FileNode variants;
+
+        result = new ArrayList<>();
+        result.add(buildDirectory());
+        variants = buildDirectory().join("variants");
+        if (variants.isDirectory()) {
+            for (FileNode directory : variants.list()) {
+                if (imageFile(directory).exists()) {
+                    result.add(directory);
+                }
+            }
+            result.subList(1, result.size()).sort(Comparator.comparing(FileNode::getName));
+        }
+        return result;
+    }
+
+    /** @param directory build directory or variant directory */
+    protected static FileNode context(FileNode directory) {
+        return directory.join("context");
+    }
+
+    protected static FileNode buildLog(FileNode directory) {
+        return directory.join("build.log");
+    }
+
+    protected static FileNode imageFile(FileNode directory) {
+        return directory.join("image");
+    }
+
+    protected static FileNode imageReportFile(FileNode directory) {
+        return directory.join("image-report.txt");
+    }
+
+    protected static FileNode contextReportFile(FileNode directory) {
+        return directory.join("context-report.txt");
+    }
+
+    /** inputs and cache results of the last daemon build, to explain cache misses of the next one */
+    protected static FileNode buildRecordFile(FileNode directory) {
+        return directory.join("build-record.json");
+    }
+
+    /** exists if the image was built daemonless; contains the layout directory */
+    protected static FileNode daemonlessFile(FileNode directory) {
+        return directory.join("daemonless");
     }
 
-    protected FileNode buildLog() {
-        return buildDirectory().join("build.log");
+    /** exists if the image was built on a build cache miss; contains the cache image name for push */
+    protected static FileNode cacheFile(FileNode directory) {
+        return directory.join("cache");
     }
 
-    protected FileNode imageFile() {
-        return buildDirectory().join("image");
+    protected FileNode exportDirectory() {
+        return world.file(exportDirectory);
     }
 
     @Override
@@ -89,20 +221,177 @@ public abstract class Base extends AbstractMojo {
 
     public void doExecute() throws IOException, MojoExecutionException {
         DefaultDockerClientConfig config;
+        boolean success;
 
         config = DefaultDockerClientConfig.createDefaultConfigBuilder().build();
-        try (DockerHttpClient http = new ZerodepDockerHttpClient.Builder()
-                .dockerHost(config.getDockerHost())
-                .sslConfig(config.getSSLConfig())
-                .build();
+        phases = new Phases();
+        success = false;
+        try (Transport http = Transport.create(getLog(), config, transport, maxConnections, connectTimeout, responseTimeout,
+                session == null ? null : session.getRepositorySession().getData());
              DockerClient docker = DockerClientImpl.getInstance(config, http)) {
             initConfigPath(config.getDockerConfigPath());
+            this.http = http;
             doExecute(docker);
+            success = true;
+        } finally {
+            if (http != null) {
+                if (http.getWaited() > 0) {
+                    getLog().info(http.summary());
+                } else {
+                    getLog().debug(http.summary());
+                }
+            }
+            metrics(success);
+        }
+    }
+
+    /** write metrics files and add them to the reactor summary */
+    private void metrics(boolean success) {
+        String goal;
+        JsonObject execution;
+
+        goal = getClass().getSimpleName().toLowerCase(Locale.ROOT);
+        execution = Metrics.execution(project.getGroupId() + ":" + project.getArtifactId(), goal, success, phases,
+                System.currentTimeMillis(), http);
+        try {
+            buildDirectory().mkdirsOpt();
+            buildDirectory().join("metrics-" + goal + ".json").writeString(Metrics.toJson(execution));
+            buildDirectory().join("metrics-" + goal + ".prom").writeString(Metrics.toPrometheus(execution));
+        } catch (IOException e) {
+            getLog().warn("cannot write metrics: " + e.getMessage());
+        }
+        if (session != null) {
+            Metrics.collect(session.getRepositorySession().getData(), execution);
+        }
+    }
+
+    private String configPath;
+
+    private Transport http;
+
+    /** timing of the current goal execution */
+    protected Phases phases;
+
+    /** for daemon api calls not supported by docker-java */
+    protected DockerHttpClient http() {
+        return http;
+    }
+
+    /**
+     * Remove old snapshot tags of the images' repositories, then dangling images and builder cache as configured. Called once
+     * for all images of an execution, after all of them are built, so none of them is removed.
+     */
+    protected void prune(DockerClient docker, List<String> images) throws IOException, MojoExecutionException {
+        Pruner pruner;
+        Set<String> repositories;
+        String repository;
+        int idx;
+        List<String> tags;
+        long before;
+        long reclaimed;
+        long dangling;
+        long builder;
+        int removed;
+
+        pruner = new Pruner(getLog(), docker, http);
+        repositories = new LinkedHashSet<>();
+        tags = new ArrayList<>();
+        try {
+            for (String image : images) {
+                idx = image.lastIndexOf(':');
+                repository = idx > image.lastIndexOf('/') ? image.substring(0, idx) : image;
+                if (repositories.add(repository)) {
+                    tags.addAll(Pruner.select(pruner.tags(repository), image, pruneKeep,
+                            pruneMaxAge == null ? null : Pruner.parseAge(pruneMaxAge), System.currentTimeMillis()));
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
         }
+        tags.removeAll(images);
+        if (tags.isEmpty()) {
+            reclaimed = 0;
+            removed = 0;
+        } else {
+            before = pruner.layersSize();
+            removed = pruner.remove(tags);
+            reclaimed = Math.max(0, before - pruner.layersSize());
+        }
+        dangling = pruneDangling ? pruner.dangling() : 0;
+        builder = pruneBuilderCache == null ? 0 : pruner.builderCache(size(pruneBuilderCache));
+        getLog().info("pruned " + removed + " snapshot tag(s) of " + String.join(", ", repositories) + ": "
+                + ImageReport.formatSize(reclaimed) + " reclaimed, " + ImageReport.formatSize(dangling) + " from dangling images, "
+                + ImageReport.formatSize(builder) + " from builder cache");
+    }
+
+    /** Work on one item of runAll */
+    protected interface Task<T> {
+        void run(T item) throws IOException, MojoExecutionException;
+    }
+
+    /**
+     * Runs the task for all items, up to threads concurrently. All tasks finish before the first failure is reported.
+     *
+     * @param what task name for threads and messages, e.g. push
+     * @param name describes an item in error messages
+     */
+    protected <T> void runAll(String what, int threads, List<T> items, Function<T, String> name, Task<T> task)
+            throws MojoExecutionException {
+        AtomicInteger count;
+        ExecutorService executor;
+        List<Future<?>> futures;
+        Throwable first;
+        int failed;
+
+        count = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(Math.min(Math.max(1, threads), items.size()), runnable ->
+                new Thread(runnable, "dockerbuild-" + what + "-" + count.incrementAndGet()));
+        futures = new ArrayList<>();
+        first = null;
+        failed = 0;
+        try {
+            for (T item : items) {
+                futures.add(executor.submit(() -> {
+                    task.run(item);
+                    return null;
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    getLog().error(name.apply(items.get(i)) + ": " + what + " failed: " + e.getCause().getMessage());
+                    failed++;
+                    if (first == null) {
+                        first = e.getCause();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException(what + " interrupted", e);
+        } finally {
+            executor.shutdownNow();
+        }
+        if (first != null) {
+            throw new MojoExecutionException(failed + " of " + items.size() + " " + what + "(s) failed: " + first.getMessage(), first);
+        }
+    }
+
+    private static long size(String str) throws MojoExecutionException {
+        try {
+            return ImageReport.parseSize(str);
+        } catch (IllegalArgumentException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+    }
+
+    public void initConfigPath(String path) {
+        this.configPath = path;
     }
 
-    /** override this to get access to the configPath */
-    public void initConfigPath(String configPath) {
+    protected Credentials credentials() {
+        return new Credentials(world, configPath, getLog());
     }
 
     public abstract void doExecute(DockerClient docker) throws IOException, MojoExecutionException;
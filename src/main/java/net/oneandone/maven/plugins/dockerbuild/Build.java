@@ -17,12 +17,34 @@ package net.oneandone.maven.plugins.dockerbuild;
 
 import com.github.dockerjava.api.DockerClient;
 import com.github.dockerjava.api.command.BuildImageCmd;
+import com.github.dockerjava.api.command.PullImageCmd;
+import com.github.dockerjava.api.command.PullImageResultCallback;
+import com.github.dockerjava.api.exception.NotFoundException;
+import com.github.dockerjava.api.model.AuthConfig;
+import com.github.dockerjava.api.model.ContainerConfig;
+import com.github.dockerjava.api.model.Version;
+import com.github.dockerjava.transport.DockerHttpClient;
 import net.oneandone.maven.plugins.dockerbuild.model.Arguments;
+import net.oneandone.maven.plugins.dockerbuild.model.BuildCache;
 import net.oneandone.maven.plugins.dockerbuild.model.BuildListener;
+import net.oneandone.maven.plugins.dockerbuild.model.BuildRecord;
 import net.oneandone.maven.plugins.dockerbuild.model.Context;
+import net.oneandone.maven.plugins.dockerbuild.model.ContextReport;
+import net.oneandone.maven.plugins.dockerbuild.model.Daemonless;
+import net.oneandone.maven.plugins.dockerbuild.model.Descriptor;
+import net.oneandone.maven.plugins.dockerbuild.model.Dockerfile;
+import net.oneandone.maven.plugins.dockerbuild.model.ImageReport;
+import net.oneandone.maven.plugins.dockerbuild.model.LocalCache;
+import net.oneandone.maven.plugins.dockerbuild.model.OciLayout;
+import net.oneandone.maven.plugins.dockerbuild.model.Phases;
 import net.oneandone.maven.plugins.dockerbuild.model.Placeholders;
+import net.oneandone.maven.plugins.dockerbuild.model.Prefetch;
+import net.oneandone.maven.plugins.dockerbuild.model.Prepull;
+import net.oneandone.maven.plugins.dockerbuild.model.Reference;
+import net.oneandone.maven.plugins.dockerbuild.model.Sources;
+import net.oneandone.maven.plugins.dockerbuild.model.Stage;
+import net.oneandone.maven.plugins.dockerbuild.model.ThinBuild;
 import net.oneandone.sushi.fs.file.FileNode;
-import org.apache.maven.execution.MavenSession;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
@@ -32,14 +54,23 @@ import org.apache.maven.plugins.annotations.ResolutionScope;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.maven.plugins.annotations.Component;
 import org.apache.maven.shared.filtering.MavenReaderFilter;
@@ -76,10 +107,35 @@ public class Build extends Base {
     @Parameter()
     private final String version;
 
-    /** Don't use Docker build cache */
+    /**
+     * Stage to build in multi-stage Dockerfiles. Stages not needed by this target are removed from the Dockerfile before building.
+     * Not specified to build the last stage.
+     */
+    @Parameter(property = "dockerbuild.target")
+    private final String target;
+
+    /** Don't use Docker build cache; also skips the lookups in the remote and the local image cache */
     @Parameter(property = "dockerbuild.noCache", defaultValue = "false")
     private final boolean noCache;
 
+    /** Seconds the Docker build may take before it is cancelled; 0 for no limit. */
+    @Parameter(property = "dockerbuild.timeout", defaultValue = "0")
+    private final int timeout;
+
+    /**
+     * Seconds without any build output before the build is considered stuck and cancelled; 0 for no limit. Counts from the end
+     * of the context upload, which is limited by timeout only.
+     */
+    @Parameter(property = "dockerbuild.inactivityTimeout", defaultValue = "0")
+    private final int inactivityTimeout;
+
+    /**
+     * When to pull base images: always, missing (i.e. if not available locally) or never (fail if not available locally).
+     * Pulls start in the background as soon as the Dockerfile is unpacked, and every base image is pulled at most once per reactor.
+     */
+    @Parameter(property = "dockerbuild.pull", defaultValue = "missing")
+    private final String pull;
+
     /** Image tag created by this build. Provides placeholders inspired by https://maven.fabric8.io/#image-configuration */
     @Parameter(property = "dockerbuild.image", defaultValue = "%g/%a:%V")
     private final String image;
@@ -88,14 +144,122 @@ public class Build extends Base {
     @Parameter(property = "dockerbuild.latest", defaultValue = "true")
     private final boolean latest;
 
+    /**
+     * True to send only those context files to the Docker daemon that are referenced by COPY or ADD instructions of the stages being built.
+     * Falls back to the full context if the Dockerfile cannot be analyzed with certainty, e.g. for variable references that cannot be resolved.
+     */
+    @Parameter(property = "dockerbuild.pruneContext", defaultValue = "false")
+    private final boolean pruneContext;
+
+    /**
+     * True to assemble the image without Docker daemon: base image layers are fetched from the registry, every COPY instruction adds
+     * a layer, and the result is stored in the OCI image layout of the export directory; push uploads it from there.
+     * Falls back to the Docker daemon if the Dockerfile contains instructions that need a container, e.g. RUN.
+     */
+    @Parameter(property = "dockerbuild.daemonless", defaultValue = "false")
+    private final boolean daemonless;
+
+    /** Base image platform for daemonless builds. */
+    @Parameter(property = "dockerbuild.platform", defaultValue = "linux/amd64")
+    private final String platform;
+
+    /**
+     * Evaluated arguments larger than this number of bytes are not passed as build arguments, but written into the context directory
+     * .dockerbuild-args; the build argument then contains the path within the context, e.g. .dockerbuild-args/config, for the Dockerfile
+     * to COPY. Keeps large %file or %base64 values out of the build request and the image history. 0 to disable.
+     */
+    @Parameter(property = "dockerbuild.argumentSpillSize", defaultValue = "0")
+    private final long argumentSpillSize;
+
+    /**
+     * Fail the build if the image is larger than this, e.g. 500m or 1g. The image report written to target/dockerbuild/image-report.txt
+     * lists the size of every layer and the largest files copied from the context.
+     */
+    @Parameter(property = "dockerbuild.maxImageSize")
+    private final String maxImageSize;
+
+    /** Fail the build if any layer of the image is larger than this, e.g. 200m. */
+    @Parameter(property = "dockerbuild.maxLayerSize")
+    private final String maxLayerSize;
+
+    /**
+     * Context size budget, e.g. 100m: checked before the context is sent to the daemon. The context report written to
+     * target/dockerbuild/context-report.txt lists the largest files and directories, and what argument directives added.
+     */
+    @Parameter(property = "dockerbuild.maxContextSize")
+    private final String maxContextSize;
+
+    /** Context file count budget. */
+    @Parameter(property = "dockerbuild.maxContextFiles")
+    private final Integer maxContextFiles;
+
+    /** What to do if the context exceeds maxContextSize or maxContextFiles: fail or warn. */
+    @Parameter(property = "dockerbuild.contextBudget", defaultValue = "fail")
+    private final String contextBudget;
+
+    /**
+     * True to use the registry as build cache: every image is labeled with a fingerprint over dockerbuild, context files and build arguments;
+     * if the cache repository already has an image with this fingerprint, it's pulled and tagged instead of built. Otherwise, the image
+     * is built, and push also pushes it to the cache repository.
+     */
+    @Parameter(property = "dockerbuild.cache", defaultValue = "false")
+    private final boolean cache;
+
+    /** Repository for cached images, tagged with fp-&lt;fingerprint&gt;. Not specified to use the repository of the image. */
+    @Parameter(property = "dockerbuild.cacheRepository")
+    private final String cacheRepository;
+
+    /**
+     * Directory for a local image cache, for CI agents that start with an empty Docker daemon: typically a volume shared by all agents of
+     * a host. After a successful build, the image is saved into this directory, named by its fingerprint; the next build with the same
+     * fingerprint loads it instead of building. Not specified to disable.
+     */
+    @Parameter(property = "dockerbuild.localCache")
+    private final String localCache;
+
+    /** Maximum size of the local cache, e.g. 20g. Least recently used images are evicted. */
+    @Parameter(property = "dockerbuild.localCacheSize", defaultValue = "10g")
+    private final String localCacheSize;
+
+    /**
+     * Image to use as build cache source, e.g. the latest image of this module. With a local cache, the built image is also stored under
+     * this name, and loaded into the daemon before building if there's no image with a matching fingerprint.
+     */
+    @Parameter(property = "dockerbuild.cacheFrom")
+    private final String cacheFrom;
+
+    /**
+     * True to build on top of the previous image if only files changed that the last stage copies after all RUN instructions,
+     * typically the war: the changed files are copied into a new layer of the previous image instead of sending the full context and
+     * replaying the Dockerfile. The image gets one more layer than a full build. Meant for local builds, e.g. with the watch goal.
+     */
+    @Parameter(property = "dockerbuild.thin", defaultValue = "false")
+    private final boolean thin;
+
+    /** True to run the prune goal after a successful build, see the prune parameters. */
+    @Parameter(property = "dockerbuild.prune", defaultValue = "false")
+    private final boolean prune;
+
     /** Explicit argument values passed to the build. */
     @Parameter
     private Map<String, String> arguments;
 
-    //--
+    /**
+     * Further images built by this execution, e.g. a debug image next to the production image: &lt;variant&gt; elements with a
+     * mandatory name and optional dockerbuild, version, target, image and arguments. Unspecified values are taken from this execution,
+     * arguments are merged. The image defaults to this execution's image with -&lt;name&gt; appended, the latest tag is
+     * latest-&lt;name&gt;. Every dockerbuild is resolved once, images with the same dockerbuild, version and target share the unpacked
+     * context unless their arguments write into it, and images are built concurrently. Files of a variant are written to
+     * variants/&lt;name&gt; of the build directory; push pushes all images. cacheFrom applies to this execution's image only.
+     */
+    @Parameter
+    private List<Variant> variants;
 
-    @Component
-    private MavenSession session;
+    /** Maximum number of images built concurrently, see variants. */
+    @Parameter(property = "dockerbuild.buildThreads", defaultValue = "2")
+    private final int buildThreads;
+
+    //--
 
     @Component
     private MavenReaderFilter readerFilter;
@@ -115,63 +279,392 @@ public class Build extends Base {
         this.library = null;
         this.dockerbuild = null;
         this.version = null;
+        this.target = null;
         this.noCache = false;
+        this.pull = "missing";
+        this.timeout = 0;
+        this.inactivityTimeout = 0;
         this.image = "";
         this.latest = true;
+        this.pruneContext = false;
+        this.daemonless = false;
+        this.argumentSpillSize = 0;
+        this.maxImageSize = null;
+        this.maxLayerSize = null;
+        this.maxContextSize = null;
+        this.maxContextFiles = null;
+        this.contextBudget = "fail";
+        this.platform = null;
+        this.cache = false;
+        this.cacheRepository = null;
+        this.localCache = null;
+        this.localCacheSize = "10g";
+        this.cacheFrom = null;
+        this.thin = false;
+        this.prune = false;
         this.arguments = new HashMap<>();
+        this.variants = new ArrayList<>();
+        this.buildThreads = 2;
+    }
+
+    /** buffer between tarring the context and uploading it to the daemon */
+    private static final int PIPE_SIZE = 1024 * 1024;
+
+    /** An image of this execution with its dockerbuild and context; kept for rebuilds by the watch goal */
+    private static class Prepared {
+        public final Variant variant;
+
+        /** build directory or variant directory */
+        public final FileNode directory;
+
+        public final Artifact artifact;
+        public final Context context;
+        public final String repositoryTag;
+
+        /** files read by argument directives of the last build */
+        private final List<FileNode> inputs;
+
+        Prepared(Variant variant, FileNode directory, Artifact artifact, Context context, String repositoryTag) {
+            this.variant = variant;
+            this.directory = directory;
+            this.artifact = artifact;
+            this.context = context;
+            this.repositoryTag = repositoryTag;
+            this.inputs = new ArrayList<>();
+        }
+
+        synchronized List<FileNode> getInputs() {
+            return new ArrayList<>(inputs);
+        }
+
+        synchronized void setInputs(List<FileNode> files) {
+            inputs.clear();
+            inputs.addAll(files);
+        }
+
+        boolean isMain() {
+            return variant.getName() == null;
+        }
+    }
+
+    /** images of the previous execution, this execution's image first; null before the first execution */
+    private List<Prepared> prepared;
+
+    /** @return dockerbuild jars of the previous execution; empty before the first build */
+    protected List<FileNode> dockerbuilds() {
+        List<FileNode> result;
+        FileNode jar;
+
+        result = new ArrayList<>();
+        if (prepared != null) {
+            for (Prepared p : prepared) {
+                jar = world.file(p.artifact.getFile());
+                if (!result.contains(jar)) {
+                    result.add(jar);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** @return files that make the next build differ: dockerbuild jars and files read by arguments; empty before the first build */
+    protected List<FileNode> inputs() {
+        List<FileNode> result;
+
+        result = dockerbuilds();
+        if (prepared != null) {
+            for (Prepared p : prepared) {
+                result.addAll(p.getInputs());
+            }
+        }
+        return result;
+    }
+
+    /** make the next execution resolve and unpack the dockerbuilds again */
+    protected void resetContext() {
+        prepared = null;
     }
 
+    /**
+     * Runs independent phases concurrently: daemon version check and placeholder resolution alongside dockerbuild resolution,
+     * base image pulls alongside argument evaluation, tarring the context alongside uploading it. Variants are built concurrently.
+     */
     @Override
     public void doExecute(DockerClient docker) throws IOException, MojoExecutionException {
+        Log log;
+        Phases.Pending<Version> daemon;
+        List<Prepared> images;
+
+        log = getLog();
+        if (skip) {
+            log.info("build skipped");
+            return;
+        }
+        daemon = phases.start("daemon", () -> docker.versionCmd().exec());
+        if (prepared != null) {
+            for (Prepared p : prepared) {
+                log.info("reusing " + p.context.getDirectory());
+            }
+        } else {
+            prepared = prepare();
+        }
+        images = prepared;
+        project.getProperties().put("dockerbuild.image", images.get(0).repositoryTag);
+        project.getProperties().put("dockerbuild.origin", origin());
+        if (images.size() == 1) {
+            build(docker, daemon, images.get(0));
+        } else {
+            log.info("building " + images.size() + " images, up to " + buildThreads + " concurrently");
+            runAll("build", buildThreads, images, p -> p.repositoryTag, p -> build(docker, daemon, p));
+        }
+        pruneOpt(docker, images);
+        log.info("phases: " + phases.summary());
+    }
+
+    /** @return this execution's image, followed by its variants */
+    private List<Variant> variants() throws MojoExecutionException {
+        List<Variant> result;
+        Variant main;
+        Variant merged;
+        Set<String> names;
+
+        result = new ArrayList<>();
+        main = new Variant(null, dockerbuild, version, target, image, arguments);
+        result.add(main);
+        names = new HashSet<>();
+        if (variants != null) {
+            for (Variant variant : variants) {
+                merged = variant.merge(main);
+                if (!names.add(merged.getName())) {
+                    throw new MojoExecutionException("duplicate variant name: " + merged.getName());
+                }
+                result.add(merged);
+            }
+        }
+        return result;
+    }
+
+    /** resolve every dockerbuild once, unpack it once for all images that can share the context */
+    private List<Prepared> prepare() throws IOException, MojoExecutionException {
+        Log log;
+        List<Variant> all;
+        Phases.Pending<List<String>> placeholders;
+        Map<String, Artifact> artifacts;
+        List<String> repositoryTags;
+        List<Prepared> result;
+        Variant variant;
+        FileNode directory;
+        Prepared shared;
+        Context context;
+
+        log = getLog();
+        all = variants();
+        placeholders = phases.start("placeholders", () -> repositoryTags(all));
+        artifacts = phases.run("resolve", () -> resolveDockerbuilds(all));
+        removeStaleVariants(all);
+        repositoryTags = placeholders.get();
+        result = new ArrayList<>();
+        for (int i = 0; i < all.size(); i++) {
+            variant = all.get(i);
+            directory = variant.getName() == null ? buildDirectory() : variantDirectory(variant.getName());
+            shared = shared(result, variant);
+            if (shared != null) {
+                log.info(variant + ": sharing " + shared.context.getDirectory());
+                context = shared.context;
+            } else {
+                context = unpack(artifacts.get(dockerbuildKey(variant)), variant, context(directory));
+            }
+            result.add(new Prepared(variant, directory, artifacts.get(dockerbuildKey(variant)), context, repositoryTags.get(i)));
+        }
+        checkTags(result);
+        return result;
+    }
+
+    private List<String> repositoryTags(List<Variant> all) throws MojoExecutionException {
+        Placeholders placeholders;
+        List<String> result;
+
+        placeholders = new Placeholders(world.file(project.getBasedir()), project);
+        result = new ArrayList<>();
+        for (Variant variant : all) {
+            result.add(placeholders.resolve(variant.getImage()));
+        }
+        return result;
+    }
+
+    private static String dockerbuildKey(Variant variant) {
+        return variant.getDockerbuild() + ":" + (variant.getVersion() == null ? "" : variant.getVersion());
+    }
+
+    private Map<String, Artifact> resolveDockerbuilds(List<Variant> all) throws MojoExecutionException {
+        Map<String, Artifact> result;
+
+        result = new HashMap<>();
+        for (Variant variant : all) {
+            if (!result.containsKey(dockerbuildKey(variant))) {
+                result.put(dockerbuildKey(variant), resolveDockerbuild(variant.getDockerbuild(), variant.getVersion()));
+            }
+        }
+        return result;
+    }
+
+    /** @return image whose context the variant can use as well, null if none */
+    private Prepared shared(List<Prepared> images, Variant variant) {
+        if (Arguments.writesContext(variant.getArguments(), argumentSpillSize)) {
+            return null;
+        }
+        for (Prepared p : images) {
+            if (p.variant.sameContext(variant) && !Arguments.writesContext(p.variant.getArguments(), argumentSpillSize)) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    private Context unpack(Artifact artifact, Variant variant, FileNode contextDir) throws IOException, MojoExecutionException {
+        FileNode jar;
+
+        jar = world.file(artifact.getFile());
+        getLog().info("rm -rf " + contextDir + "; mkdir " + contextDir);
+        getLog().info("(cd " + contextDir + " && jar xf " + jar + ")");
+        return phases.run("unpack", () -> Context.create(jar, variant.getDockerbuild(), variant.getTarget(), contextDir));
+    }
+
+    /** remove files of variants no longer configured, otherwise push would push them */
+    private void removeStaleVariants(List<Variant> all) throws IOException {
+        FileNode directory;
+        Set<String> names;
+
+        directory = buildDirectory().join("variants");
+        if (!directory.isDirectory()) {
+            return;
+        }
+        names = new HashSet<>();
+        for (Variant variant : all) {
+            names.add(variant.getName());
+        }
+        for (FileNode stale : directory.list()) {
+            if (!names.contains(stale.getName())) {
+                getLog().info("rm -rf " + stale);
+                stale.deleteTree();
+            }
+        }
+    }
+
+    private void checkTags(List<Prepared> images) throws MojoExecutionException {
+        Map<String, Prepared> all;
+        Prepared previous;
+
+        all = new HashMap<>();
+        for (Prepared p : images) {
+            for (String tag : tags(p)) {
+                previous = all.put(tag, p);
+                if (previous != null) {
+                    throw new MojoExecutionException("tag " + tag + " created by both " + previous.variant + " and " + p.variant);
+                }
+            }
+        }
+    }
+
+    private Set<String> tags(Prepared p) {
+        Set<String> result;
+
+        result = new LinkedHashSet<>();
+        result.add(p.repositoryTag);
+        if (latest) {
+            result.add(p.isMain() ? toLatest(p.repositoryTag) : toLatest(p.repositoryTag) + "-" + p.variant.getName());
+        }
+        return result;
+    }
+
+    private void build(DockerClient docker, Phases.Pending<Version> daemon, Prepared p) throws IOException, MojoExecutionException {
         Log log;
         String repositoryTag;
         FileNode contextDir;
         Context context;
-        long started;
-        FileNode jar;
+        String fingerprint;
         Map<String, String> actuals;
+        Map<String, String> files;
+        BuildListener listener;
         String id;
         BuildImageCmd build;
         FileNode buildLog;
         Set<String> tags;
+        Prepull prepull;
+        List<String> includes;
+        Version daemonVersion;
+        Arguments evaluator;
+        String variantCacheFrom;
 
         log = getLog();
-        if (skip) {
-            log.info("build skipped");
+        context = p.context;
+        contextDir = context.getDirectory();
+        repositoryTag = p.repositoryTag;
+        variantCacheFrom = p.isMain() ? cacheFrom : null;
+        prepull = prepull(docker, context, p.variant.getArguments());
+        buildLog = buildLog(p.directory);
+        buildLog.getParent().mkdirsOpt();
+        imageFile(p.directory).writeString(repositoryTag);
+        evaluator = new Arguments(log, context, readerFilter, project, session);
+        actuals = phases.run("arguments", () -> evaluator.eval(p.variant.getArguments(), argumentSpillSize));
+        p.setInputs(evaluator.getInputs());
+        tags = tags(p);
+        daemonlessFile(p.directory).deleteFileOpt();
+        cacheFile(p.directory).deleteFileOpt();
+        if (daemonless && phases.run("daemonless", () -> buildDaemonless(context, actuals, tags, daemonlessFile(p.directory)))) {
+            log.info("Done: " + repositoryTag);
             return;
         }
-        jar = resolveDockerbuild();
-        repositoryTag = new Placeholders(world.file(project.getBasedir()), project).resolve(image);
-        contextDir = context();
-        log.info("rm -rf " + contextDir + "; mkdir " + contextDir);
-        log.info("(cd " + contextDir + " && jar xf " + jar + ")");
-
-        context = Context.create(jar, dockerbuild, contextDir);
-        buildLog = buildLog();
-        buildLog.getParent().mkdirsOpt();
-        started = System.currentTimeMillis();
-        imageFile().getParent().mkdirsOpt();
-        imageFile().writeString(repositoryTag);
-        project.getProperties().put("dockerbuild.image", repositoryTag);
-        project.getProperties().put("dockerbuild.origin", origin());
-        actuals = new Arguments(log, context, readerFilter, project, session).eval(arguments);
-        tags = new LinkedHashSet<>();
-        tags.add(repositoryTag);
-        if (latest) {
-            tags.add(toLatest(repositoryTag));
+        try {
+            daemonVersion = daemon.get();
+        } catch (RuntimeException e) {
+            throw new MojoExecutionException("docker daemon not available: " + e.getMessage(), e);
         }
-        try (InputStream tarSrc = context.tar().newInputStream()) {
-            build = docker.buildImageCmd()
-                    .withTarInputStream(tarSrc)
-                    .withNoCache(noCache)
-                    .withTags(tags);
-            for (Map.Entry<String, String> entry : actuals.entrySet()) {
-                build.withBuildArg(entry.getKey(), entry.getValue());
-            }
-            log.info(cli(build, contextDir) + " >" + buildLog);
-            try (PrintWriter logfile = new PrintWriter(buildLog.newWriter())) {
-                id = build.exec(new BuildListener(log, logfile)).awaitImageId();
-            }
+        log.debug("docker " + daemonVersion.getVersion() + ", api " + daemonVersion.getApiVersion());
+        includes = includes(docker, context, actuals, prepull);
+        phases.run("context", () -> {
+            checkContext(context, includes, evaluator.getAdded(), contextReportFile(p.directory));
+            return null;
+        });
+        files = phases.run("fingerprint", () -> BuildCache.fileDigests(contextDir, includes));
+        fingerprint = BuildCache.fingerprint(gav(p.artifact), BuildCache.contextDigest(files), actuals, context.getTarget());
+        if (p.isMain()) {
+            project.getProperties().put("dockerbuild.fingerprint", fingerprint);
+        }
+        if (cache && phases.run("cache", () -> fromCache(docker, p.directory, repositoryTag, fingerprint, tags))) {
+            log.info("Done: " + repositoryTag + " (from cache)");
+            return;
+        }
+        if (localCache != null && !noCache && phases.run("restore", () -> fromLocalCache(docker, repositoryTag, fingerprint, tags, variantCacheFrom))) {
+            log.info("Done: " + repositoryTag + " (from local cache)");
+            return;
+        }
+        phases.run("pull", () -> {
+            prepull.await();
+            return null;
+        });
+        if (thin && phases.run("thin", () -> buildThin(docker, p.directory, context, gav(p.artifact), actuals, files, repositoryTag, tags,
+                fingerprint))) {
+            log.info("Done: " + repositoryTag + " (thin)");
+            return;
+        }
+        build = docker.buildImageCmd()
+                .withNoCache(noCache)
+                .withTags(tags)
+                .withLabels(Collections.singletonMap(BuildCache.LABEL, fingerprint));
+        if (context.getTarget() != null) {
+            build.withTarget(context.getTarget());
+        }
+        if (variantCacheFrom != null) {
+            build.withCacheFrom(Collections.singleton(variantCacheFrom));
+        }
+        for (Map.Entry<String, String> entry : actuals.entrySet()) {
+            build.withBuildArg(entry.getKey(), entry.getValue());
+        }
+        log.info(cli(build, contextDir) + " >" + buildLog);
+        try (PrintWriter logfile = new PrintWriter(buildLog.newWriter())) {
+            listener = new BuildListener(log, logfile, docker);
+            id = upload(log, phases, context, includes, build, listener, timeout, inactivityTimeout);
         } catch (MojoExecutionException e) {
             log.error("build failed");
             for (String line : buildLog.readLines()) {
@@ -179,8 +672,436 @@ public class Build extends Base {
             }
             throw e;
         }
+        phases.run("explain", () -> {
+            explain(buildRecordFile(p.directory), new BuildRecord(gav(p.artifact), actuals, files, baseImages(docker, context, actuals),
+                    listener.getSteps(), docker.inspectImageCmd(id).exec().getId()));
+            return null;
+        });
+        phases.run("report", () -> {
+            report(id, repositoryTag, lastStage(context.getDockerfile()), context, actuals, imageReportFile(p.directory));
+            return null;
+        });
+        if (localCache != null) {
+            phases.run("store", () -> {
+                toLocalCache(docker, repositoryTag, fingerprint, variantCacheFrom);
+                return null;
+            });
+        }
         log.info("Done: " + repositoryTag);
-        log.debug("id=" + id + " seconds=" + (System.currentTimeMillis() - started) / 1000);
+        log.debug("id=" + id);
+    }
+
+    /** prune once all images of the execution are built, so concurrent builds don't remove each other's tags */
+    /**
+     * Runs the build with the context tarred in the background while the daemon reads it.
+     *
+     * @param includes as passed to Context.tar, null for all
+     * @return image id
+     */
+    static String upload(Log log, Phases phases, Context context, List<String> includes, BuildImageCmd build, BuildListener listener,
+                         int timeout, int inactivityTimeout) throws IOException, MojoExecutionException {
+        PipedOutputStream tarDest;
+        Phases.Pending<Void> tarring;
+        AtomicBoolean uploadDone;
+        String id;
+
+        uploadDone = new AtomicBoolean();
+        try (PipedInputStream tarSrc = new PipedInputStream(PIPE_SIZE)) {
+            tarDest = new PipedOutputStream(tarSrc);
+            tarring = phases.start("tar", () -> {
+                try {
+                    context.tar(includes, tarDest);
+                } catch (IOException | RuntimeException e) {
+                    if (uploadDone.get()) {
+                        log.debug("tar aborted, the daemon stopped reading the context: " + e.getMessage());
+                    } else {
+                        log.error("tar failed: " + e.getMessage());
+                    }
+                    tarDest.close(); // otherwise the upload waits for more data
+                    throw e;
+                }
+                return null;
+            });
+            build.withTarInputStream(tarSrc);
+            try {
+                id = phases.run("build", () -> build.exec(listener).awaitImageId(timeout, inactivityTimeout));
+            } finally {
+                uploadDone.set(true); // e.g. the daemon rejected the build, closing tarSrc breaks the pipe
+            }
+            tarring.get();
+        }
+        return id;
+    }
+
+    private void pruneOpt(DockerClient docker, List<Prepared> images) throws IOException, MojoExecutionException {
+        List<String> tags;
+
+        if (prune) {
+            tags = new ArrayList<>();
+            for (Prepared p : images) {
+                tags.add(p.repositoryTag);
+            }
+            phases.run("prune", () -> {
+                prune(docker, tags);
+                return null;
+            });
+        }
+    }
+
+    /** @return true if the image was pulled from the cache; otherwise, the cache image is recorded for push */
+    private boolean fromCache(DockerClient docker, FileNode directory, String repositoryTag, String fingerprint, Set<String> tags)
+            throws IOException, MojoExecutionException {
+        Log log;
+        BuildCache buildCache;
+        String cached;
+        PullImageCmd cmd;
+        AuthConfig auth;
+        Map<String, String> labels;
+
+        log = getLog();
+        buildCache = BuildCache.create(cacheRepository == null ? repository(repositoryTag) : cacheRepository, credentials());
+        cached = buildCache.image(fingerprint);
+        if (noCache) {
+            log.info("noCache, skipping cache lookup: " + cached);
+            cacheFile(directory).writeString(cached);
+            return false;
+        }
+        try {
+            if (!buildCache.contains(fingerprint)) {
+                log.info("cache miss: " + cached);
+                cacheFile(directory).writeString(cached);
+                return false;
+            }
+        } catch (IOException e) {
+            log.warn("cache not available, building: " + e.getMessage());
+            return false;
+        }
+        log.info("cache hit, docker pull " + cached);
+        cmd = docker.pullImageCmd(buildCache.getName()).withTag(buildCache.tag(fingerprint));
+        auth = credentials().authConfigOpt(Reference.parse(cached).authKey());
+        if (auth != null) {
+            cmd.withAuthConfig(auth);
+        }
+        try {
+            cmd.exec(new PullImageResultCallback()).awaitCompletion();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("pull interrupted: " + cached, e);
+        } catch (RuntimeException e) {
+            log.warn("cache pull failed, building: " + e.getMessage());
+            return false;
+        }
+        labels = docker.inspectImageCmd(cached).exec().getConfig().getLabels();
+        if (labels == null || !fingerprint.equals(labels.get(BuildCache.LABEL))) {
+            log.warn("cache image has no matching fingerprint label, building: " + cached);
+            return false;
+        }
+        tag(docker, cached, tags);
+        return true;
+    }
+
+    private void tag(DockerClient docker, String source, Set<String> tags) {
+        String name;
+
+        for (String tag : tags) {
+            name = repository(tag);
+            getLog().info("docker tag " + source + " " + tag);
+            docker.tagImageCmd(source, name, name.length() < tag.length() ? tag.substring(name.length() + 1) : "latest").exec();
+        }
+    }
+
+    private LocalCache localCache() throws IOException, MojoExecutionException {
+        return LocalCache.open(getLog(), world.file(localCache), size(localCacheSize));
+    }
+
+    /** @return true if the image was loaded from the local cache; otherwise, the cacheImage is loaded if available */
+    private boolean fromLocalCache(DockerClient docker, String repositoryTag, String fingerprint, Set<String> tags, String cacheImage)
+            throws IOException, MojoExecutionException {
+        LocalCache lc;
+        Map<String, String> labels;
+
+        lc = localCache();
+        if (lc.restore(docker, LocalCache.fingerprintName(fingerprint), repositoryTag, true)) {
+            labels = docker.inspectImageCmd(repositoryTag).exec().getConfig().getLabels();
+            if (labels != null && fingerprint.equals(labels.get(BuildCache.LABEL))) {
+                tag(docker, repositoryTag, tags);
+                return true;
+            }
+            getLog().warn("local cache image has no matching fingerprint label, building: " + repositoryTag);
+        }
+        if (cacheImage != null) {
+            lc.restore(docker, cacheImage, cacheImage, false);
+        }
+        return false;
+    }
+
+    /** a failure to store does not fail the build */
+    private void toLocalCache(DockerClient docker, String repositoryTag, String fingerprint, String cacheImage) throws MojoExecutionException {
+        List<String> names;
+
+        names = new ArrayList<>();
+        names.add(LocalCache.fingerprintName(fingerprint));
+        if (cacheImage != null) {
+            names.add(cacheImage);
+        }
+        try {
+            localCache().store(docker, repositoryTag, names);
+        } catch (IOException | RuntimeException e) {
+            getLog().warn("cannot store image in local cache: " + e.getMessage());
+        }
+    }
+
+    /** @return image name without tag */
+    private static String repository(String repositoryTag) {
+        int idx;
+
+        idx = repositoryTag.lastIndexOf(':');
+        return idx > repositoryTag.lastIndexOf('/') ? repositoryTag.substring(0, idx) : repositoryTag;
+    }
+
+    /**
+     * The build record is not updated, it keeps describing the full build the thin build is based on. The image report is,
+     * with the thin Dockerfile's COPY instructions as the last layers.
+     *
+     * @return false if a full build is needed
+     */
+    private boolean buildThin(DockerClient docker, FileNode directory, Context context, String gav, Map<String, String> actuals,
+                              Map<String, String> files, String repositoryTag, Set<String> tags, String fingerprint)
+            throws IOException, MojoExecutionException {
+        Log log;
+        BuildRecord previous;
+        ThinBuild plan;
+        String mismatch;
+        FileNode tar;
+        BuildImageCmd build;
+        String id;
+
+        log = getLog();
+        previous = BuildRecord.loadOpt(buildRecordFile(directory));
+        plan = ThinBuild.plan(previous, gav, actuals, files, baseImages(docker, context, actuals), context.getDockerfile());
+        if (!plan.isPossible()) {
+            log.info("full build, thin build not possible: " + plan.impossible);
+            return false;
+        }
+        try {
+            mismatch = plan.verify(docker, previous.files);
+        } catch (RuntimeException e) {
+            log.info("full build, previous image not available: " + e.getMessage());
+            return false;
+        }
+        if (mismatch != null) {
+            log.warn("full build, " + mismatch);
+            return false;
+        }
+        tar = directory.join("thin.tar");
+        try (OutputStream dest = tar.newOutputStream()) {
+            plan.tar(context.getDirectory(), dest);
+        }
+        log.info("thin build:\n" + plan.dockerfile());
+        try (InputStream src = tar.newInputStream();
+             PrintWriter logfile = new PrintWriter(buildLog(directory).newWriter())) {
+            build = docker.buildImageCmd()
+                    .withTarInputStream(src)
+                    .withTags(tags)
+                    .withLabels(Collections.singletonMap(BuildCache.LABEL, fingerprint));
+            id = build.exec(new BuildListener(log, logfile, docker)).awaitImageId(timeout, inactivityTimeout);
+        } catch (MojoExecutionException e) {
+            log.warn("full build, thin build failed: " + e.getMessage());
+            return false;
+        } finally {
+            tar.deleteFile();
+        }
+        log.debug("id=" + id);
+        report(id, repositoryTag, lastStage(Dockerfile.parse(plan.dockerfile())), context, actuals, imageReportFile(directory));
+        return true;
+    }
+
+    /** log why the first step missed the build cache, compared with the previous build */
+    private void explain(FileNode recordFile, BuildRecord current) throws IOException {
+        String explanation;
+
+        explanation = current.explain(BuildRecord.loadOpt(recordFile));
+        if (explanation == null) {
+            getLog().info("build cache: all " + current.steps.size() + " steps cached");
+        } else {
+            getLog().info(explanation);
+        }
+        current.save(recordFile);
+    }
+
+    /** @return maps base image names to local image ids; unknown images are skipped */
+    private static Map<String, String> baseImages(DockerClient docker, Context context, Map<String, String> actuals) {
+        Map<String, String> result;
+
+        result = new LinkedHashMap<>();
+        for (String image : Prepull.baseImages(context.getDockerfile(), actuals)) {
+            try {
+                result.put(image, docker.inspectImageCmd(image).exec().getId());
+            } catch (NotFoundException e) {
+                // e.g. removed concurrently
+            }
+        }
+        return result;
+    }
+
+    /** analyze image size; fails if the size budget is exceeded */
+    private void report(String id, String repositoryTag, Stage stage, Context context, Map<String, String> actuals, FileNode reportFile)
+            throws IOException, MojoExecutionException {
+        DockerHttpClient.Request request;
+        String history;
+        ImageReport report;
+        List<String> violations;
+
+        request = DockerHttpClient.Request.builder().method(DockerHttpClient.Request.Method.GET).path("/images/" + id + "/history").build();
+        try (DockerHttpClient.Response response = http().execute(request)) {
+            if (response.getStatusCode() != 200) {
+                getLog().warn("no image report, history not available: status " + response.getStatusCode());
+                return;
+            }
+            history = new String(response.getBody().readAllBytes(), StandardCharsets.UTF_8);
+        }
+        report = ImageReport.create(repositoryTag, history, stage, context.getDirectory(), actuals);
+        reportFile.writeString(report.toString());
+        getLog().info(report.summary() + ", see " + reportFile);
+        violations = report.check(size(maxImageSize), size(maxLayerSize));
+        if (!violations.isEmpty()) {
+            for (String violation : violations) {
+                getLog().error(violation);
+            }
+            throw new MojoExecutionException("image exceeds size budget: " + violations.get(0));
+        }
+    }
+
+    private static Stage lastStage(Dockerfile dockerfile) {
+        return dockerfile.stages.get(dockerfile.stages.size() - 1);
+    }
+
+    /** report context size; fails or warns if the budget is exceeded */
+    private void checkContext(Context context, List<String> includes, List<String> added, FileNode reportFile)
+            throws IOException, MojoExecutionException {
+        ContextReport report;
+        List<String> violations;
+
+        if (!"fail".equals(contextBudget) && !"warn".equals(contextBudget)) {
+            throw new MojoExecutionException("invalid contextBudget, expected fail or warn: " + contextBudget);
+        }
+        report = ContextReport.create(context.getDirectory(), includes, added);
+        reportFile.writeString(report.toString());
+        getLog().info(report.summary() + ", see " + reportFile);
+        violations = report.check(size(maxContextSize), maxContextFiles);
+        if (violations.isEmpty()) {
+            return;
+        }
+        for (String violation : violations) {
+            if ("warn".equals(contextBudget)) {
+                getLog().warn(violation);
+            } else {
+                getLog().error(violation);
+            }
+        }
+        if ("fail".equals(contextBudget)) {
+            throw new MojoExecutionException("context exceeds budget: " + violations.get(0));
+        }
+    }
+
+    private static Long size(String str) throws MojoExecutionException {
+        if (str == null) {
+            return null;
+        }
+        try {
+            return ImageReport.parseSize(str);
+        } catch (IllegalArgumentException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+    }
+
+    private Prepull prepull(DockerClient docker, Context context, Map<String, String> actualArguments) throws MojoExecutionException {
+        Prepull result;
+        Map<String, String> literals;
+
+        result = new Prepull(getLog(), docker, credentials(), Prepull.Policy.parse(pull),
+                session == null ? null : session.getRepositorySession().getData());
+        if (daemonless && Daemonless.unsupported(context.getDockerfile(), context.getDirectory()) == null) {
+            return result;
+        }
+        literals = new HashMap<>();
+        for (Map.Entry<String, String> entry : actualArguments.entrySet()) {
+            if (!entry.getValue().startsWith("%")) {
+                literals.put(entry.getKey(), entry.getValue());
+            }
+        }
+        result.start(Prepull.baseImages(context.getDockerfile(), literals));
+        return result;
+    }
+
+    /** @return false if the daemon is needed to build this image */
+    private boolean buildDaemonless(Context context, Map<String, String> actuals, Set<String> tags, FileNode daemonlessFile) throws IOException {
+        Log log;
+        String unsupported;
+        OciLayout layout;
+        Descriptor manifest;
+
+        log = getLog();
+        unsupported = Daemonless.unsupported(context.getDockerfile(), context.getDirectory());
+        if (unsupported != null) {
+            log.info("building with docker daemon, daemonless build not possible: " + unsupported);
+            return false;
+        }
+        layout = OciLayout.open(exportDirectory());
+        log.info("daemonless build into " + layout.getDirectory());
+        manifest = new Daemonless(log, context.getDockerfile(), context.getDirectory(), actuals, credentials(), layout, platform).build();
+        if (manifest == null) {
+            log.info("building with docker daemon, daemonless build not possible: base image has ONBUILD triggers");
+            return false;
+        }
+        for (String tag : tags) {
+            layout.tag(manifest, tag);
+        }
+        log.info(manifest + ": " + layout.getWritten() + " bytes written, " + layout.getDeduplicated() + " bytes already present");
+        daemonlessFile.writeString(layout.getDirectory().getAbsolute());
+        return true;
+    }
+
+    /** @return null for all */
+    private List<String> includes(DockerClient docker, Context context, Map<String, String> actuals, Prepull prepull)
+            throws IOException, MojoExecutionException {
+        Sources sources;
+        String onBuild;
+
+        if (!pruneContext) {
+            return null;
+        }
+        sources = Sources.analyze(context.getDockerfile(), context.getDirectory(), actuals);
+        if (sources.paths != null) {
+            prepull.await(); // triggers are part of the base image config
+            onBuild = onBuild(docker, context, actuals);
+            if (onBuild != null) {
+                sources = new Sources(null, onBuild);
+            }
+        }
+        if (sources.paths == null) {
+            getLog().info("sending full context, cannot prune: " + sources.uncertain);
+        } else {
+            getLog().info("sending pruned context: " + String.join(" ", sources.paths));
+        }
+        return sources.paths;
+    }
+
+    /** @return why ONBUILD triggers of base images might read any file of the context; null if there are none */
+    private static String onBuild(DockerClient docker, Context context, Map<String, String> actuals) {
+        ContainerConfig config;
+
+        for (String image : Prepull.baseImages(context.getDockerfile(), actuals)) {
+            try {
+                config = docker.inspectImageCmd(image).exec().getConfig();
+            } catch (NotFoundException e) {
+                return "cannot check ONBUILD triggers, base image not available: " + image;
+            }
+            if (config != null && config.getOnBuild() != null && config.getOnBuild().length > 0) {
+                return "base image " + image + " has ONBUILD triggers";
+            }
+        }
+        return null;
     }
 
     private static String toLatest(String tag) {
@@ -208,6 +1129,9 @@ public class Build extends Base {
         if (cmd.hasNoCacheEnabled()) {
             cli.append(" --no-cache");
         }
+        if (cmd.getTarget() != null) {
+            cli.append(" --target " + cmd.getTarget());
+        }
         cli.append(" \\\n");
         for (Map.Entry<String, String> entry : cmd.getBuildArgs().entrySet()) {
             cli.append("           --build-arg ");
@@ -222,14 +1146,22 @@ public class Build extends Base {
 
     //-- artifact resolution, see https://maven.apache.org/resolver/maven-resolver-demos/maven-resolver-demo-maven-plugin/xref/index.html
 
-    private FileNode resolveDockerbuild() throws MojoExecutionException {
+    private static String gav(Artifact artifact) {
+        return artifact.getGroupId() + ":" + artifact.getArtifactId() + ":" + artifact.getVersion();
+    }
+
+    private Artifact resolveDockerbuild(String name, String requestedVersion) throws MojoExecutionException {
         String gav;
         Artifact artifact;
         ArtifactRequest request;
         ArtifactResult result;
-        FileNode file;
 
-        gav = library + ":" + dockerbuild + ":" + checkedVersion();
+        artifact = Prefetch.lookup(repoSession.getData(), library, name);
+        if (artifact != null && (requestedVersion == null || requestedVersion.equals(artifact.getVersion()))) {
+            getLog().info("prefetched " + gav(artifact));
+            return artifact;
+        }
+        gav = library + ":" + name + ":" + checkedVersion(name, requestedVersion);
         getLog().info("resolve " + gav);
         try {
             artifact = new DefaultArtifact(gav);
@@ -243,19 +1175,20 @@ public class Build extends Base {
         try {
             result = repoSystem.resolveArtifact(repoSession, request);
         } catch (ArtifactResolutionException e) {
-            throw new MojoExecutionException(dockerbuild + ": failed to resolve dockerbuild: " + e.getMessage(), e);
+            throw new MojoExecutionException(name + ": failed to resolve dockerbuild: " + e.getMessage(), e);
         }
-        file = world.file(result.getArtifact().getFile());
-        return file;
+        artifact = result.getArtifact();
+        Prefetch.put(repoSession.getData(), library, name, artifact.getVersion(), artifact.getFile().getAbsolutePath());
+        return artifact;
     }
 
-    private String checkedVersion() throws MojoExecutionException {
+    private String checkedVersion(String name, String requestedVersion) throws MojoExecutionException {
         String gav;
         Artifact artifact;
         VersionRangeRequest request;
         VersionRangeResult result;
 
-        gav = library + ":" + dockerbuild + ":[" + (version == null ? "0" : version) + ",)";
+        gav = library + ":" + name + ":[" + (requestedVersion == null ? "0" : requestedVersion) + ",)";
         try {
             artifact = new DefaultArtifact(gav);
         } catch (IllegalArgumentException e) {
@@ -273,13 +1206,13 @@ public class Build extends Base {
         if (result.getHighestVersion() == null) {
             throw new MojoExecutionException(gav + ": no versions available");
         }
-        if (version == null) {
+        if (requestedVersion == null) {
             return result.getHighestVersion().toString();
         } else {
-            if (!version.equals(result.getHighestVersion().toString())) {
+            if (!requestedVersion.equals(result.getHighestVersion().toString())) {
                 throw new MojoExecutionException("newer version(s) available: " + result);
             }
-            return version;
+            return requestedVersion;
         }
     }
 }
@@ -0,0 +1,106 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild;
+
+import com.github.dockerjava.api.DockerClient;
+import net.oneandone.maven.plugins.dockerbuild.model.Descriptor;
+import net.oneandone.maven.plugins.dockerbuild.model.OciLayout;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Exports the image created by the build goal into an OCI image layout directory and optionally into an OCI tar file.
+ * Streams the output of docker save, blobs already present in the layout are not written again.
+ */
+@Mojo(name = "export", defaultPhase = LifecyclePhase.VERIFY, requiresDependencyResolution = ResolutionScope.NONE, threadSafe = true)
+public class Export extends Base {
+    /** True to also write an OCI tar file with just this image to the build directory. */
+    @Parameter(property = "dockerbuild.exportTar", defaultValue = "false")
+    private boolean exportTar;
+
+    public Export() throws IOException {
+    }
+
+    protected FileNode exportTarFile() {
+        return buildDirectory().join("image-oci.tar");
+    }
+
+    @Override
+    public void doExecute(DockerClient docker) throws IOException, MojoExecutionException {
+        String image;
+        OciLayout layout;
+        Descriptor manifest;
+        long started;
+
+        if (skip) {
+            getLog().info("export skipped");
+            return;
+        }
+        image = imageFile(buildDirectory()).readString().trim();
+        layout = OciLayout.open(exportDirectory());
+        started = System.currentTimeMillis();
+        if (daemonlessFile(buildDirectory()).exists()) {
+            manifest = copy(OciLayout.open(world.file(daemonlessFile(buildDirectory()).readString().trim())), image, layout);
+        } else {
+            getLog().info("docker save " + image + " > " + layout.getDirectory());
+            try (InputStream src = docker.saveImageCmd(image).exec()) {
+                manifest = layout.save(src);
+            }
+        }
+        layout.tag(manifest, image);
+        getLog().info("exported " + manifest + ": " + layout.getWritten() + " bytes written, "
+                + layout.getDeduplicated() + " bytes already present");
+        if (exportTar) {
+            getLog().info("writing " + exportTarFile());
+            layout.exportTar(manifest, image, exportTarFile());
+        }
+        getLog().debug("seconds=" + (System.currentTimeMillis() - started) / 1000);
+    }
+
+    /** image was built daemonless, no need to ask the daemon */
+    private Descriptor copy(OciLayout src, String image, OciLayout dest) throws IOException, MojoExecutionException {
+        Descriptor manifest;
+
+        manifest = src.lookup(image);
+        if (manifest == null) {
+            throw new MojoExecutionException(image + " not found in " + src.getDirectory());
+        }
+        if (src.getDirectory().equals(dest.getDirectory())) {
+            return manifest;
+        }
+        getLog().info("copying " + image + " from " + src.getDirectory() + " to " + dest.getDirectory());
+        for (Descriptor blob : src.references(manifest)) {
+            copyBlob(src, blob, dest);
+        }
+        return copyBlob(src, manifest, dest);
+    }
+
+    private static Descriptor copyBlob(OciLayout src, Descriptor blob, OciLayout dest) throws IOException {
+        if (dest.contains(blob.digest)) {
+            return dest.skip(blob);
+        }
+        try (InputStream in = src.blob(blob.digest).newInputStream()) {
+            return dest.write(in, blob.mediaType);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild;
+
+import net.oneandone.maven.plugins.dockerbuild.model.Metrics;
+import net.oneandone.maven.plugins.dockerbuild.model.Prefetch;
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.apache.maven.AbstractMavenLifecycleParticipant;
+import org.apache.maven.execution.MavenSession;
+import org.eclipse.aether.RepositorySystem;
+import org.eclipse.aether.repository.RemoteRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reactor-wide hooks; active if the plugin is declared with &lt;extensions&gt;true&lt;/extensions&gt;.
+ * Starts resolving the dockerbuilds of all modules when the reactor is known, and writes the metrics summary and a timeline
+ * trace of all goal executions at session end.
+ */
+@Named("dockerbuild")
+@Singleton
+public class Lifecycle extends AbstractMavenLifecycleParticipant {
+    private static final Logger LOG = LoggerFactory.getLogger(Lifecycle.class);
+
+    private static final String PLUGIN_KEY = "net.oneandone.maven.plugins:dockerbuild";
+
+    private final RepositorySystem repositorySystem;
+
+    @Inject
+    public Lifecycle(RepositorySystem repositorySystem) {
+        this.repositorySystem = repositorySystem;
+    }
+
+    @Override
+    public void afterProjectsRead(MavenSession session) {
+        Map<String, List<RemoteRepository>> dockerbuilds;
+
+        if (!Prefetch.builds(session.getGoals())) {
+            return;
+        }
+        dockerbuilds = Prefetch.scan(session, PLUGIN_KEY);
+        if (dockerbuilds.isEmpty()) {
+            return;
+        }
+        LOG.info("prefetching " + dockerbuilds.size() + " dockerbuild(s): " + String.join(" ", dockerbuilds.keySet()));
+        Prefetch.start(session.getRepositorySession().getData(), repositorySystem, session.getRepositorySession(), dockerbuilds);
+    }
+
+    @Override
+    public void afterSessionEnd(MavenSession session) {
+        Metrics metrics;
+        FileNode dir;
+
+        metrics = new Metrics(Metrics.collected(session.getRepositorySession().getData()));
+        if (metrics.isEmpty()) {
+            return;
+        }
+        LOG.info("dockerbuild reactor summary:");
+        for (String line : metrics.summary()) {
+            LOG.info("  " + line);
+        }
+        try {
+            dir = World.create().file(session.getTopLevelProject().getBuild().getDirectory());
+            dir.mkdirsOpt();
+            dir.join("dockerbuild-metrics.json").writeString(Metrics.toJson(metrics.toJson()));
+            dir.join("dockerbuild-metrics.prom").writeString(metrics.toPrometheus());
+            dir.join("dockerbuild-trace.json").writeString(Metrics.toJson(metrics.toTrace()));
+            LOG.info("  see " + dir.join("dockerbuild-metrics.json") + ", timeline: " + dir.join("dockerbuild-trace.json"));
+        } catch (IOException e) {
+            LOG.warn("cannot write reactor metrics: " + e.getMessage());
+        }
+    }
+}
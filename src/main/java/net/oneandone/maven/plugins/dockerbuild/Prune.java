@@ -0,0 +1,62 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild;
+
+import com.github.dockerjava.api.DockerClient;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Removes old snapshot tags of the image repository from the Docker daemon, then dangling images, and optionally trims the
+ * builder cache. Every snapshot build creates a new tag (see the %V placeholder), so daemons fill up without this. Variants of the
+ * last build are pruned as well.
+ */
+@Mojo(name = "prune", defaultPhase = LifecyclePhase.PACKAGE, requiresDependencyResolution = ResolutionScope.NONE, threadSafe = true)
+public class Prune extends Base {
+    public Prune() throws IOException {
+    }
+
+    @Override
+    public void doExecute(DockerClient docker) throws IOException, MojoExecutionException {
+        List<String> images;
+
+        if (skip) {
+            getLog().info("prune skipped");
+            return;
+        }
+        images = new ArrayList<>();
+        for (FileNode directory : imageDirectories()) {
+            if (imageFile(directory).exists()) {
+                images.add(imageFile(directory).readString().trim());
+            }
+        }
+        if (images.isEmpty()) {
+            getLog().info("nothing to prune, no image built: " + imageFile(buildDirectory()));
+            return;
+        }
+        phases.run("prune", () -> {
+            prune(docker, images);
+            return null;
+        });
+    }
+}
@@ -18,167 +18,281 @@ package net.oneandone.maven.plugins.dockerbuild;
 import com.github.dockerjava.api.DockerClient;
 import com.github.dockerjava.api.command.PushImageCmd;
 import com.github.dockerjava.api.model.AuthConfig;
-import com.github.dockerjava.core.command.PushImageResultCallback;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import net.oneandone.maven.plugins.dockerbuild.model.DeferredPush;
+import net.oneandone.maven.plugins.dockerbuild.model.Descriptor;
+import net.oneandone.maven.plugins.dockerbuild.model.OciLayout;
+import net.oneandone.maven.plugins.dockerbuild.model.PushListener;
+import net.oneandone.maven.plugins.dockerbuild.model.Reference;
+import net.oneandone.maven.plugins.dockerbuild.model.Registry;
+import net.oneandone.maven.plugins.dockerbuild.model.Retry;
 import net.oneandone.sushi.fs.file.FileNode;
-import net.oneandone.sushi.launcher.Failure;
+import org.apache.maven.model.Plugin;
+import org.apache.maven.model.PluginExecution;
+import org.apache.maven.plugin.MojoExecution;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.plugins.annotations.ResolutionScope;
 
+import org.apache.maven.project.MavenProject;
+
 import java.io.IOException;
-import java.io.Reader;
-import java.io.StringReader;
-import java.io.StringWriter;
-import java.io.UnsupportedEncodingException;
-import java.io.Writer;
-import java.util.Base64;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 /**
  * Push Docker image.
  */
 @Mojo(name = "push", defaultPhase = LifecyclePhase.DEPLOY, requiresDependencyResolution = ResolutionScope.NONE, threadSafe = true)
 public class Push extends Base {
-    private String configPath;
+    /**
+     * Number of times a failed push is retried. Only transient errors are retried, e.g. timeouts, connection resets or
+     * 5xx/429 responses from the registry; authentication errors or unknown images fail immediately.
+     */
+    @Parameter(property = "dockerbuild.pushRetries", defaultValue = "3")
+    private final int pushRetries;
 
-    public Push() throws IOException {
-    }
+    /** Seconds to wait before the first retry; doubled for every further retry, with random jitter. */
+    @Parameter(property = "dockerbuild.pushRetryDelay", defaultValue = "2")
+    private final int pushRetryDelay;
+
+    /**
+     * Don't push in every module, but queue the image and push all images of the reactor when the last module is done -
+     * similar to deployAtEnd of the maven-deploy-plugin. Nothing is pushed if a module fails. Has to be set for all modules.
+     */
+    @Parameter(property = "dockerbuild.pushAtEnd", defaultValue = "false")
+    private final boolean pushAtEnd;
 
-    public void initConfigPath(String path) {
-        this.configPath = path;
+    /** Maximum number of images pushed concurrently with pushAtEnd. */
+    @Parameter(property = "dockerbuild.pushThreads", defaultValue = "4")
+    private final int pushThreads;
+
+    /** Used internally */
+    @Parameter(defaultValue = "${mojoExecution}", readonly = true)
+    private final MojoExecution mojoExecution;
+
+    public Push() throws IOException {
+        this.pushRetries = 3;
+        this.pushRetryDelay = 2;
+        this.pushAtEnd = false;
+        this.pushThreads = 4;
+        this.mojoExecution = null;
     }
 
     @Override
     public void doExecute(DockerClient docker) throws IOException, MojoExecutionException {
-        FileNode imageFile;
-        String image;
-        String name;
-        String tag;
-        int idx;
-        String registry;
-        PushImageCmd pushCmd;
+        List<DeferredPush> own;
+        List<DeferredPush> jobs;
+        int expected;
 
+        own = new ArrayList<>();
         if (skip) {
             getLog().info("push skipped");
-            return;
-        }
-        imageFile = imageFile();
-        image = imageFile.readString().trim();
-        getLog().info("docker push " + image);
-        idx = image.indexOf('/');
-        if (idx == -1) {
-            registry = "";
         } else {
-            registry = image.substring(0, idx);
+            for (FileNode directory : imageDirectories()) {
+                own.add(new DeferredPush(project.getGroupId() + ":" + project.getArtifactId(), imageFile(directory).readString().trim(),
+                        daemonlessFile(directory).exists() ? daemonlessFile(directory).readString().trim() : null,
+                        cacheFile(directory).exists() ? cacheFile(directory).readString().trim() : null));
+            }
         }
-        idx = image.lastIndexOf(":");
-        if (idx == -1) {
-            name = image;
-            tag = null;
+        if (pushAtEnd) {
+            expected = expected();
+            jobs = DeferredPush.add(session.getRepositorySession().getData(), own, expected);
+            if (jobs == null) {
+                getLog().info("push deferred to end of reactor, " + DeferredPush.ready(session.getRepositorySession().getData())
+                        + "/" + expected + " module(s) ready");
+                return;
+            }
+            getLog().info("pushing " + jobs.size() + " image(s) of " + expected + " module(s)");
+        } else if (own.isEmpty()) {
+            return;
         } else {
-            name = image.substring(0, idx);
-            tag = image.substring(idx + 1);
-        }
-        pushCmd = docker.pushImageCmd(name).withName(name).withTag(tag);
-        pushCmd.withAuthConfig(authConfig(registry));
-        try {
-            pushCmd.exec(new PushImageResultCallback()).awaitCompletion();
-        } catch (InterruptedException e) {
-            throw new MojoExecutionException("push interrupted", e);
+            jobs = own;
         }
+        push(docker, jobs);
+        getLog().info("phases: " + phases.summary());
     }
 
-    private AuthConfig authConfig(String registry) throws MojoExecutionException, IOException {
-        JsonObject config;
-        String store;
+    /** @return number of modules running this goal: those with a push execution, or all if invoked from the command line */
+    private int expected() {
+        String key;
+        Plugin plugin;
+        int configured;
+        int all;
+        boolean self;
 
-        config = configJson();
-        store = getOpt(config, "credsStore");
-        if (store != null) {
-            return storeAuthConfig(store, registry);
-        } else {
-            return inlineAuthConfig(config, registry);
+        key = mojoExecution.getMojoDescriptor().getPluginDescriptor().getPluginLookupKey();
+        configured = 0;
+        all = 0;
+        self = false;
+        for (MavenProject p : session.getProjects()) {
+            if ("war".equals(p.getPackaging())) {
+                all++;
+                plugin = p.getPlugin(key);
+                if (plugin != null && hasPush(plugin)) {
+                    configured++;
+                    self = self || p == project;
+                }
+            }
         }
+        return self ? configured : all;
     }
 
-    private AuthConfig inlineAuthConfig(JsonObject config, String registry) throws MojoExecutionException {
-        JsonElement element;
-        String str;
-        int idx;
-        AuthConfig result;
-
-        element = config.get("auths");
-        if (element == null) {
-            throw new MojoExecutionException("missing auths");
+    private static boolean hasPush(Plugin plugin) {
+        for (PluginExecution execution : plugin.getExecutions()) {
+            if (execution.getGoals().contains("push")) {
+                return true;
+            }
         }
-        element = element.getAsJsonObject().get(registry);
-        if (element == null) {
-            throw new MojoExecutionException("missing registry " + registry);
+        return false;
+    }
+
+    /** push all jobs, up to pushThreads concurrently; credentials are looked up once per registry */
+    private void push(DockerClient docker, List<DeferredPush> jobs) throws IOException, MojoExecutionException {
+        Map<String, AuthConfig> auths;
+
+        auths = new HashMap<>();
+        phases.run("auth", () -> {
+            for (DeferredPush job : jobs) {
+                if (job.layout != null) {
+                    auth(auths, "oci:", Reference.parse(job.image).authKey());
+                } else {
+                    auth(auths, "daemon:", registry(job.image));
+                    if (job.cache != null) {
+                        auth(auths, "daemon:", registry(job.cache));
+                    }
+                }
+            }
+            return null;
+        });
+        if (jobs.size() == 1) {
+            push(docker, jobs.get(0), auths);
+            return;
         }
-        element = element.getAsJsonObject().get("auth");
-        if (element == null) {
-            throw new MojoExecutionException("missing auth in registry " + registry);
+        runAll("push", pushThreads, jobs, job -> job.project + ": " + job, job -> push(docker, job, auths));
+    }
+
+    private void auth(Map<String, AuthConfig> auths, String prefix, String registry) throws IOException, MojoExecutionException {
+        if (!auths.containsKey(prefix + registry)) {
+            auths.put(prefix + registry, prefix.equals("oci:") ? credentials().authConfigOpt(registry) : credentials().authConfig(registry));
         }
-        try {
-            str = new String(Base64.getDecoder().decode(element.getAsString()), "utf8");
-        } catch (UnsupportedEncodingException e) {
-            throw new IllegalStateException(e);
+    }
+
+    private static String registry(String image) {
+        int idx;
+
+        idx = image.indexOf('/');
+        return idx == -1 ? "" : image.substring(0, idx);
+    }
+
+    private void push(DockerClient docker, DeferredPush job, Map<String, AuthConfig> auths) throws IOException, MojoExecutionException {
+        if (job.layout != null) {
+            pushLayout(OciLayout.open(world.file(job.layout)), job.image, auths.get("oci:" + Reference.parse(job.image).authKey()));
+            return;
         }
-        idx = str.indexOf(':');
-        if (idx == -1) {
-            throw new MojoExecutionException("invalid credentials");
+        push(docker, job.image, auths.get("daemon:" + registry(job.image)));
+        if (job.cache != null) {
+            getLog().info("docker tag " + job.image + " " + job.cache);
+            phases.run("tag", () -> {
+                tag(docker, job.image, job.cache);
+                return null;
+            });
+            push(docker, job.cache, auths.get("daemon:" + registry(job.cache)));
         }
-        result = new AuthConfig();
-        result.withUsername(str.substring(0, idx));
-        result.withPassword(str.substring(idx + 1));
-        return result;
     }
 
-    private AuthConfig storeAuthConfig(String store, String registry) throws MojoExecutionException {
-        Writer output = new StringWriter();
-        Reader input = new StringReader(registry);
-        JsonObject json;
-        AuthConfig auth;
-        String credentialsHelper;
-
-        credentialsHelper = "docker-credential-" + store;
-        getLog().debug("credentials-helper: " + credentialsHelper);
-        try {
-            world.getWorking().launcher(credentialsHelper, "get").exec(output, null, true, input, false);
-        } catch (Failure failure) {
-            throw new MojoExecutionException("cannot access docker credentials: " + failure, failure);
+    private void push(DockerClient docker, String image, AuthConfig auth) throws IOException, MojoExecutionException {
+        String name;
+        String tag;
+        int idx;
+
+        getLog().info("docker push " + image);
+        idx = image.lastIndexOf(":");
+        if (idx == -1) {
+            name = image;
+            tag = null;
+        } else {
+            name = image.substring(0, idx);
+            tag = image.substring(idx + 1);
         }
-        json = JsonParser.parseReader(new StringReader(output.toString())).getAsJsonObject();
-        auth = new AuthConfig();
-        auth.withUsername(get(json, "Username"));
-        auth.withPassword(get(json, "Secret"));
-        return auth;
+        // the daemon skips layers already in the registry, so a retry only re-sends what's missing
+        retry().run("docker push " + image, (attempt) -> phases.run("push", () -> {
+            PushImageCmd pushCmd;
+            PushListener listener;
+
+            pushCmd = docker.pushImageCmd(name).withName(name).withTag(tag);
+            pushCmd.withAuthConfig(auth);
+            listener = new PushListener(getLog());
+            try {
+                pushCmd.exec(listener).awaitCompletion();
+            } catch (InterruptedException e) {
+                throw new MojoExecutionException("push interrupted", e);
+            } catch (RuntimeException e) {
+                // awaitCompletion re-throws errors of the response stream unchecked, e.g. a connection reset or an http 500
+                throw new IOException(e.getCause() instanceof IOException ? e.getCause().toString() : e.toString(), e);
+            } finally {
+                getLog().info("attempt " + attempt + ": " + listener.stats());
+            }
+            listener.check();
+            return null;
+        }));
     }
 
-    /** docker-java loads this file, but it does not store credsStore */
-    private JsonObject configJson() throws IOException {
-        try (Reader src = world.file(configPath).join("config.json").newReader()) {
-            return JsonParser.parseReader(src).getAsJsonObject();
-        }
+    private Retry retry() {
+        return new Retry(getLog(), pushRetries, pushRetryDelay * 1000L, new Random());
     }
 
-    private static String get(JsonObject obj, String field) {
-        JsonElement e;
+    private static void tag(DockerClient docker, String image, String target) {
+        int idx;
 
-        e = obj.get(field);
-        if (e == null) {
-            throw new IllegalStateException("missing field: " + field);
-        }
-        return e.getAsString();
+        idx = target.lastIndexOf(':');
+        docker.tagImageCmd(image, target.substring(0, idx), target.substring(idx + 1)).exec();
     }
 
-    private static String getOpt(JsonObject obj, String field) {
-        JsonElement e;
+    /** push an image built daemonless */
+    private void pushLayout(OciLayout layout, String image, AuthConfig auth) throws IOException, MojoExecutionException {
+        Descriptor manifest;
+        Reference reference;
+        Registry registry;
+        int uploaded;
+
+        manifest = layout.lookup(image);
+        if (manifest == null) {
+            throw new MojoExecutionException(image + " not found in " + layout.getDirectory());
+        }
+        reference = Reference.parse(image);
+        getLog().info("pushing " + image + " from " + layout.getDirectory());
+        registry = Registry.create(reference.registry, auth);
+        // blobs already uploaded - by this or a failed previous attempt - are skipped
+        uploaded = retry().run("upload " + image, (attempt) -> phases.run("upload", () -> {
+            int count;
+            int present;
 
-        e = obj.get(field);
-        return e == null ? null : e.getAsString();
+            count = 0;
+            present = 0;
+            try {
+                for (Descriptor blob : layout.references(manifest)) {
+                    if (registry.hasBlob(reference.repository, blob.digest)) {
+                        present++;
+                    } else {
+                        getLog().debug("uploading " + blob);
+                        registry.upload(reference.repository, blob, layout.blob(blob.digest));
+                        count++;
+                    }
+                }
+            } finally {
+                getLog().info("attempt " + attempt + ": " + count + " blob(s) uploaded, " + present + " already present");
+            }
+            return count;
+        }));
+        retry().run("manifest " + image, (attempt) -> phases.run("manifest", () -> {
+            registry.putManifest(reference.repository, reference.version(), layout.blob(manifest.digest).readBytes(), manifest.mediaType);
+            return null;
+        }));
+        getLog().info("pushed " + manifest + ", " + uploaded + " blob(s) uploaded");
     }
 }
@@ -0,0 +1,113 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild;
+
+import org.apache.maven.plugin.MojoExecutionException;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * An additional image built by the same execution, configured with a &lt;variant&gt; element of the build goal's variants
+ * parameter. Values not specified are taken from the execution.
+ */
+public class Variant {
+    private static final Pattern NAME = Pattern.compile("[a-zA-Z0-9][a-zA-Z0-9._-]*");
+
+    /** Identifies the variant: names its directory below the build directory and its latest tag. Mandatory. */
+    private String name;
+
+    private String dockerbuild;
+
+    private String version;
+
+    private String target;
+
+    /** Not specified for the execution's image with -&lt;name&gt; appended. */
+    private String image;
+
+    /** Merged with the execution's arguments. */
+    private Map<String, String> arguments;
+
+    public Variant() {
+        this(null, null, null, null, null, null);
+    }
+
+    /** @param name null for the execution's own image */
+    public Variant(String name, String dockerbuild, String version, String target, String image, Map<String, String> arguments) {
+        this.name = name;
+        this.dockerbuild = dockerbuild;
+        this.version = version;
+        this.target = target;
+        this.image = image;
+        this.arguments = arguments;
+    }
+
+    /** @return null for the execution's own image */
+    public String getName() {
+        return name;
+    }
+
+    public String getDockerbuild() {
+        return dockerbuild;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public String getImage() {
+        return image;
+    }
+
+    public Map<String, String> getArguments() {
+        return arguments;
+    }
+
+    /** @return this variant with unspecified values taken from the execution's own image */
+    public Variant merge(Variant main) throws MojoExecutionException {
+        Map<String, String> merged;
+
+        if (name == null || !NAME.matcher(name).matches()) {
+            throw new MojoExecutionException("invalid variant name: " + name);
+        }
+        merged = new HashMap<>(main.arguments);
+        if (arguments != null) {
+            merged.putAll(arguments);
+        }
+        return new Variant(name, dockerbuild == null ? main.dockerbuild : dockerbuild,
+                dockerbuild == null && version == null ? main.version : version, target == null ? main.target : target,
+                image == null ? main.image + "-" + name : image, merged);
+    }
+
+    /** @return true if images of both variants can be built from the same unpacked dockerbuild */
+    public boolean sameContext(Variant other) {
+        return dockerbuild.equals(other.dockerbuild) && same(version, other.version) && same(target, other.target);
+    }
+
+    private static boolean same(String left, String right) {
+        return left == null ? right == null : left.equals(right);
+    }
+
+    public String toString() {
+        return name == null ? dockerbuild : name;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild;
+
+import com.github.dockerjava.api.DockerClient;
+import net.oneandone.maven.plugins.dockerbuild.model.Phases;
+import net.oneandone.maven.plugins.dockerbuild.model.Watcher;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Builds the image and its variants, then rebuilds them whenever a dockerbuild or a file referenced by arguments (e.g. the war) changes,
+ * until interrupted. The daemon connection and the unpacked context are kept between builds, so a rebuild only re-evaluates
+ * arguments and sends the context. Typically invoked as "mvn package dockerbuild:watch", with "mvn package" in another terminal.
+ */
+@Mojo(name = "watch", requiresDependencyResolution = ResolutionScope.NONE, threadSafe = true)
+public class Watch extends Build {
+    /** Milliseconds without further changes before a rebuild starts */
+    @Parameter(property = "dockerbuild.watchDelay", defaultValue = "500")
+    private final int watchDelay;
+
+    public Watch() throws IOException {
+        this.watchDelay = 500;
+    }
+
+    @Override
+    public void doExecute(DockerClient docker) throws IOException, MojoExecutionException {
+        List<FileNode> inputs;
+        Set<FileNode> changed;
+
+        try {
+            super.doExecute(docker);
+        } catch (MojoExecutionException | IOException e) {
+            if (inputs().isEmpty()) {
+                throw e; // failed before the context was prepared, there's nothing to watch
+            }
+            getLog().error("build failed: " + e.getMessage());
+        }
+        inputs = inputs();
+        if (inputs.isEmpty()) {
+            return;
+        }
+        try (Watcher watcher = new Watcher()) {
+            while (true) {
+                watcher.watch(inputs);
+                getLog().info("watching " + inputs.size() + " file(s), press ctrl-c to stop");
+                changed = watcher.await(watchDelay);
+                getLog().info("changed: " + changed);
+                if (!Collections.disjoint(changed, dockerbuilds())) {
+                    resetContext();
+                }
+                phases = new Phases();
+                rebuild(docker);
+                if (!inputs().isEmpty()) {
+                    inputs = inputs();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            getLog().info("watch stopped");
+        }
+    }
+
+    /** a failed build does not end watching, the next change might fix it */
+    private void rebuild(DockerClient docker) {
+        try {
+            super.doExecute(docker);
+        } catch (MojoExecutionException | IOException e) {
+            getLog().error("build failed: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild.model;
+
+import net.oneandone.sushi.fs.file.FileNode;
+import org.apache.maven.plugin.MojoExecutionException;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Evaluated argument value. File contents are not loaded until needed, and they can be streamed into the context
+ * without ever being held in memory.
+ */
+abstract class ArgumentValue {
+    /** Filters a character stream; implemented by Maven filtering */
+    interface Filter {
+        void filter(Reader src, Writer dest) throws IOException, MojoExecutionException;
+    }
+
+    public static ArgumentValue string(String str) {
+        return new ArgumentValue() {
+            public long size() {
+                return str.length();
+            }
+
+            public void writeTo(OutputStream dest) throws IOException {
+                dest.write(str.getBytes(StandardCharsets.UTF_8));
+            }
+
+            public Reader reader() {
+                return new StringReader(str);
+            }
+
+            public String string() {
+                return str;
+            }
+        };
+    }
+
+    public static ArgumentValue file(FileNode file) {
+        return new ArgumentValue() {
+            public long size() throws IOException {
+                return file.size();
+            }
+
+            public void writeTo(OutputStream dest) throws IOException {
+                try (InputStream src = file.newInputStream()) {
+                    OciLayout.copy(src, dest);
+                }
+            }
+
+            public Reader reader() throws IOException {
+                return new BufferedReader(file.newReader());
+            }
+
+            public String string() throws IOException {
+                return file.readString();
+            }
+        };
+    }
+
+    public static ArgumentValue base64(ArgumentValue encoded) {
+        return new ArgumentValue() {
+            public long size() throws IOException {
+                return (encoded.size() + 2) / 3 * 4;
+            }
+
+            public void writeTo(OutputStream dest) throws IOException, MojoExecutionException {
+                // close the encoder to write padding, but keep dest open
+                try (OutputStream encoder = Base64.getEncoder().wrap(new FilterOutputStream(dest) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len); // FilterOutputStream writes byte by byte
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        flush();
+                    }
+                })) {
+                    encoded.writeTo(encoder);
+                }
+            }
+        };
+    }
+
+    public static ArgumentValue filtered(ArgumentValue src, Filter filter) {
+        return new ArgumentValue() {
+            /** estimated */
+            public long size() throws IOException {
+                return src.size();
+            }
+
+            public void writeTo(OutputStream dest) throws IOException, MojoExecutionException {
+                Writer writer;
+
+                writer = new OutputStreamWriter(dest, StandardCharsets.UTF_8);
+                try (Reader in = src.reader()) {
+                    filter.filter(in, writer);
+                }
+                writer.flush();
+            }
+        };
+    }
+
+    /** size in bytes; may be an estimate */
+    public abstract long size() throws IOException;
+
+    /** does not close dest */
+    public abstract void writeTo(OutputStream dest) throws IOException, MojoExecutionException;
+
+    public Reader reader() throws IOException, MojoExecutionException {
+        return new StringReader(string());
+    }
+
+    public String string() throws IOException, MojoExecutionException {
+        ByteArrayOutputStream dest;
+
+        dest = new ByteArrayOutputStream();
+        writeTo(dest);
+        return new String(dest.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -24,18 +24,23 @@ import org.apache.maven.project.MavenProject;
 import org.apache.maven.shared.filtering.MavenFilteringException;
 import org.apache.maven.shared.filtering.MavenReaderFilter;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Reader;
-import java.io.StringReader;
-import java.nio.charset.StandardCharsets;
+import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Base64;
 import java.util.Collection;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /** represents the actual arguments passed to the docker build */
 public class Arguments {
+    private static final int BUFFER_SIZE = 8192;
+
     private final Log log;
     private final World world;
     private final Map<String, BuildArgument> formals;
@@ -45,6 +50,12 @@ public class Arguments {
     private final MavenProject project;
     private final MavenSession session;
 
+    /** files read by directives */
+    private final List<FileNode> inputs;
+
+    /** context paths written by directives */
+    private final List<String> added;
+
     public Arguments(Log log, Context context, MavenReaderFilter filter, MavenProject project, MavenSession session) throws IOException {
         this.log = log;
         this.world = context.getDirectory().getWorld();
@@ -54,11 +65,48 @@ public class Arguments {
         this.filter = filter;
         this.project = project;
         this.session = session;
+        this.inputs = new ArrayList<>();
+        this.added = new ArrayList<>();
+    }
+
+    /** @return files read by the directives of the arguments evaluated so far, e.g. artifacts to copy */
+    public List<FileNode> getInputs() {
+        return inputs;
+    }
+
+    /** @return context paths written by the directives of the arguments evaluated so far, e.g. copies or spilled arguments */
+    public List<String> getAdded() {
+        return added;
+    }
+
+    /** directory in the context where oversized arguments are stored */
+    public static final String SPILL_DIRECTORY = ".dockerbuild-args";
+
+    /** @return true if evaluating these arguments might add files to the context, so it cannot be shared with other images */
+    public static boolean writesContext(Map<String, String> actuals, long spillSize) {
+        if (spillSize > 0) {
+            return true;
+        }
+        for (String value : actuals.values()) {
+            if (value.startsWith("%") && (value.contains("%copy:") || value.contains("%filtercopy:"))) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public Map<String, String> eval(Map<String, String> actuals) throws MojoExecutionException, IOException {
+        return eval(actuals, 0);
+    }
+
+    /**
+     * @param spillSize arguments larger than this number of bytes are written into the context and passed as path within the context;
+     *                  0 to never spill
+     */
+    public Map<String, String> eval(Map<String, String> actuals, long spillSize) throws MojoExecutionException, IOException {
         Map<String, String> result;
         String name;
+        ArgumentValue value;
 
         result = new LinkedHashMap<>();
         for (Map.Entry<String, String> entry : actuals.entrySet()) {
@@ -66,7 +114,12 @@ public class Arguments {
             if (!formals.containsKey(name)) {
                 throw new MojoExecutionException("unknown argument: " + name + "\n" + available(formals.values()));
             }
-            result.put(name, eval(entry.getValue()));
+            value = eval(entry.getValue());
+            if (spillSize > 0 && value.size() > spillSize) {
+                result.put(name, spill(name, value));
+            } else {
+                result.put(name, value.string());
+            }
         }
         for (BuildArgument arg : formals.values()) {
             if (!result.containsKey(arg.name)) {
@@ -78,61 +131,85 @@ public class Arguments {
         return result;
     }
 
-    private String eval(String value) throws MojoExecutionException, IOException {
+    private String spill(String name, ArgumentValue value) throws IOException, MojoExecutionException {
+        String path;
+        FileNode dest;
+
+        path = SPILL_DIRECTORY + "/" + name;
+        dest = context.getDirectory().join(path);
+        dest.getParent().mkdirsOpt();
+        try (OutputStream out = new BufferedOutputStream(dest.newOutputStream())) {
+            value.writeTo(out);
+        }
+        log.info("argument " + name + " too large, passed as file " + path + " (" + dest.size() + " bytes)");
+        added.add(path);
+        return path;
+    }
+
+    private ArgumentValue eval(String value) throws MojoExecutionException, IOException {
         int idx;
         String name;
+        ArgumentValue arg;
 
         if (!value.startsWith("%")) {
-            return value;
+            return ArgumentValue.string(value);
         }
         idx = value.indexOf(':');
         if (idx == -1) {
             throw new MojoExecutionException("invalid value: " + value);
         }
         name = value.substring(1, idx);
-        value = eval(value.substring(idx + 1));
+        arg = eval(value.substring(idx + 1));
         switch (name) {
             case "artifact":
-                return artifact(value);
+                return ArgumentValue.string(artifact(arg.string()));
             case "base64":
-                return base64(value);
+                return ArgumentValue.base64(arg);
             case "copy":
-                return copy(value);
+                return ArgumentValue.string(copy(arg.string()));
             case "file":
-                return file(value);
+                return ArgumentValue.file(file(arg.string()));
             case "filter":
-                return filter(value);
+                return ArgumentValue.filtered(arg, this::filter);
+            case "filtercopy":
+                return ArgumentValue.string(filterCopy(arg.string()));
             default:
                 throw new MojoExecutionException("unknown directive: " + name);
         }
     }
 
-    private String base64(String value) {
-        return Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    private FileNode file(String value) throws IOException {
+        return input(world.file(world.file(project.getBasedir()), value).checkFile());
     }
 
-    private String file(String value) throws IOException {
-        return world.file(world.file(project.getBasedir()), value).readString();
+    private FileNode input(FileNode file) {
+        inputs.add(file);
+        return file;
     }
 
-    private String filter(String value) throws IOException, MojoExecutionException {
-        StringReader src;
-        StringBuilder dest;
-        Reader s;
-        int c;
-
-        src = new StringReader(value);
-        dest = new StringBuilder();
-        try {
-            s = filter.filter(src, true, project, new ArrayList<>(), false, session);
-            while (true) {
-                c = s.read();
-                if (c < 0) {
-                    break;
-                }
-                dest.append((char) c);
+    private String filterCopy(String path) throws IOException, MojoExecutionException {
+        FileNode src;
+        FileNode dest;
+
+        src = file(path);
+        dest = context.getDirectory().join(src.getName());
+        try (Reader in = new BufferedReader(src.newReader()); Writer out = new BufferedWriter(dest.newWriter())) {
+            filter(in, out);
+        }
+        log.info("filter " + src + " > " + dest);
+        added.add(src.getName());
+        return src.getName();
+    }
+
+    private void filter(Reader src, Writer dest) throws IOException, MojoExecutionException {
+        char[] buffer;
+        int count;
+
+        buffer = new char[BUFFER_SIZE];
+        try (Reader filtered = filter.filter(src, true, project, new ArrayList<>(), false, session)) {
+            while ((count = filtered.read(buffer)) != -1) {
+                dest.write(buffer, 0, count);
             }
-            return dest.toString();
         } catch (MavenFilteringException e) {
             throw new MojoExecutionException(e.getMessage(), e);
         }
@@ -151,6 +228,7 @@ public class Arguments {
         }
         src = target.join(project.getBuild().getFinalName() + suffix);
         src.checkFile();
+        input(src);
         return src.getAbsolute();
     }
 
@@ -160,9 +238,11 @@ public class Arguments {
 
         src = world.file(path);
         src.checkFile();
+        input(src);
         dest = context.getDirectory().join(src.getName());
         src.copyFile(dest);
         log.info("cp " + src + " " + dest);
+        added.add(src.getName());
         return src.getName();
     }
 
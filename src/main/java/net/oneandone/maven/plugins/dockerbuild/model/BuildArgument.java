@@ -15,29 +15,8 @@
  */
 package net.oneandone.maven.plugins.dockerbuild.model;
 
-import net.oneandone.sushi.fs.file.FileNode;
-
-import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
-
+/** Formal argument, i.e. declared by an ARG instruction */
 public class BuildArgument {
-    public static Map<String, BuildArgument> scan(FileNode file) throws IOException {
-        Map<String, BuildArgument> result;
-        BuildArgument buildArgument;
-
-        result = new HashMap<>();
-        for (String line : file.readLines()) {
-            buildArgument = scan(line);
-            if (buildArgument != null) {
-                if (result.put(buildArgument.name, buildArgument) != null) {
-                    throw new IOException("duplicate variable: " + buildArgument.name);
-                }
-            }
-        }
-        return result;
-    }
-
     public static BuildArgument scan(String line) {
         String name;
         String dflt;
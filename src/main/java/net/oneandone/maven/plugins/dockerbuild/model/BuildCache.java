@@ -0,0 +1,138 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild.model;
+
+import net.oneandone.sushi.fs.file.FileNode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Registry-backed build cache. Every image is labeled with a fingerprint of its inputs; images are additionally pushed to the cache
+ * repository with the fingerprint as tag, so later builds with the same inputs can pull instead of build.
+ */
+public class BuildCache {
+    public static final String LABEL = "net.oneandone.dockerbuild.fingerprint";
+
+    private static final String TAG_PREFIX = "fp-";
+
+    /**
+     * @param dockerbuild groupId:artifactId:version of the dockerbuild
+     * @param contextDigest see contextDigest
+     * @param arguments evaluated build arguments
+     * @param target stage to build, null for the last
+     * @return hex encoded sha256
+     */
+    public static String fingerprint(String dockerbuild, String contextDigest, Map<String, String> arguments, String target) {
+        MessageDigest digest;
+
+        digest = OciLayout.sha256();
+        update(digest, "dockerbuild", dockerbuild);
+        update(digest, "context", contextDigest);
+        update(digest, "target", target == null ? "" : target);
+        for (Map.Entry<String, String> entry : new TreeMap<>(arguments).entrySet()) {
+            update(digest, "arg " + entry.getKey(), entry.getValue());
+        }
+        return OciLayout.hex(digest.digest());
+    }
+
+    /** digest over path and content of the specified context files */
+    public static String contextDigest(FileNode directory, List<String> includes) throws IOException {
+        return contextDigest(fileDigests(directory, includes));
+    }
+
+    /** @param files as returned by fileDigests */
+    public static String contextDigest(Map<String, String> files) {
+        MessageDigest digest;
+
+        digest = OciLayout.sha256();
+        for (Map.Entry<String, String> entry : new TreeMap<>(files).entrySet()) {
+            update(digest, "file " + entry.getKey(), entry.getValue());
+        }
+        return OciLayout.hex(digest.digest());
+    }
+
+    /** @return maps relative path to hex encoded sha256 of the content, for all files included in the context */
+    public static Map<String, String> fileDigests(FileNode directory, List<String> includes) throws IOException {
+        TreeMap<String, String> result;
+        MessageDigest digest;
+        byte[] buffer;
+        int count;
+
+        result = new TreeMap<>();
+        buffer = new byte[64 * 1024];
+        for (FileNode file : directory.find("**/*")) {
+            if (file.isFile() && (includes == null || Context.isIncluded(file.getRelative(directory), includes))) {
+                digest = OciLayout.sha256();
+                try (InputStream src = file.newInputStream()) {
+                    while ((count = src.read(buffer)) != -1) {
+                        digest.update(buffer, 0, count);
+                    }
+                }
+                result.put(file.getRelative(directory), OciLayout.hex(digest.digest()));
+            }
+        }
+        return result;
+    }
+
+    private static void update(MessageDigest digest, String key, String value) {
+        digest.update((key + "=" + value.length() + ":" + value + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    //--
+
+    public static BuildCache create(String name, Credentials credentials) throws IOException {
+        Reference reference;
+
+        reference = Reference.parse(name);
+        return new BuildCache(name, Registry.create(reference.registry, credentials.authConfigOpt(reference.authKey())), reference.repository);
+    }
+
+    /** as used by the daemon */
+    private final String name;
+    private final Registry registry;
+    private final String repository;
+
+    /** @param name repository without tag, e.g. registry.example.com/cache/app */
+    public BuildCache(String name, Registry registry, String repository) {
+        this.name = name;
+        this.registry = registry;
+        this.repository = repository;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String tag(String fingerprint) {
+        return TAG_PREFIX + fingerprint;
+    }
+
+    /** @return image name for the specified fingerprint */
+    public String image(String fingerprint) {
+        return name + ":" + tag(fingerprint);
+    }
+
+    /** @return true if the cache repository has an image with the specified fingerprint */
+    public boolean contains(String fingerprint) throws IOException {
+        return registry.manifestOpt(repository, tag(fingerprint)) != null;
+    }
+}
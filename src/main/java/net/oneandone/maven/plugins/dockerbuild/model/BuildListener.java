@@ -15,7 +15,9 @@
  */
 package net.oneandone.maven.plugins.dockerbuild.model;
 
+import com.github.dockerjava.api.DockerClient;
 import com.github.dockerjava.api.async.ResultCallback;
+import com.github.dockerjava.api.exception.NotFoundException;
 import com.github.dockerjava.api.model.BuildResponseItem;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
@@ -24,40 +26,76 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+/**
+ * Receives the response stream of a build. Callbacks are invoked by docker-java's stream thread, awaitImageId by the Maven thread.
+ */
 public class BuildListener implements ResultCallback<BuildResponseItem> {
+    private static final Pattern RUNNING_IN = Pattern.compile("Running in ([0-9a-f]{12,64})");
+    private static final Pattern STEP = Pattern.compile("^Step \\d+/\\d+ : (.*)$");
+    private static final long POLL_MILLIS = 1000;
+
     private final Log log;
     private final PrintWriter logfile;
-    private List<Throwable> errors;
+    private final DockerClient docker;
+    private final List<Throwable> errors;
+
+    /** instructions as reported by the daemon, and whether they were taken from the build cache */
+    private final List<BuildRecord.Step> steps;
 
     private final CountDownLatch completed = new CountDownLatch(1);
 
-    private String imageId;
-    private String error;
-    private Closeable stream;
-    private boolean closed = false;
+    private volatile String imageId;
+    private volatile String error;
+    private volatile Closeable stream;
+    private volatile boolean closed = false;
+
+    /** intermediate container of the currently running step; null if none */
+    private volatile String container;
+
+    /** time of the last response item; 0 until the response starts, i.e. while the context is uploaded */
+    private volatile long lastActivity;
 
-    public BuildListener(Log log, PrintWriter logfile) {
+    public BuildListener(Log log, PrintWriter logfile, DockerClient docker) {
         this.log = log;
         this.logfile = logfile;
-        this.errors = new ArrayList<>();
+        this.docker = docker;
+        this.errors = Collections.synchronizedList(new ArrayList<>());
+        this.steps = Collections.synchronizedList(new ArrayList<>());
+        this.lastActivity = 0;
     }
 
     @Override
     public void onStart(Closeable theStream) {
         this.stream = theStream;
         this.closed = false;
+        this.lastActivity = System.currentTimeMillis();
     }
 
     @Override
     public void onNext(BuildResponseItem item) {
         String st;
+        Matcher matcher;
 
+        lastActivity = System.currentTimeMillis();
         st = item.getStream();
         if (st != null) {
-            logfile.print(st);
+            synchronized (logfile) {
+                logfile.print(st);
+            }
+            steps(st);
+            matcher = RUNNING_IN.matcher(st);
+            if (matcher.find()) {
+                container = matcher.group(1);
+            } else if (st.contains("Removing intermediate container")) {
+                container = null;
+            }
         }
         if (item.isBuildSuccessIndicated()) {
             this.imageId = item.getImageId();
@@ -67,6 +105,31 @@ public class BuildListener implements ResultCallback<BuildResponseItem> {
         log.debug(item.toString());
     }
 
+    private void steps(String st) {
+        Matcher matcher;
+        int last;
+
+        for (String line : st.split("\n")) {
+            matcher = STEP.matcher(line);
+            if (matcher.find()) {
+                steps.add(new BuildRecord.Step(matcher.group(1).trim(), false));
+            } else if (line.trim().equals("---> Using cache")) {
+                synchronized (steps) {
+                    last = steps.size() - 1;
+                    if (last >= 0) {
+                        steps.set(last, new BuildRecord.Step(steps.get(last).instruction, true));
+                    }
+                }
+            }
+        }
+    }
+
+    public List<BuildRecord.Step> getSteps() {
+        synchronized (steps) {
+            return new ArrayList<>(steps);
+        }
+    }
+
     @Override
     public void onError(Throwable throwable) {
         if (closed) {
@@ -92,7 +155,7 @@ public class BuildListener implements ResultCallback<BuildResponseItem> {
     //--
 
     @Override
-    public void close() throws IOException {
+    public synchronized void close() throws IOException {
         if (!closed) {
             closed = true;
             try {
@@ -108,13 +171,41 @@ public class BuildListener implements ResultCallback<BuildResponseItem> {
     //--
 
     public String awaitImageId() throws MojoExecutionException {
+        return awaitImageId(0, 0);
+    }
+
+    /**
+     * Ctrl-c does not interrupt Maven's threads, so a shutdown hook cancels the build when the JVM exits while waiting.
+     *
+     * @param timeout seconds for the whole build, 0 for no limit
+     * @param inactivityTimeout seconds without response from the daemon once the context is uploaded, 0 for no limit
+     */
+    public String awaitImageId(int timeout, int inactivityTimeout) throws MojoExecutionException {
+        long deadline;
+        long now;
         MojoExecutionException exception;
+        Thread hook;
 
+        deadline = timeout > 0 ? System.currentTimeMillis() + timeout * 1000L : Long.MAX_VALUE;
+        hook = new Thread(() -> cancel("maven shutting down"), "dockerbuild-cancel");
+        Runtime.getRuntime().addShutdownHook(hook);
         try {
-            completed.await();
+            while (!completed.await(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                now = System.currentTimeMillis();
+                if (now >= deadline) {
+                    throw cancel("build timed out after " + timeout + " seconds");
+                }
+                if (inactivityTimeout > 0 && lastActivity > 0 && now - lastActivity >= inactivityTimeout * 1000L) {
+                    throw cancel("build stuck: no output for " + inactivityTimeout + " seconds");
+                }
+            }
         } catch (InterruptedException e) {
-            throw new MojoExecutionException("interrupted", e);
+            Thread.currentThread().interrupt();
+            exception = cancel("build interrupted");
+            exception.initCause(e);
+            throw exception;
         } finally {
+            removeHook(hook);
             try {
                 close();
             } catch (IOException e) {
@@ -122,12 +213,14 @@ public class BuildListener implements ResultCallback<BuildResponseItem> {
                 log.error(e);
             }
         }
-        if (!errors.isEmpty()) {
-            exception = new MojoExecutionException("exception(s) processing response stream");
-            for (Throwable th : errors) {
-                exception.initCause(th);
+        synchronized (errors) {
+            if (!errors.isEmpty()) {
+                exception = new MojoExecutionException("exception(s) processing response stream", errors.get(0));
+                for (Throwable th : errors.subList(1, errors.size())) {
+                    exception.addSuppressed(th);
+                }
+                throw exception;
             }
-            throw exception;
         }
         if (imageId != null) {
             return imageId;
@@ -135,4 +228,36 @@ public class BuildListener implements ResultCallback<BuildResponseItem> {
             throw new MojoExecutionException("Docker build failed: " + error); // error may be null
         }
     }
+
+    private static void removeHook(Thread hook) {
+        try {
+            Runtime.getRuntime().removeShutdownHook(hook);
+        } catch (IllegalStateException e) {
+            // shutdown in progress, the hook cancels the build
+        }
+    }
+
+    /** stop receiving output, which makes the daemon abort the build, and remove the container of the running step */
+    private MojoExecutionException cancel(String message) {
+        String id;
+
+        log.error(message + ", cancelling");
+        try {
+            close();
+        } catch (IOException e) {
+            log.warn("close failed: " + e.getMessage());
+        }
+        id = container;
+        if (id != null && docker != null) {
+            log.info("docker rm -f " + id);
+            try {
+                docker.removeContainerCmd(id).withForce(true).exec();
+            } catch (NotFoundException e) {
+                // already removed by the daemon
+            } catch (RuntimeException e) {
+                log.warn("cannot remove container " + id + ": " + e.getMessage());
+            }
+        }
+        return new MojoExecutionException(message);
+    }
 }
@@ -0,0 +1,292 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild.model;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import net.oneandone.sushi.fs.file.FileNode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * Inputs and per-step cache results of a daemon build, persisted to explain cache misses of the next build: the first step
+ * that missed the cache is compared with the inputs of the previous build to name the most likely cause.
+ */
+public class BuildRecord {
+    /** A build step as reported by the daemon */
+    public static class Step {
+        public final String instruction;
+        public final boolean cached;
+
+        public Step(String instruction, boolean cached) {
+            this.instruction = instruction;
+            this.cached = cached;
+        }
+
+        public boolean isFrom() {
+            return instruction.toUpperCase(Locale.ROOT).startsWith("FROM ");
+        }
+
+        public String toString() {
+            return instruction + (cached ? " (cached)" : "");
+        }
+    }
+
+    /** e.g. %V of snapshots */
+    private static final Pattern TIMESTAMP = Pattern.compile("\\d{8}[-.T]?\\d{4,6}");
+
+    private static final int MAX_FILES = 5;
+
+    /** @return null if the file does not exist or cannot be parsed, e.g. because it was written by an older version */
+    public static BuildRecord loadOpt(FileNode file) throws IOException {
+        JsonObject json;
+        List<Step> steps;
+
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            json = JsonParser.parseString(file.readString()).getAsJsonObject();
+            steps = new ArrayList<>();
+            for (JsonElement element : json.getAsJsonArray("steps")) {
+                steps.add(new Step(element.getAsJsonObject().get("instruction").getAsString(),
+                        element.getAsJsonObject().get("cached").getAsBoolean()));
+            }
+            return new BuildRecord(json.get("dockerbuild").getAsString(), map(json.getAsJsonObject("arguments")),
+                    map(json.getAsJsonObject("files")), map(json.getAsJsonObject("baseImages")), steps,
+                    json.has("image") ? json.get("image").getAsString() : null);
+        } catch (JsonParseException | IllegalStateException | NullPointerException | ClassCastException e) {
+            return null;
+        }
+    }
+
+    private static Map<String, String> map(JsonObject object) {
+        Map<String, String> result;
+
+        result = new TreeMap<>();
+        for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().getAsString());
+        }
+        return result;
+    }
+
+    private static JsonObject object(Map<String, String> map) {
+        JsonObject result;
+
+        result = new JsonObject();
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            result.addProperty(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    //--
+
+    /** groupId:artifactId:version */
+    public final String dockerbuild;
+    public final Map<String, String> arguments;
+
+    /** maps context path to content digest */
+    public final Map<String, String> files;
+
+    /** maps base image name to image id */
+    public final Map<String, String> baseImages;
+
+    public final List<Step> steps;
+
+    /** id of the resulting image; null if unknown */
+    public final String image;
+
+    public BuildRecord(String dockerbuild, Map<String, String> arguments, Map<String, String> files, Map<String, String> baseImages,
+                       List<Step> steps, String image) {
+        this.dockerbuild = dockerbuild;
+        this.arguments = new TreeMap<>(arguments);
+        this.files = new TreeMap<>(files);
+        this.baseImages = new TreeMap<>(baseImages);
+        this.steps = steps;
+        this.image = image;
+    }
+
+    public void save(FileNode file) throws IOException {
+        JsonObject json;
+        JsonArray array;
+        JsonObject step;
+
+        json = new JsonObject();
+        json.addProperty("dockerbuild", dockerbuild);
+        json.add("arguments", object(arguments));
+        json.add("files", object(files));
+        json.add("baseImages", object(baseImages));
+        array = new JsonArray();
+        for (Step s : steps) {
+            step = new JsonObject();
+            step.addProperty("instruction", s.instruction);
+            step.addProperty("cached", s.cached);
+            array.add(step);
+        }
+        json.add("steps", array);
+        if (image != null) {
+            json.addProperty("image", image);
+        }
+        file.writeString(Metrics.toJson(json));
+    }
+
+    /** @return index of the first step that missed the cache, -1 if all steps were cached; FROM steps are never cached */
+    public int firstMiss() {
+        for (int i = 0; i < steps.size(); i++) {
+            if (!steps.get(i).cached && !steps.get(i).isFrom()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param previous null if there's no previous build
+     * @return null if all steps were cached, otherwise the first step that missed the cache with the most likely cause first
+     */
+    public String explain(BuildRecord previous) {
+        int first;
+        Step step;
+        List<String> causes;
+        String prefix;
+
+        first = firstMiss();
+        if (first == -1) {
+            return null;
+        }
+        step = steps.get(first);
+        prefix = "cache miss at step " + (first + 1) + "/" + steps.size() + " '" + step.instruction + "': ";
+        if (previous == null) {
+            return prefix + "no previous build to compare with";
+        }
+        causes = causes(previous, first);
+        if (causes.isEmpty()) {
+            return prefix + "no input changed since the previous build - the daemon's build cache was probably pruned, or noCache is set";
+        }
+        return prefix + causes.get(0) + (causes.size() > 1 ? "; other changes: " + String.join("; ", causes.subList(1, causes.size())) : "");
+    }
+
+    /** @return changes since the previous build, most likely cause of the miss at the specified step first */
+    private List<String> causes(BuildRecord previous, int first) {
+        Step step;
+        List<String> likely;
+        List<String> other;
+        Set<String> declared;
+        TreeSet<String> names;
+        List<String> changed;
+        String keyword;
+
+        step = steps.get(first);
+        likely = new ArrayList<>();
+        other = new ArrayList<>();
+        if (first < previous.steps.size() && !previous.steps.get(first).instruction.equals(step.instruction)) {
+            likely.add("instruction changed, was '" + previous.steps.get(first).instruction + "'");
+        }
+        for (Map.Entry<String, String> entry : baseImages.entrySet()) {
+            if (previous.baseImages.containsKey(entry.getKey()) && !entry.getValue().equals(previous.baseImages.get(entry.getKey()))) {
+                likely.add("base image " + entry.getKey() + " changed: " + shortId(previous.baseImages.get(entry.getKey()))
+                        + " -> " + shortId(entry.getValue()));
+            }
+        }
+        declared = declaredArguments(first);
+        names = new TreeSet<>(arguments.keySet());
+        names.addAll(previous.arguments.keySet());
+        for (String name : names) {
+            if (!equal(arguments.get(name), previous.arguments.get(name))) {
+                (declared.contains(name) ? likely : other).add(argument(name, previous.arguments.get(name), arguments.get(name)));
+            }
+        }
+        changed = changedFiles(previous);
+        keyword = step.instruction.split("\\s+", 2)[0].toUpperCase(Locale.ROOT);
+        if (!changed.isEmpty()) {
+            ((keyword.equals("COPY") || keyword.equals("ADD")) ? likely : other).add(changed.size() + " context file(s) changed: "
+                    + String.join(", ", changed.subList(0, Math.min(MAX_FILES, changed.size()))) + (changed.size() > MAX_FILES ? ", ..." : ""));
+        }
+        if (!dockerbuild.equals(previous.dockerbuild)) {
+            other.add("dockerbuild changed: " + previous.dockerbuild + " -> " + dockerbuild);
+        }
+        likely.addAll(other);
+        return likely;
+    }
+
+    /** @return arguments declared by ARG instructions up to and including the specified step */
+    private Set<String> declaredArguments(int last) {
+        Set<String> result;
+        String[] parts;
+
+        result = new TreeSet<>();
+        for (int i = 0; i <= last; i++) {
+            parts = steps.get(i).instruction.split("\\s+", 2);
+            if (parts.length == 2 && parts[0].equalsIgnoreCase("ARG")) {
+                result.add(parts[1].split("=", 2)[0].trim());
+            }
+        }
+        return result;
+    }
+
+    private static String argument(String name, String before, String after) {
+        String result;
+
+        result = "build argument " + name + " changed: " + quote(before) + " -> " + quote(after);
+        if (before != null && after != null && TIMESTAMP.matcher(after).find()) {
+            result = result + " (contains a timestamp that changes with every build)";
+        }
+        return result;
+    }
+
+    private static String quote(String value) {
+        return value == null ? "(none)" : "'" + value + "'";
+    }
+
+    /** @return added, removed and modified files */
+    private List<String> changedFiles(BuildRecord previous) {
+        TreeSet<String> paths;
+        List<String> result;
+
+        paths = new TreeSet<>(files.keySet());
+        paths.addAll(previous.files.keySet());
+        result = new ArrayList<>();
+        for (String path : paths) {
+            if (!equal(files.get(path), previous.files.get(path))) {
+                result.add(path + (files.containsKey(path) ? (previous.files.containsKey(path) ? "" : " (added)") : " (removed)"));
+            }
+        }
+        return result;
+    }
+
+    private static boolean equal(String left, String right) {
+        return left == null ? right == null : left.equals(right);
+    }
+
+    private static String shortId(String id) {
+        String result;
+
+        result = id.startsWith("sha256:") ? id.substring(7) : id;
+        return result.length() > 12 ? result.substring(0, 12) : result;
+    }
+}
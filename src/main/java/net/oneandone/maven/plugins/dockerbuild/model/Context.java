@@ -31,8 +31,10 @@ import java.util.Map;
 
 /** Manage Docker build context directory */
 public class Context {
-    public static Context create(FileNode srcJar, String dockerbuild, FileNode dest) throws IOException, MojoExecutionException {
+    /** @param target stage to build, null for the last stage */
+    public static Context create(FileNode srcJar, String dockerbuild, String target, FileNode dest) throws IOException, MojoExecutionException {
         Node<?> src;
+        Context context;
 
         src = srcJar.openJar().checkDirectory();
         if (!src.isDirectory()) {
@@ -43,22 +45,48 @@ public class Context {
         }
         dest.mkdirsOpt();
         src.copyDirectory(dest, src.getWorld().filter().includeAll().exclude("META-INF", "META-INF/**/*"));
-        return new Context(dest);
+        context = new Context(dest, Dockerfile.load(dest.join("Dockerfile")));
+        if (target != null) {
+            context.select(target);
+        }
+        return context;
     }
 
     private final FileNode directory;
+    private Dockerfile dockerfile;
+    private String target;
 
-    private Context(FileNode directory) {
+    private Context(FileNode directory, Dockerfile dockerfile) {
         this.directory = directory;
+        this.dockerfile = dockerfile;
+        this.target = null;
+    }
+
+    /** Restrict the Dockerfile to the target stage and its dependencies - other stages are removed to make sure they're not built */
+    private void select(String stage) throws IOException, MojoExecutionException {
+        List<Stage> closure;
+
+        try {
+            closure = dockerfile.closure(dockerfile.stage(stage));
+        } catch (IOException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+        if (closure.size() < dockerfile.stages.size()) {
+            directory.join("Dockerfile").writeString(dockerfile.toString(closure));
+            dockerfile = Dockerfile.load(directory.join("Dockerfile"));
+        }
+        this.target = dockerfile.stages.get(closure.size() - 1).toString(); // stage indexes might have changed
     }
 
     public FileNode getDirectory() { // TODO
         return directory;
     }
 
-    /** tar directory into byte array */
-    public FileNode tar() throws IOException {
-        FileNode result;
+    /**
+     * tar directory into the specified stream; closes dest
+     * @param includes relative paths of the files or directories to include, null for all
+     */
+    public void tar(List<String> includes, OutputStream dest) throws IOException {
         List<FileNode> all;
         TarOutputStream tar;
         byte[] buffer;
@@ -67,44 +95,58 @@ public class Context {
         int count;
         long now;
 
-        result = directory.getWorld().getTemp().createTempFile();
         buffer = new byte[64 * 1024];
-        try (OutputStream dest = result.newOutputStream()) {
-            tar = new TarOutputStream(dest);
-            now = System.currentTimeMillis();
-            all = directory.find("**/*");
-            iter = all.iterator();
-            while (iter.hasNext()) {
-                file = iter.next();
-                if (file.isDirectory()) {
-                    tar.putNextEntry(new TarEntry(TarHeader.createHeader(file.getRelative(directory), 0, now, true, 0700)));
-                    iter.remove();
-                }
+        tar = new TarOutputStream(dest);
+        now = System.currentTimeMillis();
+        all = directory.find("**/*");
+        iter = all.iterator();
+        while (iter.hasNext()) {
+            file = iter.next();
+            if (includes != null && !isIncluded(file.getRelative(directory), includes)) {
+                iter.remove();
+            } else if (file.isDirectory()) {
+                tar.putNextEntry(new TarEntry(TarHeader.createHeader(file.getRelative(directory), 0, now, true, 0700)));
+                iter.remove();
             }
-            iter = all.iterator();
-            while (iter.hasNext()) {
-                file = iter.next();
-                tar.putNextEntry(new TarEntry(TarHeader.createHeader(file.getRelative(directory), file.size(), now, false, 0700)));
-                try (InputStream src = file.newInputStream()) {
-                    while (true) {
-                        count = src.read(buffer);
-                        if (count == -1) {
-                            break;
-                        }
-                        tar.write(buffer, 0, count);
+        }
+        iter = all.iterator();
+        while (iter.hasNext()) {
+            file = iter.next();
+            tar.putNextEntry(new TarEntry(TarHeader.createHeader(file.getRelative(directory), file.size(), now, false, 0700)));
+            try (InputStream src = file.newInputStream()) {
+                while (true) {
+                    count = src.read(buffer);
+                    if (count == -1) {
+                        break;
                     }
+                    tar.write(buffer, 0, count);
                 }
             }
-            tar.close();
-        } catch (IOException | RuntimeException | Error e) {
-            result.deleteFile();
-            throw e;
         }
-        return result;
+        tar.close();
+    }
+
+    /** @return true if path is included, inside an included directory, or a parent directory of an include */
+    static boolean isIncluded(String path, List<String> includes) {
+        for (String include : includes) {
+            if (path.equals(include) || path.startsWith(include + "/") || include.startsWith(path + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return target stage as it has to be passed to Docker; null if not specified */
+    public String getTarget() {
+        return target;
+    }
+
+    public Dockerfile getDockerfile() {
+        return dockerfile;
     }
 
-    public Map<String, BuildArgument> formals() throws IOException {
-        return BuildArgument.scan(directory.join("Dockerfile"));
+    public Map<String, BuildArgument> formals() {
+        return dockerfile.formals(dockerfile.stages);
     }
 
     public String toString() {
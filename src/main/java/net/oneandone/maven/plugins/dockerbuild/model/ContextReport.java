@@ -0,0 +1,168 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild.model;
+
+import net.oneandone.sushi.fs.file.FileNode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/** Size of the context sent to the daemon, with the largest files and directories and what argument directives added */
+public class ContextReport {
+    private static final int MAX_ENTRIES = 10;
+
+    /** A file or directory of the context */
+    public static class Entry {
+        public final String path;
+        public final long size;
+        public final int files;
+
+        /** true if written by an argument directive, e.g. %copy; false if it's from the dockerbuild */
+        public final boolean argument;
+
+        public Entry(String path, long size, int files, boolean argument) {
+            this.path = path;
+            this.size = size;
+            this.files = files;
+            this.argument = argument;
+        }
+
+        public String toString() {
+            return String.format(Locale.ROOT, "%12s  %s%s", ImageReport.formatSize(size), path,
+                    path.endsWith("/") ? " (" + files + " file(s))" : argument ? " (argument)" : "");
+        }
+    }
+
+    /**
+     * @param includes as passed to Context.tar, null for all
+     * @param added paths written by argument directives, relative to the context
+     */
+    public static ContextReport create(FileNode directory, List<String> includes, Collection<String> added) throws IOException {
+        List<Entry> files;
+        Map<String, long[]> directories;
+        List<Entry> dirs;
+        String path;
+        long size;
+        int idx;
+        long[] totals;
+
+        files = new ArrayList<>();
+        directories = new HashMap<>();
+        for (FileNode file : directory.find("**/*")) {
+            path = file.getRelative(directory);
+            if (file.isDirectory() || (includes != null && !Context.isIncluded(path, includes))) {
+                continue;
+            }
+            size = file.size();
+            files.add(new Entry(path, size, 1, added.contains(path) || path.startsWith(Arguments.SPILL_DIRECTORY + "/")));
+            for (idx = path.lastIndexOf('/'); idx != -1; idx = path.lastIndexOf('/', idx - 1)) {
+                totals = directories.computeIfAbsent(path.substring(0, idx), key -> new long[2]);
+                totals[0] += size;
+                totals[1]++;
+            }
+        }
+        dirs = new ArrayList<>();
+        for (Map.Entry<String, long[]> entry : directories.entrySet()) {
+            dirs.add(new Entry(entry.getKey() + "/", entry.getValue()[0], (int) entry.getValue()[1], false));
+        }
+        return new ContextReport(files, dirs);
+    }
+
+    //--
+
+    /** all files, largest first */
+    public final List<Entry> files;
+
+    /** all directories, largest first */
+    public final List<Entry> directories;
+
+    public ContextReport(List<Entry> files, List<Entry> directories) {
+        this.files = files;
+        this.directories = directories;
+        this.files.sort((left, right) -> Long.compare(right.size, left.size));
+        this.directories.sort((left, right) -> Long.compare(right.size, left.size));
+    }
+
+    public long size() {
+        return size(false);
+    }
+
+    /** @return size of the files added by argument directives only, or of all files */
+    private long size(boolean argumentsOnly) {
+        long result;
+
+        result = 0;
+        for (Entry file : files) {
+            if (file.argument || !argumentsOnly) {
+                result += file.size;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param maxSize bytes, null for no limit
+     * @param maxFiles null for no limit
+     * @return budget violations, empty if none
+     */
+    public List<String> check(Long maxSize, Integer maxFiles) {
+        List<String> result;
+
+        result = new ArrayList<>();
+        if (maxSize != null && size() > maxSize) {
+            result.add("context size " + ImageReport.formatSize(size()) + " exceeds " + ImageReport.formatSize(maxSize)
+                    + ", largest file: " + files.get(0).path);
+        }
+        if (maxFiles != null && files.size() > maxFiles) {
+            result.add("context has " + files.size() + " files, more than " + maxFiles
+                    + (directories.isEmpty() ? "" : ", largest directory: " + directories.get(0).path));
+        }
+        return result;
+    }
+
+    public String summary() {
+        return "context: " + ImageReport.formatSize(size()) + " in " + files.size() + " file(s), "
+                + ImageReport.formatSize(size(true)) + " added by arguments";
+    }
+
+    public String toString() {
+        StringBuilder result;
+
+        result = new StringBuilder();
+        result.append("size: ").append(ImageReport.formatSize(size())).append('\n');
+        result.append("files: ").append(files.size()).append('\n');
+        result.append("from dockerbuild: ").append(ImageReport.formatSize(size() - size(true))).append('\n');
+        result.append("added by arguments: ").append(ImageReport.formatSize(size(true))).append('\n');
+        if (!files.isEmpty()) {
+            result.append("\nlargest files:\n");
+            for (Entry file : files.subList(0, Math.min(MAX_ENTRIES, files.size()))) {
+                result.append(file).append('\n');
+            }
+        }
+        if (!directories.isEmpty()) {
+            result.append("\nlargest directories:\n");
+            for (Entry directory : directories.subList(0, Math.min(MAX_ENTRIES, directories.size()))) {
+                result.append(directory).append('\n');
+            }
+        }
+        return result.toString();
+    }
+}
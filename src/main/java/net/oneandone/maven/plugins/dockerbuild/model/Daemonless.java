@@ -0,0 +1,728 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild.model;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.apache.maven.plugin.logging.Log;
+import org.kamranzafar.jtar.TarEntry;
+import org.kamranzafar.jtar.TarHeader;
+import org.kamranzafar.jtar.TarOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Assembles images without a Docker daemon: the layers of the base image as found in the registry, plus one layer for every
+ * COPY instruction. Only Dockerfiles with a single stage and instructions that don't need to run anything are supported.
+ */
+public class Daemonless {
+    private static final Set<String> SUPPORTED = new HashSet<>(Arrays.asList(
+            "FROM", "ARG", "ENV", "LABEL", "COPY", "WORKDIR", "EXPOSE", "USER", "ENTRYPOINT", "CMD", "STOPSIGNAL", "MAINTAINER"));
+
+    /** @return null if the Dockerfile can be built daemonless from the context, otherwise the reason why not */
+    public static String unsupported(Dockerfile dockerfile, FileNode context) {
+        if (context.join(".dockerignore").exists()) {
+            return ".dockerignore"; // COPY would add files the daemon leaves out
+        }
+        return unsupported(dockerfile);
+    }
+
+    /** @return null if the Dockerfile can be built daemonless, otherwise the reason why not */
+    public static String unsupported(Dockerfile dockerfile) {
+        String chown;
+
+        if (dockerfile.stages.size() != 1) {
+            return "multi-stage build";
+        }
+        for (Instruction instruction : dockerfile.stages.get(0).instructions) {
+            if (!SUPPORTED.contains(instruction.keyword)) {
+                return "line " + instruction.line + ": " + instruction.keyword;
+            }
+            if (instruction.is("COPY")) {
+                if (instruction.arguments.contains("<<")) {
+                    return "line " + instruction.line + ": here-document";
+                }
+                for (String flag : instruction.flags()) {
+                    if (!flag.startsWith("--chown=") && !flag.startsWith("--chmod=")) {
+                        return "line " + instruction.line + ": COPY " + flag;
+                    }
+                }
+                chown = instruction.flag("chown");
+                if (chown != null && !chown.matches("\\d+(:\\d+)?")) {
+                    return "line " + instruction.line + ": COPY --chown with names";
+                }
+            }
+        }
+        return null;
+    }
+
+    private static final String DEFAULT_PLATFORM = "linux/amd64";
+
+    private final Log log;
+    private final Dockerfile dockerfile;
+    private final FileNode context;
+    private final Map<String, String> actuals;
+    private final Credentials credentials;
+    private final OciLayout layout;
+    private final String platform;
+    private final long now;
+
+    /** @param platform null for default */
+    public Daemonless(Log log, Dockerfile dockerfile, FileNode context, Map<String, String> actuals, Credentials credentials,
+                      OciLayout layout, String platform) {
+        this.log = log;
+        this.dockerfile = dockerfile;
+        this.context = context;
+        this.actuals = actuals;
+        this.credentials = credentials;
+        this.layout = layout;
+        this.platform = platform == null ? DEFAULT_PLATFORM : platform;
+        this.now = System.currentTimeMillis();
+    }
+
+    /** @return manifest written to the layout; null if the base image has ONBUILD triggers */
+    public Descriptor build() throws IOException {
+        Stage stage;
+        Map<String, String> globals;
+        Map<String, String> args;
+        Map<String, String> env;
+        JsonObject image;
+        JsonObject config;
+        List<Descriptor> layers;
+        String created;
+        boolean cmd;
+
+        stage = dockerfile.stages.get(0);
+        globals = new HashMap<>();
+        for (BuildArgument arg : dockerfile.globalArguments().values()) {
+            put(globals, arg.name, actuals.containsKey(arg.name) ? actuals.get(arg.name) : subst(arg.dflt, globals));
+        }
+        layers = new ArrayList<>();
+        image = base(subst(stage.base, globals), layers);
+        config = object(image, "config");
+        if (config.has("OnBuild") && config.get("OnBuild").isJsonArray() && config.get("OnBuild").getAsJsonArray().size() > 0) {
+            return null;
+        }
+        args = new HashMap<>();
+        env = new LinkedHashMap<>();
+        for (JsonElement e : array(config, "Env")) {
+            put(env, e.getAsString());
+        }
+        created = Instant.ofEpochMilli(now).toString();
+        cmd = false;
+        for (Instruction instruction : stage.instructions) {
+            if (instruction.is("ARG")) {
+                arg(instruction, globals, args, env);
+                continue;
+            }
+            if (instruction.is("COPY")) {
+                layers.add(copy(instruction, image, vars(args, env), created));
+                continue;
+            }
+            instruction(instruction, image, args, env, cmd);
+            cmd = cmd || instruction.is("CMD");
+            history(image, created, instruction, true);
+        }
+        image.addProperty("created", created);
+        image.remove("container");
+        image.remove("container_config");
+        return layout.writeManifest(layout.write(image.toString().getBytes(StandardCharsets.UTF_8), Descriptor.CONFIG), layers);
+    }
+
+    //-- base image
+
+    /** @return image config json, adds base layers to the layout and to the specified list */
+    private JsonObject base(String name, List<Descriptor> layers) throws IOException {
+        Reference reference;
+        Registry registry;
+        Registry.Manifest manifest;
+        JsonObject json;
+        Descriptor config;
+        Descriptor layer;
+
+        if (name.equals("scratch")) {
+            return scratch();
+        }
+        reference = Reference.parse(name);
+        log.info("resolving base image " + reference);
+        registry = Registry.create(reference.registry, credentials.authConfigOpt(reference.authKey()));
+        manifest = registry.manifest(reference.repository, reference.version());
+        if (manifest.isIndex()) {
+            manifest = registry.manifest(reference.repository, select(manifest.json()));
+        }
+        json = manifest.json();
+        config = fetch(registry, reference, Descriptor.fromJson(json.get("config").getAsJsonObject()).withMediaType(Descriptor.CONFIG));
+        for (JsonElement element : json.get("layers").getAsJsonArray()) {
+            layer = Descriptor.fromJson(element.getAsJsonObject());
+            layers.add(fetch(registry, reference, layer.withMediaType(layerType(layer.mediaType))));
+        }
+        return layout.readJson(config);
+    }
+
+    private String select(JsonObject index) throws IOException {
+        JsonObject p;
+        String str;
+
+        for (JsonElement element : index.get("manifests").getAsJsonArray()) {
+            p = element.getAsJsonObject().getAsJsonObject("platform");
+            if (p != null) {
+                str = p.get("os").getAsString() + "/" + p.get("architecture").getAsString();
+                if (platform.equals(str) || (p.has("variant") && platform.equals(str + "/" + p.get("variant").getAsString()))) {
+                    return element.getAsJsonObject().get("digest").getAsString();
+                }
+            }
+        }
+        throw new IOException("base image not available for platform " + platform);
+    }
+
+    private static String layerType(String mediaType) throws IOException {
+        switch (mediaType) {
+            case Descriptor.LAYER:
+            case Descriptor.LAYER_GZIP:
+                return mediaType;
+            case "application/vnd.docker.image.rootfs.diff.tar.gzip":
+                return Descriptor.LAYER_GZIP;
+            default:
+                throw new IOException("unsupported layer type: " + mediaType);
+        }
+    }
+
+    private Descriptor fetch(Registry registry, Reference reference, Descriptor blob) throws IOException {
+        Descriptor result;
+
+        if (layout.contains(blob.digest)) {
+            return layout.skip(blob);
+        }
+        log.debug("fetching " + blob);
+        try (InputStream src = registry.blob(reference.repository, blob.digest)) {
+            result = layout.write(src, blob.mediaType);
+        }
+        if (!result.digest.equals(blob.digest)) {
+            layout.blob(result.digest).deleteFile();
+            throw new IOException("digest mismatch for " + reference + ": expected " + blob.digest + ", got " + result.digest);
+        }
+        return result;
+    }
+
+    private JsonObject scratch() {
+        JsonObject result;
+        JsonObject rootfs;
+        String[] p;
+
+        p = platform.split("/");
+        result = new JsonObject();
+        result.addProperty("architecture", p.length > 1 ? p[1] : "amd64");
+        result.addProperty("os", p[0]);
+        result.add("config", new JsonObject());
+        rootfs = new JsonObject();
+        rootfs.addProperty("type", "layers");
+        rootfs.add("diff_ids", new JsonArray());
+        result.add("rootfs", rootfs);
+        result.add("history", new JsonArray());
+        return result;
+    }
+
+    //-- instructions
+
+    private void arg(Instruction instruction, Map<String, String> globals, Map<String, String> args, Map<String, String> env) {
+        BuildArgument arg;
+        String value;
+
+        arg = BuildArgument.scan(instruction.keyword + " " + instruction.arguments);
+        if (arg == null) {
+            return;
+        }
+        if (actuals.containsKey(arg.name)) {
+            value = actuals.get(arg.name);
+        } else if (arg.dflt != null) {
+            value = subst(arg.dflt, vars(args, env));
+        } else {
+            value = globals.get(arg.name);
+        }
+        put(args, arg.name, value);
+    }
+
+    /** @param cmd true if a CMD instruction of this stage precedes this instruction */
+    private void instruction(Instruction instruction, JsonObject image, Map<String, String> args, Map<String, String> env, boolean cmd)
+            throws IOException {
+        Map<String, String> vars;
+        JsonObject config;
+        JsonObject obj;
+        JsonArray array;
+
+        vars = vars(args, env);
+        config = object(image, "config");
+        switch (instruction.keyword) {
+            case "ENV":
+                for (Map.Entry<String, String> entry : pairs(instruction, vars).entrySet()) {
+                    env.put(entry.getKey(), entry.getValue());
+                }
+                array = new JsonArray();
+                for (Map.Entry<String, String> entry : env.entrySet()) {
+                    array.add(entry.getKey() + "=" + entry.getValue());
+                }
+                config.add("Env", array);
+                break;
+            case "LABEL":
+                obj = object(config, "Labels");
+                for (Map.Entry<String, String> entry : pairs(instruction, vars).entrySet()) {
+                    obj.addProperty(entry.getKey(), entry.getValue());
+                }
+                break;
+            case "WORKDIR":
+                config.addProperty("WorkingDir", resolvePath(workdir(config), subst(instruction.arguments, vars)));
+                break;
+            case "EXPOSE":
+                obj = object(config, "ExposedPorts");
+                for (String port : shellWords(subst(instruction.arguments, vars))) {
+                    obj.add(port.contains("/") ? port : port + "/tcp", new JsonObject());
+                }
+                break;
+            case "USER":
+                config.addProperty("User", subst(instruction.arguments, vars));
+                break;
+            case "STOPSIGNAL":
+                config.addProperty("StopSignal", subst(instruction.arguments, vars));
+                break;
+            case "ENTRYPOINT":
+                config.add("Entrypoint", command(instruction));
+                if (!cmd) {
+                    config.add("Cmd", null); // reset the base image's CMD, see Dockerfile reference
+                }
+                break;
+            case "CMD":
+                config.add("Cmd", command(instruction));
+                break;
+            case "MAINTAINER":
+                image.addProperty("author", instruction.arguments);
+                break;
+            default:
+                throw new IOException("line " + instruction.line + ": unsupported instruction " + instruction.keyword);
+        }
+    }
+
+    private static JsonArray command(Instruction instruction) {
+        List<String> words;
+        JsonArray result;
+
+        result = new JsonArray();
+        words = instruction.execForm();
+        if (words == null) {
+            result.add("/bin/sh");
+            result.add("-c");
+            result.add(instruction.arguments);
+        } else {
+            for (String word : words) {
+                result.add(word);
+            }
+        }
+        return result;
+    }
+
+    //-- COPY
+
+    private Descriptor copy(Instruction instruction, JsonObject image, Map<String, String> vars, String created) throws IOException {
+        List<String> sources;
+        String dest;
+        List<FileNode> files;
+        int uid;
+        int gid;
+        int mode;
+        String chown;
+        String chmod;
+        FileNode tmp;
+        MessageDigest diffId;
+        Descriptor result;
+        Set<String> directories;
+
+        sources = new ArrayList<>();
+        for (String source : instruction.sources()) {
+            sources.add(subst(source, vars));
+        }
+        dest = resolvePath(workdir(object(image, "config")), subst(instruction.destination(), vars))
+                + (instruction.destination().endsWith("/") ? "/" : "");
+        chown = instruction.flag("chown");
+        uid = chown == null ? 0 : Integer.parseInt(chown.split(":")[0]);
+        gid = chown == null ? 0 : Integer.parseInt(chown.contains(":") ? chown.split(":")[1] : chown);
+        chmod = instruction.flag("chmod");
+        mode = chmod == null ? 0700 : Integer.parseInt(chmod, 8); // same mode as used by Context.tar
+        tmp = context.getWorld().getTemp().createTempFile();
+        diffId = OciLayout.sha256();
+        directories = new HashSet<>();
+        try {
+            try (OutputStream file = tmp.newOutputStream();
+                 GZIPOutputStream gzip = new GZIPOutputStream(file);
+                 DigestOutputStream digest = new DigestOutputStream(gzip, diffId)) {
+                TarOutputStream tar;
+
+                tar = new TarOutputStream(digest);
+                for (String source : sources) {
+                    files = expand(source);
+                    for (FileNode file2 : files) {
+                        if (file2.isDirectory()) {
+                            addDirectory(tar, file2, strip(dest), uid, gid, mode, directories);
+                        } else {
+                            addFile(tar, file2, target(dest, file2, sources.size() > 1 || files.size() > 1), uid, gid, mode, directories);
+                        }
+                    }
+                }
+                tar.close();
+            }
+            try (InputStream src = tmp.newInputStream()) {
+                result = layout.write(src, Descriptor.LAYER_GZIP);
+            }
+        } finally {
+            tmp.deleteFile();
+        }
+        array(object(image, "rootfs"), "diff_ids").add("sha256:" + OciLayout.hex(diffId.digest()));
+        history(image, created, instruction, false);
+        return result;
+    }
+
+    /** @return context files matching the source */
+    private List<FileNode> expand(String source) throws IOException {
+        String path;
+        PathMatcher matcher;
+        List<FileNode> result;
+
+        path = strip(source);
+        if (path.isEmpty() || path.startsWith("..")) {
+            throw new IOException("COPY source outside of context: " + source);
+        }
+        result = new ArrayList<>();
+        if (path.indexOf('*') == -1 && path.indexOf('?') == -1 && path.indexOf('[') == -1) {
+            result.add(context.join(path).checkExists());
+            return result;
+        }
+        matcher = FileSystems.getDefault().getPathMatcher("glob:" + path);
+        for (FileNode node : context.find("**/*")) {
+            if (matcher.matches(Paths.get(node.getRelative(context)))) {
+                result.add(node);
+            }
+        }
+        if (result.isEmpty()) {
+            throw new IOException("COPY source not found: " + source);
+        }
+        return result;
+    }
+
+    private static String target(String dest, FileNode file, boolean multiple) {
+        if (dest.endsWith("/") || multiple) {
+            return strip(dest) + "/" + file.getName();
+        }
+        return strip(dest);
+    }
+
+    private void addDirectory(TarOutputStream tar, FileNode src, String dest, int uid, int gid, int mode, Set<String> directories)
+            throws IOException {
+        parents(tar, dest + "/", directories);
+        for (FileNode child : src.list()) {
+            if (child.isDirectory()) {
+                addDirectory(tar, child, dest + "/" + child.getName(), uid, gid, mode, directories);
+            } else {
+                addFile(tar, child, dest + "/" + child.getName(), uid, gid, mode, directories);
+            }
+        }
+    }
+
+    private void addFile(TarOutputStream tar, FileNode src, String dest, int uid, int gid, int mode, Set<String> directories)
+            throws IOException {
+        TarHeader header;
+
+        parents(tar, dest, directories);
+        header = TarHeader.createHeader(dest, src.size(), now / 1000, false, mode);
+        header.userId = uid;
+        header.groupId = gid;
+        tar.putNextEntry(new TarEntry(header));
+        try (InputStream in = src.newInputStream()) {
+            OciLayout.copy(in, tar);
+        }
+    }
+
+    /** directories created implicitly are owned by root, see Dockerfile reference */
+    private void parents(TarOutputStream tar, String path, Set<String> directories) throws IOException {
+        int idx;
+        String dir;
+
+        idx = 0;
+        while ((idx = path.indexOf('/', idx + 1)) != -1) {
+            dir = path.substring(0, idx);
+            if (directories.add(dir)) {
+                tar.putNextEntry(new TarEntry(TarHeader.createHeader(dir, 0, now / 1000, true, 0755)));
+            }
+        }
+    }
+
+    //-- json helpers
+
+    private void history(JsonObject image, String created, Instruction instruction, boolean empty) {
+        JsonObject entry;
+
+        entry = new JsonObject();
+        entry.addProperty("created", created);
+        entry.addProperty("created_by", instruction.keyword + " " + instruction.arguments);
+        if (empty) {
+            entry.addProperty("empty_layer", true);
+        }
+        array(image, "history").add(entry);
+    }
+
+    private static JsonObject object(JsonObject parent, String name) {
+        JsonElement e;
+        JsonObject result;
+
+        e = parent.get(name);
+        if (e != null && e.isJsonObject()) {
+            return e.getAsJsonObject();
+        }
+        result = new JsonObject();
+        parent.add(name, result);
+        return result;
+    }
+
+    private static JsonArray array(JsonObject parent, String name) {
+        JsonElement e;
+        JsonArray result;
+
+        e = parent.get(name);
+        if (e != null && e.isJsonArray()) {
+            return e.getAsJsonArray();
+        }
+        result = new JsonArray();
+        parent.add(name, result);
+        return result;
+    }
+
+    private static String workdir(JsonObject config) {
+        JsonElement e;
+
+        e = config.get("WorkingDir");
+        return e == null || e.isJsonNull() || e.getAsString().isEmpty() ? "/" : e.getAsString();
+    }
+
+    //-- string helpers
+
+    /** @return absolute path */
+    private static String resolvePath(String workdir, String path) {
+        List<String> result;
+
+        result = new ArrayList<>();
+        for (String segment : ((path.startsWith("/") ? "" : workdir + "/") + path).split("/")) {
+            if (segment.equals("..")) {
+                if (!result.isEmpty()) {
+                    result.remove(result.size() - 1);
+                }
+            } else if (!segment.isEmpty() && !segment.equals(".")) {
+                result.add(segment);
+            }
+        }
+        return "/" + String.join("/", result);
+    }
+
+    /** @return path without leading and trailing slashes */
+    private static String strip(String path) {
+        int start;
+        int end;
+
+        start = 0;
+        while (start < path.length() && (path.charAt(start) == '/' || path.startsWith("./", start))) {
+            start += path.charAt(start) == '/' ? 1 : 2;
+        }
+        end = path.length();
+        while (end > start && path.charAt(end - 1) == '/') {
+            end--;
+        }
+        return path.substring(start, end);
+    }
+
+    private static Map<String, String> vars(Map<String, String> args, Map<String, String> env) {
+        Map<String, String> result;
+
+        result = new HashMap<>(args);
+        result.putAll(env); // env takes precedence, see Dockerfile reference
+        return result;
+    }
+
+    private static void put(Map<String, String> dest, String name, String value) {
+        if (value != null) {
+            dest.put(name, value);
+        }
+    }
+
+    private static void put(Map<String, String> dest, String keyValue) {
+        int idx;
+
+        idx = keyValue.indexOf('=');
+        if (idx > 0) {
+            dest.put(keyValue.substring(0, idx), keyValue.substring(idx + 1));
+        }
+    }
+
+    /** key value pairs of ENV and LABEL instructions */
+    private static Map<String, String> pairs(Instruction instruction, Map<String, String> vars) throws IOException {
+        List<String> words;
+        Map<String, String> result;
+        int idx;
+
+        words = shellWords(subst(instruction.arguments, vars));
+        result = new LinkedHashMap<>();
+        if (words.isEmpty()) {
+            throw new IOException("line " + instruction.line + ": missing arguments");
+        }
+        if (words.get(0).indexOf('=') == -1) { // legacy form: key value
+            idx = instruction.arguments.trim().indexOf(' ');
+            if (idx == -1) {
+                throw new IOException("line " + instruction.line + ": missing value");
+            }
+            result.put(words.get(0), subst(instruction.arguments.trim().substring(idx + 1).trim(), vars));
+        } else {
+            for (String word : words) {
+                idx = word.indexOf('=');
+                if (idx <= 0) {
+                    throw new IOException("line " + instruction.line + ": expected key=value: " + word);
+                }
+                result.put(word.substring(0, idx), word.substring(idx + 1));
+            }
+        }
+        return result;
+    }
+
+    /** split into words, removing quotes and backslash escapes */
+    public static List<String> shellWords(String str) {
+        List<String> result;
+        StringBuilder word;
+        boolean inWord;
+        char quote;
+        char c;
+
+        result = new ArrayList<>();
+        word = new StringBuilder();
+        inWord = false;
+        quote = 0;
+        for (int i = 0; i < str.length(); i++) {
+            c = str.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                } else if (c == '\\' && quote == '"' && i + 1 < str.length()) {
+                    word.append(str.charAt(++i));
+                } else {
+                    word.append(c);
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+                inWord = true;
+            } else if (c == '\\' && i + 1 < str.length()) {
+                word.append(str.charAt(++i));
+                inWord = true;
+            } else if (Character.isWhitespace(c)) {
+                if (inWord) {
+                    result.add(word.toString());
+                    word.setLength(0);
+                    inWord = false;
+                }
+            } else {
+                word.append(c);
+                inWord = true;
+            }
+        }
+        if (inWord) {
+            result.add(word.toString());
+        }
+        return result;
+    }
+
+    /** Variable substitution as done by Docker: $name, ${name}, ${name:-word} and ${name:+word}; undefined variables expand to "" */
+    public static String subst(String str, Map<String, String> vars) {
+        StringBuilder result;
+        char c;
+        int end;
+        int start;
+        String name;
+        String modifier;
+        String value;
+        int idx;
+
+        if (str == null) {
+            return null;
+        }
+        result = new StringBuilder();
+        for (int i = 0; i < str.length(); i++) {
+            c = str.charAt(i);
+            if (c == '\\' && i + 1 < str.length() && str.charAt(i + 1) == '$') {
+                result.append('$');
+                i++;
+            } else if (c != '$' || i + 1 >= str.length()) {
+                result.append(c);
+            } else if (str.charAt(i + 1) == '{') {
+                end = str.indexOf('}', i + 2);
+                if (end == -1) {
+                    result.append(str.substring(i));
+                    break;
+                }
+                name = str.substring(i + 2, end);
+                idx = name.indexOf(':');
+                modifier = null;
+                if (idx != -1) {
+                    modifier = name.substring(idx + 1);
+                    name = name.substring(0, idx);
+                }
+                value = vars.get(name);
+                if (modifier != null && modifier.startsWith("-")) {
+                    value = value == null || value.isEmpty() ? subst(modifier.substring(1), vars) : value;
+                } else if (modifier != null && modifier.startsWith("+")) {
+                    value = value == null || value.isEmpty() ? "" : subst(modifier.substring(1), vars);
+                }
+                result.append(value == null ? "" : value);
+                i = end;
+            } else {
+                start = i + 1;
+                end = start;
+                while (end < str.length() && (Character.isLetterOrDigit(str.charAt(end)) || str.charAt(end) == '_')) {
+                    end++;
+                }
+                if (end == start) {
+                    result.append(c);
+                } else {
+                    value = vars.get(str.substring(start, end));
+                    result.append(value == null ? "" : value);
+                    i = end - 1;
+                }
+            }
+        }
+        return result.toString();
+    }
+}
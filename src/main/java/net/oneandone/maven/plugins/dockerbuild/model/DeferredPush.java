@@ -0,0 +1,115 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild.model;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.eclipse.aether.SessionData;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An image push postponed to the end of the reactor. Modules queue their pushes in the session data; the last module to
+ * finish pushes all of them.
+ */
+public class DeferredPush {
+    private static final String QUEUE_KEY = DeferredPush.class.getName() + ".queue";
+    private static final String READY_KEY = DeferredPush.class.getName() + ".ready";
+
+    /**
+     * Queue the pushes of a module - the image and its variants, or nothing if the module was skipped - and count the module as ready.
+     * @return all queued pushes if this was the last of expected modules, null otherwise
+     */
+    public static List<DeferredPush> add(SessionData data, List<DeferredPush> pushes, int expected) {
+        Queue<String> queue;
+        List<DeferredPush> result;
+
+        queue = queue(data);
+        for (DeferredPush push : pushes) {
+            queue.add(push.toJson().toString());
+        }
+        if (counter(data).incrementAndGet() < expected) {
+            return null;
+        }
+        result = new ArrayList<>();
+        for (String str = queue.poll(); str != null; str = queue.poll()) {
+            result.add(fromJson(JsonParser.parseString(str).getAsJsonObject()));
+        }
+        return result;
+    }
+
+    /** @return number of modules ready so far */
+    public static int ready(SessionData data) {
+        return counter(data).get();
+    }
+
+    private static Queue<String> queue(SessionData data) {
+        return SessionValues.get(data, QUEUE_KEY, ConcurrentLinkedQueue::new);
+    }
+
+    private static AtomicInteger counter(SessionData data) {
+        return SessionValues.get(data, READY_KEY, AtomicInteger::new);
+    }
+
+    public static DeferredPush fromJson(JsonObject json) {
+        return new DeferredPush(json.get("project").getAsString(), json.get("image").getAsString(),
+                string(json.get("layout")), string(json.get("cache")));
+    }
+
+    private static String string(JsonElement element) {
+        return element == null || element.isJsonNull() ? null : element.getAsString();
+    }
+
+    //--
+
+    /** groupId:artifactId of the module */
+    public final String project;
+
+    public final String image;
+
+    /** oci layout directory if the image was built daemonless; null otherwise */
+    public final String layout;
+
+    /** cache image to tag and push as well; null if none */
+    public final String cache;
+
+    public DeferredPush(String project, String image, String layout, String cache) {
+        this.project = project;
+        this.image = image;
+        this.layout = layout;
+        this.cache = cache;
+    }
+
+    public JsonObject toJson() {
+        JsonObject result;
+
+        result = new JsonObject();
+        result.addProperty("project", project);
+        result.addProperty("image", image);
+        result.addProperty("layout", layout);
+        result.addProperty("cache", cache);
+        return result;
+    }
+
+    public String toString() {
+        return image;
+    }
+}
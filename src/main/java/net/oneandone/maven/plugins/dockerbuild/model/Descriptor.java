@@ -0,0 +1,94 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild.model;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** OCI content descriptor, https://github.com/opencontainers/image-spec/blob/main/descriptor.md */
+public class Descriptor {
+    public static final String MANIFEST = "application/vnd.oci.image.manifest.v1+json";
+    public static final String INDEX = "application/vnd.oci.image.index.v1+json";
+    public static final String CONFIG = "application/vnd.oci.image.config.v1+json";
+    public static final String LAYER = "application/vnd.oci.image.layer.v1.tar";
+    public static final String LAYER_GZIP = "application/vnd.oci.image.layer.v1.tar+gzip";
+
+    public static final String REF_NAME = "org.opencontainers.image.ref.name";
+
+    public static Descriptor fromJson(JsonObject obj) {
+        Descriptor result;
+        JsonElement annotations;
+
+        result = new Descriptor(obj.get("mediaType").getAsString(), obj.get("digest").getAsString(), obj.get("size").getAsLong());
+        annotations = obj.get("annotations");
+        if (annotations != null) {
+            for (Map.Entry<String, JsonElement> entry : annotations.getAsJsonObject().entrySet()) {
+                result.annotations.put(entry.getKey(), entry.getValue().getAsString());
+            }
+        }
+        return result;
+    }
+
+    public final String mediaType;
+    public final String digest;
+    public final long size;
+    public final Map<String, String> annotations;
+
+    public Descriptor(String mediaType, String digest, long size) {
+        this.mediaType = mediaType;
+        this.digest = digest;
+        this.size = size;
+        this.annotations = new LinkedHashMap<>();
+    }
+
+    public Descriptor withMediaType(String type) {
+        Descriptor result;
+
+        result = new Descriptor(type, digest, size);
+        result.annotations.putAll(annotations);
+        return result;
+    }
+
+    /** @return digest without algorithm */
+    public String hex() {
+        return digest.substring(digest.indexOf(':') + 1);
+    }
+
+    public JsonObject toJson() {
+        JsonObject result;
+        JsonObject obj;
+
+        result = new JsonObject();
+        result.addProperty("mediaType", mediaType);
+        result.addProperty("digest", digest);
+        result.addProperty("size", size);
+        if (!annotations.isEmpty()) {
+            obj = new JsonObject();
+            for (Map.Entry<String, String> entry : annotations.entrySet()) {
+                obj.addProperty(entry.getKey(), entry.getValue());
+            }
+            result.add("annotations", obj);
+        }
+        return result;
+    }
+
+    public String toString() {
+        return digest + " (" + size + " bytes)";
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild.model;
+
+import net.oneandone.sushi.fs.file.FileNode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parsed Dockerfile. Handles parser directives, comments, line continuations and multi-stage builds, see
+ * https://docs.docker.com/engine/reference/builder/
+ */
+public class Dockerfile {
+    public static Dockerfile load(FileNode file) throws IOException {
+        return parse(file.readString());
+    }
+
+    private static final Pattern DIRECTIVE = Pattern.compile("#\\s*([a-zA-Z]+)\\s*=\\s*(\\S+)\\s*");
+
+    public static Dockerfile parse(String str) throws IOException {
+        String[] lines;
+        char escape;
+        boolean directives;
+        Matcher matcher;
+        StringBuilder arguments;
+        StringBuilder original;
+        int start;
+        String line;
+        String trimmed;
+        Dockerfile result;
+
+        lines = str.split("\r?\n", -1);
+        escape = '\\';
+        directives = true;
+        arguments = null;
+        original = null;
+        start = 0;
+        result = new Dockerfile();
+        for (int i = 0; i < lines.length; i++) {
+            line = lines[i];
+            trimmed = line.trim();
+            if (directives) {
+                matcher = DIRECTIVE.matcher(trimmed);
+                if (matcher.matches()) {
+                    if (matcher.group(1).equalsIgnoreCase("escape")) {
+                        if (matcher.group(2).length() != 1) {
+                            throw new IOException("line " + (i + 1) + ": invalid escape directive: " + trimmed);
+                        }
+                        escape = matcher.group(2).charAt(0);
+                    }
+                    result.directives.add(line);
+                    continue;
+                }
+                directives = false;
+            }
+            if (arguments == null) {
+                if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                    continue;
+                }
+                arguments = new StringBuilder();
+                original = new StringBuilder();
+                start = i + 1;
+            } else {
+                original.append('\n');
+                if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                    original.append(line);
+                    continue;
+                }
+            }
+            original.append(line);
+            line = stripTrailing(line);
+            if (!line.isEmpty() && line.charAt(line.length() - 1) == escape) {
+                arguments.append(line, 0, line.length() - 1);
+            } else {
+                arguments.append(line);
+                result.add(start, arguments.toString(), original.toString());
+                arguments = null;
+            }
+        }
+        if (arguments != null) {
+            result.add(start, arguments.toString(), original.toString());
+        }
+        return result;
+    }
+
+    private static String stripTrailing(String str) {
+        int end;
+
+        end = str.length();
+        while (end > 0 && Character.isWhitespace(str.charAt(end - 1))) {
+            end--;
+        }
+        return str.substring(0, end);
+    }
+
+    //--
+
+    /** parser directive lines, e.g. # escape=` */
+    public final List<String> directives;
+
+    /** instructions before the first FROM; normally global ARGs */
+    public final List<Instruction> globals;
+    public final List<Stage> stages;
+
+    public Dockerfile() {
+        this.directives = new ArrayList<>();
+        this.globals = new ArrayList<>();
+        this.stages = new ArrayList<>();
+    }
+
+    private void add(int line, String text, String original) throws IOException {
+        int idx;
+        String keyword;
+        Instruction instruction;
+
+        text = text.trim();
+        idx = 0;
+        while (idx < text.length() && !Character.isWhitespace(text.charAt(idx))) {
+            idx++;
+        }
+        keyword = text.substring(0, idx).toUpperCase();
+        instruction = new Instruction(line, keyword, text.substring(idx).trim(), original);
+        if (instruction.is("FROM")) {
+            stages.add(Stage.create(stages.size(), instruction));
+        } else if (stages.isEmpty()) {
+            if (!instruction.is("ARG")) {
+                throw new IOException("line " + line + ": expected FROM or ARG, got " + keyword);
+            }
+            globals.add(instruction);
+        } else {
+            stages.get(stages.size() - 1).instructions.add(instruction);
+        }
+    }
+
+    /** @param nameOrIndex null for the last stage */
+    public Stage stage(String nameOrIndex) throws IOException {
+        if (stages.isEmpty()) {
+            throw new IOException("missing FROM instruction");
+        }
+        if (nameOrIndex == null) {
+            return stages.get(stages.size() - 1);
+        }
+        for (Stage stage : stages) {
+            if (stage.matches(nameOrIndex)) {
+                return stage;
+            }
+        }
+        throw new IOException("unknown target stage: " + nameOrIndex + " (available stages: " + stages + ")");
+    }
+
+    /** @return the target stage and all stages it depends on, in Dockerfile order */
+    public List<Stage> closure(Stage target) {
+        TreeSet<Integer> indexes;
+        List<Stage> todo;
+        Stage stage;
+        Stage dependency;
+        List<Stage> result;
+
+        indexes = new TreeSet<>();
+        todo = new ArrayList<>();
+        todo.add(target);
+        while (!todo.isEmpty()) {
+            stage = todo.remove(todo.size() - 1);
+            if (indexes.add(stage.index)) {
+                for (String reference : stage.references()) {
+                    dependency = lookup(reference, stage.index);
+                    if (dependency != null) {
+                        todo.add(dependency);
+                    }
+                }
+            }
+        }
+        result = new ArrayList<>();
+        for (Integer index : indexes) {
+            result.add(stages.get(index));
+        }
+        return result;
+    }
+
+    /** @return null if reference denotes an image */
+    private Stage lookup(String reference, int before) {
+        for (int i = 0; i < before; i++) {
+            if (stages.get(i).matches(reference)) {
+                return stages.get(i);
+            }
+        }
+        return null;
+    }
+
+    /** global ARGs */
+    public Map<String, BuildArgument> globalArguments() {
+        return arguments(globals);
+    }
+
+    /** ARGs accepted when building the specified stages: global ARGs plus ARGs declared in these stages */
+    public Map<String, BuildArgument> formals(Collection<Stage> scope) {
+        Map<String, BuildArgument> result;
+
+        result = globalArguments();
+        for (Stage stage : scope) {
+            for (BuildArgument arg : stage.arguments().values()) {
+                merge(result, arg);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * ARGs visible to an instruction of a stage, as Docker expands them: only ARGs declared in the stage before the instruction.
+     * A global ARG is visible only if the stage re-declares it, taking the global default unless the re-declaration has one.
+     */
+    public Map<String, BuildArgument> scope(Stage stage, Instruction instruction) {
+        Map<String, BuildArgument> defaults;
+        Map<String, BuildArgument> result;
+        BuildArgument arg;
+        BuildArgument global;
+
+        defaults = globalArguments();
+        result = new LinkedHashMap<>();
+        for (Instruction i : stage.instructions) {
+            if (i == instruction) {
+                break;
+            }
+            if (i.is("ARG")) {
+                arg = BuildArgument.scan(i.keyword + " " + i.arguments);
+                if (arg == null) {
+                    continue;
+                }
+                if (arg.dflt == null) {
+                    if (result.containsKey(arg.name)) {
+                        continue;
+                    }
+                    global = defaults.get(arg.name);
+                    if (global != null) {
+                        arg = global;
+                    }
+                }
+                result.put(arg.name, arg);
+            }
+        }
+        return result;
+    }
+
+    /** @return Dockerfile source with only the specified stages */
+    public String toString(List<Stage> scope) {
+        StringBuilder result;
+        Map<String, String> renumbered;
+
+        renumbered = new LinkedHashMap<>();
+        for (int i = 0; i < scope.size(); i++) {
+            renumbered.put(Integer.toString(scope.get(i).index), Integer.toString(i));
+        }
+        result = new StringBuilder();
+        for (String directive : directives) {
+            result.append(directive).append('\n');
+        }
+        for (Instruction instruction : globals) {
+            result.append(instruction.original).append('\n');
+        }
+        for (Stage stage : scope) {
+            result.append('\n');
+            result.append(stage.from.original).append('\n');
+            for (Instruction instruction : stage.instructions) {
+                result.append(renumber(instruction, renumbered)).append('\n');
+            }
+        }
+        return result.toString();
+    }
+
+    private static final Pattern FROM_FLAG = Pattern.compile("--from=(\\d+)(?=\\s)");
+
+    private static String renumber(Instruction instruction, Map<String, String> renumbered) {
+        String from;
+
+        from = instruction.flag("from");
+        if (!instruction.is("COPY") || from == null || !renumbered.containsKey(from)) {
+            return instruction.original;
+        }
+        return FROM_FLAG.matcher(instruction.original).replaceFirst("--from=" + renumbered.get(from));
+    }
+
+    public String toString() {
+        return toString(stages);
+    }
+
+    //--
+
+    static Map<String, BuildArgument> arguments(List<Instruction> instructions) {
+        Map<String, BuildArgument> result;
+        BuildArgument arg;
+
+        result = new LinkedHashMap<>();
+        for (Instruction instruction : instructions) {
+            if (instruction.is("ARG")) {
+                arg = BuildArgument.scan(instruction.keyword + " " + instruction.arguments);
+                if (arg != null) {
+                    merge(result, arg);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** an argument re-declared without default value keeps the default of the previous declaration */
+    private static void merge(Map<String, BuildArgument> dest, BuildArgument arg) {
+        BuildArgument prev;
+
+        prev = dest.get(arg.name);
+        if (prev == null || (prev.dflt == null && arg.dflt != null)) {
+            dest.put(arg.name, arg);
+        }
+    }
+}
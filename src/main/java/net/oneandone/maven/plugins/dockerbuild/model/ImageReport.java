@@ -0,0 +1,314 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild.model;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import net.oneandone.sushi.fs.file.FileNode;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/** Image size, per layer and for the largest files copied from the context */
+public class ImageReport {
+    private static final int MAX_FILES = 10;
+
+    /** A layer as reported by the image history */
+    public static class Layer {
+        public final String createdBy;
+        public final long size;
+
+        /** null for base image layers, or if the history cannot be mapped to the Dockerfile */
+        public final Instruction instruction;
+
+        public Layer(String createdBy, long size, Instruction instruction) {
+            this.createdBy = createdBy;
+            this.size = size;
+            this.instruction = instruction;
+        }
+
+        public String toString() {
+            return instruction == null ? createdBy : "line " + instruction.line + ": " + instruction;
+        }
+    }
+
+    /** A file copied from the context */
+    public static class File {
+        public final String path;
+        public final long size;
+        public final Instruction instruction;
+
+        public File(String path, long size, Instruction instruction) {
+            this.path = path;
+            this.size = size;
+            this.instruction = instruction;
+        }
+    }
+
+    /**
+     * @param history response of the daemon's image history call, newest entry first
+     * @param stage the stage that was built
+     * @param actuals evaluated build arguments, to resolve COPY sources
+     */
+    public static ImageReport create(String image, String history, Stage stage, FileNode context, Map<String, String> actuals) throws IOException {
+        JsonArray array;
+        List<JsonObject> entries;
+        List<Layer> layers;
+        int offset;
+        JsonObject entry;
+        Instruction instruction;
+
+        array = JsonParser.parseString(history).getAsJsonArray();
+        entries = new ArrayList<>();
+        for (JsonElement element : array) {
+            entries.add(element.getAsJsonObject());
+        }
+        Collections.reverse(entries);
+        // every instruction of the stage adds a history entry; base image entries (including ONBUILD triggers) come first
+        offset = entries.size() - stage.instructions.size();
+        layers = new ArrayList<>();
+        for (int i = 0; i < entries.size(); i++) {
+            entry = entries.get(i);
+            instruction = offset >= 0 && i >= offset ? stage.instructions.get(i - offset) : null;
+            layers.add(new Layer(string(entry, "CreatedBy"), entry.get("Size").getAsLong(), instruction));
+        }
+        return new ImageReport(image, layers, files(stage, context, actuals), offset >= 0);
+    }
+
+    private static String string(JsonObject obj, String name) {
+        JsonElement e;
+
+        e = obj.get(name);
+        return e == null || e.isJsonNull() ? "" : e.getAsString();
+    }
+
+    //-- files
+
+    private static List<File> files(Stage stage, FileNode context, Map<String, String> actuals) throws IOException {
+        Map<String, String> vars;
+        List<File> result;
+        List<String> all;
+        PathMatcher matcher;
+        String path;
+        FileNode node;
+
+        vars = new HashMap<>();
+        for (BuildArgument arg : Dockerfile.arguments(stage.instructions).values()) {
+            if (arg.dflt != null) {
+                vars.put(arg.name, arg.dflt);
+            }
+        }
+        vars.putAll(actuals);
+        result = new ArrayList<>();
+        all = null;
+        for (Instruction instruction : stage.contextCopies()) {
+            for (String source : instruction.sources()) {
+                path = strip(Daemonless.subst(source, vars));
+                if (path.startsWith("..") || path.startsWith("http://") || path.startsWith("https://")) {
+                    continue;
+                }
+                if (path.indexOf('*') != -1 || path.indexOf('?') != -1 || path.indexOf('[') != -1) {
+                    if (all == null) {
+                        all = new ArrayList<>();
+                        for (FileNode file : context.find("**/*")) {
+                            all.add(file.getRelative(context));
+                        }
+                    }
+                    matcher = FileSystems.getDefault().getPathMatcher("glob:" + path);
+                    for (String candidate : all) {
+                        if (matcher.matches(Paths.get(candidate))) {
+                            add(context, context.join(candidate), instruction, result);
+                        }
+                    }
+                } else {
+                    node = path.isEmpty() ? context : context.join(path);
+                    if (node.exists()) {
+                        add(context, node, instruction, result);
+                    }
+                }
+            }
+        }
+        result.sort((left, right) -> Long.compare(right.size, left.size));
+        return result.size() > MAX_FILES ? new ArrayList<>(result.subList(0, MAX_FILES)) : result;
+    }
+
+    private static void add(FileNode context, FileNode node, Instruction instruction, List<File> result) throws IOException {
+        if (node.isDirectory()) {
+            for (FileNode file : node.find("**/*")) {
+                if (file.isFile()) {
+                    result.add(new File(file.getRelative(context), file.size(), instruction));
+                }
+            }
+        } else {
+            result.add(new File(node.getRelative(context), node.size(), instruction));
+        }
+    }
+
+    private static String strip(String path) {
+        while (path.startsWith("./") || path.startsWith("/")) {
+            path = path.substring(path.startsWith("/") ? 1 : 2);
+        }
+        while (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path.equals(".") ? "" : path;
+    }
+
+    //-- sizes
+
+    private static final Pattern SIZE = Pattern.compile("(\\d+)\\s*([kmg]?)b?", Pattern.CASE_INSENSITIVE);
+
+    /** @return bytes for strings like 1024, 500k, 200m or 2g (or with a b suffix, e.g. 200mb) */
+    public static long parseSize(String str) {
+        Matcher matcher;
+        long multiplier;
+
+        matcher = SIZE.matcher(str.trim());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("invalid size: " + str);
+        }
+        switch (matcher.group(2).toLowerCase(Locale.ROOT)) {
+            case "g":
+                multiplier = 1024L * 1024 * 1024;
+                break;
+            case "m":
+                multiplier = 1024L * 1024;
+                break;
+            case "k":
+                multiplier = 1024L;
+                break;
+            default:
+                multiplier = 1;
+                break;
+        }
+        return Long.parseLong(matcher.group(1)) * multiplier;
+    }
+
+    public static String formatSize(long size) {
+        if (size < 1024) {
+            return size + " B";
+        }
+        if (size < 1024 * 1024) {
+            return String.format(Locale.ROOT, "%.1f KB", size / 1024.0);
+        }
+        if (size < 1024L * 1024 * 1024) {
+            return String.format(Locale.ROOT, "%.1f MB", size / 1024.0 / 1024);
+        }
+        return String.format(Locale.ROOT, "%.2f GB", size / 1024.0 / 1024 / 1024);
+    }
+
+    //--
+
+    public final String image;
+    public final List<Layer> layers;
+    public final List<File> files;
+
+    /** false if the history could not be mapped to the Dockerfile */
+    public final boolean mapped;
+
+    public ImageReport(String image, List<Layer> layers, List<File> files, boolean mapped) {
+        this.image = image;
+        this.layers = layers;
+        this.files = files;
+        this.mapped = mapped;
+    }
+
+    public long size() {
+        long result;
+
+        result = 0;
+        for (Layer layer : layers) {
+            result += layer.size;
+        }
+        return result;
+    }
+
+    /** size of the layers added by the Dockerfile, i.e. without the base image */
+    public long addedSize() {
+        long result;
+
+        result = 0;
+        for (Layer layer : layers) {
+            if (layer.instruction != null) {
+                result += layer.size;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param maxImage bytes, null for no limit
+     * @param maxLayer bytes, null for no limit
+     * @return budget violations, empty if none
+     */
+    public List<String> check(Long maxImage, Long maxLayer) {
+        List<String> result;
+
+        result = new ArrayList<>();
+        if (maxImage != null && size() > maxImage) {
+            result.add("image size " + formatSize(size()) + " exceeds " + formatSize(maxImage));
+        }
+        if (maxLayer != null) {
+            for (Layer layer : layers) {
+                if (layer.size > maxLayer) {
+                    result.add("layer size " + formatSize(layer.size) + " exceeds " + formatSize(maxLayer) + ": " + layer);
+                }
+            }
+        }
+        return result;
+    }
+
+    public String summary() {
+        return image + ": " + formatSize(size()) + (mapped ? " (" + formatSize(addedSize()) + " added by Dockerfile)" : "");
+    }
+
+    public String toString() {
+        StringBuilder result;
+
+        result = new StringBuilder();
+        result.append("image: ").append(image).append('\n');
+        result.append("size: ").append(formatSize(size())).append('\n');
+        if (mapped) {
+            result.append("added by Dockerfile: ").append(formatSize(addedSize())).append('\n');
+        }
+        result.append("\nlayers (oldest first):\n");
+        for (Layer layer : layers) {
+            if (layer.size > 0) {
+                result.append(String.format(Locale.ROOT, "%12s  %s%n", formatSize(layer.size),
+                        layer.instruction == null ? (mapped ? "base: " : "") + layer.createdBy : layer.toString()));
+            }
+        }
+        if (!files.isEmpty()) {
+            result.append("\nlargest files copied from the context:\n");
+            for (File file : files) {
+                result.append(String.format(Locale.ROOT, "%12s  %s (line %d)%n", formatSize(file.size), file.path, file.instruction.line));
+            }
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** A single Dockerfile instruction with continuation lines already joined */
+public class Instruction {
+    /** first line of this instruction, starting with 1 */
+    public final int line;
+
+    /** upper case keyword, e.g. COPY */
+    public final String keyword;
+
+    /** everything after the keyword, continuations joined, comments removed */
+    public final String arguments;
+
+    /** original text, including continuation lines and embedded comments */
+    public final String original;
+
+    public Instruction(int line, String keyword, String arguments, String original) {
+        this.line = line;
+        this.keyword = keyword;
+        this.arguments = arguments;
+        this.original = original;
+    }
+
+    public boolean is(String kw) {
+        return keyword.equals(kw);
+    }
+
+    /** @return value of the leading --name=value flag; null if not specified */
+    public String flag(String name) {
+        String prefix;
+
+        prefix = "--" + name + "=";
+        for (String word : flags()) {
+            if (word.startsWith(prefix)) {
+                return word.substring(prefix.length());
+            }
+        }
+        return null;
+    }
+
+    public List<String> flags() {
+        List<String> result;
+
+        result = new ArrayList<>();
+        for (String word : split(arguments)) {
+            if (!word.startsWith("--")) {
+                break;
+            }
+            result.add(word);
+        }
+        return result;
+    }
+
+    /** arguments without leading flags; handles both shell and json (exec) form */
+    public List<String> words() {
+        String str;
+        List<String> result;
+
+        str = arguments;
+        while (str.startsWith("--")) {
+            str = afterWord(str);
+        }
+        if (str.startsWith("[")) {
+            result = json(str);
+            if (result != null) {
+                return result;
+            }
+        }
+        return split(str);
+    }
+
+    /** @return words of the json (exec) form, null for shell form */
+    public List<String> execForm() {
+        return arguments.startsWith("[") ? json(arguments) : null;
+    }
+
+    /** for COPY and ADD */
+    public List<String> sources() {
+        List<String> words;
+
+        words = words();
+        return words.size() < 2 ? new ArrayList<>() : words.subList(0, words.size() - 1);
+    }
+
+    /** for COPY and ADD */
+    public String destination() {
+        List<String> words;
+
+        words = words();
+        return words.isEmpty() ? null : words.get(words.size() - 1);
+    }
+
+    public String toString() {
+        return keyword + " " + arguments;
+    }
+
+    //--
+
+    private static String afterWord(String str) {
+        int idx;
+
+        idx = 0;
+        while (idx < str.length() && !Character.isWhitespace(str.charAt(idx))) {
+            idx++;
+        }
+        return str.substring(idx).trim();
+    }
+
+    private static List<String> split(String str) {
+        List<String> result;
+
+        result = new ArrayList<>();
+        for (String word : str.trim().split("\\s+")) {
+            if (!word.isEmpty()) {
+                result.add(word);
+            }
+        }
+        return result;
+    }
+
+    /** @return null if this is not a valid json string array */
+    private static List<String> json(String str) {
+        List<String> result;
+        StringBuilder word;
+        char c;
+        int i;
+        int max;
+
+        result = new ArrayList<>();
+        max = str.length();
+        i = 1;
+        while (true) {
+            while (i < max && Character.isWhitespace(str.charAt(i))) {
+                i++;
+            }
+            if (i < max && str.charAt(i) == ']' && result.isEmpty()) {
+                i++;
+                break;
+            }
+            if (i >= max || str.charAt(i) != '"') {
+                return null;
+            }
+            i++;
+            word = new StringBuilder();
+            while (true) {
+                if (i >= max) {
+                    return null;
+                }
+                c = str.charAt(i++);
+                if (c == '"') {
+                    break;
+                }
+                if (c == '\\' && i < max) {
+                    c = str.charAt(i++);
+                }
+                word.append(c);
+            }
+            result.add(word.toString());
+            while (i < max && Character.isWhitespace(str.charAt(i))) {
+                i++;
+            }
+            if (i < max && str.charAt(i) == ',') {
+                i++;
+            } else if (i < max && str.charAt(i) == ']') {
+                i++;
+                break;
+            } else {
+                return null;
+            }
+        }
+        return str.substring(i).trim().isEmpty() ? result : null;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild.model;
+
+import com.github.dockerjava.api.DockerClient;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.UUID;
+
+/**
+ * Image cache in a directory shared by build agents with short-lived Docker daemons, e.g. a volume mounted into every CI job.
+ * Images are stored with docker save into an OCI layout, named by build fingerprint or image name; since blobs are content
+ * addressed, layers shared by images - base image layers in particular - are stored once. Least recently used images are evicted
+ * to stay within the size limit. Safe for concurrent use by multiple processes, see OciLayout.
+ */
+public class LocalCache {
+    /** eviction keeps unreferenced blobs younger than this, they might belong to an image that's being stored */
+    private static final long GRACE_MILLIS = 60 * 60 * 1000;
+
+    private static final int PIPE_SIZE = 1024 * 1024;
+
+    public static LocalCache open(Log log, FileNode directory, long maxSize) throws IOException {
+        return new LocalCache(log, OciLayout.open(directory), maxSize);
+    }
+
+    public static String fingerprintName(String fingerprint) {
+        return "fp-" + fingerprint;
+    }
+
+    private final Log log;
+    private final OciLayout layout;
+    private final long maxSize;
+
+    public LocalCache(Log log, OciLayout layout, long maxSize) {
+        this.log = log;
+        this.layout = layout;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Loads an image into the daemon.
+     *
+     * @param name fingerprint name or image name the image was stored with
+     * @param image repository tag for the loaded image
+     * @param count true to count the lookup for the hit rate
+     * @return false if not in the cache
+     */
+    public boolean restore(DockerClient docker, String name, String image, boolean count) throws IOException {
+        Descriptor manifest;
+        long started;
+        PipedInputStream src;
+        PipedOutputStream dest;
+        Thread writer;
+        IOException[] failure;
+        long millis;
+
+        manifest = layout.lookup(name);
+        if (manifest == null || !layout.contains(manifest.digest)) {
+            log.info("local cache miss: " + name + (count ? ", " + stats(false, 0) : ""));
+            return false;
+        }
+        started = System.currentTimeMillis();
+        layout.touch(manifest);
+        failure = new IOException[1];
+        src = new PipedInputStream(PIPE_SIZE);
+        dest = new PipedOutputStream(src);
+        writer = new Thread(() -> {
+            try (PipedOutputStream out = dest) {
+                layout.writeTar(manifest, image, out);
+            } catch (IOException e) {
+                failure[0] = e; // e.g. blob evicted concurrently
+            }
+        }, "dockerbuild-restore");
+        writer.start();
+        try {
+            docker.loadImageCmd(src).exec();
+        } catch (RuntimeException e) {
+            log.warn("local cache restore failed: " + name + ": " + e.getMessage());
+            return false;
+        } finally {
+            src.close(); // unblocks the writer if the daemon stopped reading
+            join(writer);
+        }
+        if (failure[0] != null) {
+            log.warn("local cache restore failed: " + name + ": " + failure[0].getMessage());
+            return false;
+        }
+        millis = System.currentTimeMillis() - started;
+        log.info("local cache hit: " + name + " restored as " + image + " in " + millis + " ms"
+                + (count ? ", " + stats(true, millis) : ""));
+        return true;
+    }
+
+    private static void join(Thread thread) throws IOException {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", e);
+        }
+    }
+
+    /** Saves an image from the daemon under the specified names, then evicts least recently used images */
+    public void store(DockerClient docker, String image, Collection<String> names) throws IOException {
+        Descriptor manifest;
+        long started;
+        long evicted;
+
+        started = System.currentTimeMillis();
+        try (InputStream src = docker.saveImageCmd(image).exec()) {
+            manifest = layout.save(src);
+        }
+        for (String name : names) {
+            layout.tag(manifest, name);
+        }
+        layout.touch(manifest);
+        evicted = layout.evict(maxSize, GRACE_MILLIS);
+        log.info("local cache: stored " + image + " as " + String.join(", ", names) + " in " + (System.currentTimeMillis() - started)
+                + " ms, " + layout.getWritten() + " bytes written, " + layout.getDeduplicated() + " bytes already present, "
+                + evicted + " bytes evicted");
+    }
+
+    /** update the statistics shared by all users of this cache */
+    private String stats(boolean hit, long millis) throws IOException {
+        return layout.locked(() -> statsLocked(hit, millis));
+    }
+
+    private String statsLocked(boolean hit, long millis) throws IOException {
+        FileNode file;
+        JsonObject stats;
+        FileNode tmp;
+        long hits;
+        long misses;
+        long restoreMillis;
+
+        file = layout.getDirectory().join("stats.json");
+        stats = null;
+        if (file.exists()) {
+            try {
+                stats = JsonParser.parseString(file.readString()).getAsJsonObject();
+            } catch (JsonParseException | IllegalStateException e) {
+                // start over
+            }
+        }
+        if (stats == null) {
+            stats = new JsonObject();
+        }
+        hits = (stats.has("hits") ? stats.get("hits").getAsLong() : 0) + (hit ? 1 : 0);
+        misses = (stats.has("misses") ? stats.get("misses").getAsLong() : 0) + (hit ? 0 : 1);
+        restoreMillis = (stats.has("restoreMillis") ? stats.get("restoreMillis").getAsLong() : 0) + millis;
+        stats.addProperty("hits", hits);
+        stats.addProperty("misses", misses);
+        stats.addProperty("restoreMillis", restoreMillis);
+        tmp = file.getParent().join(".tmp-" + UUID.randomUUID());
+        tmp.writeString(Metrics.toJson(stats));
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return "hit rate " + hits + "/" + (hits + misses) + " (" + (hits * 100 / (hits + misses)) + "%)"
+                + (hits > 0 ? ", average restore " + restoreMillis / hits + " ms" : "");
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild.model;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.eclipse.aether.SessionData;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Phase timings of goal executions, as JSON and Prometheus text exposition format. Executions are collected reactor-wide for a
+ * summary at session end.
+ */
+public class Metrics {
+    /** key in the repository session data */
+    private static final String SESSION_KEY = "net.oneandone.maven.plugins.dockerbuild.metrics";
+
+    /** add execution to the reactor-wide collection */
+    public static void collect(SessionData data, JsonObject execution) {
+        collected(data).add(execution.toString());
+    }
+
+    /** @return reactor-wide collection of executions as JSON strings */
+    public static Queue<String> collected(SessionData data) {
+        return SessionValues.get(data, SESSION_KEY, ConcurrentLinkedQueue::new);
+    }
+
+    /**
+     * Call from the thread that executed the goal.
+     * @param transport null if the goal didn't talk to the daemon
+     */
+    public static JsonObject execution(String project, String goal, boolean success, Phases phases, long end, Transport transport) {
+        JsonObject result;
+        JsonArray array;
+        JsonObject obj;
+        List<Phases.Phase> list;
+
+        result = new JsonObject();
+        result.addProperty("project", project);
+        result.addProperty("goal", goal);
+        result.addProperty("success", success);
+        result.addProperty("thread", Thread.currentThread().getName());
+        result.addProperty("start", phases.getStarted());
+        result.addProperty("duration", end - phases.getStarted());
+        array = new JsonArray();
+        list = phases.list();
+        list.sort((left, right) -> Long.compare(left.start, right.start));
+        for (Phases.Phase phase : list) {
+            obj = new JsonObject();
+            obj.addProperty("name", phase.name);
+            obj.addProperty("thread", phase.thread);
+            obj.addProperty("start", phase.start);
+            obj.addProperty("duration", phase.duration());
+            array.add(obj);
+        }
+        result.add("phases", array);
+        if (transport != null) {
+            obj = new JsonObject();
+            obj.addProperty("kind", transport.getKind());
+            obj.addProperty("maxConnections", transport.getMaxConnections());
+            obj.addProperty("requests", transport.getRequests());
+            obj.addProperty("idle", transport.getIdle());
+            obj.addProperty("waited", transport.getWaited());
+            obj.addProperty("waitMillis", transport.getWaitMillis());
+            obj.addProperty("maxWaitMillis", transport.getMaxWaitMillis());
+            obj.addProperty("peak", transport.getPeak());
+            result.add("transport", obj);
+        }
+        return result;
+    }
+
+    public static String toJson(JsonElement element) {
+        return new GsonBuilder().setPrettyPrinting().create().toJson(element) + "\n";
+    }
+
+    /** @return metrics of one goal execution in Prometheus text exposition format */
+    public static String toPrometheus(JsonObject execution) {
+        StringBuilder result;
+        String labels;
+        JsonObject transport;
+
+        result = new StringBuilder();
+        labels = "project=\"" + escape(execution.get("project").getAsString()) + "\",goal=\"" + escape(execution.get("goal").getAsString()) + "\"";
+        header(result, "dockerbuild_goal_seconds", "gauge", "Wall-clock duration of the goal execution");
+        sample(result, "dockerbuild_goal_seconds", labels, seconds(execution.get("duration").getAsLong()));
+        header(result, "dockerbuild_goal_success", "gauge", "1 if the goal succeeded, 0 otherwise");
+        sample(result, "dockerbuild_goal_success", labels, execution.get("success").getAsBoolean() ? "1" : "0");
+        header(result, "dockerbuild_phase_seconds", "gauge", "Wall-clock duration of a phase, summed if it ran multiple times; phases may overlap");
+        for (Map.Entry<String, long[]> entry : phases(execution).entrySet()) {
+            sample(result, "dockerbuild_phase_seconds", labels + ",phase=\"" + escape(entry.getKey()) + "\"", seconds(entry.getValue()[0]));
+        }
+        if (execution.has("transport")) {
+            transport = execution.getAsJsonObject("transport");
+            labels = labels + ",transport=\"" + escape(transport.get("kind").getAsString()) + "\"";
+            header(result, "dockerbuild_transport_requests_total", "counter", "Requests sent to the Docker daemon");
+            sample(result, "dockerbuild_transport_requests_total", labels, transport.get("requests").getAsString());
+            header(result, "dockerbuild_transport_waited_total", "counter", "Requests that waited for a free connection");
+            sample(result, "dockerbuild_transport_waited_total", labels, transport.get("waited").getAsString());
+            header(result, "dockerbuild_transport_wait_seconds_total", "counter", "Time requests spent waiting for a free connection");
+            sample(result, "dockerbuild_transport_wait_seconds_total", labels, seconds(transport.get("waitMillis").getAsLong()));
+            header(result, "dockerbuild_transport_peak_connections", "gauge", "Maximum number of concurrent requests");
+            sample(result, "dockerbuild_transport_peak_connections", labels, transport.get("peak").getAsString());
+            header(result, "dockerbuild_transport_max_connections", "gauge", "Configured connection limit");
+            sample(result, "dockerbuild_transport_max_connections", labels, transport.get("maxConnections").getAsString());
+        }
+        return result.toString();
+    }
+
+    /** @return phase name mapped to total duration and count */
+    private static Map<String, long[]> phases(JsonObject execution) {
+        Map<String, long[]> result;
+        JsonObject phase;
+        long[] value;
+
+        result = new LinkedHashMap<>();
+        for (JsonElement element : execution.getAsJsonArray("phases")) {
+            phase = element.getAsJsonObject();
+            value = result.computeIfAbsent(phase.get("name").getAsString(), key -> new long[2]);
+            value[0] += phase.get("duration").getAsLong();
+            value[1]++;
+        }
+        return result;
+    }
+
+    //-- reactor
+
+    private final List<JsonObject> executions;
+
+    public Metrics(Iterable<String> executions) {
+        this.executions = new ArrayList<>();
+        for (String execution : executions) {
+            this.executions.add(JsonParser.parseString(execution).getAsJsonObject());
+        }
+    }
+
+    public boolean isEmpty() {
+        return executions.isEmpty();
+    }
+
+    /** @return goal name mapped to phase name mapped to total duration and count */
+    private Map<String, Map<String, long[]>> totals() {
+        Map<String, Map<String, long[]>> result;
+        Map<String, long[]> goal;
+        long[] total;
+
+        result = new TreeMap<>();
+        for (JsonObject execution : executions) {
+            goal = result.computeIfAbsent(execution.get("goal").getAsString(), key -> new LinkedHashMap<>());
+            total = goal.computeIfAbsent("total", key -> new long[2]);
+            total[0] += execution.get("duration").getAsLong();
+            total[1]++;
+            for (Map.Entry<String, long[]> entry : phases(execution).entrySet()) {
+                total = goal.computeIfAbsent(entry.getKey(), key -> new long[2]);
+                total[0] += entry.getValue()[0];
+                total[1] += entry.getValue()[1];
+            }
+        }
+        return result;
+    }
+
+    /** @return summary lines, one per goal */
+    public List<String> summary() {
+        List<String> result;
+        StringBuilder line;
+
+        result = new ArrayList<>();
+        for (Map.Entry<String, Map<String, long[]>> goal : totals().entrySet()) {
+            line = new StringBuilder(goal.getKey()).append(": ").append(goal.getValue().get("total")[1]).append(" module(s)");
+            for (Map.Entry<String, long[]> phase : goal.getValue().entrySet()) {
+                line.append(", ").append(phase.getKey()).append(' ').append(phase.getValue()[0]).append(" ms");
+            }
+            result.add(line.toString());
+        }
+        return result;
+    }
+
+    public JsonObject toJson() {
+        JsonObject result;
+        JsonObject goals;
+        JsonObject phases;
+        JsonObject obj;
+        JsonArray array;
+
+        goals = new JsonObject();
+        for (Map.Entry<String, Map<String, long[]>> goal : totals().entrySet()) {
+            phases = new JsonObject();
+            for (Map.Entry<String, long[]> phase : goal.getValue().entrySet()) {
+                obj = new JsonObject();
+                obj.addProperty("duration", phase.getValue()[0]);
+                obj.addProperty("count", phase.getValue()[1]);
+                phases.add(phase.getKey(), obj);
+            }
+            goals.add(goal.getKey(), phases);
+        }
+        array = new JsonArray();
+        for (JsonObject execution : executions) {
+            array.add(execution);
+        }
+        result = new JsonObject();
+        result.add("goals", goals);
+        result.add("executions", array);
+        return result;
+    }
+
+    public String toPrometheus() {
+        StringBuilder result;
+        String labels;
+
+        result = new StringBuilder();
+        header(result, "dockerbuild_reactor_seconds", "gauge", "Wall-clock time of a phase summed over all modules of the reactor");
+        for (Map.Entry<String, Map<String, long[]>> goal : totals().entrySet()) {
+            for (Map.Entry<String, long[]> phase : goal.getValue().entrySet()) {
+                labels = "goal=\"" + escape(goal.getKey()) + "\",phase=\"" + escape(phase.getKey()) + "\"";
+                sample(result, "dockerbuild_reactor_seconds", labels, seconds(phase.getValue()[0]));
+            }
+        }
+        header(result, "dockerbuild_reactor_count", "gauge", "Number of times a phase ran in the reactor");
+        for (Map.Entry<String, Map<String, long[]>> goal : totals().entrySet()) {
+            for (Map.Entry<String, long[]> phase : goal.getValue().entrySet()) {
+                labels = "goal=\"" + escape(goal.getKey()) + "\",phase=\"" + escape(phase.getKey()) + "\"";
+                sample(result, "dockerbuild_reactor_count", labels, Long.toString(phase.getValue()[1]));
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * @return Chrome trace event format, see https://docs.google.com/document/d/1CvAClvFfyA5R-PhYUmn5OOQtYMH4h6I0nSS5wx4rKEE;
+     *         one process per module, one track per thread within it; phases of the goal's thread nest in the goal span
+     */
+    public JsonObject toTrace() {
+        JsonArray events;
+        Map<String, Integer> pids;
+        Map<String, Integer> tids;
+        long origin;
+        String project;
+        int pid;
+        JsonObject phase;
+        JsonObject span;
+        JsonObject result;
+
+        origin = Long.MAX_VALUE;
+        for (JsonObject execution : executions) {
+            origin = Math.min(origin, execution.get("start").getAsLong());
+        }
+        events = new JsonArray();
+        pids = new LinkedHashMap<>();
+        tids = new LinkedHashMap<>();
+        for (JsonObject execution : executions) {
+            project = execution.get("project").getAsString();
+            if (!pids.containsKey(project)) {
+                pids.put(project, pids.size() + 1);
+                events.add(metadata("process_name", pids.get(project), 0, project));
+                events.add(metadata("process_sort_index", pids.get(project), 0, pids.get(project)));
+            }
+            pid = pids.get(project);
+            span = span(execution.get("goal").getAsString(), "goal", execution.get("start").getAsLong() - origin,
+                    execution.get("duration").getAsLong(), pid, tid(tids, events, pid, execution.get("thread").getAsString()));
+            span.getAsJsonObject("args").addProperty("success", execution.get("success").getAsBoolean());
+            events.add(span);
+            for (JsonElement element : execution.getAsJsonArray("phases")) {
+                phase = element.getAsJsonObject();
+                events.add(span(phase.get("name").getAsString(), execution.get("goal").getAsString(), phase.get("start").getAsLong() - origin,
+                        phase.get("duration").getAsLong(), pid, tid(tids, events, pid, phase.get("thread").getAsString())));
+            }
+        }
+        result = new JsonObject();
+        result.add("traceEvents", events);
+        result.addProperty("displayTimeUnit", "ms");
+        return result;
+    }
+
+    /** @return track for the thread within the module */
+    private static int tid(Map<String, Integer> tids, JsonArray events, int pid, String thread) {
+        String key;
+        Integer result;
+
+        key = pid + "/" + thread;
+        result = tids.get(key);
+        if (result == null) {
+            result = tids.size() + 1;
+            tids.put(key, result);
+            events.add(metadata("thread_name", pid, result, thread));
+        }
+        return result;
+    }
+
+    private static JsonObject span(String name, String category, long start, long duration, int pid, int tid) {
+        JsonObject result;
+
+        result = new JsonObject();
+        result.addProperty("name", name);
+        result.addProperty("cat", category);
+        result.addProperty("ph", "X");
+        result.addProperty("ts", start * 1000);
+        result.addProperty("dur", duration * 1000);
+        result.addProperty("pid", pid);
+        result.addProperty("tid", tid);
+        result.add("args", new JsonObject());
+        return result;
+    }
+
+    private static JsonObject metadata(String name, int pid, int tid, Object value) {
+        JsonObject result;
+        JsonObject args;
+
+        args = new JsonObject();
+        if (value instanceof Number) {
+            args.addProperty("sort_index", (Number) value);
+        } else {
+            args.addProperty("name", value.toString());
+        }
+        result = new JsonObject();
+        result.addProperty("name", name);
+        result.addProperty("ph", "M");
+        result.addProperty("pid", pid);
+        result.addProperty("tid", tid);
+        result.add("args", args);
+        return result;
+    }
+
+    //--
+
+    private static void header(StringBuilder dest, String name, String type, String help) {
+        dest.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        dest.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder dest, String name, String labels, String value) {
+        dest.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+
+    private static String seconds(long millis) {
+        return String.format(Locale.ROOT, "%.3f", millis / 1000.0);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,629 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild.model;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.kamranzafar.jtar.TarEntry;
+import org.kamranzafar.jtar.TarHeader;
+import org.kamranzafar.jtar.TarInputStream;
+import org.kamranzafar.jtar.TarOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * OCI image layout directory, https://github.com/opencontainers/image-spec/blob/main/image-layout.md.
+ * Blobs are content addressed, so they are stored only once, even if multiple images - or multiple processes - share them.
+ */
+public class OciLayout {
+    /** Creates the layout if it does not exist; safe to call concurrently, e.g. by build agents sharing a local cache */
+    public static OciLayout open(FileNode directory) throws IOException {
+        OciLayout result;
+        FileNode file;
+
+        Files.createDirectories(directory.join("blobs/sha256").toPath());
+        result = new OciLayout(directory);
+        file = directory.join("oci-layout");
+        if (!file.exists()) {
+            result.writeAtomic(file, "{\"imageLayoutVersion\":\"1.0.0\"}");
+        }
+        return result;
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileNode directory;
+
+    /** bytes actually written to blobs */
+    private long written;
+
+    /** bytes not written because the blob was already present */
+    private long deduplicated;
+
+    public OciLayout(FileNode directory) {
+        this.directory = directory;
+        this.written = 0;
+        this.deduplicated = 0;
+    }
+
+    public FileNode getDirectory() {
+        return directory;
+    }
+
+    public long getWritten() {
+        return written;
+    }
+
+    public long getDeduplicated() {
+        return deduplicated;
+    }
+
+    public FileNode blob(String digest) {
+        return directory.join("blobs", digest.replace(':', '/'));
+    }
+
+    public boolean contains(String digest) {
+        return blob(digest).isFile();
+    }
+
+    /** Count a blob that's already present without reading it */
+    public Descriptor skip(Descriptor descriptor) {
+        refresh(blob(descriptor.digest));
+        deduplicated += descriptor.size;
+        return descriptor;
+    }
+
+    /**
+     * Re-used blobs count as new for eviction, otherwise a concurrent evict might delete them before the image is tagged.
+     *
+     * @return false if the blob does not exist (anymore)
+     */
+    private static boolean refresh(FileNode blob) {
+        return blob.toPath().toFile().setLastModified(System.currentTimeMillis());
+    }
+
+    public Descriptor write(byte[] bytes, String mediaType) throws IOException {
+        return write(new ByteArrayInputStream(bytes), mediaType);
+    }
+
+    /** Streams src into a blob. The blob is written to a temporary file first and atomically renamed, or dropped if already present */
+    public Descriptor write(InputStream src, String mediaType) throws IOException {
+        FileNode tmp;
+        MessageDigest md;
+        byte[] buffer;
+        int count;
+        long size;
+        String digest;
+        FileNode dest;
+
+        tmp = directory.join("blobs/sha256", ".tmp-" + UUID.randomUUID());
+        md = sha256();
+        buffer = new byte[BUFFER_SIZE];
+        size = 0;
+        try {
+            try (OutputStream out = new DigestOutputStream(tmp.newOutputStream(), md)) {
+                while (true) {
+                    count = src.read(buffer);
+                    if (count == -1) {
+                        break;
+                    }
+                    out.write(buffer, 0, count);
+                    size += count;
+                }
+            }
+            digest = "sha256:" + hex(md.digest());
+            dest = blob(digest);
+            if (refresh(dest)) {
+                deduplicated += size;
+                tmp.deleteFile();
+            } else {
+                Files.move(tmp.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                written += size;
+            }
+        } catch (IOException | RuntimeException e) {
+            tmp.deleteFileOpt();
+            throw e;
+        }
+        return new Descriptor(mediaType, digest, size);
+    }
+
+    /** @return gzip or plain tar layer media type, depending on the blob's magic bytes */
+    public String layerType(String digest) throws IOException {
+        byte[] magic;
+        int count;
+
+        magic = new byte[2];
+        try (InputStream src = blob(digest).newInputStream()) {
+            count = src.read(magic);
+        }
+        return count == 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b ? Descriptor.LAYER_GZIP : Descriptor.LAYER;
+    }
+
+    public Descriptor writeManifest(Descriptor config, List<Descriptor> layers) throws IOException {
+        return write(manifestJson(config, layers).toString().getBytes(StandardCharsets.UTF_8), Descriptor.MANIFEST);
+    }
+
+    public static JsonObject manifestJson(Descriptor config, List<Descriptor> layers) {
+        JsonObject manifest;
+        JsonArray array;
+
+        manifest = new JsonObject();
+        manifest.addProperty("schemaVersion", 2);
+        manifest.addProperty("mediaType", Descriptor.MANIFEST);
+        manifest.add("config", config.toJson());
+        array = new JsonArray();
+        for (Descriptor layer : layers) {
+            array.add(layer.toJson());
+        }
+        manifest.add("layers", array);
+        return manifest;
+    }
+
+    public JsonObject readJson(Descriptor descriptor) throws IOException {
+        try (Reader src = blob(descriptor.digest).newReader()) {
+            return JsonParser.parseReader(src).getAsJsonObject();
+        }
+    }
+
+    /** @return manifest blobs referenced by a manifest, i.e. config and layers */
+    public List<Descriptor> references(Descriptor manifest) throws IOException {
+        JsonObject json;
+        List<Descriptor> result;
+
+        json = readJson(manifest);
+        result = new ArrayList<>();
+        result.add(Descriptor.fromJson(json.get("config").getAsJsonObject()));
+        for (JsonElement layer : json.get("layers").getAsJsonArray()) {
+            result.add(Descriptor.fromJson(layer.getAsJsonObject()));
+        }
+        return result;
+    }
+
+    //-- index
+
+    /** Adds manifest to index.json, replacing a previous manifest with the same name */
+    public void tag(Descriptor manifest, String name) throws IOException {
+        Descriptor entry;
+
+        entry = manifest.withMediaType(Descriptor.MANIFEST);
+        entry.annotations.put(Descriptor.REF_NAME, name);
+        locked(() -> {
+            tagLocked(entry, name);
+            return null;
+        });
+    }
+
+    private void tagLocked(Descriptor entry, String name) throws IOException {
+        JsonObject index;
+        JsonArray manifests;
+        JsonArray result;
+        Descriptor existing;
+
+        index = readIndex();
+        manifests = index.get("manifests").getAsJsonArray();
+        result = new JsonArray();
+        for (JsonElement element : manifests) {
+            existing = Descriptor.fromJson(element.getAsJsonObject());
+            if (!name.equals(existing.annotations.get(Descriptor.REF_NAME))) {
+                result.add(element);
+            }
+        }
+        result.add(entry.toJson());
+        index.add("manifests", result);
+        writeAtomic(directory.join("index.json"), json(index));
+    }
+
+    public interface Action<T> {
+        T run() throws IOException;
+    }
+
+    /** Run action while holding the layout lock, which serializes index updates of all threads and processes using this layout */
+    public <T> T locked(Action<T> action) throws IOException {
+        FileLock lock;
+
+        synchronized (OciLayout.class) { // file locks are per process
+            try (FileChannel channel = FileChannel.open(directory.join(".lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                lock = channel.lock();
+                try {
+                    return action.run();
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+    }
+
+    /** Mark the manifest as used now, for eviction */
+    public void touch(Descriptor manifest) throws IOException {
+        blob(manifest.digest).setLastModified(System.currentTimeMillis());
+    }
+
+    /**
+     * Removes least recently used - see touch - manifests from the index until the blobs they reference fit into maxSize,
+     * then deletes unreferenced blobs. Blobs younger than graceMillis are kept, they might belong to an image that's being written.
+     *
+     * @return number of bytes deleted
+     */
+    public long evict(long maxSize, long graceMillis) throws IOException {
+        return locked(() -> evictLocked(maxSize, graceMillis));
+    }
+
+    private long evictLocked(long maxSize, long graceMillis) throws IOException {
+        JsonObject index;
+        List<Descriptor> manifests;
+        Map<String, Long> used;
+        Map<String, Long> referenced;
+        Iterator<Descriptor> iter;
+        Descriptor manifest;
+        Map<String, Long> blobs;
+        long added;
+        long total;
+        long deleted;
+        long now;
+
+        index = readIndex();
+        manifests = new ArrayList<>();
+        for (JsonElement element : index.get("manifests").getAsJsonArray()) {
+            manifests.add(Descriptor.fromJson(element.getAsJsonObject()));
+        }
+        used = new HashMap<>();
+        for (Descriptor descriptor : manifests) {
+            used.put(descriptor.digest, blob(descriptor.digest).exists() ? blob(descriptor.digest).getLastModified() : 0L);
+        }
+        manifests.sort((left, right) -> Long.compare(used.get(right.digest), used.get(left.digest)));
+        referenced = new HashMap<>();
+        total = 0;
+        iter = manifests.iterator();
+        while (iter.hasNext()) {
+            manifest = iter.next();
+            blobs = new HashMap<>();
+            added = 0;
+            if (contains(manifest.digest)) {
+                blobs.put(manifest.digest, manifest.size);
+                for (Descriptor blob : references(manifest)) {
+                    blobs.put(blob.digest, blob.size);
+                }
+                for (Map.Entry<String, Long> entry : blobs.entrySet()) {
+                    if (!referenced.containsKey(entry.getKey())) {
+                        added += entry.getValue();
+                    }
+                }
+            }
+            if (!blobs.isEmpty() && total + added <= maxSize) {
+                referenced.putAll(blobs);
+                total += added;
+            } else {
+                iter.remove();
+            }
+        }
+        if (manifests.size() < index.get("manifests").getAsJsonArray().size()) {
+            index.add("manifests", new JsonArray());
+            for (Descriptor descriptor : manifests) {
+                index.get("manifests").getAsJsonArray().add(descriptor.toJson());
+            }
+            writeAtomic(directory.join("index.json"), json(index));
+        }
+        deleted = 0;
+        now = System.currentTimeMillis();
+        for (FileNode file : directory.join("blobs/sha256").list()) {
+            if (!referenced.containsKey("sha256:" + file.getName()) && now - file.getLastModified() > graceMillis) {
+                deleted += file.size();
+                file.deleteFile();
+            }
+        }
+        return deleted;
+    }
+
+    /** @return bytes of all blobs */
+    public long size() throws IOException {
+        long result;
+
+        result = 0;
+        for (FileNode file : directory.join("blobs/sha256").list()) {
+            result += file.size();
+        }
+        return result;
+    }
+
+    /** @return null if not found */
+    public Descriptor lookup(String name) throws IOException {
+        Descriptor descriptor;
+
+        for (JsonElement element : readIndex().get("manifests").getAsJsonArray()) {
+            descriptor = Descriptor.fromJson(element.getAsJsonObject());
+            if (name.equals(descriptor.annotations.get(Descriptor.REF_NAME))) {
+                return descriptor;
+            }
+        }
+        return null;
+    }
+
+    private JsonObject readIndex() throws IOException {
+        FileNode file;
+        JsonObject result;
+
+        file = directory.join("index.json");
+        if (file.exists()) {
+            try (Reader src = file.newReader()) {
+                return JsonParser.parseReader(src).getAsJsonObject();
+            }
+        }
+        result = new JsonObject();
+        result.addProperty("schemaVersion", 2);
+        result.addProperty("mediaType", Descriptor.INDEX);
+        result.add("manifests", new JsonArray());
+        return result;
+    }
+
+    private void writeAtomic(FileNode dest, String str) throws IOException {
+        FileNode tmp;
+
+        tmp = dest.getParent().join(".tmp-" + UUID.randomUUID());
+        tmp.writeString(str);
+        Files.move(tmp.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    //-- docker save
+
+    private static final String BLOB_PREFIX = "blobs/sha256/";
+
+    /** save entries up to this size are kept in memory until manifest.json says whether they are part of the image */
+    private static final int PENDING_SIZE = 1024 * 1024;
+
+    /**
+     * Stream docker save output into this layout. Handles both the legacy docker archive format (layer directories with layer.tar files)
+     * and the OCI based format of newer Docker versions (where legacy paths are symlinks into blobs). Small entries, e.g. the json and
+     * VERSION files of legacy layer directories, are written only if the manifest references them; larger entries are layers.
+     */
+    public Descriptor save(InputStream src) throws IOException {
+        TarInputStream tar;
+        TarEntry entry;
+        String name;
+        Map<String, Descriptor> blobs;
+        Map<String, byte[]> pending;
+        Map<String, String> links;
+        byte[] manifestJson;
+        Descriptor blob;
+        JsonObject manifest;
+        Descriptor config;
+        List<Descriptor> layers;
+
+        tar = new TarInputStream(src);
+        blobs = new HashMap<>();
+        pending = new HashMap<>();
+        links = new HashMap<>();
+        manifestJson = null;
+        while ((entry = tar.getNextEntry()) != null) {
+            name = entry.getName();
+            switch (entry.getHeader().linkFlag) {
+                case TarHeader.LF_NORMAL:
+                case TarHeader.LF_OLDNORM:
+                    break;
+                case TarHeader.LF_SYMLINK:
+                    links.put(name, resolve(name, entry.getHeader().linkName.toString()));
+                    continue;
+                default:
+                    continue; // directories, extended headers
+            }
+            if (name.equals("manifest.json")) {
+                manifestJson = readAll(tar);
+            } else if (name.equals("index.json") || name.equals("oci-layout") || name.equals("repositories")) {
+                continue;
+            } else if (name.startsWith(BLOB_PREFIX) && contains("sha256:" + name.substring(BLOB_PREFIX.length()))) {
+                blobs.put(name, skip(new Descriptor(null, "sha256:" + name.substring(BLOB_PREFIX.length()), entry.getSize())));
+            } else if (entry.getSize() <= PENDING_SIZE) {
+                pending.put(name, readAll(tar));
+            } else {
+                blobs.put(name, write(tar, null));
+            }
+        }
+        if (manifestJson == null) {
+            throw new IOException("manifest.json not found in docker save output");
+        }
+        manifest = JsonParser.parseString(new String(manifestJson, StandardCharsets.UTF_8)).getAsJsonArray().get(0).getAsJsonObject();
+        config = lookup(manifest.get("Config").getAsString(), blobs, pending, links).withMediaType(Descriptor.CONFIG);
+        layers = new ArrayList<>();
+        for (JsonElement layer : manifest.get("Layers").getAsJsonArray()) {
+            blob = lookup(layer.getAsString(), blobs, pending, links);
+            layers.add(blob.withMediaType(layerType(blob.digest)));
+        }
+        return writeManifest(config, layers);
+    }
+
+    /** @return blob of the specified save path; pending entries are written on first lookup */
+    private Descriptor lookup(String path, Map<String, Descriptor> blobs, Map<String, byte[]> pending, Map<String, String> links)
+            throws IOException {
+        Descriptor result;
+        byte[] bytes;
+
+        for (int i = 0; i < 10 && links.containsKey(path); i++) {
+            path = links.get(path);
+        }
+        result = blobs.get(path);
+        if (result == null) {
+            bytes = pending.get(path);
+            if (bytes != null) {
+                result = write(bytes, null);
+                blobs.put(path, result);
+            }
+        }
+        if (result == null) {
+            throw new IOException("docker save output is missing " + path);
+        }
+        return result;
+    }
+
+    /** resolve symlink target relative to the link's directory */
+    private static String resolve(String link, String target) {
+        List<String> segments;
+        int idx;
+
+        segments = new ArrayList<>();
+        idx = link.lastIndexOf('/');
+        if (idx != -1 && !target.startsWith("/")) {
+            for (String segment : link.substring(0, idx).split("/")) {
+                segments.add(segment);
+            }
+        }
+        for (String segment : target.split("/")) {
+            if (segment.equals("..")) {
+                if (!segments.isEmpty()) {
+                    segments.remove(segments.size() - 1);
+                }
+            } else if (!segment.isEmpty() && !segment.equals(".")) {
+                segments.add(segment);
+            }
+        }
+        return String.join("/", segments);
+    }
+
+    private static byte[] readAll(InputStream src) throws IOException {
+        ByteArrayOutputStream dest;
+
+        dest = new ByteArrayOutputStream();
+        copy(src, dest);
+        return dest.toByteArray();
+    }
+
+    //-- tar
+
+    /** Writes a tar file with a layout containing only the specified image */
+    public void exportTar(Descriptor manifest, String name, FileNode dest) throws IOException {
+        try (OutputStream out = dest.newOutputStream()) {
+            writeTar(manifest, name, out);
+        }
+    }
+
+    /**
+     * Writes a tar with a layout containing only the specified image. Includes a manifest.json for docker load of
+     * Docker versions that don't understand OCI layouts.
+     */
+    public void writeTar(Descriptor manifest, String name, OutputStream out) throws IOException {
+        JsonObject index;
+        JsonArray manifests;
+        Descriptor entry;
+        List<Descriptor> blobs;
+        TarOutputStream tar;
+        long now;
+        JsonObject legacy;
+        JsonArray layers;
+
+        entry = manifest.withMediaType(Descriptor.MANIFEST);
+        entry.annotations.put(Descriptor.REF_NAME, name);
+        index = new JsonObject();
+        index.addProperty("schemaVersion", 2);
+        index.addProperty("mediaType", Descriptor.INDEX);
+        manifests = new JsonArray();
+        manifests.add(entry.toJson());
+        index.add("manifests", manifests);
+        blobs = new ArrayList<>();
+        blobs.add(manifest);
+        blobs.addAll(references(manifest));
+        legacy = new JsonObject();
+        legacy.addProperty("Config", "blobs/sha256/" + blobs.get(1).hex());
+        legacy.add("RepoTags", new JsonArray());
+        legacy.getAsJsonArray("RepoTags").add(name);
+        layers = new JsonArray();
+        for (Descriptor layer : blobs.subList(2, blobs.size())) {
+            layers.add("blobs/sha256/" + layer.hex());
+        }
+        legacy.add("Layers", layers);
+        manifests = new JsonArray();
+        manifests.add(legacy);
+        now = System.currentTimeMillis();
+        tar = new TarOutputStream(out);
+        add(tar, "oci-layout", directory.join("oci-layout").readBytes(), now);
+        add(tar, "index.json", json(index).getBytes(StandardCharsets.UTF_8), now);
+        add(tar, "manifest.json", manifests.toString().getBytes(StandardCharsets.UTF_8), now);
+        tar.putNextEntry(new TarEntry(TarHeader.createHeader("blobs", 0, now, true, 0755)));
+        tar.putNextEntry(new TarEntry(TarHeader.createHeader("blobs/sha256", 0, now, true, 0755)));
+        for (Descriptor blob : blobs) {
+            tar.putNextEntry(new TarEntry(TarHeader.createHeader("blobs/sha256/" + blob.hex(), blob.size, now, false, 0644)));
+            try (InputStream src = blob(blob.digest).newInputStream()) {
+                copy(src, tar);
+            }
+        }
+        tar.close();
+    }
+
+    private static void add(TarOutputStream tar, String name, byte[] bytes, long now) throws IOException {
+        tar.putNextEntry(new TarEntry(TarHeader.createHeader(name, bytes.length, now, false, 0644)));
+        tar.write(bytes);
+    }
+
+    //--
+
+    public static void copy(InputStream src, OutputStream dest) throws IOException {
+        byte[] buffer;
+        int count;
+
+        buffer = new byte[BUFFER_SIZE];
+        while (true) {
+            count = src.read(buffer);
+            if (count == -1) {
+                break;
+            }
+            dest.write(buffer, 0, count);
+        }
+    }
+
+    private static String json(JsonObject obj) {
+        return new GsonBuilder().setPrettyPrinting().create().toJson(obj);
+    }
+
+    public static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String hex(byte[] bytes) {
+        StringBuilder result;
+
+        result = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            result.append(Character.forDigit((b >> 4) & 0xf, 16));
+            result.append(Character.forDigit(b & 0xf, 16));
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild.model;
+
+import org.apache.maven.plugin.MojoExecutionException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Wall-clock timing of the phases of a goal execution; phases may run concurrently */
+public class Phases {
+    public interface Step<T> {
+        T run() throws IOException, MojoExecutionException;
+    }
+
+    /** A finished phase, times in milliseconds since the epoch */
+    public static class Phase {
+        public final String name;
+        public final String thread;
+        public final long start;
+        public final long end;
+
+        public Phase(String name, String thread, long start, long end) {
+            this.name = name;
+            this.thread = thread;
+            this.start = start;
+            this.end = end;
+        }
+
+        public long duration() {
+            return end - start;
+        }
+
+        public String toString() {
+            return name + " " + duration() + " ms";
+        }
+    }
+
+    /** Phase running in the background */
+    public static class Pending<T> {
+        private final CompletableFuture<T> future;
+
+        private Pending(CompletableFuture<T> future) {
+            this.future = future;
+        }
+
+        public T get() throws IOException, MojoExecutionException {
+            Throwable cause;
+
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MojoExecutionException("interrupted", e);
+            } catch (ExecutionException e) {
+                cause = e.getCause();
+                if (cause instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) cause).getCause();
+                }
+                if (cause instanceof MojoExecutionException) {
+                    throw (MojoExecutionException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException(cause);
+            }
+        }
+    }
+
+    private static final AtomicInteger THREADS = new AtomicInteger();
+
+    /** threads are numbered to tell concurrent phases apart in timelines */
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread;
+
+        thread = new Thread(runnable, "dockerbuild-phase-" + THREADS.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final long started;
+    private final List<Phase> phases;
+
+    public Phases() {
+        this.started = System.currentTimeMillis();
+        this.phases = new ArrayList<>();
+    }
+
+    public long getStarted() {
+        return started;
+    }
+
+    public <T> T run(String name, Step<T> step) throws IOException, MojoExecutionException {
+        long start;
+
+        start = System.currentTimeMillis();
+        try {
+            return step.run();
+        } finally {
+            add(name, start, System.currentTimeMillis());
+        }
+    }
+
+    /** run step in the background */
+    public <T> Pending<T> start(String name, Step<T> step) {
+        return new Pending<>(CompletableFuture.supplyAsync(() -> {
+            try {
+                return run(name, step);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (MojoExecutionException e) {
+                throw new CompletionException(e);
+            }
+        }, EXECUTOR));
+    }
+
+    public void add(String name, long start, long end) {
+        synchronized (phases) {
+            phases.add(new Phase(name, Thread.currentThread().getName(), start, end));
+        }
+    }
+
+    public List<Phase> list() {
+        synchronized (phases) {
+            return new ArrayList<>(phases);
+        }
+    }
+
+    /** @return one line summary, phases ordered by start time */
+    public String summary() {
+        List<Phase> sorted;
+        StringBuilder result;
+
+        sorted = list();
+        sorted.sort((left, right) -> Long.compare(left.start, right.start));
+        result = new StringBuilder();
+        for (Phase phase : sorted) {
+            result.append(phase).append(", ");
+        }
+        result.append("total ").append(System.currentTimeMillis() - started).append(" ms");
+        return result.toString();
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild.model;
+
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.model.Plugin;
+import org.apache.maven.model.PluginExecution;
+import org.apache.maven.project.MavenProject;
+import org.codehaus.plexus.util.xml.Xpp3Dom;
+import org.eclipse.aether.RepositorySystem;
+import org.eclipse.aether.RepositorySystemSession;
+import org.eclipse.aether.SessionData;
+import org.eclipse.aether.artifact.Artifact;
+import org.eclipse.aether.artifact.DefaultArtifact;
+import org.eclipse.aether.repository.RemoteRepository;
+import org.eclipse.aether.resolution.ArtifactRequest;
+import org.eclipse.aether.resolution.VersionRangeRequest;
+import org.eclipse.aether.resolution.VersionRangeResult;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resolves the dockerbuilds of all reactor modules in parallel at session start, instead of one at a time in the middle of
+ * every module's build. Matters on agents with an empty local repository, where every resolution is a remote lookup plus a
+ * download. Results are kept in the session data; a failed prefetch is ignored, the build goal then resolves the dockerbuild
+ * itself and reports the error.
+ */
+public final class Prefetch {
+    /** key in the repository session data */
+    private static final String SESSION_KEY = "net.oneandone.maven.plugins.dockerbuild.prefetch";
+
+    private static final int THREADS = 8;
+
+    private static final String DEFAULT_LIBRARY = "com.dockerbuild.library";
+
+    /** goals and phases that run the build goal with the usual bindings */
+    private static final Set<String> BUILDING = new HashSet<>(Arrays.asList("package", "pre-integration-test", "integration-test",
+            "post-integration-test", "verify", "install", "deploy"));
+
+    private Prefetch() {
+    }
+
+    /** @return true if the session is likely to run the build goal; otherwise there's no point in prefetching */
+    public static boolean builds(List<String> goals) {
+        for (String goal : goals) {
+            if (BUILDING.contains(goal) || goal.startsWith("dockerbuild:build") || goal.startsWith("dockerbuild:watch")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return library:dockerbuild of all build and watch executions in the reactor, mapped to the repositories to resolve them from */
+    public static Map<String, List<RemoteRepository>> scan(MavenSession session, String pluginKey) {
+        Map<String, List<RemoteRepository>> result;
+        Plugin plugin;
+        List<Object> configurations;
+
+        result = new LinkedHashMap<>();
+        for (MavenProject project : session.getProjects()) {
+            plugin = "war".equals(project.getPackaging()) ? project.getPlugin(pluginKey) : null;
+            if (plugin == null) {
+                continue;
+            }
+            configurations = new ArrayList<>();
+            for (PluginExecution execution : plugin.getExecutions()) {
+                if (execution.getGoals().contains("build") || execution.getGoals().contains("watch")) {
+                    configurations.add(execution.getConfiguration());
+                }
+            }
+            if (configurations.isEmpty()) {
+                configurations.add(plugin.getConfiguration()); // e.g. dockerbuild:build on the command line
+            }
+            for (Object configuration : configurations) {
+                for (String dockerbuild : dockerbuilds((Xpp3Dom) configuration, session.getUserProperties(), project.getProperties())) {
+                    result.putIfAbsent(dockerbuild, project.getRemoteProjectRepositories());
+                }
+            }
+        }
+        return result;
+    }
+
+    /** @return library:dockerbuild of the execution and its variants; values with expressions that cannot be evaluated are skipped */
+    public static List<String> dockerbuilds(Xpp3Dom configuration, Properties user, Properties project) {
+        List<String> result;
+        String library;
+        Xpp3Dom variants;
+
+        result = new ArrayList<>();
+        library = value(configuration, "library", user.getProperty("dockerbuild.library", DEFAULT_LIBRARY), user, project);
+        if (library == null) {
+            return result;
+        }
+        add(result, library, value(configuration, "dockerbuild", user.getProperty("dockerbuild"), user, project));
+        variants = configuration == null ? null : configuration.getChild("variants");
+        if (variants != null) {
+            for (Xpp3Dom variant : variants.getChildren()) {
+                add(result, library, value(variant, "dockerbuild", null, user, project));
+            }
+        }
+        return result;
+    }
+
+    private static void add(List<String> result, String library, String dockerbuild) {
+        String key;
+
+        if (dockerbuild != null) {
+            key = library + ":" + dockerbuild;
+            if (!result.contains(key)) {
+                result.add(key);
+            }
+        }
+    }
+
+    /** @return null if not specified or not evaluable */
+    private static String value(Xpp3Dom configuration, String name, String dflt, Properties user, Properties project) {
+        Xpp3Dom child;
+        String str;
+        String property;
+
+        child = configuration == null ? null : configuration.getChild(name);
+        str = child == null || child.getValue() == null ? dflt : child.getValue().trim();
+        if (str == null || !str.contains("${")) {
+            return str;
+        }
+        if (!str.startsWith("${") || str.indexOf('}') != str.length() - 1) {
+            return null;
+        }
+        property = str.substring(2, str.length() - 1);
+        return user.getProperty(property, project.getProperty(property));
+    }
+
+    /** start resolving the specified dockerbuilds in the background */
+    public static void start(SessionData data, RepositorySystem system, RepositorySystemSession session,
+                             Map<String, List<RemoteRepository>> dockerbuilds) {
+        Map<String, Future<String[]>> futures;
+        AtomicInteger threads;
+        ExecutorService executor;
+
+        futures = futures(data);
+        threads = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(Math.min(THREADS, dockerbuilds.size()), runnable -> {
+            Thread thread;
+
+            thread = new Thread(runnable, "dockerbuild-prefetch-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (Map.Entry<String, List<RemoteRepository>> entry : dockerbuilds.entrySet()) {
+            futures.put(entry.getKey(), CompletableFuture.supplyAsync(() -> {
+                try {
+                    return resolve(system, session, entry.getValue(), entry.getKey());
+                } catch (Exception e) {
+                    throw new IllegalStateException(entry.getKey() + ": " + e.getMessage(), e);
+                }
+            }, executor));
+        }
+        executor.shutdown();
+    }
+
+    /** @return highest version and jar path */
+    private static String[] resolve(RepositorySystem system, RepositorySystemSession session, List<RemoteRepository> repositories,
+                                    String dockerbuild) throws Exception {
+        VersionRangeRequest range;
+        VersionRangeResult versions;
+        ArtifactRequest request;
+        Artifact artifact;
+
+        range = new VersionRangeRequest();
+        range.setArtifact(new DefaultArtifact(dockerbuild + ":[0,)"));
+        range.setRepositories(repositories);
+        versions = system.resolveVersionRange(session, range);
+        if (versions.getHighestVersion() == null) {
+            throw new IllegalStateException("no versions available");
+        }
+        request = new ArtifactRequest();
+        request.setArtifact(new DefaultArtifact(dockerbuild + ":" + versions.getHighestVersion()));
+        request.setRepositories(repositories);
+        artifact = system.resolveArtifact(session, request).getArtifact();
+        return new String[] { artifact.getVersion(), artifact.getFile().getAbsolutePath() };
+    }
+
+    /**
+     * Waits for the prefetch of a dockerbuild.
+     *
+     * @return latest version of the dockerbuild, with file; null if not prefetched or prefetch failed
+     */
+    public static Artifact lookup(SessionData data, String library, String dockerbuild) {
+        Future<String[]> future;
+        String[] result;
+
+        future = futures(data).get(library + ":" + dockerbuild);
+        if (future == null) {
+            return null;
+        }
+        try {
+            result = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+        return new DefaultArtifact(library + ":" + dockerbuild + ":" + result[0]).setFile(new File(result[1]));
+    }
+
+    /** record a dockerbuild resolved by a module, for other modules to reuse */
+    public static void put(SessionData data, String library, String dockerbuild, String version, String file) {
+        futures(data).put(library + ":" + dockerbuild, CompletableFuture.completedFuture(new String[] { version, file }));
+    }
+
+    private static Map<String, Future<String[]>> futures(SessionData data) {
+        return SessionValues.get(data, SESSION_KEY, ConcurrentHashMap::new);
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild.model;
+
+import com.github.dockerjava.api.DockerClient;
+import com.github.dockerjava.api.command.PullImageCmd;
+import com.github.dockerjava.api.command.PullImageResultCallback;
+import com.github.dockerjava.api.exception.NotFoundException;
+import com.github.dockerjava.api.model.AuthConfig;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.eclipse.aether.SessionData;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Pulls base images in the background while the context is prepared. Pulls are shared by all modules of the session:
+ * every image is pulled at most once per session, no matter how many modules build on it.
+ */
+public class Prepull {
+    public enum Policy {
+        /** pull even if the image is available locally */
+        ALWAYS,
+        /** pull if not available locally */
+        MISSING,
+        /** never pull, fail if not available locally */
+        NEVER;
+
+        public static Policy parse(String str) throws MojoExecutionException {
+            try {
+                return valueOf(str.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new MojoExecutionException("invalid pull policy: " + str + ", expected always, missing or never");
+            }
+        }
+    }
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(4, runnable -> {
+        Thread thread;
+
+        thread = new Thread(runnable, "dockerbuild-pull");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** key in the repository session data */
+    private static final String SESSION_KEY = "net.oneandone.maven.plugins.dockerbuild.pulls";
+
+    private static final Pattern VARIABLE = Pattern.compile("\\$\\{?(\\w+)");
+
+    /**
+     * @param args literal argument values, other arguments are considered unknown
+     * @return base images of all stages; images that depend on unknown arguments are skipped
+     */
+    public static List<String> baseImages(Dockerfile dockerfile, Map<String, String> args) {
+        Map<String, String> globals;
+        Set<String> stageNames;
+        List<String> result;
+        Matcher matcher;
+        boolean known;
+        String image;
+
+        globals = new LinkedHashMap<>();
+        for (BuildArgument arg : dockerfile.globalArguments().values()) {
+            if (args.containsKey(arg.name)) {
+                globals.put(arg.name, args.get(arg.name));
+            } else if (arg.dflt != null) {
+                globals.put(arg.name, Daemonless.subst(arg.dflt, globals));
+            }
+        }
+        stageNames = new HashSet<>();
+        result = new ArrayList<>();
+        for (Stage stage : dockerfile.stages) {
+            matcher = VARIABLE.matcher(stage.base);
+            known = true;
+            while (matcher.find()) {
+                known = known && globals.containsKey(matcher.group(1));
+            }
+            if (known) {
+                image = Daemonless.subst(stage.base, globals);
+                if (!image.equals("scratch") && !stageNames.contains(image) && !result.contains(image)) {
+                    result.add(image);
+                }
+            }
+            if (stage.name != null) {
+                stageNames.add(stage.name);
+            }
+        }
+        return result;
+    }
+
+    private final Log log;
+    private final DockerClient docker;
+    private final Credentials credentials;
+    private final Policy policy;
+
+    /** session-wide pulls, maps image name to pull in progress or done */
+    private final Map<String, CompletableFuture<Void>> shared;
+
+    /** pulls started or joined by this module */
+    private final Map<String, CompletableFuture<Void>> pulls;
+
+    /** @param data session to share pulls with; null to not share them */
+    public Prepull(Log log, DockerClient docker, Credentials credentials, Policy policy, SessionData data) {
+        this.log = log;
+        this.docker = docker;
+        this.credentials = credentials;
+        this.policy = policy;
+        this.shared = data == null ? new ConcurrentHashMap<>() : shared(data);
+        this.pulls = new LinkedHashMap<>();
+    }
+
+    private static Map<String, CompletableFuture<Void>> shared(SessionData data) {
+        return SessionValues.get(data, SESSION_KEY, ConcurrentHashMap::new);
+    }
+
+    public void start(List<String> images) {
+        for (String image : images) {
+            if (policy == Policy.NEVER) {
+                pulls.put(image, CompletableFuture.runAsync(() -> checkLocal(image), EXECUTOR));
+            } else {
+                pulls.put(image, shared.computeIfAbsent(image, key -> CompletableFuture.runAsync(() -> pull(key), EXECUTOR)));
+            }
+        }
+    }
+
+    /** wait for all pulls of this module; failed pulls are left to the daemon, except for policy never */
+    public void await() throws MojoExecutionException {
+        for (Map.Entry<String, CompletableFuture<Void>> entry : pulls.entrySet()) {
+            try {
+                entry.getValue().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MojoExecutionException("interrupted while pulling " + entry.getKey(), e);
+            } catch (ExecutionException e) {
+                if (policy == Policy.NEVER) {
+                    throw new MojoExecutionException(e.getCause().getMessage(), e.getCause());
+                }
+                // don't cache the failure, e.g. the module that started the pull might have closed its docker client
+                shared.remove(entry.getKey(), entry.getValue());
+                log.warn("pull " + entry.getKey() + " failed, leaving it to the daemon: " + e.getCause().getMessage());
+            }
+        }
+    }
+
+    private void checkLocal(String image) {
+        if (!isLocal(image)) {
+            throw new IllegalStateException("base image not available locally (pull policy never): " + image);
+        }
+    }
+
+    private void pull(String image) {
+        long started;
+        PullImageCmd cmd;
+        AuthConfig auth;
+        int idx;
+
+        if (policy == Policy.MISSING && isLocal(image)) {
+            log.debug("base image available locally: " + image);
+            return;
+        }
+        started = System.currentTimeMillis();
+        log.info("docker pull " + image);
+        idx = image.indexOf('@');
+        if (idx == -1) {
+            idx = image.lastIndexOf(':');
+            if (idx < image.lastIndexOf('/')) {
+                idx = -1;
+            }
+        }
+        cmd = idx == -1 ? docker.pullImageCmd(image).withTag("latest")
+                : docker.pullImageCmd(image.substring(0, idx)).withTag(image.substring(idx + 1));
+        try {
+            auth = credentials.authConfigOpt(Reference.parse(image).authKey());
+            if (auth != null) {
+                cmd.withAuthConfig(auth);
+            }
+            cmd.exec(new PullImageResultCallback()).awaitCompletion();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("pull interrupted: " + image));
+        }
+        log.info("pulled " + image + " (" + (System.currentTimeMillis() - started) + " ms)");
+    }
+
+    private boolean isLocal(String image) {
+        try {
+            docker.inspectImageCmd(image).exec();
+            return true;
+        } catch (NotFoundException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild.model;
+
+import com.github.dockerjava.api.DockerClient;
+import com.github.dockerjava.api.exception.ConflictException;
+import com.github.dockerjava.api.exception.NotFoundException;
+import com.github.dockerjava.api.model.Image;
+import com.github.dockerjava.api.model.PruneType;
+import com.github.dockerjava.transport.DockerHttpClient;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/** Removes old snapshot tags of a repository, dangling images and builder cache from the daemon */
+public class Pruner {
+    /** as generated by the %V placeholder for snapshots */
+    private static final Pattern TIMESTAMP = Pattern.compile("\\d{8}-\\d{6}-\\d{3}");
+
+    private static final Pattern AGE = Pattern.compile("(\\d+)\\s*([dhm]?)", Pattern.CASE_INSENSITIVE);
+
+    /** @return milliseconds for strings like 7d, 12h or 30m; plain numbers are days */
+    public static long parseAge(String str) {
+        Matcher matcher;
+        long result;
+
+        matcher = AGE.matcher(str.trim());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("invalid age: " + str);
+        }
+        result = Long.parseLong(matcher.group(1)) * 60 * 1000;
+        switch (matcher.group(2).toLowerCase(Locale.ROOT)) {
+            case "m":
+                return result;
+            case "h":
+                return result * 60;
+            default:
+                return result * 60 * 24;
+        }
+    }
+
+    /** @return snapshot build time encoded in the tag, -1 if it's not a snapshot tag */
+    public static long timestamp(String tag) {
+        Matcher matcher;
+        int idx;
+
+        idx = tag.lastIndexOf(':');
+        matcher = TIMESTAMP.matcher(idx > tag.lastIndexOf('/') ? tag.substring(idx + 1) : "");
+        if (!matcher.find()) {
+            return -1;
+        }
+        try {
+            return new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").parse(matcher.group()).getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param tags repository:tag names; non-snapshot tags are never selected
+     * @param current tag never selected
+     * @param keep number of newest snapshot tags to keep
+     * @param maxAge milliseconds, null for no limit
+     * @return snapshot tags beyond the newest keep tags or older than maxAge, newest first
+     */
+    public static List<String> select(List<String> tags, String current, int keep, Long maxAge, long now) {
+        List<String> snapshots;
+        List<String> result;
+        String tag;
+
+        snapshots = new ArrayList<>();
+        for (String t : tags) {
+            if (timestamp(t) != -1) {
+                snapshots.add(t);
+            }
+        }
+        snapshots.sort((left, right) -> Long.compare(timestamp(right), timestamp(left)));
+        result = new ArrayList<>();
+        for (int i = 0; i < snapshots.size(); i++) {
+            tag = snapshots.get(i);
+            if (!tag.equals(current) && (i >= keep || (maxAge != null && now - timestamp(tag) > maxAge))) {
+                result.add(tag);
+            }
+        }
+        return result;
+    }
+
+    //--
+
+    private final Log log;
+    private final DockerClient docker;
+    private final DockerHttpClient http;
+
+    public Pruner(Log log, DockerClient docker, DockerHttpClient http) {
+        this.log = log;
+        this.docker = docker;
+        this.http = http;
+    }
+
+    /** @return repository:tag names of the repository, e.g. registry.example.com/group/app */
+    public List<String> tags(String repository) {
+        List<String> result;
+        int idx;
+
+        result = new ArrayList<>();
+        for (Image image : docker.listImagesCmd().withImageNameFilter(repository).exec()) {
+            if (image.getRepoTags() != null) {
+                for (String tag : image.getRepoTags()) {
+                    idx = tag.lastIndexOf(':');
+                    if (idx > tag.lastIndexOf('/') && tag.substring(0, idx).equals(repository)) {
+                        result.add(tag);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /** @return number of tags removed; tags of images used by containers are skipped */
+    public int remove(List<String> tags) {
+        int result;
+
+        result = 0;
+        for (String tag : tags) {
+            log.info("docker rmi " + tag);
+            try {
+                docker.removeImageCmd(tag).exec();
+                result++;
+            } catch (ConflictException e) {
+                log.warn("cannot remove " + tag + ": " + e.getMessage());
+            } catch (NotFoundException e) {
+                // removed concurrently, e.g. by another module
+            }
+        }
+        return result;
+    }
+
+    /** @return bytes reclaimed */
+    public long dangling() {
+        Long result;
+
+        log.info("docker image prune");
+        result = docker.pruneCmd(PruneType.IMAGES).withDangling(true).exec().getSpaceReclaimed();
+        return result == null ? 0 : result;
+    }
+
+    /** @return bytes reclaimed */
+    public long builderCache(long keepStorage) throws IOException {
+        JsonElement reclaimed;
+
+        log.info("docker builder prune --keep-storage " + keepStorage);
+        reclaimed = call(DockerHttpClient.Request.Method.POST, "/build/prune?keep-storage=" + keepStorage).get("SpaceReclaimed");
+        return reclaimed == null || reclaimed.isJsonNull() ? 0 : reclaimed.getAsLong();
+    }
+
+    /** @return total size of all image layers on the daemon */
+    public long layersSize() throws IOException {
+        JsonElement size;
+
+        size = call(DockerHttpClient.Request.Method.GET, "/system/df").get("LayersSize");
+        return size == null || size.isJsonNull() ? 0 : size.getAsLong();
+    }
+
+    private JsonObject call(DockerHttpClient.Request.Method method, String path) throws IOException {
+        DockerHttpClient.Request request;
+        String body;
+
+        request = DockerHttpClient.Request.builder().method(method).path(path).build();
+        try (DockerHttpClient.Response response = http.execute(request)) {
+            body = new String(response.getBody().readAllBytes(), StandardCharsets.UTF_8);
+            if (response.getStatusCode() != 200) {
+                throw new IOException(method + " " + path + " failed: status " + response.getStatusCode() + ": " + body);
+            }
+        }
+        return JsonParser.parseString(body).getAsJsonObject();
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild.model;
+
+import com.github.dockerjava.api.async.ResultCallback;
+import com.github.dockerjava.api.model.PushResponseItem;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Receives the response stream of a push and counts layers by outcome. Errors reported in the stream are kept, so they can be
+ * classified for retry; docker-java's own callback ignores them on awaitCompletion.
+ */
+public class PushListener extends ResultCallback.Adapter<PushResponseItem> {
+    private final Log log;
+
+    /** maps layer id to last status */
+    private final Map<String, String> layers;
+
+    private volatile String error;
+
+    public PushListener(Log log) {
+        this.log = log;
+        this.layers = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public void onNext(PushResponseItem item) {
+        if (item.isErrorIndicated()) {
+            error = item.getErrorDetail() != null && item.getErrorDetail().getMessage() != null
+                    ? item.getErrorDetail().getMessage() : "push failed";
+            return;
+        }
+        if (item.getId() != null && item.getStatus() != null && item.getProgressDetail() == null) {
+            layers.put(item.getId(), item.getStatus());
+            log.debug(item.getId() + ": " + item.getStatus());
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        error = throwable.toString();
+        super.onError(throwable);
+    }
+
+    /** @throws IOException if the push failed */
+    public void check() throws IOException {
+        if (error != null) {
+            throw new IOException(error);
+        }
+    }
+
+    public int count(String statusPrefix) {
+        int result;
+
+        result = 0;
+        for (String status : layers.values()) {
+            if (status.startsWith(statusPrefix)) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    /** @return one line statistics */
+    public String stats() {
+        return count("Pushed") + " layer(s) pushed, " + count("Layer already exists") + " already present, " + count("Mounted from") + " mounted";
+    }
+}
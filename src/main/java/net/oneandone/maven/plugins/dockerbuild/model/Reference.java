@@ -0,0 +1,93 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild.model;
+
+/** Image reference, i.e. registry, repository and tag or digest */
+public class Reference {
+    public static final String DOCKER_HUB = "registry-1.docker.io";
+
+    /** key for Docker Hub in docker's config.json */
+    public static final String DOCKER_HUB_AUTH = "https://index.docker.io/v1/";
+
+    public static Reference parse(String str) {
+        String registry;
+        String rest;
+        String tag;
+        String digest;
+        int idx;
+
+        idx = str.indexOf('/');
+        if (idx != -1 && isRegistry(str.substring(0, idx))) {
+            registry = str.substring(0, idx);
+            rest = str.substring(idx + 1);
+        } else {
+            registry = DOCKER_HUB;
+            rest = str;
+        }
+        idx = rest.indexOf('@');
+        if (idx != -1) {
+            digest = rest.substring(idx + 1);
+            rest = rest.substring(0, idx);
+        } else {
+            digest = null;
+        }
+        idx = rest.lastIndexOf(':');
+        if (idx != -1) {
+            tag = rest.substring(idx + 1);
+            rest = rest.substring(0, idx);
+        } else {
+            tag = digest == null ? "latest" : null;
+        }
+        if (registry.equals(DOCKER_HUB) && rest.indexOf('/') == -1) {
+            rest = "library/" + rest;
+        }
+        return new Reference(registry, rest, tag, digest);
+    }
+
+    private static boolean isRegistry(String str) {
+        return str.indexOf('.') != -1 || str.indexOf(':') != -1 || str.equals("localhost");
+    }
+
+    public final String registry;
+    public final String repository;
+
+    /** null if digest is specified */
+    public final String tag;
+
+    /** may be null */
+    public final String digest;
+
+    public Reference(String registry, String repository, String tag, String digest) {
+        this.registry = registry;
+        this.repository = repository;
+        this.tag = tag;
+        this.digest = digest;
+    }
+
+    /** @return digest if specified, tag otherwise */
+    public String version() {
+        return digest != null ? digest : tag;
+    }
+
+    /** @return key used for this registry in docker's config.json */
+    public String authKey() {
+        return registry.equals(DOCKER_HUB) ? DOCKER_HUB_AUTH : registry;
+    }
+
+    public String toString() {
+        return registry + "/" + repository + (digest != null ? "@" + digest : ":" + tag);
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild.model;
+
+import com.github.dockerjava.api.model.AuthConfig;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import net.oneandone.sushi.fs.file.FileNode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/** Minimal client for the registry HTTP API V2, https://docs.docker.com/registry/spec/api/ */
+public class Registry {
+    public static final String DOCKER_MANIFEST = "application/vnd.docker.distribution.manifest.v2+json";
+    public static final String DOCKER_MANIFEST_LIST = "application/vnd.docker.distribution.manifest.list.v2+json";
+    private static final String ACCEPT = String.join(",", Descriptor.MANIFEST, Descriptor.INDEX, DOCKER_MANIFEST, DOCKER_MANIFEST_LIST);
+
+    /** Manifest or index as returned by the registry */
+    public static class Manifest {
+        public final String mediaType;
+        public final String digest;
+        public final byte[] bytes;
+
+        public Manifest(String mediaType, String digest, byte[] bytes) {
+            this.mediaType = mediaType;
+            this.digest = digest;
+            this.bytes = bytes;
+        }
+
+        public boolean isIndex() {
+            return Descriptor.INDEX.equals(mediaType) || DOCKER_MANIFEST_LIST.equals(mediaType);
+        }
+
+        public JsonObject json() {
+            return JsonParser.parseString(new String(bytes, StandardCharsets.UTF_8)).getAsJsonObject();
+        }
+    }
+
+    /** @param auth null for anonymous access */
+    public static Registry create(String registry, AuthConfig auth) {
+        String scheme;
+
+        scheme = registry.startsWith("localhost") || registry.startsWith("127.0.0.1") ? "http" : "https";
+        return new Registry(scheme + "://" + registry, auth);
+    }
+
+    private final HttpClient client;
+    private final String base;
+    private final AuthConfig auth;
+
+    /** maps scope to authorization header */
+    private final Map<String, String> authorizations;
+
+    public Registry(String base, AuthConfig auth) {
+        this.client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(30)).followRedirects(HttpClient.Redirect.NEVER).build();
+        this.base = base;
+        this.auth = auth;
+        this.authorizations = new ConcurrentHashMap<>();
+    }
+
+    public String getBase() {
+        return base;
+    }
+
+    //--
+
+    /** @return null if not found */
+    public Manifest manifestOpt(String repository, String reference) throws IOException {
+        HttpResponse<byte[]> response;
+
+        response = send(() -> request(repository, "/manifests/" + reference).header("Accept", ACCEPT).GET(), pull(repository),
+                HttpResponse.BodyHandlers.ofByteArray());
+        if (response.statusCode() == 404) {
+            return null;
+        }
+        check(response, 200, "get manifest " + repository + ":" + reference);
+        return new Manifest(response.headers().firstValue("Content-Type").orElse(Descriptor.MANIFEST),
+                "sha256:" + OciLayout.hex(OciLayout.sha256().digest(response.body())), response.body());
+    }
+
+    public Manifest manifest(String repository, String reference) throws IOException {
+        Manifest result;
+
+        result = manifestOpt(repository, reference);
+        if (result == null) {
+            throw new IOException("manifest not found: " + base + "/" + repository + ":" + reference);
+        }
+        return result;
+    }
+
+    public void putManifest(String repository, String reference, byte[] bytes, String mediaType) throws IOException {
+        HttpResponse<String> response;
+
+        response = send(() -> request(repository, "/manifests/" + reference).header("Content-Type", mediaType)
+                .PUT(HttpRequest.BodyPublishers.ofByteArray(bytes)), push(repository), HttpResponse.BodyHandlers.ofString());
+        check(response, 201, "put manifest " + repository + ":" + reference);
+    }
+
+    public boolean hasBlob(String repository, String digest) throws IOException {
+        HttpResponse<Void> response;
+
+        response = send(() -> request(repository, "/blobs/" + digest).method("HEAD", HttpRequest.BodyPublishers.noBody()), pull(repository),
+                HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() == 200 || response.statusCode() == 307) {
+            return true;
+        }
+        if (response.statusCode() == 404) {
+            return false;
+        }
+        throw new IOException("head blob " + repository + "@" + digest + ": unexpected status " + response.statusCode());
+    }
+
+    /** @return blob content; caller has to close the stream */
+    public InputStream blob(String repository, String digest) throws IOException {
+        HttpResponse<InputStream> response;
+        String location;
+
+        response = send(() -> request(repository, "/blobs/" + digest).GET(), pull(repository), HttpResponse.BodyHandlers.ofInputStream());
+        for (int i = 0; i < 5 && isRedirect(response.statusCode()); i++) {
+            response.body().close();
+            location = response.headers().firstValue("Location").orElseThrow(() -> new IOException("redirect without location"));
+            // don't send registry credentials to the storage backend
+            response = sendRaw(HttpRequest.newBuilder(URI.create(base).resolve(location)).GET().build(), HttpResponse.BodyHandlers.ofInputStream());
+        }
+        if (response.statusCode() != 200) {
+            response.body().close();
+            throw new IOException("get blob " + repository + "@" + digest + ": unexpected status " + response.statusCode());
+        }
+        return response.body();
+    }
+
+    /**
+     * Cross-repository blob mount.
+     * @return true if mounted, false if the blob has to be uploaded
+     */
+    public boolean mount(String repository, String digest, String from) throws IOException {
+        HttpResponse<String> response;
+
+        response = send(() -> request(repository, "/blobs/uploads/?mount=" + encode(digest) + "&from=" + encode(from))
+                .POST(HttpRequest.BodyPublishers.noBody()), push(repository) + " " + pull(from), HttpResponse.BodyHandlers.ofString());
+        return response.statusCode() == 201;
+    }
+
+    /** monolithic upload */
+    public void upload(String repository, Descriptor blob, FileNode file) throws IOException {
+        HttpResponse<String> response;
+        String location;
+        URI uri;
+
+        response = send(() -> request(repository, "/blobs/uploads/").POST(HttpRequest.BodyPublishers.noBody()), push(repository),
+                HttpResponse.BodyHandlers.ofString());
+        check(response, 202, "start upload " + repository);
+        location = response.headers().firstValue("Location").orElseThrow(() -> new IOException("upload without location"));
+        uri = withDigest(URI.create(base).resolve(location), blob.digest);
+        response = send(() -> HttpRequest.newBuilder(uri).header("Content-Type", "application/octet-stream")
+                .PUT(HttpRequest.BodyPublishers.fromPublisher(ofFile(file), blob.size)), push(repository), HttpResponse.BodyHandlers.ofString());
+        check(response, 201, "upload " + repository + "@" + blob.digest);
+    }
+
+    private static URI withDigest(URI location, String digest) {
+        return URI.create(location + (location.getQuery() == null ? "?" : "&") + "digest=" + encode(digest));
+    }
+
+    private static HttpRequest.BodyPublisher ofFile(FileNode file) {
+        return HttpRequest.BodyPublishers.ofInputStream(() -> {
+            try {
+                return file.newInputStream();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    //--
+
+    private HttpRequest.Builder request(String repository, String path) {
+        return HttpRequest.newBuilder(URI.create(base + "/v2/" + repository + path));
+    }
+
+    private static String pull(String repository) {
+        return "repository:" + repository + ":pull";
+    }
+
+    private static String push(String repository) {
+        return "repository:" + repository + ":pull,push";
+    }
+
+    /** sends the request, authenticates if challenged */
+    private <T> HttpResponse<T> send(Supplier<HttpRequest.Builder> builder, String scope, HttpResponse.BodyHandler<T> handler) throws IOException {
+        HttpRequest.Builder request;
+        String authorization;
+        HttpResponse<T> response;
+        String challenge;
+
+        request = builder.get();
+        authorization = authorizations.get(scope);
+        if (authorization != null) {
+            request.header("Authorization", authorization);
+        }
+        response = sendRaw(request.build(), handler);
+        if (response.statusCode() != 401) {
+            return response;
+        }
+        if (response.body() instanceof InputStream) {
+            ((InputStream) response.body()).close();
+        }
+        challenge = response.headers().firstValue("WWW-Authenticate").orElse("");
+        authorization = authorize(challenge, scope);
+        authorizations.put(scope, authorization);
+        request = builder.get();
+        request.header("Authorization", authorization);
+        return sendRaw(request.build(), handler);
+    }
+
+    private <T> HttpResponse<T> sendRaw(HttpRequest request, HttpResponse.BodyHandler<T> handler) throws IOException {
+        try {
+            return client.send(request, handler);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(request.method() + " " + request.uri() + " interrupted");
+        }
+    }
+
+    private static final Pattern PARAM = Pattern.compile("(\\w+)=\"([^\"]*)\"");
+
+    private String authorize(String challenge, String scope) throws IOException {
+        Map<String, String> params;
+        Matcher matcher;
+        StringBuilder uri;
+        HttpRequest.Builder request;
+        HttpResponse<String> response;
+        JsonObject json;
+        JsonElement token;
+
+        if (challenge.regionMatches(true, 0, "Basic", 0, 5)) {
+            if (auth == null) {
+                throw new IOException(base + ": authentication required, but no credentials configured");
+            }
+            return basic();
+        }
+        if (!challenge.regionMatches(true, 0, "Bearer", 0, 6)) {
+            throw new IOException(base + ": unsupported authentication challenge: " + challenge);
+        }
+        params = new LinkedHashMap<>();
+        matcher = PARAM.matcher(challenge);
+        while (matcher.find()) {
+            params.put(matcher.group(1), matcher.group(2));
+        }
+        if (!params.containsKey("realm")) {
+            throw new IOException(base + ": missing realm in challenge: " + challenge);
+        }
+        uri = new StringBuilder(params.get("realm"));
+        uri.append(uri.indexOf("?") == -1 ? '?' : '&');
+        if (params.containsKey("service")) {
+            uri.append("service=").append(encode(params.get("service"))).append('&');
+        }
+        for (String s : scope.split(" ")) {
+            uri.append("scope=").append(encode(s)).append('&');
+        }
+        request = HttpRequest.newBuilder(URI.create(uri.substring(0, uri.length() - 1))).GET();
+        if (auth != null) {
+            request.header("Authorization", basic());
+        }
+        response = sendRaw(request.build(), HttpResponse.BodyHandlers.ofString());
+        check(response, 200, "get token");
+        json = JsonParser.parseString(response.body()).getAsJsonObject();
+        token = json.has("token") ? json.get("token") : json.get("access_token");
+        if (token == null) {
+            throw new IOException(base + ": token response without token");
+        }
+        return "Bearer " + token.getAsString();
+    }
+
+    private String basic() {
+        return "Basic " + Base64.getEncoder().encodeToString((auth.getUsername() + ":" + auth.getPassword()).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void check(HttpResponse<?> response, int expected, String what) throws IOException {
+        if (response.statusCode() != expected) {
+            throw new IOException(base + ": " + what + ": unexpected status " + response.statusCode()
+                    + (response.body() instanceof String ? ": " + response.body() : ""));
+        }
+    }
+
+    private static boolean isRedirect(int status) {
+        return status == 301 || status == 302 || status == 303 || status == 307 || status == 308;
+    }
+
+    private static String encode(String str) {
+        return URLEncoder.encode(str, StandardCharsets.UTF_8);
+    }
+}
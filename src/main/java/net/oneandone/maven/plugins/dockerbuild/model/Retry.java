@@ -0,0 +1,99 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild.model;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/** Retries with exponential backoff and jitter; only errors classified as transient are retried */
+public class Retry {
+    public interface Attempt<T> {
+        /** @param attempt starting with 1 */
+        T run(int attempt) throws IOException, MojoExecutionException;
+    }
+
+    private static final long MAX_DELAY = 60_000;
+
+    /**
+     * checked first: retrying won't help. Registries report some 5xx errors with code UNKNOWN, so only the unknown codes
+     * of the registry API are fatal.
+     */
+    private static final Pattern FATAL = Pattern.compile(
+            "unauthorized|denied|forbidden|authentication required|does not exist|not found|(manifest|blob|name)[_ ]unknown|invalid|unsupported",
+            Pattern.CASE_INSENSITIVE);
+
+    /** status codes count only as HTTP status or as code of an error JSON - not any number in the message, e.g. a size or a port */
+    private static final Pattern TRANSIENT = Pattern.compile(
+            "(status( code)?\\W*|HTTP/\\d(\\.\\d)? |\"code\"\\s*:\\s*)(5\\d\\d|408|429)\\b"
+            + "|timeout|timed out|reset|broken pipe|EOF|refused|unavailable|too ?many ?requests|temporar|i/o|ConnectException"
+            + "|connection ?closed|premature end",
+            Pattern.CASE_INSENSITIVE);
+
+    /** @param message error message of an exception or the push response stream */
+    public static boolean isTransient(String message) {
+        return message != null && !FATAL.matcher(message).find() && TRANSIENT.matcher(message).find();
+    }
+
+    private final Log log;
+    private final int retries;
+    private final long delay;
+    private final Random random;
+
+    /**
+     * @param retries 0 to not retry
+     * @param delay milliseconds before the first retry, doubled for every further retry
+     */
+    public Retry(Log log, int retries, long delay, Random random) {
+        this.log = log;
+        this.retries = retries;
+        this.delay = delay;
+        this.random = random;
+    }
+
+    /** @return milliseconds to wait before the specified retry: exponential, capped, with random jitter between half and full delay */
+    public long delay(int retry) {
+        long result;
+
+        result = Math.min(MAX_DELAY, delay << Math.min(retry - 1, 20));
+        return result / 2 + (long) (random.nextDouble() * (result - result / 2));
+    }
+
+    public <T> T run(String name, Attempt<T> attempt) throws IOException, MojoExecutionException {
+        long wait;
+
+        for (int i = 1; true; i++) {
+            try {
+                return attempt.run(i);
+            } catch (IOException e) {
+                if (i > retries || !isTransient(e.toString())) {
+                    throw e;
+                }
+                wait = delay(i);
+                log.warn(name + ": attempt " + i + "/" + (retries + 1) + " failed: " + e.getMessage() + "; retrying in " + wait + " ms");
+            }
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MojoExecutionException(name + ": interrupted", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild.model;
+
+import org.eclipse.aether.SessionData;
+
+import java.util.function.Supplier;
+
+/**
+ * Values shared by all modules of a Maven session, kept in the repository session data. Values have to be JDK types: modules
+ * may load the plugin in different class realms, so a plugin class stored by one module is a different class for another.
+ */
+public final class SessionValues {
+    private SessionValues() {
+    }
+
+    /** @return the value stored under key; created if absent, concurrent callers get the same value */
+    @SuppressWarnings("unchecked")
+    public static <T> T get(SessionData data, String key, Supplier<T> create) {
+        Object existing;
+
+        existing = data.get(key);
+        if (existing == null) {
+            data.set(key, null, create.get()); // compare-and-set, a concurrent caller might have won
+            existing = data.get(key);
+        }
+        return (T) existing;
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild.model;
+
+import net.oneandone.sushi.fs.file.FileNode;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Context paths referenced by the COPY and ADD instructions and the RUN bind mounts of the stages being built. Analysis is static
+ * and conservative: whenever it's not certain what an instruction reads, the result is "everything". ONBUILD triggers of base
+ * images are not visible here, callers have to check them.
+ */
+public class Sources {
+    /**
+     * @param directory context directory
+     * @param actuals evaluated build arguments
+     */
+    public static Sources analyze(Dockerfile dockerfile, FileNode directory, Map<String, String> actuals) throws IOException {
+        Set<String> env;
+        TreeSet<String> paths;
+        List<String> all;
+        String resolved;
+        Instruction trigger;
+
+        all = null;
+        paths = new TreeSet<>();
+        paths.add("Dockerfile");
+        paths.add(".dockerignore");
+        for (Stage stage : dockerfile.stages) {
+            trigger = onBuild(dockerfile, stage.base);
+            if (trigger != null) {
+                return uncertain(trigger, "ONBUILD trigger runs in stage " + stage);
+            }
+            env = new HashSet<>();
+            for (Instruction instruction : stage.instructions) {
+                if (instruction.is("ENV")) {
+                    env.addAll(envNames(instruction));
+                }
+            }
+            for (Instruction instruction : stage.instructions) {
+                if (!instruction.is("RUN")) {
+                    continue;
+                }
+                for (String source : bindSources(instruction)) {
+                    resolved = substitute(source, dockerfile.scope(stage, instruction), actuals, env);
+                    if (resolved == null) {
+                        return uncertain(instruction, "cannot resolve variables in " + source);
+                    }
+                    resolved = normalize(resolved);
+                    if (resolved == null) {
+                        return uncertain(instruction, "path outside context: " + source);
+                    }
+                    if (resolved.isEmpty()) {
+                        return uncertain(instruction, "mounts the whole context");
+                    }
+                    paths.add(resolved);
+                }
+            }
+            for (Instruction instruction : stage.contextCopies()) {
+                if (instruction.arguments.contains("<<")) {
+                    return uncertain(instruction, "here-document");
+                }
+                if (instruction.sources().isEmpty()) {
+                    return uncertain(instruction, "no sources");
+                }
+                for (String source : instruction.sources()) {
+                    if (instruction.is("ADD") && isRemote(source)) {
+                        continue;
+                    }
+                    resolved = substitute(source, dockerfile.scope(stage, instruction), actuals, env);
+                    if (resolved == null) {
+                        return uncertain(instruction, "cannot resolve variables in " + source);
+                    }
+                    resolved = normalize(resolved);
+                    if (resolved == null) {
+                        return uncertain(instruction, "path outside context: " + source);
+                    }
+                    if (resolved.isEmpty()) {
+                        return uncertain(instruction, "copies the whole context");
+                    }
+                    if (isPattern(resolved)) {
+                        if (resolved.indexOf('\\') != -1) {
+                            return uncertain(instruction, "escaped wildcard: " + source);
+                        }
+                        if (all == null) {
+                            all = list(directory);
+                        }
+                        if (!glob(resolved, all, paths)) {
+                            return uncertain(instruction, "wildcard without matches: " + source);
+                        }
+                    } else {
+                        paths.add(resolved);
+                    }
+                }
+            }
+        }
+        return new Sources(new ArrayList<>(paths), null);
+    }
+
+    /**
+     * ONBUILD instructions of a stage register triggers only; they run in stages based on it.
+     *
+     * @return first ONBUILD instruction of the stage referenced by base; null if none or if base is an image
+     */
+    private static Instruction onBuild(Dockerfile dockerfile, String base) {
+        for (Stage stage : dockerfile.stages) {
+            if (stage.matches(base)) {
+                for (Instruction instruction : stage.instructions) {
+                    if (instruction.is("ONBUILD")) {
+                        return instruction;
+                    }
+                }
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /** @return context paths of the bind mounts of a RUN instruction; mounts from other stages or images are skipped */
+    static List<String> bindSources(Instruction run) {
+        List<String> result;
+        String type;
+        String from;
+        String source;
+        int idx;
+
+        result = new ArrayList<>();
+        for (String flag : run.flags()) {
+            if (!flag.startsWith("--mount=")) {
+                continue;
+            }
+            type = "bind";
+            from = null;
+            source = "";
+            for (String option : flag.substring("--mount=".length()).split(",")) {
+                idx = option.indexOf('=');
+                if (idx == -1) {
+                    continue;
+                }
+                switch (option.substring(0, idx)) {
+                    case "type":
+                        type = option.substring(idx + 1);
+                        break;
+                    case "from":
+                        from = option.substring(idx + 1);
+                        break;
+                    case "source":
+                    case "src":
+                        source = option.substring(idx + 1);
+                        break;
+                    default:
+                        break;
+                }
+            }
+            if (type.equals("bind") && from == null) {
+                result.add(source);
+            }
+        }
+        return result;
+    }
+
+    private static Sources uncertain(Instruction instruction, String reason) {
+        return new Sources(null, "line " + instruction.line + ": " + reason);
+    }
+
+    private static boolean isRemote(String source) {
+        return source.startsWith("http://") || source.startsWith("https://") || source.startsWith("git@");
+    }
+
+    static boolean isPattern(String path) {
+        return path.indexOf('*') != -1 || path.indexOf('?') != -1 || path.indexOf('[') != -1;
+    }
+
+    private static final Pattern VARIABLE = Pattern.compile("\\$(?:\\{([^}]*)\\}|([a-zA-Z_][a-zA-Z0-9_]*))");
+
+    /** @return null if not resolvable with certainty */
+    static String substitute(String str, Map<String, BuildArgument> formals, Map<String, String> actuals, Set<String> env) {
+        Matcher matcher;
+        StringBuffer result;
+        String name;
+        String value;
+        BuildArgument formal;
+
+        matcher = VARIABLE.matcher(str);
+        result = new StringBuffer();
+        while (matcher.find()) {
+            name = matcher.group(1) != null ? matcher.group(1) : matcher.group(2);
+            if (env.contains(name) || !formals.containsKey(name)) {
+                return null; // includes ${name:-default} modifiers
+            }
+            value = actuals.get(name);
+            if (value == null) {
+                formal = formals.get(name);
+                value = formal.dflt;
+                if (value == null) {
+                    return null;
+                }
+            }
+            matcher.appendReplacement(result, Matcher.quoteReplacement(value));
+        }
+        matcher.appendTail(result);
+        return result.toString();
+    }
+
+    /** @return relative path without trailing slash, empty string for the context root, null if outside the context */
+    static String normalize(String path) {
+        List<String> result;
+
+        result = new ArrayList<>();
+        for (String segment : path.split("/")) {
+            if (segment.isEmpty() || segment.equals(".")) {
+                continue;
+            }
+            if (segment.equals("..")) {
+                if (result.isEmpty()) {
+                    return null;
+                }
+                result.remove(result.size() - 1);
+            } else {
+                result.add(segment);
+            }
+        }
+        return String.join("/", result);
+    }
+
+    static Set<String> envNames(Instruction env) {
+        Set<String> result;
+        List<String> words;
+        int idx;
+
+        result = new HashSet<>();
+        words = env.words();
+        if (!words.isEmpty() && words.get(0).indexOf('=') == -1) {
+            result.add(words.get(0)); // legacy form ENV name value
+        } else {
+            for (String word : words) {
+                idx = word.indexOf('=');
+                if (idx > 0) {
+                    result.add(word.substring(0, idx));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static List<String> list(FileNode directory) throws IOException {
+        List<String> result;
+
+        result = new ArrayList<>();
+        for (FileNode node : directory.find("**/*")) {
+            result.add(node.getRelative(directory));
+        }
+        return result;
+    }
+
+    private static boolean glob(String pattern, List<String> all, Set<String> dest) {
+        PathMatcher matcher;
+        boolean found;
+
+        matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        found = false;
+        for (String path : all) {
+            if (matcher.matches(Paths.get(path))) {
+                dest.add(path);
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    //--
+
+    /** null if unknown */
+    public final List<String> paths;
+
+    /** why paths is null */
+    public final String uncertain;
+
+    public Sources(List<String> paths, String uncertain) {
+        this.paths = paths;
+        this.uncertain = uncertain;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild.model;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/** Build stage, i.e. a FROM instruction and all instructions up to the next FROM */
+public class Stage {
+    public static Stage create(int index, Instruction from) throws IOException {
+        List<String> words;
+        String name;
+
+        words = from.words();
+        if (words.size() == 1) {
+            name = null;
+        } else if (words.size() == 3 && words.get(1).equalsIgnoreCase("AS")) {
+            name = words.get(2);
+        } else {
+            throw new IOException("line " + from.line + ": invalid FROM instruction: " + from.arguments);
+        }
+        return new Stage(index, from, words.get(0), name);
+    }
+
+    public final int index;
+    public final Instruction from;
+
+    /** image or stage this stage is based on; might contain ARG references */
+    public final String base;
+
+    /** null if not named */
+    public final String name;
+
+    /** instructions following FROM */
+    public final List<Instruction> instructions;
+
+    public Stage(int index, Instruction from, String base, String name) {
+        this.index = index;
+        this.from = from;
+        this.base = base;
+        this.name = name;
+        this.instructions = new ArrayList<>();
+    }
+
+    public boolean matches(String nameOrIndex) {
+        return nameOrIndex.equalsIgnoreCase(name) || nameOrIndex.equals(Integer.toString(index));
+    }
+
+    /** ARGs declared in this stage; scan order is preserved */
+    public Map<String, BuildArgument> arguments() {
+        return Dockerfile.arguments(instructions);
+    }
+
+    /** COPY and ADD instructions reading from the build context, i.e. without --from */
+    public List<Instruction> contextCopies() {
+        List<Instruction> result;
+
+        result = new ArrayList<>();
+        for (Instruction instruction : instructions) {
+            if ((instruction.is("COPY") || instruction.is("ADD")) && instruction.flag("from") == null) {
+                result.add(instruction);
+            }
+        }
+        return result;
+    }
+
+    /** stage names, stage indexes or image names this stage reads from, including the base */
+    public List<String> references() {
+        List<String> result;
+        String source;
+
+        result = new ArrayList<>();
+        result.add(base);
+        for (Instruction instruction : instructions) {
+            if (instruction.is("COPY")) {
+                source = instruction.flag("from");
+                if (source != null) {
+                    result.add(source);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** @return name or index */
+    public String toString() {
+        return name != null ? name : Integer.toString(index);
+    }
+}
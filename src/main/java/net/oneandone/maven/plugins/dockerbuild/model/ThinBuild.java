@@ -0,0 +1,338 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild.model;
+
+import com.github.dockerjava.api.DockerClient;
+import com.github.dockerjava.api.exception.NotFoundException;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.kamranzafar.jtar.TarEntry;
+import org.kamranzafar.jtar.TarHeader;
+import org.kamranzafar.jtar.TarInputStream;
+import org.kamranzafar.jtar.TarOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Rebuild on top of the previous image when only files copied by the last instructions of the Dockerfile changed, typically
+ * the war: the thin Dockerfile is "FROM previous image" plus a COPY of each changed file to the path the original COPY wrote.
+ * Only the changed files are sent to the daemon and nothing is replayed, so the build time depends on the size of these files only.
+ * The resulting image has the same content as a full build but one more layer, shadowing the old file.
+ */
+public class ThinBuild {
+    /** instructions that may follow the copy of a changed file: they don't touch the file system */
+    private static final Set<String> METADATA = new HashSet<>(Arrays.asList(
+            "ARG", "ENV", "LABEL", "EXPOSE", "USER", "WORKDIR", "ENTRYPOINT", "CMD", "STOPSIGNAL", "MAINTAINER", "HEALTHCHECK",
+            "VOLUME", "SHELL"));
+
+    /** A changed file and the image path it's copied to */
+    public static class Copy {
+        public final String source;
+        public final String destination;
+
+        /** --chown and --chmod of the original instruction */
+        public final List<String> flags;
+
+        public Copy(String source, String destination, List<String> flags) {
+            this.source = source;
+            this.destination = destination;
+            this.flags = flags;
+        }
+
+        public String toString() {
+            StringBuilder result;
+
+            result = new StringBuilder("COPY");
+            for (String flag : flags) {
+                result.append(' ').append(flag);
+            }
+            return result.append(' ').append(source).append(' ').append(destination).toString();
+        }
+    }
+
+    /**
+     * @param previous last full build, null if none
+     * @param files current context files as returned by BuildCache.fileDigests
+     * @param baseImages current base image ids
+     */
+    public static ThinBuild plan(BuildRecord previous, String dockerbuild, Map<String, String> actuals, Map<String, String> files,
+                                 Map<String, String> baseImages, Dockerfile dockerfile) {
+        Set<String> changed;
+        Map<String, BuildArgument> formals;
+        Stage last;
+        List<Copy> copies;
+        Set<String> env;
+        Set<String> copied;
+        String source;
+        String destination;
+
+        if (previous == null || previous.image == null) {
+            return impossible("no previous build");
+        }
+        if (!dockerbuild.equals(previous.dockerbuild)) {
+            return impossible("dockerbuild changed");
+        }
+        if (!actuals.equals(previous.arguments)) {
+            return impossible("build arguments changed");
+        }
+        if (!baseImages.equals(previous.baseImages)) {
+            return impossible("base image changed");
+        }
+        if (!files.keySet().equals(previous.files.keySet())) {
+            return impossible("context files added or removed");
+        }
+        changed = new TreeSet<>();
+        for (Map.Entry<String, String> entry : files.entrySet()) {
+            if (!entry.getValue().equals(previous.files.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        if (changed.isEmpty()) {
+            return impossible("no context file changed");
+        }
+        if (changed.contains("Dockerfile") || changed.contains(".dockerignore")) {
+            return impossible("Dockerfile changed");
+        }
+        last = dockerfile.stages.get(dockerfile.stages.size() - 1);
+        for (Stage stage : dockerfile.stages) {
+            if (stage != last) {
+                for (Instruction instruction : stage.contextCopies()) {
+                    formals = dockerfile.scope(stage, instruction);
+                    for (String str : instruction.sources()) {
+                        source = resolve(str, formals, actuals, new HashSet<>());
+                        if (source == null || touches(source, changed)) {
+                            return impossible("line " + instruction.line + ": stage " + stage + " copies changed files");
+                        }
+                    }
+                }
+            }
+        }
+        copies = new ArrayList<>();
+        copied = new HashSet<>();
+        env = new HashSet<>();
+        for (Instruction instruction : last.instructions) {
+            if (instruction.is("ONBUILD")) {
+                return impossible("line " + instruction.line + ": ONBUILD");
+            }
+            if (instruction.is("ENV")) {
+                env.addAll(Sources.envNames(instruction));
+            }
+            if ((instruction.is("COPY") || instruction.is("ADD")) && instruction.flag("from") == null) {
+                if (instruction.arguments.contains("<<")) {
+                    return impossible("line " + instruction.line + ": here-document");
+                }
+                formals = dockerfile.scope(last, instruction);
+                destination = Sources.substitute(instruction.destination(), formals, actuals, env);
+                if (destination == null || !destination.startsWith("/")) {
+                    return impossible("line " + instruction.line + ": cannot resolve destination " + instruction.destination());
+                }
+                for (String str : instruction.sources()) {
+                    source = resolve(str, formals, actuals, env);
+                    if (source == null) {
+                        return impossible("line " + instruction.line + ": cannot resolve " + str);
+                    }
+                    if (changed.contains(source)) {
+                        if (!instruction.is("COPY") || instruction.sources().size() != 1 || !flagsSupported(instruction)) {
+                            return impossible("line " + instruction.line + ": changed file " + source + " not copied by a plain COPY");
+                        }
+                        copies.add(new Copy(source, destination.endsWith("/") ? destination + name(source) : destination,
+                                instruction.flags()));
+                        copied.add(source);
+                    } else if (touches(source, changed)) {
+                        return impossible("line " + instruction.line + ": copies a directory or pattern with changed files");
+                    } else if (overwrites(destination, copies)) {
+                        return impossible("line " + instruction.line + ": overwrites a copied file");
+                    }
+                }
+            } else if (!copies.isEmpty() && !METADATA.contains(instruction.keyword)) {
+                return impossible("line " + instruction.line + ": " + instruction.keyword + " after copying a changed file");
+            }
+        }
+        if (!copied.containsAll(changed)) {
+            changed.removeAll(copied);
+            return impossible("changed files not copied by the last stage: " + changed);
+        }
+        return new ThinBuild(previous.image, copies, null);
+    }
+
+    private static ThinBuild impossible(String reason) {
+        return new ThinBuild(null, null, reason);
+    }
+
+    /** @return normalized context path, null if not resolvable with certainty */
+    private static String resolve(String source, Map<String, BuildArgument> formals, Map<String, String> actuals, Set<String> env) {
+        String result;
+
+        result = Sources.substitute(source, formals, actuals, env);
+        result = result == null ? null : Sources.normalize(result);
+        return result == null || Sources.isPattern(result) ? null : result;
+    }
+
+    /** @return true if the source is a directory containing changed files */
+    private static boolean touches(String source, Set<String> changed) {
+        for (String path : changed) {
+            if (source.isEmpty() || path.equals(source) || path.startsWith(source + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean overwrites(String destination, List<Copy> copies) {
+        for (Copy copy : copies) {
+            if (copy.destination.equals(destination) || copy.destination.startsWith(destination.endsWith("/") ? destination : destination + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean flagsSupported(Instruction instruction) {
+        for (String flag : instruction.flags()) {
+            if (!flag.startsWith("--chown=") && !flag.startsWith("--chmod=")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String name(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    //--
+
+    /** id of the image to build on; null if a thin build is not possible */
+    public final String base;
+
+    /** null if a thin build is not possible */
+    public final List<Copy> copies;
+
+    /** why a thin build is not possible */
+    public final String impossible;
+
+    public ThinBuild(String base, List<Copy> copies, String impossible) {
+        this.base = base;
+        this.copies = copies;
+        this.impossible = impossible;
+    }
+
+    public boolean isPossible() {
+        return copies != null;
+    }
+
+    public String dockerfile() {
+        StringBuilder result;
+
+        result = new StringBuilder("FROM ").append(base.startsWith("sha256:") ? base.substring(7) : base).append('\n');
+        for (Copy copy : copies) {
+            result.append(copy).append('\n');
+        }
+        return result.toString();
+    }
+
+    /**
+     * Make sure the previous image contains the files the original COPY instructions produced, i.e. nothing else modified them.
+     *
+     * @param previousFiles context file digests of the previous build
+     * @return null if ok, otherwise the first mismatch
+     */
+    public String verify(DockerClient docker, Map<String, String> previousFiles) throws IOException {
+        String container;
+        String digest;
+
+        // the container is never started, the command just satisfies images without entrypoint or cmd
+        container = docker.createContainerCmd(base).withCmd("true").exec().getId();
+        try {
+            for (Copy copy : copies) {
+                try (InputStream src = docker.copyArchiveFromContainerCmd(container, copy.destination).exec()) {
+                    digest = digest(src);
+                    src.readAllBytes(); // tar trailer, for the connection to be reused
+                } catch (NotFoundException e) {
+                    return copy.destination + " not found in the previous image";
+                }
+                if (!previousFiles.get(copy.source).equals(digest)) {
+                    return copy.destination + " in the previous image does not match what " + copy + " produced";
+                }
+            }
+            return null;
+        } finally {
+            docker.removeContainerCmd(container).withForce(true).exec();
+        }
+    }
+
+    /** @return digest of the single file in the archive, null if the archive doesn't contain a file */
+    private static String digest(InputStream archive) throws IOException {
+        TarInputStream tar;
+        TarEntry entry;
+        MessageDigest digest;
+
+        tar = new TarInputStream(archive);
+        entry = tar.getNextEntry();
+        if (entry == null || entry.isDirectory()) {
+            return null;
+        }
+        digest = OciLayout.sha256();
+        OciLayout.copy(tar, new OutputStream() {
+            @Override
+            public void write(int b) {
+                digest.update((byte) b);
+            }
+
+            @Override
+            public void write(byte[] bytes, int ofs, int len) {
+                digest.update(bytes, ofs, len);
+            }
+        });
+        return OciLayout.hex(digest.digest());
+    }
+
+    /** tar the thin Dockerfile and the changed files into the specified stream; closes dest */
+    public void tar(FileNode directory, OutputStream dest) throws IOException {
+        TarOutputStream tar;
+        byte[] bytes;
+        long now;
+        Set<String> done;
+        FileNode file;
+
+        tar = new TarOutputStream(dest);
+        now = System.currentTimeMillis();
+        bytes = dockerfile().getBytes(StandardCharsets.UTF_8);
+        tar.putNextEntry(new TarEntry(TarHeader.createHeader("Dockerfile", bytes.length, now, false, 0700)));
+        tar.write(bytes);
+        done = new HashSet<>();
+        for (Copy copy : copies) {
+            if (done.add(copy.source)) {
+                file = directory.join(copy.source);
+                tar.putNextEntry(new TarEntry(TarHeader.createHeader(copy.source, file.size(), now, false, 0700)));
+                try (InputStream src = file.newInputStream()) {
+                    OciLayout.copy(src, tar);
+                }
+            }
+        }
+        tar.close();
+    }
+}
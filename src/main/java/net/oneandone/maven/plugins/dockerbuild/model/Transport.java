@@ -0,0 +1,382 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild.model;
+
+import com.github.dockerjava.core.DockerClientConfig;
+import com.github.dockerjava.transport.DockerHttpClient;
+import com.github.dockerjava.zerodep.ZerodepDockerHttpClient;
+import com.github.dockerjava.zerodep.shaded.org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import com.github.dockerjava.zerodep.shaded.org.apache.hc.core5.http.io.SocketConfig;
+import com.github.dockerjava.zerodep.shaded.org.apache.hc.core5.util.Timeout;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.eclipse.aether.SessionData;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Http transport to the Docker daemon. Limits the number of concurrent requests to the connection pool size and counts how long
+ * requests wait for a connection. The limit is shared by all transports of a session that talk to the same daemon, so parallel
+ * reactor modules queue for one daemon instead of each opening maxConnections.
+ */
+public class Transport implements DockerHttpClient {
+    public static final String ZERODEP = "zerodep";
+    public static final String JDK = "jdk";
+
+    /** key in the repository session data */
+    private static final String LIMITS_KEY = "net.oneandone.maven.plugins.dockerbuild.connections";
+
+    /**
+     * @param kind zerodep supports all daemon hosts; jdk uses java.net.http and supports tcp hosts only
+     * @param connectTimeout seconds; jdk only, zerodep uses its built-in timeout
+     * @param responseTimeout seconds, 0 for no limit; zerodep applies it to every socket read, jdk to the response headers
+     * @param data session to share the connection limit with, null for a limit of this transport only
+     */
+    public static Transport create(Log log, DockerClientConfig config, String kind, int maxConnections, int connectTimeout,
+                                   int responseTimeout, SessionData data) throws MojoExecutionException {
+        ZerodepDockerHttpClient zerodep;
+        PoolingHttpClientConnectionManager pool;
+        Semaphore connections;
+
+        if (maxConnections < 2) {
+            // the build output stream occupies one connection while other calls (e.g. cancelling) need another
+            throw new MojoExecutionException("maxConnections too small: " + maxConnections);
+        }
+        connections = data == null ? new Semaphore(maxConnections, true)
+                : limits(data).computeIfAbsent(config.getDockerHost().toString(), host -> new Semaphore(maxConnections, true));
+        switch (kind.toLowerCase(Locale.ROOT)) {
+            case ZERODEP:
+                zerodep = new ZerodepDockerHttpClient.Builder().dockerHost(config.getDockerHost()).sslConfig(config.getSSLConfig()).build();
+                pool = pool(zerodep);
+                if (pool == null) {
+                    log.warn("cannot configure connection pool, using zerodep defaults");
+                } else {
+                    pool.setMaxTotal(maxConnections);
+                    pool.setDefaultMaxPerRoute(maxConnections);
+                    pool.setDefaultSocketConfig(SocketConfig.custom().setSoTimeout(Timeout.ofSeconds(responseTimeout)).build());
+                }
+                return new Transport(ZERODEP, zerodep, pool, maxConnections, connections);
+            case JDK:
+                return new Transport(JDK, Jdk.create(config, connectTimeout, responseTimeout), null, maxConnections, connections);
+            default:
+                throw new MojoExecutionException("unknown transport: " + kind + ", expected " + ZERODEP + " or " + JDK);
+        }
+    }
+
+    /** maps docker hosts to the connection limit shared by the session; the first module to connect determines its size */
+    private static Map<String, Semaphore> limits(SessionData data) {
+        return SessionValues.get(data, LIMITS_KEY, ConcurrentHashMap::new);
+    }
+
+    /** @return null if zerodep internals don't match what we expect */
+    private static PoolingHttpClientConnectionManager pool(ZerodepDockerHttpClient zerodep) {
+        Object client;
+        Object manager;
+
+        try {
+            client = field(zerodep.getClass().getSuperclass(), "httpClient", zerodep);
+            manager = field(client.getClass(), "connManager", client);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+        return manager instanceof PoolingHttpClientConnectionManager ? (PoolingHttpClientConnectionManager) manager : null;
+    }
+
+    private static Object field(Class<?> clazz, String name, Object obj) throws ReflectiveOperationException {
+        Field field;
+
+        field = clazz.getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(obj);
+    }
+
+    //--
+
+    private final String kind;
+    private final DockerHttpClient delegate;
+
+    /** null if not available */
+    private final PoolingHttpClientConnectionManager pool;
+    private final int maxConnections;
+    private final Semaphore connections;
+
+    private final AtomicLong requests;
+    private final AtomicLong idle;
+    private final AtomicLong waited;
+    private final AtomicLong waitMillis;
+    private final AtomicLong maxWaitMillis;
+    private final AtomicInteger active;
+    private final AtomicInteger peak;
+
+    public Transport(String kind, DockerHttpClient delegate, PoolingHttpClientConnectionManager pool, int maxConnections,
+                     Semaphore connections) {
+        this.kind = kind;
+        this.delegate = delegate;
+        this.pool = pool;
+        this.maxConnections = maxConnections;
+        this.connections = connections;
+        this.requests = new AtomicLong();
+        this.idle = new AtomicLong();
+        this.waited = new AtomicLong();
+        this.waitMillis = new AtomicLong();
+        this.maxWaitMillis = new AtomicLong();
+        this.active = new AtomicInteger();
+        this.peak = new AtomicInteger();
+    }
+
+    /** @throws IllegalStateException if interrupted while waiting for a connection, e.g. when a build is cancelled */
+    @Override
+    public Response execute(Request request) {
+        long start;
+        long wait;
+        Response response;
+        int current;
+
+        start = System.currentTimeMillis();
+        if (!connections.tryAcquire()) {
+            waited.incrementAndGet();
+            try {
+                connections.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while waiting for a connection", e);
+            }
+        }
+        wait = System.currentTimeMillis() - start;
+        waitMillis.addAndGet(wait);
+        maxWaitMillis.accumulateAndGet(wait, Math::max);
+        requests.incrementAndGet();
+        if (pool != null && pool.getTotalStats().getAvailable() > 0) {
+            idle.incrementAndGet();
+        }
+        current = active.incrementAndGet();
+        peak.accumulateAndGet(current, Math::max);
+        try {
+            response = delegate.execute(request);
+        } catch (RuntimeException | Error e) {
+            active.decrementAndGet();
+            connections.release();
+            throw e;
+        }
+        return new Released(response);
+    }
+
+    /** releases the connection on close, at most once */
+    private class Released implements Response {
+        private final Response response;
+        private final AtomicBoolean closed;
+
+        Released(Response response) {
+            this.response = response;
+            this.closed = new AtomicBoolean();
+        }
+
+        @Override
+        public int getStatusCode() {
+            return response.getStatusCode();
+        }
+
+        @Override
+        public Map<String, List<String>> getHeaders() {
+            return response.getHeaders();
+        }
+
+        @Override
+        public InputStream getBody() {
+            return response.getBody();
+        }
+
+        @Override
+        public void close() {
+            try {
+                response.close();
+            } finally {
+                if (closed.compareAndSet(false, true)) {
+                    active.decrementAndGet();
+                    connections.release();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+
+    //-- metrics
+
+    public String getKind() {
+        return kind;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Requests that started while the pool had an idle connection; -1 if unknown. Approximates connection reuse only: a concurrent
+     * request might take that connection, and the request does not necessarily get the idle one.
+     */
+    public long getIdle() {
+        return pool == null ? -1 : idle.get();
+    }
+
+    /** requests that had to wait for a connection */
+    public long getWaited() {
+        return waited.get();
+    }
+
+    public long getWaitMillis() {
+        return waitMillis.get();
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis.get();
+    }
+
+    /** maximum number of concurrent requests */
+    public int getPeak() {
+        return peak.get();
+    }
+
+    public String summary() {
+        return kind + " transport: " + getRequests() + " requests, " + (pool == null ? "" : getIdle() + " with an idle connection, ")
+                + "peak " + getPeak() + "/" + maxConnections + " connections, " + getWaited() + " waited for a connection ("
+                + getWaitMillis() + " ms total, " + getMaxWaitMillis() + " ms max)";
+    }
+
+    //--
+
+    /** Transport based on java.net.http; no hijacking, i.e. no attach with stdin */
+    private static class Jdk implements DockerHttpClient {
+        /** headers managed by java.net.http */
+        private static final List<String> RESTRICTED = List.of("connection", "content-length", "expect", "host", "upgrade");
+
+        public static Jdk create(DockerClientConfig config, int connectTimeout, int responseTimeout) throws MojoExecutionException {
+            URI host;
+            HttpClient.Builder builder;
+            String scheme;
+
+            host = config.getDockerHost();
+            if (!"tcp".equals(host.getScheme())) {
+                throw new MojoExecutionException("jdk transport needs a tcp docker host, got " + host);
+            }
+            builder = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).connectTimeout(Duration.ofSeconds(connectTimeout));
+            if (config.getSSLConfig() != null) {
+                try {
+                    builder.sslContext(config.getSSLConfig().getSSLContext());
+                } catch (Exception e) {
+                    throw new MojoExecutionException("cannot setup tls: " + e.getMessage(), e);
+                }
+                scheme = "https";
+            } else {
+                scheme = "http";
+            }
+            return new Jdk(builder.build(), URI.create(scheme + "://" + host.getHost() + ":" + host.getPort()), responseTimeout);
+        }
+
+        private final HttpClient client;
+        private final URI base;
+        private final int responseTimeout;
+
+        Jdk(HttpClient client, URI base, int responseTimeout) {
+            this.client = client;
+            this.base = base;
+            this.responseTimeout = responseTimeout;
+        }
+
+        @Override
+        public Response execute(Request request) {
+            HttpRequest.Builder builder;
+            InputStream body;
+            HttpResponse<InputStream> response;
+
+            if (request.hijackedInput() != null) {
+                throw new UnsupportedOperationException("jdk transport does not support hijacked connections, use " + ZERODEP);
+            }
+            body = request.body();
+            builder = HttpRequest.newBuilder(base.resolve(request.path()))
+                    .method(request.method(), body == null ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofInputStream(() -> body));
+            if (responseTimeout > 0) {
+                builder.timeout(Duration.ofSeconds(responseTimeout));
+            }
+            for (Map.Entry<String, String> entry : request.headers().entrySet()) {
+                if (!RESTRICTED.contains(entry.getKey().toLowerCase(Locale.ROOT))) {
+                    builder.header(entry.getKey(), entry.getValue());
+                }
+            }
+            try {
+                response = client.send(builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted", e);
+            }
+            return new Response() {
+                @Override
+                public int getStatusCode() {
+                    return response.statusCode();
+                }
+
+                @Override
+                public Map<String, List<String>> getHeaders() {
+                    return response.headers().map();
+                }
+
+                @Override
+                public InputStream getBody() {
+                    return response.body();
+                }
+
+                @Override
+                public void close() {
+                    try {
+                        response.body().close();
+                    } catch (IOException e) {
+                        // ignored, nothing to recover
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+            // java.net.http clients have no close before Java 21; idle connections time out
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild.model;
+
+import net.oneandone.sushi.fs.file.FileNode;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits for changes of a set of files. Directories are watched rather than the files themselves because Maven replaces
+ * artifacts instead of writing them in place. Changes are debounced: a build writing several files, or writing a file in
+ * several chunks, is reported once.
+ */
+public class Watcher implements AutoCloseable {
+    private final WatchService service;
+
+    /** maps watched directories to the files of interest in them */
+    private final Map<Path, Map<Path, FileNode>> directories;
+
+    public Watcher() throws IOException {
+        this.service = FileSystems.getDefault().newWatchService();
+        this.directories = new HashMap<>();
+    }
+
+    /** replaces the files watched so far; files in directories that don't exist are ignored */
+    public void watch(Collection<FileNode> files) throws IOException {
+        Path file;
+        Path dir;
+
+        directories.clear();
+        for (FileNode node : files) {
+            file = node.toPath().toAbsolutePath().normalize();
+            dir = file.getParent();
+            if (!Files.isDirectory(dir)) {
+                continue;
+            }
+            if (!directories.containsKey(dir)) {
+                dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                        StandardWatchEventKinds.ENTRY_DELETE);
+                directories.put(dir, new HashMap<>());
+            }
+            directories.get(dir).put(file.getFileName(), node);
+        }
+    }
+
+    /**
+     * Blocks until a watched file changes, then waits until there were no further changes for the specified delay.
+     *
+     * @return changed files, never empty
+     */
+    public Set<FileNode> await(long delayMillis) throws InterruptedException {
+        Set<FileNode> result;
+
+        result = new LinkedHashSet<>();
+        while (result.isEmpty()) {
+            poll(service.take(), result);
+        }
+        while (drain(service.poll(delayMillis, TimeUnit.MILLISECONDS), result)) {
+            // wait for quiet period
+        }
+        return result;
+    }
+
+    /** @return true if there was an event, relevant or not */
+    private boolean drain(WatchKey key, Set<FileNode> result) {
+        if (key == null) {
+            return false;
+        }
+        poll(key, result);
+        return true;
+    }
+
+    private void poll(WatchKey key, Set<FileNode> result) {
+        Map<Path, FileNode> files;
+        FileNode node;
+
+        files = directories.get((Path) key.watchable());
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (files != null && event.context() instanceof Path) {
+                node = files.get((Path) event.context());
+                if (node != null) {
+                    result.add(node);
+                }
+            }
+        }
+        key.reset();
+    }
+
+    @Override
+    public void close() throws IOException {
+        service.close();
+    }
+}
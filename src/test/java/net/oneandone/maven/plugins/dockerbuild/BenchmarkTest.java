@@ -0,0 +1,132 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild;
+
+import com.github.dockerjava.api.DockerClient;
+import com.github.dockerjava.core.DockerClientImpl;
+import net.oneandone.maven.plugins.dockerbuild.model.Context;
+import net.oneandone.maven.plugins.dockerbuild.model.Transport;
+import net.oneandone.sushi.fs.World;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Throughput and latency of builds against the daemon stub. Defaults are small to keep the test suite fast; run with e.g.
+ * -Dtest=BenchmarkTest -Dbenchmark.contextMb=256 -Dbenchmark.builds=64 for meaningful numbers.
+ */
+public class BenchmarkTest {
+    private static final Log LOG = new SystemStreamLog();
+    private static final int CONTEXT_MB = Integer.getInteger("benchmark.contextMb", 4);
+    private static final int BUILDS = Integer.getInteger("benchmark.builds", 8);
+
+    /** context upload speed per transport */
+    @Test
+    public void upload() throws Exception {
+        World world;
+        byte[] war;
+        Context context;
+        long started;
+        long millis;
+        DaemonStub.Received received;
+
+        world = World.create();
+        war = new byte[CONTEXT_MB * 1024 * 1024];
+        new Random(0).nextBytes(war);
+        context = DaemonTest.context(world, "FROM scratch\nCOPY app.war /webapps/\n", "app.war", war);
+        for (String kind : new String[] { Transport.ZERODEP, Transport.JDK }) {
+            try (DaemonStub daemon = DaemonStub.start(null);
+                 Transport http = DaemonTest.transport(daemon, kind, 4);
+                 DockerClient docker = DockerClientImpl.getInstance(daemon.config(), http)) {
+                DaemonTest.build(docker, context, null, "warmup:1", Collections.emptyMap());
+                started = System.nanoTime();
+                DaemonTest.build(docker, context, null, "benchmark:1", Collections.emptyMap());
+                millis = Math.max(1, (System.nanoTime() - started) / 1_000_000);
+                received = daemon.builds.get(1);
+                assertTrue(received.bytes > war.length);
+                LOG.info("upload " + kind + ": " + CONTEXT_MB + " mb context, build " + millis + " ms, "
+                        + (received.bytes * 1000 / 1024 / 1024 / millis) + " mb/s, upload " + received.uploadMillis + " ms");
+            }
+        }
+    }
+
+    /** concurrent builds are limited by maxConnections; latency includes waiting for a connection */
+    @Test
+    public void scheduling() throws Exception {
+        World world;
+        Context context;
+
+        world = World.create();
+        context = DaemonTest.context(world, "FROM scratch\n", "app.war", new byte[64 * 1024]);
+        for (int maxConnections : new int[] { 2, BUILDS }) {
+            schedule(context, maxConnections);
+        }
+    }
+
+    private static void schedule(Context context, int maxConnections) throws Exception {
+        ExecutorService executor;
+        List<Future<Long>> futures;
+        List<Long> latencies;
+        long started;
+        long wall;
+
+        try (DaemonStub daemon = DaemonStub.start(null);
+             Transport http = DaemonTest.transport(daemon, maxConnections);
+             DockerClient docker = DockerClientImpl.getInstance(daemon.config(), http)) {
+            daemon.buildMillis = 100;
+            executor = Executors.newFixedThreadPool(BUILDS);
+            futures = new ArrayList<>();
+            started = System.nanoTime();
+            try {
+                for (int i = 0; i < BUILDS; i++) {
+                    String tag = "app:" + i;
+
+                    futures.add(executor.submit(() -> {
+                        long start;
+
+                        start = System.nanoTime();
+                        DaemonTest.build(docker, context, null, tag, Collections.emptyMap());
+                        return (System.nanoTime() - start) / 1_000_000;
+                    }));
+                }
+                latencies = new ArrayList<>();
+                for (Future<Long> future : futures) {
+                    latencies.add(future.get());
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+            wall = (System.nanoTime() - started) / 1_000_000;
+            Collections.sort(latencies);
+            assertEquals(BUILDS, daemon.builds.size());
+            assertTrue(daemon.peak.get() <= maxConnections, daemon.peak + " > " + maxConnections);
+            LOG.info("scheduling " + BUILDS + " builds, maxConnections " + maxConnections + ": wall " + wall + " ms, latency p50 "
+                    + latencies.get(latencies.size() / 2) + " ms, max " + latencies.get(latencies.size() - 1) + " ms, peak concurrency "
+                    + daemon.peak + ", " + http.summary());
+        }
+    }
+}
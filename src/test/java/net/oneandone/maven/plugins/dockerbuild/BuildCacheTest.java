@@ -0,0 +1,108 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild;
+
+import net.oneandone.maven.plugins.dockerbuild.model.BuildCache;
+import net.oneandone.maven.plugins.dockerbuild.model.Credentials;
+import net.oneandone.maven.plugins.dockerbuild.model.Registry;
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BuildCacheTest {
+    @Test
+    public void fingerprint() {
+        Map<String, String> args;
+        Map<String, String> reversed;
+        String fp;
+
+        args = new LinkedHashMap<>();
+        args.put("a", "1");
+        args.put("b", "2");
+        reversed = new LinkedHashMap<>();
+        reversed.put("b", "2");
+        reversed.put("a", "1");
+        fp = BuildCache.fingerprint("lib:war:1.0", "ctx", args, null);
+        assertEquals(64, fp.length());
+        assertEquals(fp, BuildCache.fingerprint("lib:war:1.0", "ctx", reversed, null));
+        assertEquals(fp, BuildCache.fingerprint("lib:war:1.0", "ctx", args, ""));
+        assertNotEquals(fp, BuildCache.fingerprint("lib:war:1.1", "ctx", args, null));
+        assertNotEquals(fp, BuildCache.fingerprint("lib:war:1.0", "ctx2", args, null));
+        assertNotEquals(fp, BuildCache.fingerprint("lib:war:1.0", "ctx", args, "runtime"));
+        assertNotEquals(fp, BuildCache.fingerprint("lib:war:1.0", "ctx", Collections.singletonMap("a", "1"), null));
+        // no ambiguity between argument names and values
+        assertNotEquals(BuildCache.fingerprint("g", "c", Collections.singletonMap("a", "b=c"), null),
+                BuildCache.fingerprint("g", "c", Collections.singletonMap("a=b", "c"), null));
+    }
+
+    @Test
+    public void contextDigest() throws IOException {
+        FileNode dir;
+        String all;
+
+        dir = World.create().getTemp().createTempDirectory();
+        try {
+            dir.join("Dockerfile").writeString("FROM tomcat\n");
+            dir.join("app.war").writeString("war");
+            dir.join("docs").mkdir();
+            dir.join("docs/readme").writeString("readme");
+            all = BuildCache.contextDigest(dir, null);
+            assertEquals(all, BuildCache.contextDigest(dir, null));
+            assertEquals(BuildCache.contextDigest(dir, Arrays.asList("Dockerfile", "app.war")),
+                    BuildCache.contextDigest(dir, Arrays.asList("app.war", "Dockerfile")));
+            assertNotEquals(all, BuildCache.contextDigest(dir, Arrays.asList("Dockerfile", "app.war")));
+
+            dir.join("docs/readme").writeString("changed");
+            assertNotEquals(all, BuildCache.contextDigest(dir, null));
+            all = BuildCache.contextDigest(dir, null);
+            dir.join("docs/readme").move(dir.join("docs/readme2"));
+            assertNotEquals(all, BuildCache.contextDigest(dir, null));
+        } finally {
+            dir.deleteTree();
+        }
+    }
+
+    @Test
+    public void registry() throws IOException {
+        World world;
+        BuildCache cache;
+        String fp;
+
+        world = World.create();
+        fp = BuildCache.fingerprint("lib:war:1.0", "ctx", Collections.emptyMap(), null);
+        try (RegistryStub stub = RegistryStub.start()) {
+            cache = BuildCache.create(stub.getAddress() + "/cache/app", new Credentials(world, world.getTemp().join("nodocker").getAbsolute(), new SystemStreamLog()));
+            assertEquals(stub.getAddress() + "/cache/app:fp-" + fp, cache.image(fp));
+            assertFalse(cache.contains(fp));
+            stub.putManifest("cache/app", "fp-" + fp, Registry.DOCKER_MANIFEST, "{}".getBytes(StandardCharsets.UTF_8));
+            assertTrue(cache.contains(fp));
+            assertFalse(cache.contains(BuildCache.fingerprint("lib:war:1.1", "ctx", Collections.emptyMap(), null)));
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild;
+
+import net.oneandone.maven.plugins.dockerbuild.model.BuildListener;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BuildListenerTest {
+    @Test
+    public void inactivity() {
+        BuildListener listener;
+        AtomicBoolean closed;
+        MojoExecutionException e;
+
+        listener = new BuildListener(new SystemStreamLog(), new PrintWriter(new StringWriter()), null);
+        closed = new AtomicBoolean();
+        listener.onStart(() -> closed.set(true));
+        e = assertThrows(MojoExecutionException.class, () -> listener.awaitImageId(0, 1));
+        assertTrue(e.getMessage().contains("stuck"), e.getMessage());
+        assertTrue(closed.get());
+    }
+
+    /** no inactivity while the context is uploaded, i.e. before the response starts */
+    @Test
+    public void upload() {
+        BuildListener listener;
+        MojoExecutionException e;
+
+        listener = new BuildListener(new SystemStreamLog(), new PrintWriter(new StringWriter()), null);
+        e = assertThrows(MojoExecutionException.class, () -> listener.awaitImageId(2, 1));
+        assertTrue(e.getMessage().contains("timed out"), e.getMessage());
+    }
+
+    @Test
+    public void errors() {
+        BuildListener listener;
+        MojoExecutionException e;
+
+        listener = new BuildListener(new SystemStreamLog(), new PrintWriter(new StringWriter()), null);
+        listener.onStart(() -> { });
+        listener.onError(new IOException("first"));
+        listener.onError(new IOException("second")); // ignored, already closed
+        e = assertThrows(MojoExecutionException.class, () -> listener.awaitImageId(1, 1));
+        assertEquals("first", e.getCause().getMessage());
+        assertEquals(0, e.getSuppressed().length);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild;
+
+import net.oneandone.maven.plugins.dockerbuild.model.BuildRecord;
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class BuildRecordTest {
+    private static final String[] STEPS = { "FROM tomcat:9", "ARG war", "COPY ${war} /webapps/ROOT.war", "CMD run" };
+
+    @Test
+    public void changedFile() {
+        BuildRecord previous;
+        BuildRecord current;
+
+        previous = record("g:a:1", "app.war", "aaa", "tomcat:9", "sha256:1", 4);
+        current = record("g:a:1", "app.war", "bbb", "tomcat:9", "sha256:1", 2);
+        assertEquals("cache miss at step 3/4 'COPY ${war} /webapps/ROOT.war': 1 context file(s) changed: app.war", current.explain(previous));
+    }
+
+    @Test
+    public void baseImage() {
+        BuildRecord previous;
+        BuildRecord current;
+
+        previous = record("g:a:1", "app.war", "aaa", "tomcat:9", "sha256:1111111111111111", 4);
+        current = record("g:a:2", "app.war", "aaa", "tomcat:9", "sha256:2222222222222222", 1);
+        assertEquals("cache miss at step 2/4 'ARG war': base image tomcat:9 changed: 111111111111 -> 222222222222; "
+                + "other changes: dockerbuild changed: g:a:1 -> g:a:2", current.explain(previous));
+    }
+
+    @Test
+    public void noChange() {
+        BuildRecord previous;
+
+        previous = record("g:a:1", "app.war", "aaa", "tomcat:9", "sha256:1", 4);
+        assertNull(previous.explain(null));
+        assertEquals("cache miss at step 2/4 'ARG war': no input changed since the previous build - the daemon's build cache was "
+                + "probably pruned, or noCache is set", record("g:a:1", "app.war", "aaa", "tomcat:9", "sha256:1", 1).explain(previous));
+    }
+
+    @Test
+    public void saveAndLoad() throws IOException {
+        FileNode file;
+        BuildRecord record;
+        BuildRecord loaded;
+
+        file = World.create().getTemp().createTempFile();
+        assertNull(BuildRecord.loadOpt(file.getParent().join("nosuchfile")));
+        record = record("g:a:1", "app.war", "aaa", "tomcat:9", "sha256:1", 3);
+        record.save(file);
+        loaded = BuildRecord.loadOpt(file);
+        assertEquals(record.arguments, loaded.arguments);
+        assertEquals(record.files, loaded.files);
+        assertEquals(record.baseImages, loaded.baseImages);
+        assertEquals(3, loaded.firstMiss());
+        assertEquals("sha256:aaa", loaded.image);
+        file.writeString("{\"old\": \"format\"}");
+        assertNull(BuildRecord.loadOpt(file));
+        file.deleteFile();
+    }
+
+    /** @param cached number of leading steps that hit the cache */
+    private static BuildRecord record(String dockerbuild, String file, String digest, String base, String baseId, int cached) {
+        List<BuildRecord.Step> steps;
+        Map<String, String> files;
+
+        steps = new ArrayList<>();
+        for (int i = 0; i < STEPS.length; i++) {
+            steps.add(new BuildRecord.Step(STEPS[i], i > 0 && i < cached));
+        }
+        files = new TreeMap<>();
+        files.put("Dockerfile", "d");
+        files.put(file, digest);
+        return new BuildRecord(dockerbuild, Collections.singletonMap("war", file), files, Collections.singletonMap(base, baseId), steps,
+                "sha256:" + digest);
+    }
+}
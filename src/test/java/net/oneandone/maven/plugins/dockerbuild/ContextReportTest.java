@@ -0,0 +1,73 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild;
+
+import net.oneandone.maven.plugins.dockerbuild.model.ContextReport;
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ContextReportTest {
+    @Test
+    public void report() throws IOException {
+        FileNode dir;
+        ContextReport report;
+        List<String> violations;
+
+        dir = World.create().getTemp().createTempDirectory();
+        try {
+            dir.join("Dockerfile").writeString("FROM scratch\n");
+            dir.join("lib").mkdir();
+            dir.join("lib/a.jar").writeBytes(new byte[3000]);
+            dir.join("lib/b.jar").writeBytes(new byte[2000]);
+            dir.join("unused").mkdir();
+            dir.join("unused/big.bin").writeBytes(new byte[9000]);
+            dir.join("app.war").writeBytes(new byte[5000]);
+
+            report = ContextReport.create(dir, null, Collections.singletonList("app.war"));
+            assertEquals(5, report.files.size());
+            assertEquals(19013, report.size());
+            assertEquals("unused/big.bin", report.files.get(0).path);
+            assertTrue(report.files.get(1).argument);
+            assertEquals("lib/", report.directories.get(1).path);
+            assertEquals(2, report.directories.get(1).files);
+            assertEquals(5000, report.directories.get(1).size);
+            assertTrue(report.summary().endsWith("4.9 KB added by arguments"), report.summary());
+            assertTrue(report.toString().contains("largest directories:"), report.toString());
+
+            violations = report.check(10000L, 3);
+            assertEquals(2, violations.size());
+            assertTrue(violations.get(0).contains("largest file: unused/big.bin"), violations.get(0));
+            assertTrue(violations.get(1).startsWith("context has 5 files"), violations.get(1));
+
+            report = ContextReport.create(dir, Arrays.asList("Dockerfile", "lib", "app.war"), Collections.singletonList("app.war"));
+            assertEquals(4, report.files.size());
+            assertFalse(report.toString().contains("unused"));
+            assertTrue(report.check(11000L, 4).isEmpty());
+        } finally {
+            dir.deleteTree();
+        }
+    }
+}
@@ -0,0 +1,716 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild;
+
+import com.github.dockerjava.core.DefaultDockerClientConfig;
+import com.github.dockerjava.core.DockerClientConfig;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import net.oneandone.maven.plugins.dockerbuild.model.Descriptor;
+import net.oneandone.maven.plugins.dockerbuild.model.OciLayout;
+import org.kamranzafar.jtar.TarEntry;
+import org.kamranzafar.jtar.TarHeader;
+import org.kamranzafar.jtar.TarInputStream;
+import org.kamranzafar.jtar.TarOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process Docker daemon for tests, implements the parts of the Engine API used by this plugin: ping, version, build with
+ * streamed output, inspect, tag, push, save, load, and reading files from created containers. Builds don't run anything: the image consists
+ * of a single layer, which is the context tar; COPY instructions with plain file sources are tracked to know the image's files.
+ * Pushes go to a RegistryStub.
+ */
+public class DaemonStub implements AutoCloseable {
+    public static DaemonStub start(RegistryStub registry) throws IOException {
+        HttpServer server;
+        ExecutorService executor;
+        DaemonStub result;
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        executor = Executors.newCachedThreadPool();
+        result = new DaemonStub(server, executor, registry);
+        server.setExecutor(executor);
+        server.createContext("/", result::handle);
+        server.start();
+        return result;
+    }
+
+    /** A build received by the daemon */
+    public static class Received {
+        public final List<String> entries;
+        public final long bytes;
+
+        /** milliseconds from receiving the request until the context was read completely */
+        public final long uploadMillis;
+
+        public Received(List<String> entries, long bytes, long uploadMillis) {
+            this.entries = entries;
+            this.bytes = bytes;
+            this.uploadMillis = uploadMillis;
+        }
+    }
+
+    private static class Image {
+        final String id;
+        final byte[] layer;
+        final JsonObject labels;
+
+        /** maps absolute path to content */
+        final Map<String, byte[]> files;
+
+        Image(String id, byte[] layer, JsonObject labels, Map<String, byte[]> files) {
+            this.id = id;
+            this.layer = layer;
+            this.labels = labels;
+            this.files = files;
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final RegistryStub registry;
+
+    /** maps id to image */
+    private final Map<String, Image> images;
+
+    /** maps repository:tag to image id */
+    private final Map<String, String> tags;
+
+    /** maps container id to image id */
+    private final Map<String, String> containers;
+
+    /** build cache keys: digests over parent key and step input */
+    private final Set<String> cache;
+
+    public final List<Received> builds;
+
+    /** X-Registry-Auth headers of pushes, decoded */
+    public final List<String> pushAuths;
+
+    /** number of pushes to fail with a 503 after uploading the layer, before the manifest */
+    public final AtomicInteger pushFailures;
+
+    /** number of pushes to abort by closing the connection after uploading the layer, before the manifest */
+    public final AtomicInteger pushDrops;
+
+    public final AtomicInteger saves;
+    public final AtomicInteger loads;
+
+    /** milliseconds every build takes after receiving the context */
+    public volatile long buildMillis;
+
+    private final AtomicInteger active;
+
+    /** maximum number of concurrent builds */
+    public final AtomicInteger peak;
+
+    private DaemonStub(HttpServer server, ExecutorService executor, RegistryStub registry) {
+        this.server = server;
+        this.executor = executor;
+        this.registry = registry;
+        this.images = new ConcurrentHashMap<>();
+        this.tags = new ConcurrentHashMap<>();
+        this.containers = new ConcurrentHashMap<>();
+        this.cache = ConcurrentHashMap.newKeySet();
+        this.builds = Collections.synchronizedList(new ArrayList<>());
+        this.pushAuths = Collections.synchronizedList(new ArrayList<>());
+        this.pushFailures = new AtomicInteger();
+        this.pushDrops = new AtomicInteger();
+        this.saves = new AtomicInteger();
+        this.loads = new AtomicInteger();
+        this.buildMillis = 0;
+        this.active = new AtomicInteger();
+        this.peak = new AtomicInteger();
+    }
+
+    public DockerClientConfig config() {
+        return DefaultDockerClientConfig.createDefaultConfigBuilder()
+                .withDockerHost("tcp://127.0.0.1:" + server.getAddress().getPort()).withDockerTlsVerify(false).build();
+    }
+
+    /** @return image id, null if not found */
+    public String lookup(String name) {
+        return tags.get(name.lastIndexOf(':') > name.lastIndexOf('/') ? name : name + ":latest");
+    }
+
+    public JsonObject labels(String name) {
+        return images.get(lookup(name)).labels;
+    }
+
+    /** @return null if not found */
+    public byte[] file(String name, String path) {
+        return images.get(lookup(name)).files.get(path);
+    }
+
+    //--
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String method;
+        String path;
+        Map<String, List<String>> query;
+        boolean drop;
+
+        drop = false;
+        method = exchange.getRequestMethod();
+        path = exchange.getRequestURI().getPath().replaceFirst("^/v[0-9.]+/", "/");
+        query = query(exchange.getRequestURI().getRawQuery());
+        try {
+            if (path.equals("/_ping")) {
+                respond(exchange, 200, "text/plain", "OK");
+            } else if (path.equals("/version")) {
+                respond(exchange, 200, "application/json", "{\"Version\":\"20.10.0\",\"ApiVersion\":\"1.41\",\"Os\":\"linux\",\"Arch\":\"amd64\"}");
+            } else if (method.equals("POST") && path.equals("/build")) {
+                build(exchange, query);
+            } else if (method.equals("GET") && path.startsWith("/images/") && path.endsWith("/json")) {
+                inspect(exchange, path.substring("/images/".length(), path.length() - "/json".length()));
+            } else if (method.equals("POST") && path.startsWith("/images/") && path.endsWith("/tag")) {
+                tag(exchange, path.substring("/images/".length(), path.length() - "/tag".length()), query);
+            } else if (method.equals("POST") && path.startsWith("/images/") && path.endsWith("/push")) {
+                push(exchange, path.substring("/images/".length(), path.length() - "/push".length()), query);
+            } else if (method.equals("GET") && path.startsWith("/images/") && path.endsWith("/get")) {
+                save(exchange, path.substring("/images/".length(), path.length() - "/get".length()));
+            } else if (method.equals("POST") && path.equals("/images/load")) {
+                load(exchange);
+            } else if (method.equals("POST") && path.equals("/containers/create")) {
+                create(exchange);
+            } else if (method.equals("GET") && path.startsWith("/containers/") && path.endsWith("/archive")) {
+                archive(exchange, path.substring("/containers/".length(), path.length() - "/archive".length()), query.get("path").get(0));
+            } else if (method.equals("DELETE") && path.startsWith("/containers/")) {
+                containers.remove(path.substring("/containers/".length()));
+                exchange.getRequestBody().readAllBytes(); // otherwise the connection is not reused
+                respond(exchange, 204, null, null);
+            } else {
+                respond(exchange, 404, "application/json", message("page not found: " + method + " " + path));
+            }
+        } catch (DropConnection e) {
+            drop = true;
+            throw e;
+        } finally {
+            if (!drop) {
+                exchange.close();
+            }
+        }
+    }
+
+    private void build(HttpExchange exchange, Map<String, List<String>> query) throws IOException {
+        long started;
+        ByteArrayOutputStream context;
+        List<String> entries;
+        String dockerfile;
+        TarEntry entry;
+        ByteArrayOutputStream file;
+        byte[] layer;
+        String id;
+        JsonObject aux;
+        int step;
+        List<String> instructions;
+        String key;
+        String buildargs;
+        MessageDigest content;
+        String contentDigest;
+        boolean building;
+        Map<String, byte[]> contents;
+        Map<String, byte[]> files;
+
+        started = System.currentTimeMillis();
+        peak.accumulateAndGet(active.incrementAndGet(), Math::max);
+        building = true;
+        try {
+            context = new ByteArrayOutputStream();
+            OciLayout.copy(exchange.getRequestBody(), context);
+            layer = context.toByteArray();
+            entries = new ArrayList<>();
+            dockerfile = "";
+            content = OciLayout.sha256();
+            contents = new HashMap<>();
+            try (TarInputStream tar = new TarInputStream(new ByteArrayInputStream(layer))) {
+                while ((entry = tar.getNextEntry()) != null) {
+                    entries.add(entry.getName());
+                    file = new ByteArrayOutputStream();
+                    OciLayout.copy(tar, file);
+                    content.update((entry.getName() + "\n").getBytes(StandardCharsets.UTF_8));
+                    content.update(file.toByteArray());
+                    contents.put(entry.getName(), file.toByteArray());
+                    if (entry.getName().equals("Dockerfile")) {
+                        dockerfile = new String(file.toByteArray(), StandardCharsets.UTF_8);
+                    }
+                }
+            }
+            contentDigest = OciLayout.hex(content.digest());
+            builds.add(new Received(entries, layer.length, System.currentTimeMillis() - started));
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream dest = exchange.getResponseBody()) {
+                instructions = new ArrayList<>();
+                for (String line : dockerfile.split("\n")) {
+                    if (!line.trim().isEmpty() && !line.trim().startsWith("#")) {
+                        instructions.add(line.trim());
+                    }
+                }
+                step = 0;
+                key = "";
+                buildargs = query.containsKey("buildargs") ? query.get("buildargs").get(0) : "{}";
+                files = new HashMap<>();
+                for (String instruction : instructions) {
+                    step++;
+                    line(dest, stream("Step " + step + "/" + instructions.size() + " : " + instruction + "\n"));
+                    if (instruction.contains("FAIL")) {
+                        line(dest, error("The command '" + instruction + "' returned a non-zero code: 1"));
+                        return;
+                    }
+                    key = cacheKey(key, instruction, contentDigest, buildargs);
+                    if (instruction.startsWith("FROM ")) {
+                        files = from(instruction.substring(5).trim());
+                        line(dest, stream(" ---> " + key.substring(0, 12) + "\n"));
+                    } else if (!cache.add(key)) {
+                        line(dest, stream(" ---> Using cache\n"));
+                    }
+                    if (instruction.startsWith("COPY ")) {
+                        copy(instruction, contents, files);
+                    }
+                }
+                sleep(buildMillis);
+                // the client may start the next build as soon as it has read the result
+                building = false;
+                active.decrementAndGet();
+                id = "sha256:" + OciLayout.hex(OciLayout.sha256().digest(layer));
+                images.put(id, new Image(id, layer, labels(query), files));
+                for (String t : query.getOrDefault("t", Collections.emptyList())) {
+                    tags.put(t.lastIndexOf(':') > t.lastIndexOf('/') ? t : t + ":latest", id);
+                }
+                aux = new JsonObject();
+                aux.add("aux", new JsonObject());
+                aux.getAsJsonObject("aux").addProperty("ID", id);
+                line(dest, aux);
+                line(dest, stream("Successfully built " + id.substring(7, 19) + "\n"));
+            }
+        } finally {
+            if (building) {
+                active.decrementAndGet();
+            }
+        }
+    }
+
+    /** @return files of the base image, empty if it's not a local image */
+    private Map<String, byte[]> from(String base) {
+        Image image;
+
+        image = image(base.matches("[0-9a-f]{64}") ? "sha256:" + base : base);
+        return image == null ? new HashMap<>() : new HashMap<>(image.files);
+    }
+
+    /** plain file sources only, arguments are not substituted */
+    private static void copy(String instruction, Map<String, byte[]> contents, Map<String, byte[]> files) {
+        List<String> words;
+        String destination;
+
+        words = new ArrayList<>();
+        for (String word : instruction.substring(5).trim().split("\\s+")) {
+            if (!word.startsWith("--")) {
+                words.add(word);
+            }
+        }
+        destination = words.get(words.size() - 1);
+        for (String source : words.subList(0, words.size() - 1)) {
+            if (contents.containsKey(source)) {
+                files.put(destination.endsWith("/") ? destination + source.substring(source.lastIndexOf('/') + 1) : destination,
+                        contents.get(source));
+            }
+        }
+    }
+
+    /**
+     * Like the classic builder: a step is cached if its parent is cached and it has the same input; file modification times
+     * don't matter.
+     */
+    private static String cacheKey(String parent, String instruction, String contextDigest, String buildargs) {
+        StringBuilder input;
+
+        input = new StringBuilder(parent).append('\n').append(instruction);
+        if (instruction.startsWith("COPY ") || instruction.startsWith("ADD ")) {
+            input.append(contextDigest);
+        } else if (instruction.startsWith("RUN ")) {
+            input.append(buildargs);
+        }
+        return OciLayout.hex(OciLayout.sha256().digest(input.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static JsonObject labels(Map<String, List<String>> query) {
+        List<String> labels;
+
+        labels = query.get("labels");
+        return labels == null ? new JsonObject() : JsonParser.parseString(labels.get(0)).getAsJsonObject();
+    }
+
+    private void inspect(HttpExchange exchange, String name) throws IOException {
+        Image image;
+        JsonObject result;
+
+        image = image(name);
+        if (image == null) {
+            respond(exchange, 404, "application/json", message("No such image: " + name));
+            return;
+        }
+        result = new JsonObject();
+        result.addProperty("Id", image.id);
+        result.addProperty("Size", image.layer.length);
+        result.add("Config", new JsonObject());
+        result.getAsJsonObject("Config").add("Labels", image.labels);
+        respond(exchange, 200, "application/json", result.toString());
+    }
+
+    /** docker archive format; files are not saved */
+    private void save(HttpExchange exchange, String name) throws IOException {
+        Image image;
+        String layer;
+        JsonObject config;
+        byte[] configBytes;
+        String configDigest;
+        JsonObject manifest;
+        ByteArrayOutputStream bytes;
+
+        image = image(name);
+        if (image == null) {
+            respond(exchange, 404, "application/json", message("No such image: " + name));
+            return;
+        }
+        layer = OciLayout.hex(OciLayout.sha256().digest(image.layer));
+        config = new JsonObject();
+        config.add("config", new JsonObject());
+        config.getAsJsonObject("config").add("Labels", image.labels);
+        config.add("rootfs", new JsonObject());
+        config.getAsJsonObject("rootfs").addProperty("type", "layers");
+        config.getAsJsonObject("rootfs").add("diff_ids", new JsonArray());
+        config.getAsJsonObject("rootfs").getAsJsonArray("diff_ids").add("sha256:" + layer);
+        configBytes = config.toString().getBytes(StandardCharsets.UTF_8);
+        configDigest = OciLayout.hex(OciLayout.sha256().digest(configBytes));
+        manifest = new JsonObject();
+        manifest.addProperty("Config", "blobs/sha256/" + configDigest);
+        manifest.add("RepoTags", new JsonArray());
+        manifest.getAsJsonArray("RepoTags").add(name);
+        manifest.add("Layers", new JsonArray());
+        manifest.getAsJsonArray("Layers").add("blobs/sha256/" + layer);
+        bytes = new ByteArrayOutputStream();
+        try (TarOutputStream tar = new TarOutputStream(bytes)) {
+            entry(tar, "blobs/sha256/" + configDigest, configBytes);
+            entry(tar, "blobs/sha256/" + layer, image.layer);
+            entry(tar, "manifest.json", ("[" + manifest + "]").getBytes(StandardCharsets.UTF_8));
+        }
+        saves.incrementAndGet();
+        exchange.getResponseHeaders().add("Content-Type", "application/x-tar");
+        exchange.sendResponseHeaders(200, bytes.size());
+        try (OutputStream dest = exchange.getResponseBody()) {
+            bytes.writeTo(dest);
+        }
+    }
+
+    /** understands the docker archive format, i.e. manifest.json */
+    private void load(HttpExchange exchange) throws IOException {
+        Map<String, byte[]> entries;
+        TarEntry entry;
+        ByteArrayOutputStream file;
+        JsonObject manifest;
+        JsonObject config;
+        byte[] layer;
+        String id;
+        JsonObject labels;
+
+        entries = new HashMap<>();
+        try (TarInputStream tar = new TarInputStream(exchange.getRequestBody())) {
+            while ((entry = tar.getNextEntry()) != null) {
+                file = new ByteArrayOutputStream();
+                OciLayout.copy(tar, file);
+                entries.put(entry.getName(), file.toByteArray());
+            }
+        }
+        manifest = JsonParser.parseString(new String(entries.get("manifest.json"), StandardCharsets.UTF_8)).getAsJsonArray()
+                .get(0).getAsJsonObject();
+        config = JsonParser.parseString(new String(entries.get(manifest.get("Config").getAsString()), StandardCharsets.UTF_8))
+                .getAsJsonObject();
+        layer = entries.get(manifest.getAsJsonArray("Layers").get(0).getAsString());
+        id = "sha256:" + OciLayout.hex(OciLayout.sha256().digest(layer));
+        labels = config.getAsJsonObject("config").getAsJsonObject("Labels");
+        images.put(id, new Image(id, layer, labels == null ? new JsonObject() : labels, new HashMap<>()));
+        for (JsonElement tag : manifest.getAsJsonArray("RepoTags")) {
+            tags.put(tag.getAsString(), id);
+        }
+        loads.incrementAndGet();
+        respond(exchange, 200, "application/json", stream("Loaded image: " + manifest.getAsJsonArray("RepoTags").get(0).getAsString() + "\n")
+                .toString());
+    }
+
+    private static void entry(TarOutputStream tar, String name, byte[] bytes) throws IOException {
+        tar.putNextEntry(new TarEntry(TarHeader.createHeader(name, bytes.length, System.currentTimeMillis(), false, 0644)));
+        tar.write(bytes);
+    }
+
+    private void create(HttpExchange exchange) throws IOException {
+        String name;
+        Image image;
+        String id;
+        JsonObject result;
+
+        name = JsonParser.parseString(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8))
+                .getAsJsonObject().get("Image").getAsString();
+        image = image(name);
+        if (image == null) {
+            respond(exchange, 404, "application/json", message("No such image: " + name));
+            return;
+        }
+        id = OciLayout.hex(OciLayout.sha256().digest((image.id + containers.size()).getBytes(StandardCharsets.UTF_8)));
+        containers.put(id, image.id);
+        result = new JsonObject();
+        result.addProperty("Id", id);
+        result.add("Warnings", new JsonArray());
+        respond(exchange, 201, "application/json", result.toString());
+    }
+
+    /** tar with the specified file */
+    private void archive(HttpExchange exchange, String container, String path) throws IOException {
+        String image;
+        byte[] file;
+        ByteArrayOutputStream bytes;
+
+        image = containers.get(container);
+        file = image == null ? null : images.get(image).files.get(path);
+        if (file == null) {
+            respond(exchange, 404, "application/json", message("Could not find the file " + path + " in container " + container));
+            return;
+        }
+        bytes = new ByteArrayOutputStream();
+        try (TarOutputStream tar = new TarOutputStream(bytes)) {
+            tar.putNextEntry(new TarEntry(TarHeader.createHeader(path.substring(path.lastIndexOf('/') + 1), file.length,
+                    System.currentTimeMillis(), false, 0644)));
+            tar.write(file);
+        }
+        exchange.getResponseHeaders().add("Content-Type", "application/x-tar");
+        exchange.sendResponseHeaders(200, bytes.size());
+        try (OutputStream dest = exchange.getResponseBody()) {
+            bytes.writeTo(dest);
+        }
+    }
+
+    private void tag(HttpExchange exchange, String name, Map<String, List<String>> query) throws IOException {
+        Image image;
+        String tag;
+
+        image = image(name);
+        if (image == null) {
+            respond(exchange, 404, "application/json", message("No such image: " + name));
+            return;
+        }
+        tag = query.containsKey("tag") ? query.get("tag").get(0) : "latest";
+        tags.put(query.get("repo").get(0) + ":" + tag, image.id);
+        respond(exchange, 201, null, null);
+    }
+
+    private void push(HttpExchange exchange, String name, Map<String, List<String>> query) throws IOException {
+        String tag;
+        String auth;
+        Image image;
+        String layer;
+        String config;
+        JsonObject manifest;
+        byte[] bytes;
+        int idx;
+        String repository;
+        OutputStream dest;
+
+        tag = query.containsKey("tag") ? query.get("tag").get(0) : "latest";
+        auth = exchange.getRequestHeaders().getFirst("X-Registry-Auth");
+        if (auth != null) {
+            pushAuths.add(new String(Base64.getUrlDecoder().decode(auth), StandardCharsets.UTF_8));
+        }
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, 0);
+        dest = exchange.getResponseBody(); // closed with the exchange, unless the connection is dropped
+        line(dest, status(null, "The push refers to repository [" + name + "]"));
+        image = image(name + ":" + tag);
+        if (image == null) {
+            line(dest, error("An image does not exist locally with the tag: " + name));
+            return;
+        }
+        idx = name.indexOf('/');
+        if (registry == null || idx == -1 || !name.substring(0, idx).equals(registry.getAddress())) {
+            line(dest, error("Get https://" + name + "/v2/: dial tcp: lookup: no such host"));
+            return;
+        }
+        repository = name.substring(idx + 1);
+        layer = "sha256:" + OciLayout.hex(OciLayout.sha256().digest(image.layer));
+        if (registry.blobs.containsKey(layer)) {
+            line(dest, status(layer.substring(7, 19), "Layer already exists"));
+        } else {
+            line(dest, status(layer.substring(7, 19), "Preparing"));
+            registry.putBlob(image.layer);
+            line(dest, status(layer.substring(7, 19), "Pushed"));
+        }
+        if (pushDrops.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+            dest.flush();
+            throw new DropConnection();
+        }
+        if (pushFailures.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+            line(dest, error("received unexpected HTTP status: 503 Service Unavailable"));
+            return;
+        }
+        config = registry.putBlob(image.labels.toString().getBytes(StandardCharsets.UTF_8));
+        manifest = new JsonObject();
+        manifest.addProperty("schemaVersion", 2);
+        manifest.addProperty("mediaType", Descriptor.MANIFEST);
+        manifest.add("config", descriptor(Descriptor.CONFIG, config, image.labels.toString().length()));
+        manifest.add("layers", new JsonArray());
+        manifest.getAsJsonArray("layers").add(descriptor(Descriptor.LAYER, layer, image.layer.length));
+        bytes = manifest.toString().getBytes(StandardCharsets.UTF_8);
+        registry.putManifest(repository, tag, Descriptor.MANIFEST, bytes);
+        line(dest, status(null, tag + ": digest: sha256:" + OciLayout.hex(OciLayout.sha256().digest(bytes)) + " size: " + bytes.length));
+    }
+
+    private Image image(String name) {
+        String id;
+
+        id = name.startsWith("sha256:") ? name : lookup(name);
+        return id == null ? null : images.get(id);
+    }
+
+    //--
+
+    private static JsonObject descriptor(String mediaType, String digest, long size) {
+        JsonObject result;
+
+        result = new JsonObject();
+        result.addProperty("mediaType", mediaType);
+        result.addProperty("digest", digest);
+        result.addProperty("size", size);
+        return result;
+    }
+
+    private static JsonObject stream(String str) {
+        JsonObject result;
+
+        result = new JsonObject();
+        result.addProperty("stream", str);
+        return result;
+    }
+
+    private static JsonObject status(String id, String status) {
+        JsonObject result;
+
+        result = new JsonObject();
+        result.addProperty("status", status);
+        if (id != null) {
+            result.addProperty("id", id);
+        }
+        return result;
+    }
+
+    private static JsonObject error(String message) {
+        JsonObject result;
+
+        result = new JsonObject();
+        result.add("errorDetail", new JsonObject());
+        result.getAsJsonObject("errorDetail").addProperty("message", message);
+        result.addProperty("error", message);
+        return result;
+    }
+
+    private static String message(String message) {
+        JsonObject result;
+
+        result = new JsonObject();
+        result.addProperty("message", message);
+        return result.toString();
+    }
+
+    private static void line(OutputStream dest, JsonElement json) throws IOException {
+        dest.write((json.toString() + "\r\n").getBytes(StandardCharsets.UTF_8));
+        dest.flush();
+    }
+
+    private static Map<String, List<String>> query(String raw) {
+        Map<String, List<String>> result;
+        int idx;
+
+        result = new HashMap<>();
+        if (raw != null) {
+            for (String pair : raw.split("&")) {
+                idx = pair.indexOf('=');
+                if (idx != -1) {
+                    result.computeIfAbsent(decode(pair.substring(0, idx)), k -> new ArrayList<>()).add(decode(pair.substring(idx + 1)));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static String decode(String str) {
+        return URLDecoder.decode(str, StandardCharsets.UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes;
+
+        if (contentType != null) {
+            exchange.getResponseHeaders().add("Content-Type", contentType);
+        }
+        bytes = body == null ? null : body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes == null ? -1 : bytes.length);
+        if (bytes != null) {
+            try (OutputStream dest = exchange.getResponseBody()) {
+                dest.write(bytes);
+            }
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** thrown by handlers to close the connection without completing the response; the server then closes the socket */
+    private static class DropConnection extends RuntimeException {
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,447 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild;
+
+import com.github.dockerjava.api.DockerClient;
+import com.github.dockerjava.api.command.BuildImageCmd;
+import com.github.dockerjava.core.DockerClientImpl;
+import net.oneandone.maven.plugins.dockerbuild.model.BuildCache;
+import net.oneandone.maven.plugins.dockerbuild.model.BuildListener;
+import net.oneandone.maven.plugins.dockerbuild.model.BuildRecord;
+import net.oneandone.maven.plugins.dockerbuild.model.Context;
+import net.oneandone.maven.plugins.dockerbuild.model.Dockerfile;
+import net.oneandone.maven.plugins.dockerbuild.model.LocalCache;
+import net.oneandone.maven.plugins.dockerbuild.model.Phases;
+import net.oneandone.maven.plugins.dockerbuild.model.ThinBuild;
+import net.oneandone.maven.plugins.dockerbuild.model.Transport;
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.apache.maven.project.MavenProject;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Build and push against in-process daemon and registry stubs */
+public class DaemonTest {
+    @Test
+    public void build() throws Exception {
+        World world;
+        Context context;
+        String id;
+
+        world = World.create();
+        try (DaemonStub daemon = DaemonStub.start(null);
+             Transport http = transport(daemon, 4);
+             DockerClient docker = DockerClientImpl.getInstance(daemon.config(), http)) {
+            context = context(world, "FROM scratch\nCOPY app.war /webapps/\n", "app.war", new byte[1000], "unused.txt", new byte[10]);
+            id = build(docker, context, null, "registry/app:1", Collections.singletonMap(BuildCache.LABEL, "fp"));
+            assertTrue(daemon.lookup("registry/app:1").startsWith("sha256:" + id), id);
+            assertEquals(Arrays.asList("Dockerfile", "app.war", "unused.txt"), sorted(daemon.builds.get(0).entries));
+            assertEquals("fp", docker.inspectImageCmd("registry/app:1").exec().getConfig().getLabels().get(BuildCache.LABEL));
+            docker.tagImageCmd("registry/app:1", "registry/app", "2").exec();
+            assertEquals(daemon.lookup("registry/app:1"), daemon.lookup("registry/app:2"));
+        }
+    }
+
+    @Test
+    public void includes() throws Exception {
+        World world;
+        Context context;
+
+        world = World.create();
+        try (DaemonStub daemon = DaemonStub.start(null);
+             Transport http = transport(daemon, 4);
+             DockerClient docker = DockerClientImpl.getInstance(daemon.config(), http)) {
+            context = context(world, "FROM scratch\nCOPY app.war /webapps/\n", "app.war", new byte[1000], "unused.txt", new byte[10]);
+            build(docker, context, Arrays.asList("Dockerfile", "app.war"), "registry/app:1", Collections.emptyMap());
+            assertEquals(Arrays.asList("Dockerfile", "app.war"), sorted(daemon.builds.get(0).entries));
+        }
+    }
+
+    @Test
+    public void buildFailure() throws Exception {
+        World world;
+        Context context;
+        MojoExecutionException e;
+
+        world = World.create();
+        try (DaemonStub daemon = DaemonStub.start(null);
+             Transport http = transport(daemon, 4);
+             DockerClient docker = DockerClientImpl.getInstance(daemon.config(), http)) {
+            context = context(world, "FROM scratch\nRUN FAIL\n");
+            e = assertThrows(MojoExecutionException.class, () -> build(docker, context, null, "registry/app:1", Collections.emptyMap()));
+            assertTrue(e.getMessage().contains("returned a non-zero code"), e.getMessage());
+        }
+    }
+
+    @Test
+    public void push() throws Exception {
+        World world;
+        Context context;
+        String image;
+
+        world = World.create();
+        try (RegistryStub registry = RegistryStub.start();
+             DaemonStub daemon = DaemonStub.start(registry);
+             Transport http = transport(daemon, 4);
+             DockerClient docker = DockerClientImpl.getInstance(daemon.config(), http)) {
+            image = registry.getAddress() + "/group/app:1";
+            context = context(world, "FROM scratch\n");
+            build(docker, context, null, image, Collections.emptyMap());
+            push(world, registry, image).doExecute(docker);
+            assertNotNull(registry.manifests.get("group/app:1"));
+            assertEquals(1, daemon.pushAuths.size());
+            assertTrue(daemon.pushAuths.get(0).contains("\"username\":\"user\""), daemon.pushAuths.get(0));
+            assertEquals(3, registry.blobs.size()); // layer, config and manifest
+        }
+    }
+
+    @Test
+    public void pushVariants() throws Exception {
+        World world;
+        String image;
+        String debug;
+
+        world = World.create();
+        try (RegistryStub registry = RegistryStub.start();
+             DaemonStub daemon = DaemonStub.start(registry);
+             Transport http = transport(daemon, 4);
+             DockerClient docker = DockerClientImpl.getInstance(daemon.config(), http)) {
+            image = registry.getAddress() + "/group/app:1";
+            debug = registry.getAddress() + "/group/app:1-debug";
+            build(docker, context(world, "FROM scratch\n"), null, image, Collections.emptyMap());
+            build(docker, context(world, "FROM scratch\nCOPY debug /\n", "debug", new byte[] { 1 }), null, debug, Collections.emptyMap());
+            push(world, registry, image, debug).doExecute(docker);
+            assertNotNull(registry.manifests.get("group/app:1"));
+            assertNotNull(registry.manifests.get("group/app:1-debug"));
+            assertEquals(2, daemon.pushAuths.size()); // one push per image
+        }
+    }
+
+    @Test
+    public void pushRetry() throws Exception {
+        World world;
+        Context context;
+        String image;
+
+        world = World.create();
+        try (RegistryStub registry = RegistryStub.start();
+             DaemonStub daemon = DaemonStub.start(registry);
+             Transport http = transport(daemon, 4);
+             DockerClient docker = DockerClientImpl.getInstance(daemon.config(), http)) {
+            image = registry.getAddress() + "/group/app:1";
+            context = context(world, "FROM scratch\n");
+            build(docker, context, null, image, Collections.emptyMap());
+            daemon.pushFailures.set(2);
+            push(world, registry, image).doExecute(docker);
+            assertNotNull(registry.manifests.get("group/app:1"));
+            assertEquals(3, daemon.pushAuths.size());
+        }
+    }
+
+    @Test
+    public void pushDropped() throws Exception {
+        World world;
+        Context context;
+        String image;
+
+        world = World.create();
+        try (RegistryStub registry = RegistryStub.start();
+             DaemonStub daemon = DaemonStub.start(registry);
+             Transport http = transport(daemon, 4);
+             DockerClient docker = DockerClientImpl.getInstance(daemon.config(), http)) {
+            image = registry.getAddress() + "/group/app:1";
+            context = context(world, "FROM scratch\n");
+            build(docker, context, null, image, Collections.emptyMap());
+            daemon.pushDrops.set(1);
+            push(world, registry, image).doExecute(docker);
+            assertNotNull(registry.manifests.get("group/app:1"));
+            assertEquals(2, daemon.pushAuths.size());
+        }
+    }
+
+    @Test
+    public void pushFatal() throws Exception {
+        World world;
+        IOException e;
+
+        world = World.create();
+        try (RegistryStub registry = RegistryStub.start();
+             DaemonStub daemon = DaemonStub.start(registry);
+             Transport http = transport(daemon, 4);
+             DockerClient docker = DockerClientImpl.getInstance(daemon.config(), http)) {
+            e = assertThrows(IOException.class, () -> push(world, registry, registry.getAddress() + "/group/missing:1").doExecute(docker));
+            assertTrue(e.getMessage().contains("does not exist locally"), e.getMessage());
+            assertEquals(1, daemon.pushAuths.size()); // not retried
+        }
+    }
+
+    @Test
+    public void cacheMiss() throws Exception {
+        World world;
+        Context context;
+        BuildRecord first;
+        BuildRecord second;
+
+        world = World.create();
+        try (DaemonStub daemon = DaemonStub.start(null);
+             Transport http = transport(daemon, 4);
+             DockerClient docker = DockerClientImpl.getInstance(daemon.config(), http)) {
+            context = context(world, "FROM scratch\nARG version\nRUN install $version\nCOPY app.war /webapps/\n", "app.war", new byte[10]);
+            first = record(docker, context, "1.0-20240101-120000-000");
+            assertEquals("cache miss at step 2/4 'ARG version': no previous build to compare with", first.explain(null));
+            assertNull(record(docker, context, "1.0-20240101-120000-000").explain(first));
+            second = record(docker, context, "1.0-20240102-120000-000");
+            assertEquals(2, second.firstMiss());
+            assertEquals("cache miss at step 3/4 'RUN install $version': build argument version changed: "
+                    + "'1.0-20240101-120000-000' -> '1.0-20240102-120000-000' (contains a timestamp that changes with every build)",
+                    second.explain(first));
+        }
+    }
+
+    @Test
+    public void thin() throws Exception {
+        World world;
+        Context context;
+        BuildRecord previous;
+        ThinBuild thin;
+        ByteArrayOutputStream tar;
+
+        world = World.create();
+        try (DaemonStub daemon = DaemonStub.start(null);
+             Transport http = transport(daemon, 4);
+             DockerClient docker = DockerClientImpl.getInstance(daemon.config(), http)) {
+            context = context(world, "FROM scratch\nARG version\nRUN install\nCOPY app.war /webapps/ROOT.war\nCMD run\n",
+                    "app.war", "v1".getBytes(StandardCharsets.UTF_8), "big.bin", new byte[100_000]);
+            previous = record(docker, context, "1");
+            context.getDirectory().join("app.war").writeString("v2");
+            thin = ThinBuild.plan(previous, "g:a:1", Collections.singletonMap("version", "1"),
+                    BuildCache.fileDigests(context.getDirectory(), null), Collections.emptyMap(), context.getDockerfile());
+            assertNull(thin.impossible);
+            assertNull(thin.verify(docker, previous.files));
+            tar = new ByteArrayOutputStream();
+            thin.tar(context.getDirectory(), tar);
+            docker.buildImageCmd().withTarInputStream(new ByteArrayInputStream(tar.toByteArray())).withTags(Collections.singleton("app:2"))
+                    .exec(new BuildListener(new SystemStreamLog(), new PrintWriter(new StringWriter()), docker)).awaitImageId();
+            assertEquals(Arrays.asList("Dockerfile", "app.war"), sorted(daemon.builds.get(1).entries));
+            assertEquals("v2", new String(daemon.file("app:2", "/webapps/ROOT.war"), StandardCharsets.UTF_8));
+
+            // the previous image does not contain what the record says
+            previous.files.put("app.war", "0000");
+            assertEquals("/webapps/ROOT.war in the previous image does not match what COPY app.war /webapps/ROOT.war produced",
+                    thin.verify(docker, previous.files));
+
+            // a global ARG the stage does not re-declare expands to the empty string
+            thin = ThinBuild.plan(previous, "g:a:1", Collections.singletonMap("version", "1"),
+                    BuildCache.fileDigests(context.getDirectory(), null), Collections.emptyMap(),
+                    Dockerfile.parse("ARG war=app.war\nFROM scratch\nARG version\nRUN install\nCOPY ${war} /webapps/ROOT.war\nCMD run\n"));
+            assertEquals("line 5: cannot resolve ${war}", thin.impossible);
+        }
+    }
+
+    /** every daemon starts empty, like on CI agents; concurrent stores share the cache directory */
+    @Test
+    public void localCache() throws Exception {
+        World world;
+        FileNode dir;
+        Context context;
+        LocalCache cache;
+        ExecutorService executor;
+        List<Future<Void>> futures;
+
+        world = World.create();
+        dir = world.getTemp().createTempDirectory();
+        context = context(world, "FROM scratch\nCOPY app.war /webapps/\n", "app.war", new byte[1000]);
+        executor = Executors.newFixedThreadPool(4);
+        try {
+            futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                String fingerprint = "fp" + i;
+
+                futures.add(executor.submit(() -> {
+                    try (DaemonStub daemon = DaemonStub.start(null);
+                         Transport http = transport(daemon, 4);
+                         DockerClient docker = DockerClientImpl.getInstance(daemon.config(), http)) {
+                        build(docker, context, null, "app:" + fingerprint, Collections.singletonMap(BuildCache.LABEL, fingerprint));
+                        LocalCache.open(new SystemStreamLog(), dir, 1024 * 1024).store(docker, "app:" + fingerprint,
+                                Arrays.asList(LocalCache.fingerprintName(fingerprint), "app:latest"));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+            try (DaemonStub daemon = DaemonStub.start(null);
+                 Transport http = transport(daemon, 4);
+                 DockerClient docker = DockerClientImpl.getInstance(daemon.config(), http)) {
+                cache = LocalCache.open(new SystemStreamLog(), dir, 1024 * 1024);
+                assertFalse(cache.restore(docker, LocalCache.fingerprintName("other"), "app:2", true));
+                for (int i = 0; i < 4; i++) {
+                    assertTrue(cache.restore(docker, LocalCache.fingerprintName("fp" + i), "app:" + i, true));
+                    assertEquals("fp" + i, docker.inspectImageCmd("app:" + i).exec().getConfig().getLabels().get(BuildCache.LABEL));
+                }
+                assertTrue(cache.restore(docker, "app:latest", "app:latest", false));
+                assertEquals(5, daemon.loads.get());
+                assertTrue(dir.join("stats.json").readString().contains("\"hits\": 4"), dir.join("stats.json").readString());
+            }
+        } finally {
+            executor.shutdownNow();
+            dir.deleteTree();
+        }
+    }
+
+    private static BuildRecord record(DockerClient docker, Context context, String version) throws Exception {
+        BuildListener listener;
+        Map<String, String> arguments;
+
+        listener = new BuildListener(new SystemStreamLog(), new PrintWriter(new StringWriter()), docker);
+        arguments = Collections.singletonMap("version", version);
+        build(docker, context, null, "app:1", Collections.emptyMap(), arguments, listener);
+        return new BuildRecord("g:a:1", arguments, BuildCache.fileDigests(context.getDirectory(), null), Collections.emptyMap(),
+                listener.getSteps(), docker.inspectImageCmd("app:1").exec().getId());
+    }
+
+    //--
+
+    static Transport transport(DaemonStub daemon, int maxConnections) throws MojoExecutionException {
+        return transport(daemon, Transport.ZERODEP, maxConnections);
+    }
+
+    static Transport transport(DaemonStub daemon, String kind, int maxConnections) throws MojoExecutionException {
+        return Transport.create(new SystemStreamLog(), daemon.config(), kind, maxConnections, 5, 0, null);
+    }
+
+    static String build(DockerClient docker, Context context, List<String> includes, String tag, Map<String, String> labels)
+            throws IOException, MojoExecutionException {
+        return build(docker, context, includes, tag, labels, Collections.emptyMap(),
+                new BuildListener(new SystemStreamLog(), new PrintWriter(new StringWriter()), docker));
+    }
+
+    /** build with the build goal's upload: the context is tarred in the background while it's uploaded */
+    static String build(DockerClient docker, Context context, List<String> includes, String tag, Map<String, String> labels,
+                        Map<String, String> arguments, BuildListener listener) throws IOException, MojoExecutionException {
+        BuildImageCmd build;
+
+        build = docker.buildImageCmd().withTags(Collections.singleton(tag)).withLabels(labels);
+        for (Map.Entry<String, String> entry : arguments.entrySet()) {
+            build.withBuildArg(entry.getKey(), entry.getValue());
+        }
+        return Build.upload(new SystemStreamLog(), new Phases(), context, includes, build, listener, 30, 30);
+    }
+
+    /** @param files alternating names and contents */
+    static Context context(World world, String dockerfile, Object... files) throws IOException, MojoExecutionException {
+        FileNode dir;
+        FileNode jar;
+        Map<String, byte[]> entries;
+
+        dir = world.getTemp().createTempDirectory();
+        jar = dir.join("dockerbuild.jar");
+        entries = new LinkedHashMap<>();
+        entries.put("META-INF/MANIFEST.MF", "Manifest-Version: 1.0\n".getBytes(StandardCharsets.UTF_8));
+        entries.put("Dockerfile", dockerfile.getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < files.length; i += 2) {
+            entries.put((String) files[i], (byte[]) files[i + 1]);
+        }
+        try (OutputStream dest = jar.newOutputStream(); ZipOutputStream zip = new ZipOutputStream(dest)) {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                zip.putNextEntry(new ZipEntry(entry.getKey()));
+                zip.write(entry.getValue());
+                zip.closeEntry();
+            }
+        }
+        return Context.create(jar, "test", null, dir.join("context"));
+    }
+
+    /** @return push goal configured for the image and variant images, with credentials for the registry */
+    private static Push push(World world, RegistryStub registry, String image, String... variants) throws Exception {
+        FileNode dir;
+        Push push;
+        MavenProject project;
+
+        dir = world.getTemp().createTempDirectory();
+        dir.join("image").writeString(image);
+        for (int i = 0; i < variants.length; i++) {
+            dir.join("variants", "v" + i).mkdirs().join("image").writeString(variants[i]);
+        }
+        dir.join("config.json").writeString("{\"auths\":{\"" + registry.getAddress() + "\":{\"auth\":\""
+                + Base64.getEncoder().encodeToString("user:secret".getBytes(StandardCharsets.UTF_8)) + "\"}}}");
+        project = new MavenProject();
+        project.setGroupId("group");
+        project.setArtifactId("app");
+        push = new Push();
+        set(push, "buildDirectory", dir.getAbsolute());
+        set(push, "project", project);
+        set(push, "pushRetryDelay", 0);
+        push.initConfigPath(dir.getAbsolute());
+        push.phases = new Phases();
+        return push;
+    }
+
+    /** inject a mojo parameter like Maven does */
+    private static void set(Object mojo, String name, Object value) throws ReflectiveOperationException {
+        Field field;
+
+        for (Class<?> clazz = mojo.getClass(); clazz != null; clazz = clazz.getSuperclass()) {
+            try {
+                field = clazz.getDeclaredField(name);
+            } catch (NoSuchFieldException e) {
+                continue;
+            }
+            field.setAccessible(true);
+            field.set(mojo, value);
+            return;
+        }
+        throw new NoSuchFieldException(name);
+    }
+
+    private static List<String> sorted(List<String> lst) {
+        List<String> result;
+
+        result = new ArrayList<>(lst);
+        Collections.sort(result);
+        return result;
+    }
+}
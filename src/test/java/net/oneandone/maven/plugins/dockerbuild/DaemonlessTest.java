@@ -0,0 +1,208 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild;
+
+import com.google.gson.JsonObject;
+import net.oneandone.maven.plugins.dockerbuild.model.Credentials;
+import net.oneandone.maven.plugins.dockerbuild.model.Daemonless;
+import net.oneandone.maven.plugins.dockerbuild.model.Descriptor;
+import net.oneandone.maven.plugins.dockerbuild.model.Dockerfile;
+import net.oneandone.maven.plugins.dockerbuild.model.OciLayout;
+import net.oneandone.maven.plugins.dockerbuild.model.Registry;
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.jupiter.api.Test;
+import org.kamranzafar.jtar.TarEntry;
+import org.kamranzafar.jtar.TarHeader;
+import org.kamranzafar.jtar.TarInputStream;
+import org.kamranzafar.jtar.TarOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DaemonlessTest {
+    @Test
+    public void unsupported() throws IOException {
+        assertNull(Daemonless.unsupported(Dockerfile.parse("FROM tomcat\nARG war\nENV A=1\nCOPY --chown=1000:1000 ${war} /webapps/\nCMD run\n")));
+        assertEquals("line 2: RUN", Daemonless.unsupported(Dockerfile.parse("FROM tomcat\nRUN ls\n")));
+        assertEquals("multi-stage build", Daemonless.unsupported(Dockerfile.parse("FROM a AS x\nFROM b\nCOPY --from=x /a /b\n")));
+        assertEquals("line 2: COPY --chown with names", Daemonless.unsupported(Dockerfile.parse("FROM a\nCOPY --chown=tomcat x /y\n")));
+    }
+
+    @Test
+    public void dockerignore() throws IOException {
+        FileNode dir;
+
+        dir = World.create().getTemp().createTempDirectory();
+        try {
+            assertNull(Daemonless.unsupported(Dockerfile.parse("FROM a\nCOPY x /y\n"), dir));
+            dir.join(".dockerignore").writeString("*.log\n");
+            assertEquals(".dockerignore", Daemonless.unsupported(Dockerfile.parse("FROM a\nCOPY x /y\n"), dir));
+        } finally {
+            dir.deleteTree();
+        }
+    }
+
+    /** ENTRYPOINT resets the CMD of the base image, but not a CMD of the same stage */
+    @Test
+    public void entrypoint() throws Exception {
+        World world;
+        FileNode dir;
+
+        world = World.create();
+        dir = world.getTemp().createTempDirectory();
+        try (RegistryStub stub = RegistryStub.start()) {
+            base(stub);
+            assertEquals("[\"run\"]", cmd(world, dir, stub, "CMD [\"run\"]\nENTRYPOINT [\"app\"]\n"));
+            assertNull(cmd(world, dir, stub, "ENTRYPOINT [\"app\"]\n"));
+            assertEquals("[\"run\"]", cmd(world, dir, stub, "ENTRYPOINT [\"app\"]\nCMD [\"run\"]\n"));
+        } finally {
+            dir.deleteTree();
+        }
+    }
+
+    /** @return Cmd of the image built from the base image and the specified instructions; null if not set */
+    private static String cmd(World world, FileNode dir, RegistryStub stub, String instructions) throws IOException {
+        OciLayout layout;
+        Descriptor manifest;
+        JsonObject config;
+
+        layout = OciLayout.open(dir.join("oci"));
+        manifest = new Daemonless(new SystemStreamLog(), Dockerfile.parse("FROM " + stub.getAddress() + "/base:1\n" + instructions),
+                dir, new HashMap<>(), new Credentials(world, dir.join("nodocker").getAbsolute(), new SystemStreamLog()), layout, null).build();
+        config = layout.readJson(layout.references(manifest).get(0)).getAsJsonObject("config");
+        assertEquals("[\"app\"]", config.get("Entrypoint").toString());
+        return config.has("Cmd") && !config.get("Cmd").isJsonNull() ? config.get("Cmd").toString() : null;
+    }
+
+    @Test
+    public void subst() {
+        Map<String, String> vars;
+
+        vars = new HashMap<>();
+        vars.put("a", "1");
+        vars.put("empty", "");
+        assertEquals("1-1-x-\\y-$a", Daemonless.subst("$a-${a}-${empty:-x}-\\y-\\$a", vars));
+        assertEquals("set-", Daemonless.subst("${a:+set}-${undefined}", vars));
+        assertEquals(Arrays.asList("a=1", "b=x y", "c"), Daemonless.shellWords("a=1 b=\"x y\" c"));
+    }
+
+    @Test
+    public void buildAndPush() throws Exception {
+        World world;
+        FileNode dir;
+        FileNode context;
+        OciLayout layout;
+        Descriptor manifest;
+        JsonObject config;
+        List<Descriptor> references;
+        Map<String, String> actuals;
+        Registry registry;
+
+        world = World.create();
+        dir = world.getTemp().createTempDirectory();
+        try (RegistryStub stub = RegistryStub.start()) {
+            base(stub);
+            context = dir.join("context").mkdir();
+            context.join("app.war").writeString("war");
+            context.join("conf").mkdir().join("server.xml").writeString("<server/>");
+            layout = OciLayout.open(dir.join("oci"));
+            actuals = new HashMap<>();
+            actuals.put("war", "app.war");
+            manifest = new Daemonless(new SystemStreamLog(), Dockerfile.parse("ARG base=" + stub.getAddress() + "/base:1\n"
+                    + "FROM ${base}\nARG war\nENV CATALINA_HOME=/usr/local/tomcat PATH=$PATH:/bin\nWORKDIR $CATALINA_HOME\n"
+                    + "COPY ${war} webapps/ROOT.war\nCOPY conf/ conf/\nEXPOSE 8080\nLABEL a=b\nCMD [\"catalina.sh\", \"run\"]\n"),
+                    context, actuals, new Credentials(world, dir.join("nodocker").getAbsolute(), new SystemStreamLog()), layout, null).build();
+            assertNotNull(manifest);
+            references = layout.references(manifest);
+            assertEquals(4, references.size()); // config, base layer, 2 copies
+            config = layout.readJson(references.get(0));
+            assertEquals("[\"PATH=/usr/bin:/bin:/bin\",\"CATALINA_HOME=/usr/local/tomcat\"]",
+                    config.getAsJsonObject("config").get("Env").toString());
+            assertEquals("/usr/local/tomcat", config.getAsJsonObject("config").get("WorkingDir").getAsString());
+            assertEquals("[\"catalina.sh\",\"run\"]", config.getAsJsonObject("config").get("Cmd").toString());
+            assertTrue(config.getAsJsonObject("config").getAsJsonObject("ExposedPorts").has("8080/tcp"));
+            assertEquals(3, config.getAsJsonObject("rootfs").getAsJsonArray("diff_ids").size());
+            assertEquals(Arrays.asList("usr/", "usr/local/", "usr/local/tomcat/", "usr/local/tomcat/webapps/",
+                    "usr/local/tomcat/webapps/ROOT.war"), entries(layout, references.get(2)));
+            assertEquals(Arrays.asList("usr/", "usr/local/", "usr/local/tomcat/", "usr/local/tomcat/conf/",
+                    "usr/local/tomcat/conf/server.xml"), entries(layout, references.get(3)));
+
+            // push back into the same registry; the base layer is not uploaded again
+            layout.tag(manifest, stub.getAddress() + "/app:1");
+            registry = Registry.create(stub.getAddress(), null);
+            for (Descriptor blob : references) {
+                if (!registry.hasBlob("app", blob.digest)) {
+                    registry.upload("app", blob, layout.blob(blob.digest));
+                }
+            }
+            registry.putManifest("app", "1", layout.blob(manifest.digest).readBytes(), manifest.mediaType);
+            assertEquals(manifest.digest, registry.manifest("app", "1").digest);
+            assertEquals(4, (int) stub.requests.get("PUT")); // config, two layers, manifest
+        } finally {
+            dir.deleteTree();
+        }
+    }
+
+    private static void base(RegistryStub stub) throws IOException {
+        ByteArrayOutputStream layer;
+        String layerDigest;
+        String configDigest;
+        Descriptor config;
+
+        layer = new ByteArrayOutputStream();
+        try (TarOutputStream tar = new TarOutputStream(new GZIPOutputStream(layer))) {
+            tar.putNextEntry(new TarEntry(TarHeader.createHeader("etc/base", 4, 0, false, 0644)));
+            tar.write("base".getBytes(StandardCharsets.UTF_8));
+        }
+        layerDigest = stub.putBlob(layer.toByteArray());
+        configDigest = stub.putBlob(("{\"architecture\":\"amd64\",\"os\":\"linux\",\"config\":{\"Env\":[\"PATH=/usr/bin:/bin\"],\"Cmd\":[\"sh\"]},"
+                + "\"rootfs\":{\"type\":\"layers\",\"diff_ids\":[\"sha256:0000\"]},\"history\":[]}").getBytes(StandardCharsets.UTF_8));
+        config = new Descriptor(Descriptor.CONFIG, configDigest, stub.blobs.get(configDigest).length);
+        stub.putManifest("base", "1", Descriptor.MANIFEST, OciLayout.manifestJson(config, Collections.singletonList(
+                new Descriptor("application/vnd.docker.image.rootfs.diff.tar.gzip", layerDigest, layer.size()))).toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<String> entries(OciLayout layout, Descriptor layer) throws IOException {
+        List<String> result;
+        TarEntry entry;
+
+        result = new ArrayList<>();
+        try (InputStream src = layout.blob(layer.digest).newInputStream()) {
+            TarInputStream tar = new TarInputStream(new GZIPInputStream(src));
+            while ((entry = tar.getNextEntry()) != null) {
+                result.add(entry.getName());
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild;
+
+import net.oneandone.maven.plugins.dockerbuild.model.DeferredPush;
+import org.eclipse.aether.DefaultSessionData;
+import org.eclipse.aether.SessionData;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class DeferredPushTest {
+    @Test
+    public void lastModulePushesAll() {
+        SessionData data;
+        List<DeferredPush> all;
+
+        data = new DefaultSessionData();
+        assertNull(DeferredPush.add(data, Arrays.asList(new DeferredPush("g:a", "registry/a:1", null, "registry/a:fp-1"),
+                new DeferredPush("g:a", "registry/a:1-debug", null, null)), 3)); // with variant
+        assertNull(DeferredPush.add(data, Collections.emptyList(), 3)); // skipped module
+        assertEquals(2, DeferredPush.ready(data));
+        all = DeferredPush.add(data, Collections.singletonList(new DeferredPush("g:c", "registry/c:1", "/tmp/oci", null)), 3);
+        assertEquals(3, all.size());
+        assertEquals("g:a", all.get(0).project);
+        assertEquals("registry/a:fp-1", all.get(0).cache);
+        assertNull(all.get(0).layout);
+        assertEquals("registry/a:1-debug", all.get(1).image);
+        assertEquals("/tmp/oci", all.get(2).layout);
+        assertNull(all.get(2).cache);
+    }
+}
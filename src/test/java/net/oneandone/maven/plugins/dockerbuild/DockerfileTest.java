@@ -0,0 +1,143 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild;
+
+import net.oneandone.maven.plugins.dockerbuild.model.BuildArgument;
+import net.oneandone.maven.plugins.dockerbuild.model.Dockerfile;
+import net.oneandone.maven.plugins.dockerbuild.model.Instruction;
+import net.oneandone.maven.plugins.dockerbuild.model.Stage;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class DockerfileTest {
+    private static final String MULTI_STAGE = String.join("\n",
+            "# syntax=docker/dockerfile:1",
+            "ARG base=debian:11",
+            "ARG unused",
+            "FROM $base AS build",
+            "ARG base",
+            "RUN apt-get update && \\",
+            "# comment within continuation",
+            "    apt-get install -y make",
+            "",
+            "FROM build AS test",
+            "ARG testFlags",
+            "RUN make test",
+            "",
+            "FROM alpine:3 AS main",
+            "ARG war",
+            "copy --from=build /src/out /app",
+            "COPY --chown=1000 [\"${war}\", \"/usr/local/tomcat/webapps/ROOT.war\"]");
+
+    @Test
+    public void continuations() throws IOException {
+        Dockerfile file;
+        Instruction run;
+
+        file = Dockerfile.parse(MULTI_STAGE);
+        assertEquals(Arrays.asList("# syntax=docker/dockerfile:1"), file.directives);
+        assertEquals(2, file.globals.size());
+        assertEquals(3, file.stages.size());
+        run = file.stages.get(0).instructions.get(1);
+        assertEquals("RUN", run.keyword);
+        assertEquals(6, run.line);
+        assertEquals("apt-get update &&     apt-get install -y make", run.arguments);
+    }
+
+    @Test
+    public void stages() throws IOException {
+        Dockerfile file;
+        Stage main;
+
+        file = Dockerfile.parse(MULTI_STAGE);
+        main = file.stage(null);
+        assertEquals("main", main.name);
+        assertEquals("alpine:3", main.base);
+        assertEquals(main, file.stage("2"));
+        assertEquals("$base", file.stage("build").base);
+        assertThrows(IOException.class, () -> file.stage("nosuchstage"));
+        assertEquals(Arrays.asList(file.stages.get(0), main), file.closure(main));
+        assertEquals(Arrays.asList(file.stages.get(0), file.stages.get(1)), file.closure(file.stage("test")));
+    }
+
+    @Test
+    public void copySources() throws IOException {
+        Dockerfile file;
+        List<Instruction> copies;
+
+        file = Dockerfile.parse(MULTI_STAGE);
+        copies = file.stage("main").contextCopies();
+        assertEquals(1, copies.size());
+        assertEquals("1000", copies.get(0).flag("chown"));
+        assertEquals(Arrays.asList("${war}"), copies.get(0).sources());
+        assertEquals("/usr/local/tomcat/webapps/ROOT.war", copies.get(0).destination());
+    }
+
+    @Test
+    public void argumentScopes() throws IOException {
+        Dockerfile file;
+        Map<String, BuildArgument> formals;
+
+        file = Dockerfile.parse(MULTI_STAGE);
+        formals = file.formals(file.closure(file.stage("main")));
+        assertEquals(Arrays.asList("base", "unused", "war"), List.copyOf(formals.keySet()));
+        assertEquals("debian:11", formals.get("base").dflt);
+        assertNull(formals.get("war").dflt);
+    }
+
+    @Test
+    public void instructionScope() throws IOException {
+        Dockerfile file;
+        Stage stage;
+        Map<String, BuildArgument> scope;
+
+        file = Dockerfile.parse("ARG base=debian:11\nARG dir=app\nFROM $base\nARG base\nARG war=x.war\nCOPY $war $dir /\nARG late\n");
+        stage = file.stages.get(0);
+        scope = file.scope(stage, stage.instructions.get(2));
+        assertEquals(Arrays.asList("base", "war"), List.copyOf(scope.keySet()));
+        assertEquals("debian:11", scope.get("base").dflt);
+        assertEquals(3, file.scope(stage, null).size());
+    }
+
+    @Test
+    public void prune() throws IOException {
+        Dockerfile file;
+        Dockerfile pruned;
+
+        file = Dockerfile.parse("FROM a AS first\nFROM b\nFROM c\nCOPY --from=1 /x /y\n");
+        pruned = Dockerfile.parse(file.toString(file.closure(file.stage(null))));
+        assertEquals(2, pruned.stages.size());
+        assertEquals("b", pruned.stages.get(0).base);
+        assertEquals("0", pruned.stages.get(1).instructions.get(0).flag("from"));
+    }
+
+    @Test
+    public void escapeDirective() throws IOException {
+        Dockerfile file;
+
+        file = Dockerfile.parse("# escape=`\nFROM scratch\nCOPY a `\n  b /dest\n");
+        assertEquals(Arrays.asList("a", "b"), file.stage(null).contextCopies().get(0).sources());
+        assertEquals(file.toString(), Dockerfile.parse(file.toString()).toString());
+    }
+}
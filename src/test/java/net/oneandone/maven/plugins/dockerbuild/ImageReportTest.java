@@ -0,0 +1,74 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild;
+
+import net.oneandone.maven.plugins.dockerbuild.model.Dockerfile;
+import net.oneandone.maven.plugins.dockerbuild.model.ImageReport;
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ImageReportTest {
+    private static final String HISTORY = "["
+            + "{\"CreatedBy\":\"/bin/sh -c #(nop)  CMD [\\\"run\\\"]\",\"Size\":0},"
+            + "{\"CreatedBy\":\"/bin/sh -c #(nop) COPY dir:abc in /conf\",\"Size\":300},"
+            + "{\"CreatedBy\":\"/bin/sh -c #(nop) COPY file:abc in /app.war\",\"Size\":5000},"
+            + "{\"CreatedBy\":\"|1 war=app.war /bin/sh -c #(nop)  ARG war\",\"Size\":0},"
+            + "{\"CreatedBy\":\"/bin/sh -c #(nop) ADD file:base in /\",\"Size\":100000}"
+            + "]";
+
+    @Test
+    public void report() throws IOException {
+        FileNode context;
+        ImageReport report;
+
+        context = World.create().getTemp().createTempDirectory();
+        try {
+            context.join("app.war").writeBytes(new byte[5000]);
+            context.join("conf").mkdir().join("a.xml").writeBytes(new byte[200]);
+            context.join("conf/b.xml").writeBytes(new byte[100]);
+            report = ImageReport.create("app:1", HISTORY, Dockerfile.parse("FROM base\nARG war\nCOPY ${war} /app.war\nCOPY conf /conf\n"
+                    + "CMD [\"run\"]\n").stages.get(0), context, Collections.singletonMap("war", "app.war"));
+            assertEquals(105300, report.size());
+            assertEquals(5300, report.addedSize());
+            assertNull(report.layers.get(0).instruction);
+            assertEquals(3, report.layers.get(2).instruction.line);
+            assertEquals("app.war", report.files.get(0).path);
+            assertEquals("conf/a.xml", report.files.get(1).path);
+            assertEquals(3, report.files.size());
+            assertTrue(report.check(null, null).isEmpty());
+            assertEquals(3, report.check(ImageReport.parseSize("100k"), 4096L).size()); // image, base layer, war layer
+            assertTrue(report.toString().contains("line 3: COPY ${war} /app.war"), report.toString());
+        } finally {
+            context.deleteTree();
+        }
+    }
+
+    @Test
+    public void sizes() {
+        assertEquals(1024, ImageReport.parseSize("1k"));
+        assertEquals(200L * 1024 * 1024, ImageReport.parseSize("200MB"));
+        assertEquals(2L * 1024 * 1024 * 1024, ImageReport.parseSize("2g"));
+        assertEquals("1.5 MB", ImageReport.formatSize(1536 * 1024));
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import net.oneandone.maven.plugins.dockerbuild.model.Metrics;
+import net.oneandone.maven.plugins.dockerbuild.model.Phases;
+import org.eclipse.aether.DefaultSessionData;
+import org.eclipse.aether.SessionData;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MetricsTest {
+    @Test
+    public void execution() {
+        JsonObject execution;
+        String prometheus;
+
+        execution = execution("g:a", "build", "resolve", 100, "build", 2000);
+        assertEquals(2, execution.getAsJsonArray("phases").size());
+        assertEquals("resolve", execution.getAsJsonArray("phases").get(0).getAsJsonObject().get("name").getAsString());
+        assertTrue(execution.get("success").getAsBoolean());
+        prometheus = Metrics.toPrometheus(execution);
+        assertTrue(prometheus.contains("# TYPE dockerbuild_phase_seconds gauge\n"), prometheus);
+        assertTrue(prometheus.contains("dockerbuild_phase_seconds{project=\"g:a\",goal=\"build\",phase=\"resolve\"} 0.100\n"), prometheus);
+        assertTrue(prometheus.contains("dockerbuild_phase_seconds{project=\"g:a\",goal=\"build\",phase=\"build\"} 2.000\n"), prometheus);
+        assertTrue(prometheus.contains("dockerbuild_goal_success{project=\"g:a\",goal=\"build\"} 1\n"), prometheus);
+    }
+
+    @Test
+    public void repeatedPhases() {
+        String prometheus;
+
+        prometheus = Metrics.toPrometheus(execution("g:a", "push", "push", 300, "push", 200));
+        assertTrue(prometheus.contains("phase=\"push\"} 0.500\n"), prometheus);
+    }
+
+    @Test
+    public void reactor() {
+        SessionData data;
+        Metrics metrics;
+        JsonObject json;
+        String prometheus;
+
+        data = new DefaultSessionData();
+        Metrics.collect(data, execution("g:a", "build", "resolve", 100, "build", 2000));
+        Metrics.collect(data, execution("g:b", "build", "resolve", 50, "build", 1000));
+        Metrics.collect(data, execution("g:a", "push", "auth", 10, "push", 500));
+        metrics = new Metrics(Metrics.collected(data));
+        assertEquals(Arrays.asList("build: 2 module(s), total 3150 ms, resolve 150 ms, build 3000 ms",
+                "push: 1 module(s), total 510 ms, auth 10 ms, push 500 ms"), metrics.summary());
+        json = metrics.toJson();
+        assertEquals(3, json.getAsJsonArray("executions").size());
+        assertEquals(2, json.getAsJsonObject("goals").getAsJsonObject("build").getAsJsonObject("resolve").get("count").getAsInt());
+        prometheus = metrics.toPrometheus();
+        assertTrue(prometheus.contains("dockerbuild_reactor_seconds{goal=\"build\",phase=\"build\"} 3.000\n"), prometheus);
+        assertTrue(prometheus.contains("dockerbuild_reactor_count{goal=\"push\",phase=\"total\"} 1\n"), prometheus);
+    }
+
+    @Test
+    public void trace() {
+        SessionData data;
+        JsonObject trace;
+        List<JsonObject> spans;
+        Map<String, Integer> processes;
+        JsonObject build;
+
+        data = new DefaultSessionData();
+        Metrics.collect(data, execution("g:a", "build", "resolve", 100, "build", 2000));
+        Metrics.collect(data, execution("g:b", "build", "resolve", 50, "build", 1000));
+        Metrics.collect(data, execution("g:a", "push", "auth", 10, "push", 500));
+        trace = new Metrics(Metrics.collected(data)).toTrace();
+        spans = new ArrayList<>();
+        processes = new HashMap<>();
+        for (JsonElement element : trace.getAsJsonArray("traceEvents")) {
+            if (element.getAsJsonObject().get("ph").getAsString().equals("X")) {
+                spans.add(element.getAsJsonObject());
+            } else if (element.getAsJsonObject().get("name").getAsString().equals("process_name")) {
+                processes.put(element.getAsJsonObject().getAsJsonObject("args").get("name").getAsString(),
+                        element.getAsJsonObject().get("pid").getAsInt());
+            }
+        }
+        assertEquals(2, processes.size());
+        assertEquals(9, spans.size()); // one goal and two phases per execution
+        build = spans.get(2);
+        assertEquals("build", build.get("name").getAsString());
+        assertEquals(100_000, build.get("ts").getAsLong() - spans.get(0).get("ts").getAsLong());
+        assertEquals(2_000_000, build.get("dur").getAsLong());
+        assertEquals((int) processes.get("g:a"), build.get("pid").getAsInt());
+        assertEquals((int) processes.get("g:b"), spans.get(3).get("pid").getAsInt());
+    }
+
+    /** two consecutive phases */
+    private static JsonObject execution(String project, String goal, String first, long firstDuration, String second, long secondDuration) {
+        Phases phases;
+        long start;
+
+        phases = new Phases();
+        start = phases.getStarted();
+        phases.add(first, start, start + firstDuration);
+        phases.add(second, start + firstDuration, start + firstDuration + secondDuration);
+        return Metrics.execution(project, goal, true, phases, start + firstDuration + secondDuration, null);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild;
+
+import net.oneandone.maven.plugins.dockerbuild.model.Descriptor;
+import net.oneandone.maven.plugins.dockerbuild.model.OciLayout;
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.junit.jupiter.api.Test;
+import org.kamranzafar.jtar.TarEntry;
+import org.kamranzafar.jtar.TarHeader;
+import org.kamranzafar.jtar.TarOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OciLayoutTest {
+    @Test
+    public void dedupe() throws IOException {
+        FileNode dir;
+        OciLayout layout;
+        Descriptor first;
+        Descriptor second;
+        Descriptor config;
+        Descriptor manifest;
+
+        dir = World.create().getTemp().createTempDirectory();
+        try {
+            layout = OciLayout.open(dir);
+            first = layout.write("layer".getBytes(StandardCharsets.UTF_8), Descriptor.LAYER);
+            second = layout.write("layer".getBytes(StandardCharsets.UTF_8), Descriptor.LAYER);
+            assertEquals(first.digest, second.digest);
+            assertTrue(first.digest.startsWith("sha256:"));
+            assertEquals(5, layout.getWritten());
+            assertEquals(5, layout.getDeduplicated());
+            assertEquals(Descriptor.LAYER, layout.layerType(first.digest));
+            assertEquals(1, dir.join("blobs/sha256").list().size());
+
+            config = layout.write("{}".getBytes(StandardCharsets.UTF_8), Descriptor.CONFIG);
+            manifest = layout.writeManifest(config, Arrays.asList(first));
+            assertNull(layout.lookup("foo:1"));
+            layout.tag(manifest, "foo:1");
+            layout.tag(manifest, "foo:1");
+            assertEquals(manifest.digest, layout.lookup("foo:1").digest);
+            assertEquals(Arrays.asList(config.digest, first.digest), Arrays.asList(
+                    layout.references(manifest).get(0).digest, layout.references(manifest).get(1).digest));
+            layout.exportTar(manifest, "foo:1", dir.join("out.tar"));
+            assertTrue(dir.join("out.tar").size() > 0);
+        } finally {
+            dir.deleteTree();
+        }
+    }
+
+    /** least recently used images are evicted, layers shared with remaining images are kept */
+    @Test
+    public void evict() throws IOException {
+        FileNode dir;
+        OciLayout layout;
+        Descriptor base;
+        Descriptor layerA;
+        Descriptor layerB;
+        Descriptor a;
+        Descriptor b;
+
+        dir = World.create().getTemp().createTempDirectory();
+        try {
+            layout = OciLayout.open(dir);
+            base = layout.write(new byte[1000], Descriptor.LAYER);
+            layerA = layout.write("a".getBytes(StandardCharsets.UTF_8), Descriptor.LAYER);
+            layerB = layout.write("b".getBytes(StandardCharsets.UTF_8), Descriptor.LAYER);
+            a = layout.writeManifest(layout.write("{\"a\":1}".getBytes(StandardCharsets.UTF_8), Descriptor.CONFIG), Arrays.asList(base, layerA));
+            b = layout.writeManifest(layout.write("{\"b\":1}".getBytes(StandardCharsets.UTF_8), Descriptor.CONFIG), Arrays.asList(base, layerB));
+            layout.tag(a, "a");
+            layout.tag(b, "b");
+            layout.blob(a.digest).setLastModified(System.currentTimeMillis() - 60_000);
+            layout.touch(b);
+            assertEquals(0, layout.evict(layout.size(), 0));
+            assertTrue(layout.evict(layout.size() - 1, 0) > 0);
+            assertNull(layout.lookup("a"));
+            assertEquals(b.digest, layout.lookup("b").digest);
+            assertTrue(layout.contains(base.digest));
+            assertFalse(layout.contains(layerA.digest));
+            assertTrue(layout.contains(layerB.digest));
+        } finally {
+            dir.deleteTree();
+        }
+    }
+
+    /** a blob written again counts as new, so evicting with a grace period keeps it until the image is tagged */
+    @Test
+    public void evictKeepsDeduplicated() throws IOException {
+        FileNode dir;
+        OciLayout layout;
+        Descriptor layer;
+
+        dir = World.create().getTemp().createTempDirectory();
+        try {
+            layout = OciLayout.open(dir);
+            layer = layout.write(new byte[1000], Descriptor.LAYER);
+            layout.blob(layer.digest).setLastModified(System.currentTimeMillis() - 60_000);
+            assertEquals(layer.digest, layout.write(new byte[1000], Descriptor.LAYER).digest);
+            assertEquals(0, layout.evict(0, 30_000));
+            assertTrue(layout.contains(layer.digest));
+        } finally {
+            dir.deleteTree();
+        }
+    }
+
+    /** legacy docker save output: only layers and config become blobs, not the json and VERSION files of layer directories */
+    @Test
+    public void saveLegacy() throws IOException {
+        FileNode dir;
+        OciLayout layout;
+        ByteArrayOutputStream bytes;
+        Descriptor manifest;
+
+        dir = World.create().getTemp().createTempDirectory();
+        try {
+            layout = OciLayout.open(dir);
+            bytes = new ByteArrayOutputStream();
+            try (TarOutputStream tar = new TarOutputStream(bytes)) {
+                add(tar, "big/VERSION", "1.0".getBytes(StandardCharsets.UTF_8));
+                add(tar, "big/json", "{\"id\":\"big\"}".getBytes(StandardCharsets.UTF_8));
+                add(tar, "big/layer.tar", new byte[2 * 1024 * 1024]);
+                add(tar, "small/VERSION", "1.0".getBytes(StandardCharsets.UTF_8));
+                add(tar, "small/json", "{\"id\":\"small\"}".getBytes(StandardCharsets.UTF_8));
+                add(tar, "small/layer.tar", new byte[1024]);
+                add(tar, "config.json", "{}".getBytes(StandardCharsets.UTF_8));
+                add(tar, "manifest.json", ("[{\"Config\":\"config.json\",\"RepoTags\":[\"foo:1\"],"
+                        + "\"Layers\":[\"big/layer.tar\",\"small/layer.tar\"]}]").getBytes(StandardCharsets.UTF_8));
+                add(tar, "repositories", "{}".getBytes(StandardCharsets.UTF_8));
+            }
+            manifest = layout.save(new ByteArrayInputStream(bytes.toByteArray()));
+            assertEquals(3, layout.references(manifest).size());
+            assertEquals(4, dir.join("blobs/sha256").list().size());
+        } finally {
+            dir.deleteTree();
+        }
+    }
+
+    private static void add(TarOutputStream tar, String name, byte[] bytes) throws IOException {
+        tar.putNextEntry(new TarEntry(TarHeader.createHeader(name, bytes.length, System.currentTimeMillis() / 1000, false, 0644)));
+        tar.write(bytes);
+    }
+}
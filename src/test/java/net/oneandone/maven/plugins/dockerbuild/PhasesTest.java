@@ -0,0 +1,73 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild;
+
+import net.oneandone.maven.plugins.dockerbuild.model.Phases;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.junit.jupiter.api.Test;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PhasesTest {
+    @Test
+    public void concurrent() throws IOException, MojoExecutionException {
+        Phases phases;
+        Phases.Pending<String> background;
+
+        phases = new Phases();
+        background = phases.start("background", () -> {
+            sleep(200);
+            return "done";
+        });
+        assertEquals(1, (int) phases.run("foreground", () -> {
+            sleep(200);
+            return 1;
+        }));
+        assertEquals("done", background.get());
+        assertEquals(2, phases.list().size());
+        assertTrue(System.currentTimeMillis() - phases.getStarted() < 390, phases.summary());
+    }
+
+    @Test
+    public void exceptions() {
+        Phases phases;
+
+        phases = new Phases();
+        assertThrows(FileNotFoundException.class, () -> phases.start("io", () -> {
+            throw new FileNotFoundException();
+        }).get());
+        assertThrows(MojoExecutionException.class, () -> phases.start("mojo", () -> {
+            throw new MojoExecutionException("");
+        }).get());
+        assertThrows(IllegalArgumentException.class, () -> phases.start("runtime", () -> {
+            throw new IllegalArgumentException();
+        }).get());
+        assertEquals(3, phases.list().size());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
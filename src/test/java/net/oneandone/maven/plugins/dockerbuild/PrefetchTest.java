@@ -0,0 +1,84 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild;
+
+import net.oneandone.maven.plugins.dockerbuild.model.Prefetch;
+import org.codehaus.plexus.util.xml.Xpp3Dom;
+import org.codehaus.plexus.util.xml.Xpp3DomBuilder;
+import org.eclipse.aether.DefaultSessionData;
+import org.eclipse.aether.SessionData;
+import org.eclipse.aether.artifact.Artifact;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PrefetchTest {
+    @Test
+    public void dockerbuilds() throws Exception {
+        Properties user;
+        Properties project;
+
+        user = new Properties();
+        project = new Properties();
+        project.setProperty("debug.dockerbuild", "tomcat-debug");
+        assertEquals(Arrays.asList("com.dockerbuild.library:tomcat", "com.dockerbuild.library:tomcat-debug"),
+                Prefetch.dockerbuilds(xml("<configuration><dockerbuild>tomcat</dockerbuild><variants>"
+                        + "<variant><name>debug</name><dockerbuild>${debug.dockerbuild}</dockerbuild></variant>"
+                        + "<variant><name>jre</name></variant>"
+                        + "<variant><name>other</name><dockerbuild>${undefined}</dockerbuild></variant>"
+                        + "</variants></configuration>"), user, project));
+        assertEquals(Collections.singletonList("my.library:jetty"),
+                Prefetch.dockerbuilds(xml("<configuration><library>my.library</library><dockerbuild>jetty</dockerbuild></configuration>"),
+                        user, project));
+        assertEquals(Collections.emptyList(), Prefetch.dockerbuilds(xml("<configuration><dockerbuild>x-${suffix}</dockerbuild></configuration>"),
+                user, project));
+        user.setProperty("dockerbuild", "cli");
+        assertEquals(Collections.singletonList("com.dockerbuild.library:cli"), Prefetch.dockerbuilds(null, user, project));
+    }
+
+    @Test
+    public void builds() {
+        assertTrue(Prefetch.builds(Arrays.asList("clean", "install")));
+        assertTrue(Prefetch.builds(Collections.singletonList("dockerbuild:watch")));
+        assertFalse(Prefetch.builds(Arrays.asList("clean", "compile")));
+    }
+
+    @Test
+    public void lookup() {
+        SessionData data;
+        Artifact artifact;
+
+        data = new DefaultSessionData();
+        assertNull(Prefetch.lookup(data, "com.dockerbuild.library", "tomcat"));
+        Prefetch.put(data, "com.dockerbuild.library", "tomcat", "1.2", "/tmp/tomcat-1.2.jar");
+        artifact = Prefetch.lookup(data, "com.dockerbuild.library", "tomcat");
+        assertEquals("1.2", artifact.getVersion());
+        assertEquals(new File("/tmp/tomcat-1.2.jar"), artifact.getFile());
+    }
+
+    private static Xpp3Dom xml(String str) throws Exception {
+        return Xpp3DomBuilder.build(new StringReader(str));
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild;
+
+import net.oneandone.maven.plugins.dockerbuild.model.Dockerfile;
+import net.oneandone.maven.plugins.dockerbuild.model.Prepull;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PrepullTest {
+    @Test
+    public void baseImages() throws IOException {
+        Dockerfile dockerfile;
+        Map<String, String> args;
+
+        dockerfile = Dockerfile.parse("ARG jdk=11\nARG runtime\nFROM maven:3-jdk-$jdk AS build\nFROM build AS test\n"
+                + "FROM ${runtime}\nFROM scratch\nFROM maven:3-jdk-${jdk}\n");
+        assertEquals(Arrays.asList("maven:3-jdk-11"), Prepull.baseImages(dockerfile, Collections.emptyMap()));
+        args = new HashMap<>();
+        args.put("jdk", "17");
+        args.put("runtime", "tomcat:9");
+        assertEquals(Arrays.asList("maven:3-jdk-17", "tomcat:9"), Prepull.baseImages(dockerfile, args));
+    }
+
+    @Test
+    public void policy() throws MojoExecutionException {
+        assertEquals(Prepull.Policy.MISSING, Prepull.Policy.parse("missing"));
+        assertThrows(MojoExecutionException.class, () -> Prepull.Policy.parse("sometimes"));
+    }
+}
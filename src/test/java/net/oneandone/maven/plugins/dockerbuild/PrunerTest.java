@@ -0,0 +1,67 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild;
+
+import net.oneandone.maven.plugins.dockerbuild.model.Pruner;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PrunerTest {
+    private static final String A = "registry:5000/group/app:1.0-20200101-120000-000";
+    private static final String B = "registry:5000/group/app:1.0-20200102-120000-000";
+    private static final String C = "registry:5000/group/app:1.0-20200103-120000-000-feature";
+    private static final String D = "registry:5000/group/app:1.1-20200104-120000-000";
+    private static final String RELEASE = "registry:5000/group/app:1.0";
+    private static final String LATEST = "registry:5000/group/app:latest";
+
+    private static final List<String> TAGS = Arrays.asList(C, RELEASE, A, LATEST, D, B);
+
+    @Test
+    public void timestamp() {
+        assertEquals(-1, Pruner.timestamp(RELEASE));
+        assertEquals(-1, Pruner.timestamp("registry:5000/group/app-20200101-120000-000"));
+        assertEquals(Pruner.timestamp(A) + 24L * 60 * 60 * 1000, Pruner.timestamp(B));
+    }
+
+    @Test
+    public void keep() {
+        assertEquals(Arrays.asList(B, A), Pruner.select(TAGS, D, 2, null, Pruner.timestamp(D)));
+        assertEquals(Collections.emptyList(), Pruner.select(TAGS, D, 4, null, Pruner.timestamp(D)));
+        // the current image is never removed, even if it's beyond keep
+        assertEquals(Arrays.asList(D, C, B), Pruner.select(TAGS, A, 0, null, Pruner.timestamp(D)));
+    }
+
+    @Test
+    public void maxAge() {
+        assertEquals(Arrays.asList(B, A), Pruner.select(TAGS, D, 10, Pruner.parseAge("36h"), Pruner.timestamp(D)));
+        assertEquals(Arrays.asList(A), Pruner.select(TAGS, D, 3, Pruner.parseAge("5d"), Pruner.timestamp(D)));
+    }
+
+    @Test
+    public void parseAge() {
+        assertEquals(30L * 60 * 1000, Pruner.parseAge("30m"));
+        assertEquals(12L * 60 * 60 * 1000, Pruner.parseAge("12h"));
+        assertEquals(7L * 24 * 60 * 60 * 1000, Pruner.parseAge("7d"));
+        assertEquals(2L * 24 * 60 * 60 * 1000, Pruner.parseAge("2"));
+        assertThrows(IllegalArgumentException.class, () -> Pruner.parseAge("1w"));
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import net.oneandone.maven.plugins.dockerbuild.model.OciLayout;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** In-memory registry for tests, implements the parts of the registry HTTP API V2 used by this plugin; no authentication */
+public class RegistryStub implements AutoCloseable {
+    public static RegistryStub start() throws IOException {
+        HttpServer server;
+        RegistryStub result;
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        result = new RegistryStub(server);
+        server.createContext("/v2/", result::handle);
+        server.start();
+        return result;
+    }
+
+    private final HttpServer server;
+
+    /** maps digest to content */
+    public final Map<String, byte[]> blobs;
+
+    /** maps repository:reference to content type and content */
+    public final Map<String, Map.Entry<String, byte[]>> manifests;
+
+    /** counts requests by method */
+    public final Map<String, Integer> requests;
+
+    private RegistryStub(HttpServer server) {
+        this.server = server;
+        this.blobs = new ConcurrentHashMap<>();
+        this.manifests = new ConcurrentHashMap<>();
+        this.requests = new ConcurrentHashMap<>();
+    }
+
+    /** @return registry host and port, usable as image name prefix */
+    public String getAddress() {
+        return "127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public String putBlob(byte[] content) {
+        String digest;
+
+        digest = "sha256:" + OciLayout.hex(OciLayout.sha256().digest(content));
+        blobs.put(digest, content);
+        return digest;
+    }
+
+    public void putManifest(String repository, String reference, String contentType, byte[] content) {
+        Map.Entry<String, byte[]> entry;
+
+        entry = Map.entry(contentType, content);
+        manifests.put(repository + ":" + reference, entry);
+        manifests.put(repository + ":" + putBlob(content), entry);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String method;
+        String path;
+        String query;
+        int idx;
+        String repository;
+        String rest;
+        Map.Entry<String, byte[]> manifest;
+        byte[] blob;
+        byte[] body;
+
+        method = exchange.getRequestMethod();
+        requests.merge(method, 1, Integer::sum);
+        path = exchange.getRequestURI().getPath().substring("/v2/".length());
+        query = exchange.getRequestURI().getQuery();
+        try {
+            body = readAll(exchange);
+            if ((idx = path.indexOf("/manifests/")) != -1) {
+                repository = path.substring(0, idx);
+                rest = path.substring(idx + "/manifests/".length());
+                if (method.equals("PUT")) {
+                    putManifest(repository, rest, exchange.getRequestHeaders().getFirst("Content-Type"), body);
+                    respond(exchange, 201, null, null);
+                } else {
+                    manifest = manifests.get(repository + ":" + rest);
+                    if (manifest == null) {
+                        respond(exchange, 404, null, null);
+                    } else {
+                        respond(exchange, 200, manifest.getKey(), method.equals("HEAD") ? null : manifest.getValue());
+                    }
+                }
+            } else if ((idx = path.indexOf("/blobs/uploads/")) != -1) {
+                repository = path.substring(0, idx);
+                if (method.equals("POST")) {
+                    exchange.getResponseHeaders().add("Location", "/v2/" + repository + "/blobs/uploads/" + UUID.randomUUID());
+                    respond(exchange, 202, null, null);
+                } else if (method.equals("PUT") && query != null && query.startsWith("digest=")) {
+                    if (!putBlob(body).equals(query.substring("digest=".length()).replace("%3A", ":"))) {
+                        respond(exchange, 400, null, null);
+                    } else {
+                        respond(exchange, 201, null, null);
+                    }
+                } else {
+                    respond(exchange, 405, null, null);
+                }
+            } else if ((idx = path.indexOf("/blobs/")) != -1) {
+                blob = blobs.get(path.substring(idx + "/blobs/".length()));
+                if (blob == null) {
+                    respond(exchange, 404, null, null);
+                } else {
+                    respond(exchange, 200, "application/octet-stream", method.equals("HEAD") ? null : blob);
+                }
+            } else {
+                respond(exchange, 404, null, null);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static byte[] readAll(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream dest;
+
+        dest = new ByteArrayOutputStream();
+        OciLayout.copy(exchange.getRequestBody(), dest);
+        return dest.toByteArray();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        if (contentType != null) {
+            exchange.getResponseHeaders().add("Content-Type", contentType);
+        }
+        exchange.sendResponseHeaders(status, body == null ? -1 : body.length);
+        if (body != null) {
+            try (OutputStream dest = exchange.getResponseBody()) {
+                dest.write(body);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild;
+
+import net.oneandone.maven.plugins.dockerbuild.model.Retry;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RetryTest {
+    @Test
+    public void classify() {
+        assertTrue(Retry.isTransient("received unexpected HTTP status: 502 Bad Gateway"));
+        assertTrue(Retry.isTransient("https://registry.example.com/v2/: blob upload: unexpected status 503"));
+        assertTrue(Retry.isTransient("toomanyrequests: rate limit exceeded"));
+        assertTrue(Retry.isTransient("read tcp 10.0.0.1:443: read: connection reset by peer"));
+        assertTrue(Retry.isTransient("net/http: TLS handshake timeout"));
+        assertTrue(Retry.isTransient(new SocketTimeoutException("Read timed out").toString()));
+        assertTrue(Retry.isTransient("ConnectionClosedException: Premature end of chunk coded message body: closing chunk expected"));
+        assertFalse(Retry.isTransient("unauthorized: authentication required"));
+        assertFalse(Retry.isTransient("denied: requested access to the resource is denied"));
+        assertFalse(Retry.isTransient("An image does not exist locally with the tag: app"));
+        assertFalse(Retry.isTransient("https://registry.example.com/v2/: manifest: unexpected status 400"));
+        assertFalse(Retry.isTransient("sha256:5020aa: unexpected status 404"));
+        assertTrue(Retry.isTransient("HTTP/1.1 504 Gateway Timeout"));
+        assertTrue(Retry.isTransient("push failed: {\"code\": 500, \"message\": \"internal error\"}"));
+        assertTrue(Retry.isTransient("unexpected status 500: {\"errors\":[{\"code\":\"UNKNOWN\",\"message\":\"unknown error\"}]}"));
+        assertFalse(Retry.isTransient("blob 537 of layer sha256:5020aa has size 512, expected 599"));
+        assertFalse(Retry.isTransient("unexpected status 404: {\"errors\":[{\"code\":\"MANIFEST_UNKNOWN\",\"message\":\"manifest unknown\"}]}"));
+        assertFalse(Retry.isTransient(null));
+    }
+
+    @Test
+    public void backoff() {
+        Retry retry;
+        long delay;
+
+        retry = new Retry(new SystemStreamLog(), 10, 1000, new Random(42));
+        for (int i = 1; i <= 10; i++) {
+            delay = retry.delay(i);
+            assertTrue(delay >= Math.min(60_000, 1000L << (i - 1)) / 2, i + ": " + delay);
+            assertTrue(delay <= Math.min(60_000, 1000L << (i - 1)), i + ": " + delay);
+        }
+    }
+
+    @Test
+    public void retryThenSucceed() throws Exception {
+        AtomicInteger attempts;
+
+        attempts = new AtomicInteger();
+        assertEquals("ok", new Retry(new SystemStreamLog(), 3, 1, new Random(1)).run("test", (attempt) -> {
+            attempts.incrementAndGet();
+            if (attempt < 3) {
+                throw new IOException("connection reset");
+            }
+            return "ok";
+        }));
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    public void fatalNotRetried() {
+        AtomicInteger attempts;
+
+        attempts = new AtomicInteger();
+        assertFails("unauthorized", new Retry(new SystemStreamLog(), 3, 1, new Random(1)), attempts);
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    public void exhausted() {
+        AtomicInteger attempts;
+
+        attempts = new AtomicInteger();
+        assertFails("unexpected status 503", new Retry(new SystemStreamLog(), 2, 1, new Random(1)), attempts);
+        assertEquals(3, attempts.get());
+    }
+
+    private static void assertFails(String message, Retry retry, AtomicInteger attempts) {
+        try {
+            retry.run("test", (attempt) -> {
+                attempts.incrementAndGet();
+                throw new IOException(message);
+            });
+            throw new AssertionError("expected exception");
+        } catch (IOException e) {
+            assertEquals(message, e.getMessage());
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild;
+
+import net.oneandone.maven.plugins.dockerbuild.model.Dockerfile;
+import net.oneandone.maven.plugins.dockerbuild.model.Sources;
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class SourcesTest {
+    private static Sources analyze(String dockerfile, Map<String, String> actuals) throws IOException {
+        FileNode dir;
+
+        dir = World.create().getTemp().createTempDirectory();
+        try {
+            dir.join("conf").mkdir();
+            dir.join("conf/server.xml").writeString("");
+            dir.join("conf/logging.properties").writeString("");
+            dir.join("app.war").writeString("");
+            dir.join("unused.txt").writeString("");
+            return Sources.analyze(Dockerfile.parse(dockerfile), dir, actuals);
+        } finally {
+            dir.deleteTree();
+        }
+    }
+
+    @Test
+    public void referenced() throws IOException {
+        Sources sources;
+        Map<String, String> actuals;
+
+        actuals = new HashMap<>();
+        actuals.put("war", "app.war");
+        sources = analyze("ARG conf=conf\nFROM tomcat\nARG war\nARG conf\nCOPY ${war} /webapps/ROOT.war\nCOPY $conf/ /conf/\n"
+                + "ADD https://example.com/x.tgz /opt/\n", actuals);
+        assertEquals(Arrays.asList(".dockerignore", "Dockerfile", "app.war", "conf"), sources.paths);
+    }
+
+    @Test
+    public void wildcards() throws IOException {
+        Sources sources;
+
+        sources = analyze("FROM tomcat\nCOPY conf/*.xml ./*.war /dest/\n", Collections.emptyMap());
+        assertEquals(Arrays.asList(".dockerignore", "Dockerfile", "app.war", "conf/server.xml"), sources.paths);
+        sources = analyze("FROM tomcat\nCOPY *.jar /dest/\n", Collections.emptyMap());
+        assertNull(sources.paths);
+    }
+
+    @Test
+    public void uncertain() throws IOException {
+        assertNull(analyze("FROM tomcat\nCOPY . /dest/\n", Collections.emptyMap()).paths);
+        assertNull(analyze("FROM tomcat\nCOPY ../x /dest/\n", Collections.emptyMap()).paths);
+        assertNull(analyze("FROM tomcat\nARG war\nCOPY ${war} /dest/\n", Collections.emptyMap()).paths);
+        assertNull(analyze("FROM tomcat\nENV dir=conf\nCOPY $dir /dest/\n", Collections.emptyMap()).paths);
+        assertNull(analyze("FROM tomcat\nARG dir=conf\nCOPY ${dir:-x} /dest/\n", Collections.emptyMap()).paths);
+    }
+
+    @Test
+    public void argumentScope() throws IOException {
+        // global ARG not re-declared in the stage expands to the empty string
+        assertNull(analyze("ARG dir=conf\nFROM tomcat\nCOPY ${dir}/ /dest/\n", Collections.emptyMap()).paths);
+        // ARG declared after the COPY
+        assertNull(analyze("FROM tomcat\nCOPY ${dir}/ /dest/\nARG dir=conf\n", Collections.emptyMap()).paths);
+        // ARG of another stage
+        assertNull(analyze("FROM tomcat AS first\nARG dir=conf\nFROM tomcat\nCOPY ${dir}/ /dest/\n", Collections.emptyMap()).paths);
+        assertEquals(Arrays.asList(".dockerignore", "Dockerfile", "conf"),
+                analyze("ARG dir=conf\nFROM tomcat\nARG dir\nCOPY ${dir}/ /dest/\n", Collections.emptyMap()).paths);
+    }
+
+    @Test
+    public void bindMounts() throws IOException {
+        assertEquals(Arrays.asList(".dockerignore", "Dockerfile", "app.war", "conf"),
+                analyze("FROM tomcat\nCOPY app.war /dest/\nRUN --mount=type=bind,source=conf,target=/conf "
+                        + "--mount=type=cache,target=/root/.m2 --mount=type=bind,from=build,target=/x ls\n", Collections.emptyMap()).paths);
+        assertNull(analyze("FROM tomcat\nRUN --mount=target=/src make\n", Collections.emptyMap()).paths);
+        assertNull(analyze("FROM tomcat\nRUN --mount=type=bind,src=../x,target=/x ls\n", Collections.emptyMap()).paths);
+    }
+
+    @Test
+    public void onBuild() throws IOException {
+        // triggers of the final stage don't run in this build
+        assertEquals(Arrays.asList(".dockerignore", "Dockerfile", "app.war"),
+                analyze("FROM tomcat\nCOPY app.war /dest/\nONBUILD COPY . /app\n", Collections.emptyMap()).paths);
+        assertNull(analyze("FROM tomcat AS base\nONBUILD COPY . /app\nFROM base\nCOPY app.war /dest/\n", Collections.emptyMap()).paths);
+    }
+
+    @Test
+    public void copyFromStage() throws IOException {
+        Sources sources;
+
+        sources = analyze("FROM maven AS build\nCOPY conf /src\nFROM tomcat\nCOPY --from=build /src/target/x.war /dest/\n",
+                Collections.emptyMap());
+        assertEquals(Arrays.asList(".dockerignore", "Dockerfile", "conf"), sources.paths);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild;
+
+import net.oneandone.maven.plugins.dockerbuild.model.BuildRecord;
+import net.oneandone.maven.plugins.dockerbuild.model.Dockerfile;
+import net.oneandone.maven.plugins.dockerbuild.model.ThinBuild;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class ThinBuildTest {
+    private static final String DOCKERFILE = "FROM tomcat:9\nARG war\nRUN install\nCOPY --chown=1000 ${war} /webapps/\nUSER 1000\nCMD run\n";
+
+    @Test
+    public void possible() throws IOException {
+        ThinBuild thin;
+
+        thin = plan(DOCKERFILE, files("x", "2"));
+        assertNull(thin.impossible);
+        assertEquals("FROM 1234\nCOPY --chown=1000 app.war /webapps/app.war\n", thin.dockerfile());
+    }
+
+    @Test
+    public void impossible() throws IOException {
+        assertEquals("no context file changed", plan(DOCKERFILE, files("x", "1")).impossible);
+        assertEquals("Dockerfile changed", plan(DOCKERFILE, files("y", "2")).impossible);
+        assertEquals("line 4: RUN after copying a changed file",
+                plan("FROM tomcat:9\nARG war\nCOPY ${war} /webapps/\nRUN unzip /webapps/app.war\n", files("x", "2")).impossible);
+        assertEquals("line 3: changed file app.war not copied by a plain COPY",
+                plan("FROM tomcat:9\nARG war\nADD ${war} /webapps/\n", files("x", "2")).impossible);
+        assertEquals("line 3: copies a directory or pattern with changed files",
+                plan("FROM tomcat:9\nARG war\nCOPY . /webapps/\n", files("x", "2")).impossible);
+        assertEquals("line 4: overwrites a copied file",
+                plan("FROM tomcat:9\nARG war\nCOPY ${war} /webapps/ROOT.war\nCOPY Dockerfile /webapps/\n", files("x", "2")).impossible);
+        assertEquals("line 3: stage build copies changed files",
+                plan("FROM maven AS build\nARG war\nCOPY ${war} /src/\nFROM tomcat:9\nCOPY --from=build /src /webapps\n", files("x", "2")).impossible);
+        assertEquals("line 3: cannot resolve destination $HOME/",
+                plan("FROM tomcat:9\nARG war\nCOPY ${war} $HOME/\n", files("x", "2")).impossible);
+        assertEquals("no previous build", ThinBuild.plan(null, "g:a:1", Collections.emptyMap(), files("x", "2"),
+                Collections.emptyMap(), Dockerfile.parse(DOCKERFILE)).impossible);
+    }
+
+    private static ThinBuild plan(String dockerfile, Map<String, String> files) throws IOException {
+        BuildRecord previous;
+
+        previous = new BuildRecord("g:a:1", Collections.singletonMap("war", "app.war"), files("x", "1"), Collections.emptyMap(),
+                new ArrayList<>(), "sha256:1234");
+        return ThinBuild.plan(previous, "g:a:1", Collections.singletonMap("war", "app.war"), files, Collections.emptyMap(),
+                Dockerfile.parse(dockerfile));
+    }
+
+    private static Map<String, String> files(String dockerfile, String war) {
+        Map<String, String> result;
+
+        result = new TreeMap<>();
+        result.put("Dockerfile", dockerfile);
+        result.put("app.war", war);
+        return result;
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild;
+
+import com.github.dockerjava.core.DefaultDockerClientConfig;
+import com.github.dockerjava.core.DockerClientConfig;
+import com.github.dockerjava.transport.DockerHttpClient;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import net.oneandone.maven.plugins.dockerbuild.model.Transport;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.eclipse.aether.DefaultSessionData;
+import org.eclipse.aether.SessionData;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TransportTest {
+    @Test
+    public void limit() throws Exception {
+        Transport transport;
+        List<DockerHttpClient.Response> open;
+        CompletableFuture<DockerHttpClient.Response> blocked;
+
+        transport = new Transport("test", new DockerHttpClient() {
+            @Override
+            public Response execute(Request request) {
+                return response();
+            }
+
+            @Override
+            public void close() {
+            }
+        }, null, 2, new Semaphore(2, true));
+        open = new ArrayList<>();
+        open.add(transport.execute(get("/a")));
+        open.add(transport.execute(get("/b")));
+        blocked = CompletableFuture.supplyAsync(() -> transport.execute(get("/c")));
+        Thread.sleep(100);
+        assertFalse(blocked.isDone());
+        open.get(0).close();
+        open.get(0).close(); // releases only once
+        blocked.get(5, TimeUnit.SECONDS).close();
+        open.get(1).close();
+        assertEquals(3, transport.getRequests());
+        assertEquals(1, transport.getWaited());
+        assertEquals(2, transport.getPeak());
+        assertEquals(-1, transport.getIdle());
+        assertTrue(transport.getMaxWaitMillis() >= 50);
+    }
+
+    @Test
+    public void jdk() throws Exception {
+        transport(Transport.JDK);
+    }
+
+    @Test
+    public void zerodep() throws Exception {
+        Transport transport;
+
+        transport = transport(Transport.ZERODEP);
+        assertTrue(transport.getIdle() >= 1, transport.summary());
+    }
+
+    /** transports of one session share the limit per daemon, e.g. modules of a parallel reactor build */
+    @Test
+    public void shared() throws Exception {
+        HttpServer server;
+        SessionData data;
+        List<DockerHttpClient.Response> open;
+        CompletableFuture<DockerHttpClient.Response> blocked;
+        Thread waiting;
+
+        server = server();
+        data = new DefaultSessionData();
+        try (Transport first = Transport.create(new SystemStreamLog(), config(server), Transport.JDK, 2, 5, 5, data);
+             Transport second = Transport.create(new SystemStreamLog(), config(server), Transport.JDK, 2, 5, 5, data)) {
+            open = new ArrayList<>();
+            open.add(first.execute(get("/_ping")));
+            open.add(first.execute(get("/_ping")));
+            blocked = CompletableFuture.supplyAsync(() -> second.execute(get("/_ping")));
+            Thread.sleep(100);
+            assertFalse(blocked.isDone());
+            open.get(0).close();
+            blocked.get(5, TimeUnit.SECONDS).close();
+            open.get(1).close();
+            assertEquals(1, second.getWaited());
+
+            // waiting for a connection can be interrupted, e.g. by a build timeout
+            open.add(first.execute(get("/_ping")));
+            open.add(first.execute(get("/_ping")));
+            waiting = new Thread(() -> {
+                try {
+                    second.execute(get("/_ping"));
+                } catch (IllegalStateException e) {
+                    // expected
+                }
+            });
+            waiting.start();
+            Thread.sleep(100);
+            waiting.interrupt();
+            waiting.join(5000);
+            assertFalse(waiting.isAlive());
+            open.get(2).close();
+            open.get(3).close();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void invalid() throws IOException {
+        HttpServer server;
+
+        server = server();
+        try {
+            assertFails("unknown transport", () -> Transport.create(new SystemStreamLog(), config(server), "curl", 4, 1, 0, null));
+            assertFails("maxConnections too small", () -> Transport.create(new SystemStreamLog(), config(server), Transport.JDK, 1, 1, 0, null));
+            assertFails("jdk transport needs a tcp docker host", () -> Transport.create(new SystemStreamLog(),
+                    DefaultDockerClientConfig.createDefaultConfigBuilder().withDockerHost("unix:///var/run/docker.sock").build(),
+                    Transport.JDK, 4, 1, 0, null));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private interface Create {
+        void run() throws MojoExecutionException;
+    }
+
+    private static void assertFails(String message, Create create) {
+        try {
+            create.run();
+            throw new AssertionError("expected exception: " + message);
+        } catch (MojoExecutionException e) {
+            assertTrue(e.getMessage().startsWith(message), e.getMessage());
+        }
+    }
+
+    private static Transport transport(String kind) throws Exception {
+        HttpServer server;
+        Transport transport;
+
+        server = server();
+        try (Transport t = Transport.create(new SystemStreamLog(), config(server), kind, 4, 5, 5, null)) {
+            transport = t;
+            try (DockerHttpClient.Response response = transport.execute(get("/_ping"))) {
+                assertEquals(200, response.getStatusCode());
+                assertEquals("OK", new String(response.getBody().readAllBytes(), StandardCharsets.UTF_8));
+            }
+            try (DockerHttpClient.Response response = transport.execute(DockerHttpClient.Request.builder()
+                    .method(DockerHttpClient.Request.Method.POST).path("/echo")
+                    .putHeader("Content-Type", "application/x-tar")
+                    .body(new ByteArrayInputStream("payload".getBytes(StandardCharsets.UTF_8))).build())) {
+                assertEquals(200, response.getStatusCode());
+                assertEquals("payload", new String(response.getBody().readAllBytes(), StandardCharsets.UTF_8));
+            }
+        } finally {
+            server.stop(0);
+        }
+        assertEquals(2, transport.getRequests());
+        assertEquals(0, transport.getWaited());
+        return transport;
+    }
+
+    private static HttpServer server() throws IOException {
+        HttpServer server;
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", TransportTest::handle);
+        server.start();
+        return server;
+    }
+
+    private static void handle(HttpExchange exchange) throws IOException {
+        byte[] body;
+
+        try {
+            if (exchange.getRequestURI().getPath().equals("/echo")) {
+                try (InputStream src = exchange.getRequestBody()) {
+                    body = src.readAllBytes();
+                }
+            } else {
+                body = "OK".getBytes(StandardCharsets.UTF_8);
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream dest = exchange.getResponseBody()) {
+                dest.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static DockerClientConfig config(HttpServer server) {
+        return DefaultDockerClientConfig.createDefaultConfigBuilder()
+                .withDockerHost("tcp://127.0.0.1:" + server.getAddress().getPort()).withDockerTlsVerify(false).build();
+    }
+
+    private static DockerHttpClient.Request get(String path) {
+        return DockerHttpClient.Request.builder().method(DockerHttpClient.Request.Method.GET).path(path).build();
+    }
+
+    private static DockerHttpClient.Response response() {
+        return new DockerHttpClient.Response() {
+            @Override
+            public int getStatusCode() {
+                return 200;
+            }
+
+            @Override
+            public Map<String, List<String>> getHeaders() {
+                return Collections.emptyMap();
+            }
+
+            @Override
+            public InputStream getBody() {
+                return new ByteArrayInputStream(new byte[0]);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild;
+
+import net.oneandone.maven.plugins.dockerbuild.model.Arguments;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class VariantTest {
+    @Test
+    public void merge() throws MojoExecutionException {
+        Variant main;
+        Variant debug;
+        Variant other;
+
+        main = new Variant(null, "tomcat", "1", null, "%g/%a:%V", arguments("war", "%artifact:war", "debug", "false"));
+        debug = new Variant("debug", null, null, "debug", null, arguments("debug", "true")).merge(main);
+        assertEquals("tomcat", debug.getDockerbuild());
+        assertEquals("1", debug.getVersion());
+        assertEquals("debug", debug.getTarget());
+        assertEquals("%g/%a:%V-debug", debug.getImage());
+        assertEquals(arguments("war", "%artifact:war", "debug", "true"), debug.getArguments());
+        assertFalse(debug.sameContext(main));
+        assertTrue(new Variant("jre", null, null, null, "%g/%a-jre:%V", null).merge(main).sameContext(main));
+
+        other = new Variant("jetty", "jetty", null, null, null, null).merge(main);
+        assertNull(other.getVersion()); // version belongs to the execution's dockerbuild
+        assertFalse(other.sameContext(main));
+    }
+
+    @Test
+    public void invalidName() {
+        Variant main;
+
+        main = new Variant(null, "tomcat", null, null, "%g/%a:%V", Collections.emptyMap());
+        assertThrows(MojoExecutionException.class, () -> new Variant().merge(main));
+        assertThrows(MojoExecutionException.class, () -> new Variant("../x", null, null, null, null, null).merge(main));
+    }
+
+    @Test
+    public void writesContext() {
+        assertFalse(Arguments.writesContext(arguments("war", "%artifact:war", "mode", "copy:%x"), 0));
+        assertTrue(Arguments.writesContext(arguments("config", "%copy:src/config.yaml"), 0));
+        assertTrue(Arguments.writesContext(arguments("config", "%base64:%filtercopy:src/config.yaml"), 0));
+        assertTrue(Arguments.writesContext(Collections.emptyMap(), 1024));
+    }
+
+    private static Map<String, String> arguments(String... keyValues) {
+        Map<String, String> result;
+
+        result = new HashMap<>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            result.put(keyValues[i], keyValues[i + 1]);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 1&1 Internet AG, https://github.com/1and1/
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.oneandone.maven.plugins.dockerbuild;
+
+import net.oneandone.maven.plugins.dockerbuild.model.Watcher;
+import net.oneandone.sushi.fs.World;
+import net.oneandone.sushi.fs.file.FileNode;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class WatcherTest {
+    /** changes in quick succession are reported once, unrelated files are ignored */
+    @Test
+    public void debounce() throws Exception {
+        FileNode dir;
+        FileNode war;
+        FileNode properties;
+        FileNode unrelated;
+        ExecutorService executor;
+        Future<Set<FileNode>> changed;
+
+        dir = World.create().getTemp().createTempDirectory();
+        war = dir.join("app.war").writeString("1");
+        properties = dir.join("app.properties").writeString("a=1");
+        unrelated = dir.join("other.txt");
+        executor = Executors.newSingleThreadExecutor();
+        try (Watcher watcher = new Watcher()) {
+            watcher.watch(Arrays.asList(war, properties, dir.join("nosuchdir/file")));
+            changed = executor.submit(() -> watcher.await(300));
+            unrelated.writeString("x");
+            Thread.sleep(100);
+            war.writeString("2");
+            Thread.sleep(100);
+            properties.writeString("a=2");
+            assertEquals(new HashSet<>(Arrays.asList(war, properties)), changed.get());
+        } finally {
+            executor.shutdownNow();
+            dir.deleteTree();
+        }
+    }
+}